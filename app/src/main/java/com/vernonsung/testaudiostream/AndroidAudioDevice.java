@@ -0,0 +1,98 @@
+package com.vernonsung.testaudiostream;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioRecord;
+import android.media.AudioTrack;
+import android.media.MediaRecorder;
+import android.os.Process;
+import android.util.Log;
+
+// Microphone and earpiece of the device as the input and output of a CallPipeline, plus the
+// thread setup its lanes need. Lanes get the urgent audio priority, the highest an app can ask
+// for. Android apps can't pin threads to cores, so priority is all there is.
+public class AndroidAudioDevice implements CallPipeline.AudioInput, CallPipeline.AudioOutput,
+        PipelineScheduler.ThreadSetup {
+    private static final String LOG_TAG = "testtest";
+    // Device buffers hold this many pipeline frames at least
+    private static final int BUFFER_FRAMES = 4;
+
+    private final AudioRecord record;
+    private final AudioTrack track;
+    // Samples handed to the track so far
+    private long writtenSamples;
+
+    public AndroidAudioDevice(int sampleRate) {
+        int frameBytes = sampleRate * CallPipeline.FRAME_MILLIS / 1000 * 2;
+        int recordSize = Math.max(BUFFER_FRAMES * frameBytes, AudioRecord.getMinBufferSize(sampleRate,
+                AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT));
+        record = new AudioRecord(MediaRecorder.AudioSource.VOICE_COMMUNICATION, sampleRate,
+                AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, recordSize);
+        int trackSize = Math.max(BUFFER_FRAMES * frameBytes, AudioTrack.getMinBufferSize(sampleRate,
+                AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT));
+        track = new AudioTrack(AudioManager.STREAM_VOICE_CALL, sampleRate, AudioFormat.CHANNEL_OUT_MONO,
+                AudioFormat.ENCODING_PCM_16BIT, trackSize, AudioTrack.MODE_STREAM);
+        if (record.getState() != AudioRecord.STATE_INITIALIZED || track.getState() != AudioTrack.STATE_INITIALIZED) {
+            release();
+            throw new IllegalStateException("Audio device at " + sampleRate + " Hz isn't available");
+        }
+    }
+
+    // Rate the device plays at without resampling of its own. A pipeline at another rate can
+    // convert to it with CallPipeline.setDeviceSampleRate().
+    public static int getNativeSampleRate() {
+        return AudioTrack.getNativeOutputSampleRate(AudioManager.STREAM_VOICE_CALL);
+    }
+
+    public void start() {
+        record.startRecording();
+        track.play();
+    }
+
+    public void stop() {
+        record.stop();
+        track.stop();
+        track.flush();
+        writtenSamples = 0;
+    }
+
+    public void release() {
+        record.release();
+        track.release();
+    }
+
+    @Override
+    public int read(short[] pcm, int offset, int samples) {
+        int n = record.read(pcm, offset, samples);
+        if (n < 0) {
+            Log.e(LOG_TAG, "AudioRecord read failed " + n);
+            return 0;
+        }
+        return n;
+    }
+
+    @Override
+    public int write(short[] pcm, int offset, int samples) {
+        int n = track.write(pcm, offset, samples);
+        if (n < 0) {
+            Log.e(LOG_TAG, "AudioTrack write failed " + n);
+            return 0;
+        }
+        writtenSamples += n;
+        return n;
+    }
+
+    @Override
+    public int getQueuedSamples() {
+        // The head position is an unsigned 32-bit frame count
+        long played = track.getPlaybackHeadPosition() & 0xFFFFFFFFL;
+        long queued = writtenSamples - played;
+        return queued < 0 || queued > Integer.MAX_VALUE ? -1 : (int) queued;
+    }
+
+    @Override
+    public void onThreadStart(Thread thread) {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+        Log.d(LOG_TAG, thread.getName() + " lane runs at urgent audio priority");
+    }
+}
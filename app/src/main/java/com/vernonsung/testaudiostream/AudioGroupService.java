@@ -3,26 +3,40 @@ package com.vernonsung.testaudiostream;
 import android.app.Notification;
 import android.app.PendingIntent;
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.media.AudioManager;
+import android.net.ConnectivityManager;
+import android.net.TrafficStats;
 import android.net.rtp.AudioCodec;
 import android.net.rtp.AudioGroup;
 import android.net.rtp.AudioStream;
 import android.net.rtp.RtpStream;
 import android.net.wifi.WifiManager;
 import android.os.Binder;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.PowerManager;
+import android.os.Process;
+import android.os.SystemClock;
 import android.util.Log;
 
-import java.net.Inet4Address;
+import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
-import java.net.NetworkInterface;
+import java.net.SocketAddress;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 public class AudioGroupService extends Service implements AudioManager.OnAudioFocusChangeListener{
     public class LocalBinder extends Binder {
@@ -30,65 +44,301 @@ public class AudioGroupService extends Service implements AudioManager.OnAudioFo
             // Return this instance of service so clients can call public methods
             return AudioGroupService.this;
         }
+
+        // Call-quality metrics of every stream, e.g. for RtpConnectActivity to display
+        List<StreamMetrics.Snapshot> getMetrics() {
+            return metrics.snapshot();
+        }
+
+        // SDP to give the remote side: our offer, or the answer to the last offer received
+        String getLocalDescription() {
+            return localDescription == null ? null : localDescription.toString();
+        }
     }
 
     enum PlayerState {
-        INITIAL, PREPARED, PLAYING
+        // PIPELINE plays on the Java CallPipeline instead of the AudioGroup
+        INITIAL, PREPARED, PLAYING, PIPELINE
     }
 
     public static final String ACTION_PLAY = "com.vernonsung.testaudiostream.action.play";
     public static final String ACTION_STOP = "com.vernonsung.testaudiostream.action.stop";
+    public static final String ACTION_ADD_PARTICIPANT = "com.vernonsung.testaudiostream.action.add_participant";
+    public static final String ACTION_REMOVE_PARTICIPANT = "com.vernonsung.testaudiostream.action.remove_participant";
     public static final String INTENT_EXTRA_IP = "com.vernonsung.testaudiostream.IP";
     public static final String INTENT_EXTRA_PORT = "com.vernonsung.testaudiostream.PORT";
+    // SDP of the remote side. With either one, IP and port come from the SDP instead.
+    public static final String INTENT_EXTRA_SDP_OFFER = "com.vernonsung.testaudiostream.SDP_OFFER";
+    public static final String INTENT_EXTRA_SDP_ANSWER = "com.vernonsung.testaudiostream.SDP_ANSWER";
+    // With this boolean extra a PLAY with plain IP and port runs the call on the Java CallPipeline
+    // with G.711 u-law, instead of the platform's AudioGroup. No SDP and no participants then.
+    public static final String INTENT_EXTRA_JAVA_PIPELINE = "com.vernonsung.testaudiostream.JAVA_PIPELINE";
     private static final String LOG_TAG = "testtest";
     private static final String WIFI_LOCK = "wifiLock";
     private static final String WAKE_LOCK = "wakeLock";
+    // AudioGroup mixes every joined stream natively and documents no limit. This is our own cap,
+    // to keep the native mix and the open sockets bounded.
+    private static final int MAX_PARTICIPANTS = 32;
+    // How often to look for the first packet of a call, and for how long
+    private static final long FIRST_PACKET_POLL_MILLIS = 10;
+    private static final long FIRST_PACKET_TIMEOUT_MILLIS = 5000;
+    // The native streams count nothing of their own. The app's traffic counters give what they
+    // send and receive together, shown under this name.
+    private static final String ALL_STREAMS = "all streams";
+    private static final long TRAFFIC_POLL_MILLIS = 1000;
+    // What peers that exchange no SDP have always used
+    private static final String ASSUMED_ENCODING = "AMR";
     private final IBinder mBinder = new LocalBinder();
     private AudioStream stream;
+    // Socket already open for the next change of target, so a switch only has to join it
+    private AudioStream spare;
     private AudioGroup group;
     private InetSocketAddress remoteSocket;
+    private InetAddress localIp;
+    // Conference participants in joining order. The first one uses the primary stream.
+    private final LinkedHashMap<InetSocketAddress, AudioStream> participants = new LinkedHashMap<>();
+    private final CallMetrics metrics = new CallMetrics();
+    private SdpNegotiator negotiator;
+    private SessionDescription localDescription;
     private int originalAudioMode = AudioManager.MODE_INVALID;
     private PowerManager.WakeLock wakeLock = null;
     private WifiManager.WifiLock wifiLock = null;
     private PlayerState currentState = PlayerState.INITIAL;
+    // Local addresses, refreshed on the worker thread whenever connectivity changes
+    private final LocalAddressTable addressTable = new LocalAddressTable(LocalAddressTable.SYSTEM);
+    // Source address the system routes each remote from, probed on the worker thread. Null if
+    // there is no route.
+    private final Map<InetAddress, InetAddress> routes =
+            Collections.synchronizedMap(new HashMap<InetAddress, InetAddress>());
+    // Which of them suits each remote, so participants can be on different interfaces
+    private final InterfaceSelector selector = new InterfaceSelector(addressTable,
+            new InterfaceSelector.RouteProbe() {
+                // Probing connects a socket, which the main thread isn't allowed to do, and it
+                // mustn't wait for the worker either. A remote not probed yet is ranked without
+                // its route this time and probed for the next.
+                @Override
+                public InetAddress sourceFor(final InetAddress remote) {
+                    if (Looper.myLooper() == workerThread.getLooper()) {
+                        return probeRoute(remote);
+                    }
+                    synchronized (routes) {
+                        if (routes.containsKey(remote)) {
+                            return routes.get(remote);
+                        }
+                    }
+                    worker.post(new Runnable() {
+                        @Override
+                        public void run() {
+                            probeRoute(remote);
+                            selector.forget(remote);
+                        }
+                    });
+                    return null;
+                }
+            });
+    // Startup and other slow work runs here instead of on the main thread
+    private HandlerThread workerThread;
+    private Handler worker;
+    private Handler mainHandler;
+    private boolean initializing;
+    private boolean destroyed;
+    // Commands that arrived while initializing, handled as soon as it's done
+    private final List<Intent> pendingCommands = new ArrayList<>();
+    private long createdAt;
+    // When the current call was asked for, to measure the time to its first packet
+    private long playRequestedAt;
+    // Polls for the first packet of the current call. Set on the main thread, null when there's
+    // nothing to watch.
+    private volatile Runnable firstPacketWatch;
+    // The call while PIPELINE. Packets go to the target from the send lane.
+    private CallPipeline pipeline;
+    private AndroidAudioDevice audioDevice;
+    private RtpTransport transport;
+    private RtpTransport.Endpoint endpoint;
+    private volatile InetSocketAddress pipelineTarget;
+    private final BroadcastReceiver connectivityReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            worker.post(refreshAddresses);
+        }
+    };
 
     public AudioGroupService() {
     }
 
     @Override
     public void onCreate() {
-        // Get local address
-        InetAddress localIp = getLocalIpAddress();
-        if (localIp == null) {
-            Log.d(LOG_TAG, "Local IP not found");
-            stopSelf();
-            return;
+        createdAt = SystemClock.elapsedRealtime();
+        mainHandler = new Handler(Looper.getMainLooper());
+        workerThread = new HandlerThread("AudioGroupService");
+        workerThread.start();
+        worker = new Handler(workerThread.getLooper());
+        initializing = true;
+        worker.post(initialize);
+        registerReceiver(connectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+    }
+
+    // Worker thread. Find the local address and open the streams and the group, so the first
+    // PLAY only has to associate and join.
+    private final Runnable initialize = new Runnable() {
+        @Override
+        public void run() {
+            addressTable.refresh();
+            final InetAddress ip = addressTable.select();
+            AudioStream s = null;
+            AudioStream sp = null;
+            AudioGroup g = null;
+            if (ip != null) {
+                try {
+                    s = new AudioStream(ip);
+                    s.setMode(RtpStream.MODE_NORMAL);
+                    sp = createSpareStream(ip);
+                    g = new AudioGroup();
+                    g.setMode(AudioGroup.MODE_ECHO_SUPPRESSION);
+                } catch (SocketException e) {
+                    Log.e(LOG_TAG, "Initial AudioStream failed because " + e.getMessage());
+                    s = null;
+                }
+            }
+            final AudioStream readyStream = s;
+            final AudioStream readySpare = sp;
+            final AudioGroup readyGroup = g;
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onInitialized(ip, readyStream, readySpare, readyGroup);
+                }
+            });
         }
-        Log.d(LOG_TAG, "Local IP " + localIp.getHostAddress());
+    };
 
-        // Initial stream
-        try {
-            stream = new AudioStream(localIp);
-        } catch (SocketException e) {
-            Log.e(LOG_TAG, "Initial AudioStream failed because " + e.getMessage());
-            e.printStackTrace();
-            return;
+    // Worker thread. Add the app's traffic since the last poll to the metrics of all streams,
+    // until the call stops and they are gone.
+    private final Runnable pollTraffic = new Runnable() {
+        private final long[] last = new long[4];
+        private final long[] now = new long[4];
+        // The call's metrics the last counters belong to
+        private StreamMetrics counted;
+
+        @Override
+        public void run() {
+            StreamMetrics all = metrics.get(ALL_STREAMS);
+            if (all == null) {
+                return;
+            }
+            int uid = Process.myUid();
+            now[0] = TrafficStats.getUidTxPackets(uid);
+            now[1] = TrafficStats.getUidTxBytes(uid);
+            now[2] = TrafficStats.getUidRxPackets(uid);
+            now[3] = TrafficStats.getUidRxBytes(uid);
+            if (now[1] == TrafficStats.UNSUPPORTED) {
+                metrics.unregister(ALL_STREAMS);
+                return;
+            }
+            if (all == counted) {
+                all.addTraffic(now[0] - last[0], now[1] - last[1], now[2] - last[2], now[3] - last[3]);
+            }
+            counted = all;
+            System.arraycopy(now, 0, last, 0, now.length);
+            worker.postDelayed(this, TRAFFIC_POLL_MILLIS);
         }
-        Log.d(LOG_TAG, "Local port " + String.valueOf(stream.getLocalPort()));
-        stream.setCodec(AudioCodec.AMR);
-        stream.setMode(RtpStream.MODE_NORMAL);
+    };
 
-        // Initial group
-        group = new AudioGroup();
-        group.setMode(AudioGroup.MODE_ECHO_SUPPRESSION);
+    // Worker thread
+    private final Runnable refreshAddresses = new Runnable() {
+        @Override
+        public void run() {
+            if (!addressTable.refresh()) {
+                return;
+            }
+            routes.clear();
+            final InetAddress selected = addressTable.select();
+            Log.d(LOG_TAG, "Local addresses changed " + addressTable.getEntries());
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    onAddressesChanged(selected);
+                }
+            });
+        }
+    };
+
+    // INITIAL -> PREPARED, then handle whatever was asked for meanwhile
+    private void onInitialized(InetAddress ip, AudioStream s, AudioStream sp, AudioGroup g) {
+        initializing = false;
+        if (destroyed) {
+            if (s != null) {
+                s.release();
+            }
+            if (sp != null) {
+                sp.release();
+            }
+            return;
+        }
+        if (s == null) {
+            Log.d(LOG_TAG, "Local IP not found");
+            pendingCommands.clear();
+            stopSelf();
+            return;
+        }
+        localIp = ip;
+        stream = s;
+        spare = sp;
+        group = g;
+        Log.d(LOG_TAG, "Local IP " + localIp.getHostAddress() + " port " + stream.getLocalPort());
+        // Without SDP both sides use the most preferred codec
+        negotiator = new SdpNegotiator(getSupportedFormats(), SdpNegotiator.Preference.QUALITY);
+        negotiator.setAssumedEncoding(ASSUMED_ENCODING);
+        stream.setCodec(toAudioCodec(negotiator.getLocalFormats().get(0)));
+        localDescription = negotiator.createOffer(localIp.getHostAddress(), stream.getLocalPort());
 
         // Change state
         currentState = PlayerState.PREPARED;
-        Log.d(LOG_TAG, "Service state -> PREPARED");
+        Log.d(LOG_TAG, "Service state -> PREPARED in " + (SystemClock.elapsedRealtime() - createdAt) + " ms");
+        List<Intent> commands = new ArrayList<>(pendingCommands);
+        pendingCommands.clear();
+        for (Intent intent : commands) {
+            handleCommand(intent);
+        }
+    }
+
+    // Streams keep the address they are bound to. New ones, starting with the spare, use the
+    // newly selected address.
+    private void onAddressesChanged(InetAddress selected) {
+        if (destroyed || currentState == PlayerState.INITIAL || selected == null) {
+            return;
+        }
+        if (!addressTable.contains(localIp)) {
+            Log.w(LOG_TAG, "Local IP " + localIp.getHostAddress() + " is gone");
+        }
+        if (selected.equals(localIp)) {
+            return;
+        }
+        localIp = selected;
+        if (spare != null) {
+            spare.release();
+        }
+        spare = createSpareStream(localIp);
+        Log.d(LOG_TAG, "Local IP -> " + localIp.getHostAddress());
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
+        String action = intent.getAction();
+        if ((ACTION_PLAY.equals(action) || ACTION_ADD_PARTICIPANT.equals(action)) &&
+                currentState != PlayerState.PLAYING && playRequestedAt == 0) {
+            playRequestedAt = SystemClock.elapsedRealtime();
+        }
+        if (initializing) {
+            pendingCommands.add(intent);
+        } else {
+            handleCommand(intent);
+        }
+        // Don't restart service with last intent if it's killed by the system
+        return START_NOT_STICKY;
+    }
+
+    private void handleCommand(Intent intent) {
         switch (intent.getAction()) {
             case ACTION_PLAY:
                 onActionPlay(intent);
@@ -96,12 +346,16 @@ public class AudioGroupService extends Service implements AudioManager.OnAudioFo
             case ACTION_STOP:
                 onActionStop();
                 break;
+            case ACTION_ADD_PARTICIPANT:
+                onActionAddParticipant(intent);
+                break;
+            case ACTION_REMOVE_PARTICIPANT:
+                onActionRemoveParticipant(intent);
+                break;
             default:
                 Log.e(LOG_TAG, "Unknown action " + intent.getAction());
                 break;
         }
-        // Don't restart service with last intent if it's killed by the system
-        return START_NOT_STICKY;
     }
 
     @Override
@@ -111,13 +365,27 @@ public class AudioGroupService extends Service implements AudioManager.OnAudioFo
 
     @Override
     public void onDestroy() {
+        destroyed = true;
+        unregisterReceiver(connectivityReceiver);
+        stopFirstPacketWatch();
+        workerThread.quitSafely();
         if (abandonFocus()) {
             Log.d(LOG_TAG, "Abandon audio focus successfully");
         } else {
             Log.d(LOG_TAG, "Abandon audio focus failed");
         }
+        // Every participant leaves the group, and all but the primary stream are released
+        stopPlayAudio();
         restoreAudioMode();
         releaseLock();
+        if (stream != null) {
+            stream.release();
+            stream = null;
+        }
+        if (spare != null) {
+            spare.release();
+            spare = null;
+        }
     }
 
     // Be aware of audio focus change
@@ -157,21 +425,46 @@ public class AudioGroupService extends Service implements AudioManager.OnAudioFo
             stopSelf();
             return;
         }
+        boolean sdp = intent.getStringExtra(INTENT_EXTRA_SDP_OFFER) != null
+                || intent.getStringExtra(INTENT_EXTRA_SDP_ANSWER) != null;
+        if (currentState == PlayerState.PIPELINE && sdp) {
+            Log.w(LOG_TAG, "No SDP on the Java pipeline");
+            return;
+        }
 
-        // Get remote socket from the intent
-        String ip = intent.getStringExtra(INTENT_EXTRA_IP);
-        int port = intent.getIntExtra(INTENT_EXTRA_PORT, 0);
-        Log.w(LOG_TAG, "Remote " + ip + ":" + String.valueOf(port));
-        if (ip == null || ip.isEmpty() || port == 0) {
+        // Get remote socket and codec from the intent
+        SdpNegotiator.Result result = negotiate(intent);
+        if (result == null) {
             return;
         }
-        remoteSocket = new InetSocketAddress(ip, port);
+        remoteSocket = new InetSocketAddress(result.remoteAddress, result.remotePort);
+        AudioCodec codec = toAudioCodec(result.format);
 
+        if (currentState == PlayerState.PIPELINE) {
+            // Our port stays, so the next frame simply goes to the new target
+            pipelineTarget = remoteSocket;
+            return;
+        }
+        if (currentState == PlayerState.PREPARED && intent.getBooleanExtra(INTENT_EXTRA_JAVA_PIPELINE, false)) {
+            if (!sdp) {
+                startPipeline();
+                return;
+            }
+            Log.w(LOG_TAG, "No SDP on the Java pipeline, playing on the AudioGroup");
+        }
         if (currentState == PlayerState.PREPARED) {
+            bindPrimaryFor(intent, remoteSocket);
+            stream.setCodec(codec);
             startPlayAudio();
         } else if (currentState == PlayerState.PLAYING) {
-            changeTarget();
+            // Only an SDP answer tells the remote side about a new local port
+            if (intent.getStringExtra(INTENT_EXTRA_SDP_OFFER) != null) {
+                changeTarget(codec);
+            } else {
+                rejoinTarget(codec);
+            }
         }
+        answerIfOffered(intent, result, remoteSocket);
     }
 
     // After receiving an intent with a "STOP" action
@@ -180,6 +473,100 @@ public class AudioGroupService extends Service implements AudioManager.OnAudioFo
         stopSelf();
     }
 
+    // After receiving an intent with an "ADD_PARTICIPANT" action
+    private void onActionAddParticipant(Intent intent) {
+        if (currentState == PlayerState.INITIAL) {
+            Log.e(LOG_TAG, "Initial failed");
+            stopSelf();
+            return;
+        }
+        if (currentState == PlayerState.PIPELINE) {
+            Log.w(LOG_TAG, "No participants on the Java pipeline");
+            return;
+        }
+        SdpNegotiator.Result result = negotiate(intent);
+        if (result == null) {
+            return;
+        }
+        InetSocketAddress remote = new InetSocketAddress(result.remoteAddress, result.remotePort);
+        AudioCodec codec = toAudioCodec(result.format);
+
+        // The first participant starts playing on the primary stream
+        if (currentState == PlayerState.PREPARED) {
+            remoteSocket = remote;
+            bindPrimaryFor(intent, remoteSocket);
+            stream.setCodec(codec);
+            startPlayAudio();
+        } else {
+            addParticipant(remote, codec);
+        }
+        answerIfOffered(intent, result, remote);
+    }
+
+    // After receiving an intent with a "REMOVE_PARTICIPANT" action
+    private void onActionRemoveParticipant(Intent intent) {
+        InetSocketAddress remote = getRemoteSocketExtra(intent);
+        if (remote == null) {
+            return;
+        }
+        removeParticipant(remote);
+    }
+
+    // Negotiate with the remote side the intent describes: an SDP offer, an SDP answer to our offer,
+    // or just IP and port, in which case both sides assume AMR.
+    // Return null if the intent is incomplete or nothing is in common.
+    private SdpNegotiator.Result negotiate(Intent intent) {
+        String offer = intent.getStringExtra(INTENT_EXTRA_SDP_OFFER);
+        String answer = intent.getStringExtra(INTENT_EXTRA_SDP_ANSWER);
+        if (offer == null && answer == null) {
+            InetSocketAddress remote = getRemoteSocketExtra(intent);
+            if (remote == null) {
+                return null;
+            }
+            return negotiator.assume(remote.getAddress().getHostAddress(), remote.getPort());
+        }
+        SdpNegotiator.Result result;
+        try {
+            if (offer != null) {
+                result = negotiator.processOffer(SessionDescription.parse(offer));
+            } else {
+                result = negotiator.processAnswer(SessionDescription.parse(answer));
+            }
+        } catch (IllegalArgumentException e) {
+            Log.e(LOG_TAG, "Remote SDP is invalid because " + e.getMessage());
+            return null;
+        }
+        if (result == null) {
+            Log.e(LOG_TAG, "No codec in common with the remote side");
+        } else {
+            Log.d(LOG_TAG, "Negotiated " + result);
+        }
+        return result;
+    }
+
+    // Prepare the answer for the binder's client to send back. It points at the stream that now
+    // talks to the remote side.
+    private void answerIfOffered(Intent intent, SdpNegotiator.Result result, InetSocketAddress remote) {
+        int port = getLocalPortOf(remote);
+        if (intent.getStringExtra(INTENT_EXTRA_SDP_OFFER) == null || port == 0) {
+            return;
+        }
+        InetAddress address = participants.get(remote).getLocalAddress();
+        localDescription = negotiator.createAnswer(result, address.getHostAddress(), port);
+        Log.d(LOG_TAG, "SDP answer\n" + localDescription);
+    }
+
+    // Get remote socket from the intent. Return null if it's not given.
+    private InetSocketAddress getRemoteSocketExtra(Intent intent) {
+        String ip = intent.getStringExtra(INTENT_EXTRA_IP);
+        int port = intent.getIntExtra(INTENT_EXTRA_PORT, 0);
+        Log.w(LOG_TAG, "Remote " + ip + ":" + String.valueOf(port));
+        if (ip == null || ip.isEmpty() || port == 0) {
+            return null;
+        }
+        return new InetSocketAddress(ip, port);
+    }
+
     // PREPARED -> PLAYING
     private void startPlayAudio() {
         try {
@@ -198,6 +585,10 @@ public class AudioGroupService extends Service implements AudioManager.OnAudioFo
             // Start sending voice
             stream.associate(remoteSocket.getAddress(), remoteSocket.getPort());
             stream.join(group);
+            participants.put(remoteSocket, stream);
+            watchFirstPacket(metrics.register(remoteSocket.toString()));
+            metrics.register(ALL_STREAMS);
+            worker.post(pollTraffic);
             Log.d(LOG_TAG, stream.getLocalAddress().getHostAddress() + ":" + stream.getLocalPort() + " -> " +
                            stream.getRemoteAddress().getHostAddress() + ":" + stream.getRemotePort());
 
@@ -259,45 +650,339 @@ public class AudioGroupService extends Service implements AudioManager.OnAudioFo
         }
     }
 
-    // While PLAYING
+    // While PLAYING or PIPELINE
     private void stopPlayAudio() {
+        if (currentState == PlayerState.PIPELINE) {
+            stopPipeline();
+        }
         if (currentState == PlayerState.PLAYING) {
-            stream.join(null);
+            for (AudioStream s : participants.values()) {
+                s.join(null);
+                if (s != stream) {
+                    s.release();
+                }
+            }
+            participants.clear();
+            stopFirstPacketWatch();
+            worker.removeCallbacks(pollTraffic);
+            metrics.clear();
             remoteSocket = null;
+            playRequestedAt = 0;
             Log.d(LOG_TAG, "Audio stopped");
         }
     }
 
-    // While PLAYING
-    private void changeTarget() {
+    // PREPARED -> PIPELINE. The pipeline takes over the address and port of the primary stream,
+    // which is what the remote side was told. A new primary stream opens when it stops.
+    private void startPipeline() {
+        InetSocketAddress local = new InetSocketAddress(stream.getLocalAddress(), stream.getLocalPort());
+        stream.release();
+        stream = null;
+        pipelineTarget = remoteSocket;
+        int rate = getPipelineDeviceRate();
+        try {
+            audioDevice = new AndroidAudioDevice(rate);
+            transport = new RtpTransport();
+            pipeline = new CallPipeline(PipelineClock.SYSTEM, G711Codec.createUlaw(), G711Codec.PAYLOAD_TYPE_PCMU,
+                    audioDevice, audioDevice, new CallPipeline.PacketSink() {
+                        @Override
+                        public void send(ByteBuffer packet) {
+                            try {
+                                transport.send(endpoint, packet, pipelineTarget);
+                            } catch (IOException e) {
+                                Log.w(LOG_TAG, "Send failed because " + e.getMessage());
+                            }
+                        }
+                    });
+            pipeline.setDeviceSampleRate(rate);
+            pipeline.setThreadSetup(audioDevice);
+            final CallPipeline.Remote remote = pipeline.addRemote(G711Codec.createUlaw(),
+                    G711Codec.PAYLOAD_TYPE_PCMU);
+            StreamMetrics streamMetrics = metrics.register(remoteSocket.toString());
+            pipeline.setSendMetrics(streamMetrics);
+            remote.getReceiver().setMetrics(streamMetrics);
+            endpoint = transport.open(local, null, new RtpTransport.Listener() {
+                @Override
+                public void onPacket(RtpTransport.Endpoint endpoint, ByteBuffer packet, SocketAddress source,
+                                     long arrivalNanos) {
+                    remote.onPacket(packet, arrivalNanos);
+                }
+            });
+
+            setupAudioMode();
+            acquireLock();
+            turnIntoForeground();
+            acquireAudioFocus();
+            audioDevice.start();
+            transport.start();
+            pipeline.start();
+            watchFirstPacket(streamMetrics);
+            currentState = PlayerState.PIPELINE;
+            Log.d(LOG_TAG, "Service state -> PIPELINE " + local + " -> " + remoteSocket);
+        } catch (IOException | RuntimeException e) {
+            Log.e(LOG_TAG, "Java pipeline failed because " + e);
+            stopPipeline();
+            stopSelf();
+        }
+    }
+
+    // Native rate of the device if the pipeline can resample to it, else the call's own
+    private static int getPipelineDeviceRate() {
+        int rate = AndroidAudioDevice.getNativeSampleRate();
+        for (int r : Resampler.RATES) {
+            if (r == rate) {
+                return rate;
+            }
+        }
+        return G711Codec.CLOCK_RATE;
+    }
+
+    // PIPELINE, or a pipeline that failed to start -> PREPARED
+    private void stopPipeline() {
+        if (pipeline != null) {
+            pipeline.stop();
+            RuntimeException failure = pipeline.getFailure();
+            if (failure != null) {
+                Log.e(LOG_TAG, "Java pipeline stage failed because " + failure);
+            }
+            pipeline = null;
+        }
+        if (audioDevice != null) {
+            audioDevice.stop();
+            audioDevice.release();
+            audioDevice = null;
+        }
+        if (transport != null) {
+            try {
+                transport.stop();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            transport = null;
+            endpoint = null;
+        }
+        stopFirstPacketWatch();
+        metrics.clear();
+        remoteSocket = null;
+        pipelineTarget = null;
+        playRequestedAt = 0;
+        if (stream == null && localIp != null && !destroyed) {
+            stream = createSpareStream(localIp);
+        }
+        currentState = PlayerState.PREPARED;
+        Log.d(LOG_TAG, "Java pipeline stopped");
+    }
+
+    // While PLAYING, for a target that sent an SDP offer. The spare stream takes over the new
+    // target and joins the group before the primary one leaves, so the group never stops and
+    // nothing is re-initialized. The old primary becomes the next spare. Our local port changes
+    // with it, which only the SDP answer built afterwards tells the remote side.
+    private void changeTarget(AudioCodec codec) {
+        if (currentState != PlayerState.PLAYING) {
+            return;
+        }
+        InetAddress address = localAddressFor(remoteSocket);
+        if (spare != null && !address.equals(spare.getLocalAddress())) {
+            // The new target is better reached through another interface
+            spare.release();
+            spare = createSpareStream(address);
+        }
+        if (spare == null) {
+            rejoinTarget(codec);
+            return;
+        }
+        long start = System.nanoTime();
+        AudioStream next = spare;
+        next.setCodec(codec);
+        next.associate(remoteSocket.getAddress(), remoteSocket.getPort());
+        next.join(group);
+        stream.join(null);
+        long switchMicros = (System.nanoTime() - start) / 1000;
+
+        for (InetSocketAddress r : participants.keySet()) {
+            if (participants.get(r) == stream) {
+                metrics.unregister(r.toString());
+            }
+        }
+        participants.values().remove(stream);
+        spare = stream;
+        stream = next;
+        participants.put(remoteSocket, stream);
+        metrics.register(remoteSocket.toString());
+        Log.d(LOG_TAG, "Target changed -> " + remoteSocket.getAddress().getHostAddress() + ":" +
+                       remoteSocket.getPort() + " from local port " + stream.getLocalPort() + " in " +
+                       switchMicros + " us");
+    }
+
+    // While PLAYING. Change target on the primary stream itself, which has to leave the group
+    // meanwhile but keeps its local port: for a target given by IP and port or answering our
+    // offer, which sends to the port it already knows, or when no spare stream could be opened.
+    private void rejoinTarget(AudioCodec codec) {
         if (currentState == PlayerState.PLAYING) {
+            for (InetSocketAddress r : participants.keySet()) {
+                if (participants.get(r) == stream) {
+                    metrics.unregister(r.toString());
+                }
+            }
+            participants.values().remove(stream);
             stream.join(null);
+            stream.setCodec(codec);
             stream.associate(remoteSocket.getAddress(), remoteSocket.getPort());
             stream.join(group);
+            participants.put(remoteSocket, stream);
+            metrics.register(remoteSocket.toString());
             Log.d(LOG_TAG, "Target changed -> " + remoteSocket.getAddress().getHostAddress() + ":" + String.valueOf(remoteSocket.getPort()));
         }
     }
 
-    private InetAddress getLocalIpAddress() {
-        // byte ip[]=null;
+    // While PLAYING. Join one more remote endpoint with its own stream. The streams already in
+    // the group keep running.
+    private void addParticipant(InetSocketAddress remote, AudioCodec codec) {
+        if (participants.containsKey(remote)) {
+            Log.d(LOG_TAG, "Participant " + remote + " already joined");
+            return;
+        }
+        if (participants.size() >= MAX_PARTICIPANTS) {
+            Log.e(LOG_TAG, "Conference is full. " + remote + " isn't added");
+            return;
+        }
+        AudioStream s;
+        if (!participants.containsValue(stream)) {
+            // Reuse the primary stream left by a removed participant
+            s = stream;
+        } else {
+            try {
+                s = new AudioStream(localAddressFor(remote));
+            } catch (SocketException e) {
+                Log.e(LOG_TAG, "Initial AudioStream failed because " + e.getMessage());
+                return;
+            }
+            s.setMode(RtpStream.MODE_NORMAL);
+        }
+        s.setCodec(codec);
+        s.associate(remote.getAddress(), remote.getPort());
+        s.join(group);
+        participants.put(remote, s);
+        metrics.register(remote.toString());
+        Log.d(LOG_TAG, "Participant added " + s.getLocalPort() + " -> " + remote.getAddress().getHostAddress() +
+                       ":" + remote.getPort() + ", " + participants.size() + " in total");
+    }
+
+    // While PLAYING. Leave one remote endpoint. The primary stream is kept for reuse.
+    private void removeParticipant(InetSocketAddress remote) {
+        AudioStream s = participants.remove(remote);
+        if (s == null) {
+            Log.d(LOG_TAG, "Participant " + remote + " isn't found");
+            return;
+        }
+        s.join(null);
+        if (s != stream) {
+            s.release();
+        }
+        metrics.unregister(remote.toString());
+        Log.d(LOG_TAG, "Participant removed " + remote.getAddress().getHostAddress() + ":" + remote.getPort() +
+                       ", " + participants.size() + " left");
+    }
+
+    // Worker thread. Ask the system for the route to remote and remember it.
+    private InetAddress probeRoute(InetAddress remote) {
+        InetAddress source = InterfaceSelector.SYSTEM.sourceFor(remote);
+        routes.put(remote, source);
+        return source;
+    }
+
+    // Local address to talk to remote from, the default one if none is known to reach it
+    private InetAddress localAddressFor(InetSocketAddress remote) {
+        InetAddress address = selector.select(remote.getAddress());
+        return address == null ? localIp : address;
+    }
+
+    // PREPARED. Move the primary stream to the interface that suits remote, if it isn't there.
+    // That changes the local port our offer and getLocalIpPort() gave out, so only for a remote
+    // that sent an SDP offer, which learns the new port from our answer.
+    private void bindPrimaryFor(Intent intent, InetSocketAddress remote) {
+        if (intent.getStringExtra(INTENT_EXTRA_SDP_OFFER) == null) {
+            return;
+        }
+        InetAddress address = localAddressFor(remote);
+        if (address.equals(stream.getLocalAddress())) {
+            return;
+        }
         try {
-            ArrayList<NetworkInterface> interfaces = Collections.list(NetworkInterface.getNetworkInterfaces());
-            for (NetworkInterface i : interfaces) {
-                ArrayList<InetAddress> addresses = Collections.list(i.getInetAddresses());
-                for (InetAddress a : addresses) {
-                    if (!a.isLoopbackAddress() && a instanceof Inet4Address && a.getHostAddress().startsWith("192")) {
-                        Log.d(LOG_TAG, a.getHostAddress() + " is chosen as local IP");
-                        return a;
-                    } else {
-                        Log.d(LOG_TAG, "IP " + a.getHostAddress() + " is found but not what we want");
-                    }
+            AudioStream s = new AudioStream(address);
+            s.setMode(RtpStream.MODE_NORMAL);
+            stream.release();
+            stream = s;
+            Log.d(LOG_TAG, "Primary stream moved to " + address.getHostAddress() + ":" + stream.getLocalPort());
+        } catch (SocketException e) {
+            Log.e(LOG_TAG, "Keep primary stream on " + stream.getLocalAddress() + " because " + e.getMessage());
+        }
+    }
+
+    // Packets leave from native code, so watch the app's transmit counter on the worker thread
+    // until it moves. That's the first packet of the call, unless the app sent something else
+    // first, which makes the time look shorter than it was.
+    private void watchFirstPacket(final StreamMetrics streamMetrics) {
+        stopFirstPacketWatch();
+        final long requestedAt = playRequestedAt;
+        final int uid = Process.myUid();
+        final long before = TrafficStats.getUidTxPackets(uid);
+        if (before == TrafficStats.UNSUPPORTED || requestedAt == 0) {
+            return;
+        }
+        firstPacketWatch = new Runnable() {
+            @Override
+            public void run() {
+                if (firstPacketWatch != this) {
+                    // Stopped while it was running
+                    return;
+                }
+                long elapsed = SystemClock.elapsedRealtime() - requestedAt;
+                if (TrafficStats.getUidTxPackets(uid) > before) {
+                    streamMetrics.setTimeToFirstPacket(elapsed);
+                    Log.d(LOG_TAG, "Time to first packet " + elapsed + " ms");
+                } else if (elapsed < FIRST_PACKET_TIMEOUT_MILLIS) {
+                    worker.postDelayed(this, FIRST_PACKET_POLL_MILLIS);
+                } else {
+                    Log.w(LOG_TAG, "No packet sent in " + elapsed + " ms");
                 }
             }
-        } catch (SocketException ex) {
-            Log.d("SocketException ", ex.toString());
+        };
+        worker.post(firstPacketWatch);
+    }
+
+    private void stopFirstPacketWatch() {
+        Runnable watch = firstPacketWatch;
+        if (watch != null) {
+            worker.removeCallbacks(watch);
+            firstPacketWatch = null;
+        }
+    }
+
+    // Open a stream ready to be associated. Return null if no socket is available.
+    private AudioStream createSpareStream(InetAddress address) {
+        try {
+            AudioStream s = new AudioStream(address);
+            s.setMode(RtpStream.MODE_NORMAL);
+            return s;
+        } catch (SocketException e) {
+            Log.e(LOG_TAG, "Spare AudioStream failed because " + e.getMessage());
+            return null;
         }
-        Log.e(LOG_TAG, "No useful IP");
-        return null;
+    }
+
+    // Codecs the platform's AudioStream handles, as SDP formats
+    private static List<SessionDescription.Format> getSupportedFormats() {
+        List<SessionDescription.Format> formats = new ArrayList<>();
+        for (AudioCodec c : AudioCodec.getCodecs()) {
+            formats.add(SessionDescription.Format.fromRtpmap(c.type, c.rtpmap, c.fmtp));
+        }
+        return formats;
+    }
+
+    // Negotiated formats are always among the supported ones, so this doesn't return null
+    private static AudioCodec toAudioCodec(SessionDescription.Format format) {
+        return AudioCodec.getCodec(format.payloadType, format.getRtpmap(), format.fmtp);
     }
 
     private void setupAudioMode() {
@@ -379,6 +1064,9 @@ public class AudioGroupService extends Service implements AudioManager.OnAudioFo
 
     // Get stream local IP port
     public InetSocketAddress getLocalIpPort() {
+        if (currentState == PlayerState.PIPELINE) {
+            return endpoint.getLocalAddress();
+        }
         if (stream == null) {
             Log.d(LOG_TAG, "stream is not initialized");
             return null;
@@ -388,10 +1076,27 @@ public class AudioGroupService extends Service implements AudioManager.OnAudioFo
 
     // Get stream remote IP port
     public InetSocketAddress getRemoteIpPort() {
+        if (currentState == PlayerState.PIPELINE) {
+            return pipelineTarget;
+        }
         if (currentState != PlayerState.PLAYING) {
             Log.d(LOG_TAG, "Remote socket is not set");
             return null;
         }
         return new InetSocketAddress(stream.getRemoteAddress(), stream.getRemotePort());
     }
+
+    // Get remote IP port of every conference participant
+    public List<InetSocketAddress> getParticipants() {
+        return new ArrayList<>(participants.keySet());
+    }
+
+    // Get the local port a participant should send to. Return 0 if it isn't in the conference.
+    public int getLocalPortOf(InetSocketAddress remote) {
+        AudioStream s = participants.get(remote);
+        if (s == null) {
+            return 0;
+        }
+        return s.getLocalPort();
+    }
 }
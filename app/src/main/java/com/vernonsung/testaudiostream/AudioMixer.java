@@ -0,0 +1,113 @@
+package com.vernonsung.testaudiostream;
+
+// Software mixer for conference audio.
+// Every participant contributes one 16-bit PCM frame per frame period, scaled by its own gain.
+// mix() sums all of them once into an int accumulator and then produces each participant's
+// N-1 mix by subtracting its own contribution, so the cost is O(N) frames instead of O(N^2).
+// The loops are plain array walks with no branches in the sample path so the JIT can unroll
+// and vectorize them. All buffers are allocated in the constructor.
+public class AudioMixer {
+    // Gains are fixed point with 12 fractional bits
+    public static final int GAIN_SHIFT = 12;
+    public static final int UNITY_GAIN = 1 << GAIN_SHIFT;
+    // Up to +12 dB to lift a quiet participant, a chosen limit. Any gain above 1 can push a loud
+    // input past a short, which the output saturates; further boost would mostly add clipping.
+    public static final float MAX_GAIN = 4.0f;
+
+    private final int maxInputs;
+    private final int frameSamples;
+    private final int[] gains;
+    private final int[] sum;
+
+    public AudioMixer(int maxInputs, int frameSamples) {
+        if (maxInputs <= 0 || frameSamples <= 0) {
+            throw new IllegalArgumentException("Mixer of " + maxInputs + " inputs x " + frameSamples + " samples is invalid");
+        }
+        this.maxInputs = maxInputs;
+        this.frameSamples = frameSamples;
+        gains = new int[maxInputs];
+        sum = new int[frameSamples];
+        for (int i = 0; i < maxInputs; i++) {
+            gains[i] = UNITY_GAIN;
+        }
+    }
+
+    // Gain of one participant. 0 mutes it, 1 keeps it as is.
+    public void setGain(int input, float gain) {
+        if (gain < 0 || gain > MAX_GAIN) {
+            throw new IllegalArgumentException("Gain " + gain + " is out of 0~" + MAX_GAIN);
+        }
+        gains[input] = Math.round(gain * UNITY_GAIN);
+    }
+
+    public float getGain(int input) {
+        return (float) gains[input] / UNITY_GAIN;
+    }
+
+    // Mix count inputs. A null input is a participant without a frame this period, e.g. lost or
+    // silent. outputs[i] receives everyone except input i and may be null when nobody listens on
+    // that seat. total, if not null, receives everyone, e.g. for recording.
+    public void mix(short[][] inputs, int count, short[][] outputs, short[] total) {
+        if (count > maxInputs) {
+            throw new IllegalArgumentException(count + " inputs exceed the mixer size " + maxInputs);
+        }
+        int n = frameSamples;
+        int[] acc = sum;
+        for (int s = 0; s < n; s++) {
+            acc[s] = 0;
+        }
+        for (int i = 0; i < count; i++) {
+            short[] in = inputs[i];
+            int gain = gains[i];
+            if (in == null || gain == 0) {
+                continue;
+            }
+            for (int s = 0; s < n; s++) {
+                acc[s] += (in[s] * gain) >> GAIN_SHIFT;
+            }
+        }
+
+        if (total != null) {
+            for (int s = 0; s < n; s++) {
+                total[s] = saturate(acc[s]);
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            short[] out = outputs[i];
+            if (out == null) {
+                continue;
+            }
+            short[] in = inputs[i];
+            int gain = gains[i];
+            if (in == null || gain == 0) {
+                for (int s = 0; s < n; s++) {
+                    out[s] = saturate(acc[s]);
+                }
+            } else {
+                for (int s = 0; s < n; s++) {
+                    out[s] = saturate(acc[s] - ((in[s] * gain) >> GAIN_SHIFT));
+                }
+            }
+        }
+    }
+
+    // Saturating add of src into dst, both count samples from the given offsets
+    public static void addSaturating(short[] dst, int dstOffset, short[] src, int srcOffset, int count) {
+        for (int s = 0; s < count; s++) {
+            dst[dstOffset + s] = saturate(dst[dstOffset + s] + src[srcOffset + s]);
+        }
+    }
+
+    // Clamp to the 16-bit range. Math.min/max compile to conditional moves rather than branches.
+    public static short saturate(int sample) {
+        return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+    }
+
+    public int getMaxInputs() {
+        return maxInputs;
+    }
+
+    public int getFrameSamples() {
+        return frameSamples;
+    }
+}
@@ -0,0 +1,423 @@
+package com.vernonsung.testaudiostream;
+
+// Send-side bandwidth estimation in the spirit of Google Congestion Control
+// (draft-ietf-rmcat-gcc), from transport-wide feedback.
+// Delay-based: packets sent within 5 ms form a group. The change in one-way delay from one group
+// to the next is the delay gradient. Its accumulated and smoothed value over the last 20 groups
+// goes through a linear regression, and the slope is the trend of the queueing delay. A trend
+// above an adaptive threshold for long enough is overuse, and below minus the threshold is
+// underuse. An AIMD controller follows: overuse cuts the rate to 85% of what the receiver
+// actually got, normal use raises it by 8% a second, or by about a packet per round trip once it
+// is near the rate where it had to back off before.
+// Loss-based: over every 20 packets or so, more than 10% lost cuts the rate by half the loss,
+// and less than 2% raises it by 5%.
+// The target is the lower of the two. It never rises far above what was acknowledged, so a
+// source sending less than it may doesn't talk the estimate up.
+// Any thread: packets are noted by the pacer, feedback comes from the RTCP side.
+public class BandwidthEstimator {
+    // Detector signals
+    public static final int NORMAL = 0;
+    public static final int OVERUSING = 1;
+    public static final int UNDERUSING = 2;
+
+    private static final int HISTORY = 1024;
+    private static final long BURST_NANOS = 5000000;
+    // Trendline filter and detector, times in milliseconds
+    private static final int TRENDLINE_WINDOW = 20;
+    private static final double TRENDLINE_SMOOTHING = 0.9;
+    private static final double THRESHOLD_GAIN = 4;
+    private static final int MAX_DELTAS = 60;
+    private static final double INITIAL_THRESHOLD = 12.5;
+    private static final double MIN_THRESHOLD = 6;
+    private static final double MAX_THRESHOLD = 600;
+    private static final double THRESHOLD_UP = 0.0087;
+    private static final double THRESHOLD_DOWN = 0.039;
+    private static final double MAX_THRESHOLD_STEP = 100;
+    private static final double OVERUSE_MILLIS = 10;
+    // AIMD
+    private static final int INCREASE = 0;
+    private static final int HOLD = 1;
+    private static final double BETA = 0.85;
+    private static final double INCREASE_PER_SECOND = 1.08;
+    private static final long DEFAULT_RTT_MICROS = 200000;
+    private static final long ACKED_WINDOW_MICROS = 500000;
+    // Not above this multiple of the acknowledged rate, plus a margin for startup
+    private static final double MAX_ACKED_MULTIPLE = 1.5;
+    private static final int ACKED_MARGIN = 10000;
+    // Loss-based
+    private static final int LOSS_PACKETS = 20;
+    private static final double LOSS_HIGH = 0.10;
+    private static final double LOSS_LOW = 0.02;
+    private static final double LOSS_INCREASE = 1.05;
+
+    private final int minBitrate;
+    private final int maxBitrate;
+
+    // Sent packets by sequence number
+    private final int[] sentSequence = new int[HISTORY];
+    private final long[] sentNanos = new long[HISTORY];
+    private final int[] sentBytes = new int[HISTORY];
+
+    // Current and previous packet group
+    private boolean inGroup;
+    private long groupFirstSend;
+    private long groupLastSend;
+    private long groupLastArrival;
+    private boolean hasPrevious;
+    private long previousLastSend;
+    private long previousLastArrival;
+
+    // Trendline
+    private long firstArrivalMicros = -1;
+    private int deltaCount;
+    private double accumulatedDelay;
+    private double smoothedDelay;
+    private final double[] trendX = new double[TRENDLINE_WINDOW];
+    private final double[] trendY = new double[TRENDLINE_WINDOW];
+    private int trendSize;
+    private int trendNext;
+    private double trend;
+    private double previousTrend;
+    private double threshold = INITIAL_THRESHOLD;
+    private double lastThresholdUpdate = -1;
+    private double overuseMillis = -1;
+    private int overuseCount;
+    private int signal = NORMAL;
+    // Overuse seen since the last rate update, even if the last group was back to normal
+    private boolean overused;
+
+    // Rate control
+    private int state = INCREASE;
+    private double delayBitrate;
+    private long lastUpdateNanos = -1;
+    private long lastDecreaseNanos = -1;
+    private long rttMicros = DEFAULT_RTT_MICROS;
+    // Rate at the last decreases, with its variance normalized by it, -1 until known
+    private double averageMaxBitrate = -1;
+    private double maxBitrateVariance = 0.4;
+    private double averagePacketBits = 1000;
+
+    // Acknowledged rate
+    private long ackedWindowStart = -1;
+    private long ackedWindowBytes;
+    private double ackedBitrate;
+
+    // Loss
+    private int lossPackets;
+    private int lossLost;
+    private double lossBitrate;
+    private double lastLoss;
+
+    private int targetBitrate;
+    private long feedbackCount;
+    private long overuseSignals;
+
+    public BandwidthEstimator(int minBitrate, int maxBitrate, int startBitrate) {
+        if (minBitrate <= 0 || maxBitrate < minBitrate) {
+            throw new IllegalArgumentException("Bitrate range " + minBitrate + "~" + maxBitrate + " is invalid");
+        }
+        this.minBitrate = minBitrate;
+        this.maxBitrate = maxBitrate;
+        targetBitrate = Math.max(minBitrate, Math.min(maxBitrate, startBitrate));
+        delayBitrate = targetBitrate;
+        lossBitrate = targetBitrate;
+        for (int i = 0; i < HISTORY; i++) {
+            sentSequence[i] = -1;
+        }
+    }
+
+    // The packet with sequenceNumber of bytes went on the wire at nowNanos
+    public synchronized void onPacketSent(int sequenceNumber, int bytes, long nowNanos) {
+        int i = sequenceNumber & (HISTORY - 1);
+        sentSequence[i] = sequenceNumber;
+        sentNanos[i] = nowNanos;
+        sentBytes[i] = bytes;
+        averagePacketBits += (bytes * 8 - averagePacketBits) * 0.1;
+    }
+
+    public synchronized void onRtt(long rttMicros) {
+        if (rttMicros > 0) {
+            this.rttMicros = rttMicros;
+        }
+    }
+
+    // Feedback on our packets arrived at nowNanos. Return the new target bitrate.
+    public synchronized int onTransportFeedback(TransportFeedback feedback, long nowNanos) {
+        feedbackCount++;
+        int count = feedback.getPacketCount();
+        int base = feedback.getBaseSequence();
+        for (int n = 0; n < count; n++) {
+            int sequence = (base + n) & 0xFFFF;
+            int i = sequence & (HISTORY - 1);
+            if (sentSequence[i] != sequence) {
+                // Not ours, or too long ago
+                continue;
+            }
+            lossPackets++;
+            if (!feedback.isReceived(n)) {
+                lossLost++;
+                continue;
+            }
+            long arrival = feedback.getArrivalMicros(n);
+            onArrival(sentNanos[i], arrival, sentBytes[i]);
+        }
+        updateLossBased();
+        updateDelayBased(nowNanos);
+        int target = (int) Math.min(delayBitrate, lossBitrate);
+        targetBitrate = Math.max(minBitrate, Math.min(maxBitrate, target));
+        return targetBitrate;
+    }
+
+    private void onArrival(long sendNanos, long arrivalMicros, int bytes) {
+        if (ackedWindowStart < 0) {
+            ackedWindowStart = arrivalMicros;
+        } else {
+            ackedWindowBytes += bytes;
+            long span = arrivalMicros - ackedWindowStart;
+            if (span >= ACKED_WINDOW_MICROS) {
+                ackedBitrate = ackedWindowBytes * 8e6 / span;
+                ackedWindowStart = arrivalMicros;
+                ackedWindowBytes = 0;
+            }
+        }
+
+        if (!inGroup) {
+            startGroup(sendNanos, arrivalMicros);
+            return;
+        }
+        if (sendNanos - groupFirstSend <= BURST_NANOS) {
+            groupLastSend = Math.max(groupLastSend, sendNanos);
+            groupLastArrival = Math.max(groupLastArrival, arrivalMicros);
+            return;
+        }
+        if (sendNanos < groupFirstSend) {
+            // Sent before the group, reordered on the way: nothing to learn
+            return;
+        }
+        if (hasPrevious) {
+            double sendDelta = (groupLastSend - previousLastSend) / 1e6;
+            double arrivalDelta = (groupLastArrival - previousLastArrival) / 1e3;
+            updateTrendline(arrivalDelta - sendDelta, sendDelta, groupLastArrival);
+        }
+        hasPrevious = true;
+        previousLastSend = groupLastSend;
+        previousLastArrival = groupLastArrival;
+        startGroup(sendNanos, arrivalMicros);
+    }
+
+    private void startGroup(long sendNanos, long arrivalMicros) {
+        inGroup = true;
+        groupFirstSend = sendNanos;
+        groupLastSend = sendNanos;
+        groupLastArrival = arrivalMicros;
+    }
+
+    private void updateTrendline(double gradient, double sendDelta, long arrivalMicros) {
+        if (firstArrivalMicros < 0) {
+            firstArrivalMicros = arrivalMicros;
+        }
+        deltaCount = Math.min(deltaCount + 1, 1000);
+        accumulatedDelay += gradient;
+        smoothedDelay = TRENDLINE_SMOOTHING * smoothedDelay + (1 - TRENDLINE_SMOOTHING) * accumulatedDelay;
+        double x = (arrivalMicros - firstArrivalMicros) / 1e3;
+        trendX[trendNext] = x;
+        trendY[trendNext] = smoothedDelay;
+        trendNext = (trendNext + 1) % TRENDLINE_WINDOW;
+        trendSize = Math.min(trendSize + 1, TRENDLINE_WINDOW);
+        if (trendSize == TRENDLINE_WINDOW) {
+            trend = slope();
+        }
+        detect(sendDelta, x);
+    }
+
+    // Least squares slope of the smoothed delay over arrival time
+    private double slope() {
+        double meanX = 0;
+        double meanY = 0;
+        for (int i = 0; i < trendSize; i++) {
+            meanX += trendX[i];
+            meanY += trendY[i];
+        }
+        meanX /= trendSize;
+        meanY /= trendSize;
+        double numerator = 0;
+        double denominator = 0;
+        for (int i = 0; i < trendSize; i++) {
+            double dx = trendX[i] - meanX;
+            numerator += dx * (trendY[i] - meanY);
+            denominator += dx * dx;
+        }
+        return denominator == 0 ? trend : numerator / denominator;
+    }
+
+    private void detect(double sendDelta, double nowMillis) {
+        if (deltaCount < 2) {
+            signal = NORMAL;
+            return;
+        }
+        double modified = Math.min(deltaCount, MAX_DELTAS) * trend * THRESHOLD_GAIN;
+        if (modified > threshold) {
+            overuseMillis = overuseMillis < 0 ? sendDelta / 2 : overuseMillis + sendDelta;
+            overuseCount++;
+            if (overuseMillis > OVERUSE_MILLIS && overuseCount > 1 && trend >= previousTrend) {
+                overuseMillis = 0;
+                overuseCount = 0;
+                signal = OVERUSING;
+                overused = true;
+                overuseSignals++;
+            }
+        } else if (modified < -threshold) {
+            overuseMillis = -1;
+            overuseCount = 0;
+            signal = UNDERUSING;
+        } else {
+            overuseMillis = -1;
+            overuseCount = 0;
+            signal = NORMAL;
+        }
+        previousTrend = trend;
+        updateThreshold(Math.abs(modified), nowMillis);
+    }
+
+    // The threshold follows the trend, up slowly and down fast, so delay that is only noise
+    // doesn't count as overuse and competing flows don't starve us
+    private void updateThreshold(double modified, double nowMillis) {
+        if (lastThresholdUpdate < 0) {
+            lastThresholdUpdate = nowMillis;
+        }
+        if (modified > threshold + 15) {
+            // A spike, e.g. a route change
+            lastThresholdUpdate = nowMillis;
+            return;
+        }
+        double k = modified < threshold ? THRESHOLD_DOWN : THRESHOLD_UP;
+        double elapsed = Math.min(nowMillis - lastThresholdUpdate, MAX_THRESHOLD_STEP);
+        threshold += k * (modified - threshold) * elapsed;
+        threshold = Math.max(MIN_THRESHOLD, Math.min(MAX_THRESHOLD, threshold));
+        lastThresholdUpdate = nowMillis;
+    }
+
+    private void updateDelayBased(long nowNanos) {
+        double elapsed = lastUpdateNanos < 0 ? 0 : Math.min(nowNanos - lastUpdateNanos, 1000000000L) / 1e9;
+        lastUpdateNanos = nowNanos;
+        if (overused) {
+            overused = false;
+            boolean recent = lastDecreaseNanos >= 0 && nowNanos - lastDecreaseNanos < rttMicros * 1000;
+            if (!recent) {
+                double decreased = ackedBitrate > 0 ? BETA * ackedBitrate : BETA * delayBitrate;
+                if (decreased < delayBitrate) {
+                    delayBitrate = decreased;
+                }
+                if (ackedBitrate > 0) {
+                    updateMaxBitrate(ackedBitrate);
+                }
+                lastDecreaseNanos = nowNanos;
+            }
+            // Let the queue drain before increasing again
+            state = HOLD;
+            return;
+        }
+        if (signal == UNDERUSING) {
+            state = HOLD;
+            return;
+        }
+        if (state == HOLD) {
+            state = INCREASE;
+            return;
+        }
+        if (ackedBitrate > 0 && delayBitrate > MAX_ACKED_MULTIPLE * ackedBitrate + ACKED_MARGIN) {
+            // Application limited: what isn't sent can't be measured
+            return;
+        }
+        if (averageMaxBitrate > 0 && ackedBitrate > 0 && nearMaxBitrate()) {
+            // Near the last point of congestion: about one packet more per response time
+            double responseSeconds = (rttMicros + 100000) / 1e6;
+            delayBitrate += Math.max(averagePacketBits / responseSeconds * elapsed, 0);
+        } else {
+            delayBitrate *= Math.pow(INCREASE_PER_SECOND, elapsed);
+        }
+        delayBitrate = Math.min(delayBitrate, maxBitrate);
+    }
+
+    private boolean nearMaxBitrate() {
+        double deviation = Math.sqrt(maxBitrateVariance * averageMaxBitrate);
+        return Math.abs(ackedBitrate - averageMaxBitrate) < 3 * deviation;
+    }
+
+    private void updateMaxBitrate(double bitrate) {
+        double alpha = 0.05;
+        if (averageMaxBitrate < 0) {
+            averageMaxBitrate = bitrate;
+        } else if (!nearMaxBitrate()) {
+            // Capacity changed: start over from here
+            averageMaxBitrate = bitrate;
+        } else {
+            averageMaxBitrate = (1 - alpha) * averageMaxBitrate + alpha * bitrate;
+        }
+        double normalized = Math.max(averageMaxBitrate, 1);
+        double error = averageMaxBitrate - bitrate;
+        maxBitrateVariance = (1 - alpha) * maxBitrateVariance + alpha * error * error / normalized;
+        maxBitrateVariance = Math.max(0.4, Math.min(2.5, maxBitrateVariance));
+    }
+
+    private void updateLossBased() {
+        if (lossPackets < LOSS_PACKETS) {
+            return;
+        }
+        lastLoss = (double) lossLost / lossPackets;
+        if (lastLoss > LOSS_HIGH) {
+            lossBitrate *= 1 - 0.5 * lastLoss;
+        } else if (lastLoss < LOSS_LOW) {
+            lossBitrate *= LOSS_INCREASE;
+        }
+        // Losses above the delay-based rate are the delay-based side's business
+        lossBitrate = Math.max(minBitrate, Math.min(lossBitrate, Math.max(delayBitrate, minBitrate) * 1.5));
+        lossBitrate = Math.min(lossBitrate, maxBitrate);
+        lossPackets = 0;
+        lossLost = 0;
+    }
+
+    public synchronized int getTargetBitrate() {
+        return targetBitrate;
+    }
+
+    public synchronized int getDelayBasedBitrate() {
+        return (int) delayBitrate;
+    }
+
+    public synchronized int getLossBasedBitrate() {
+        return (int) lossBitrate;
+    }
+
+    // Rate the receiver got over the last half second, 0 until measured
+    public synchronized int getAckedBitrate() {
+        return (int) ackedBitrate;
+    }
+
+    // Loss over the last loss window, as a fraction
+    public synchronized double getLoss() {
+        return lastLoss;
+    }
+
+    // Slope of the queueing delay, in milliseconds per millisecond
+    public synchronized double getTrend() {
+        return trend;
+    }
+
+    // NORMAL, OVERUSING or UNDERUSING, as of the last packet group
+    public synchronized int getSignal() {
+        return signal;
+    }
+
+    public synchronized double getThreshold() {
+        return threshold;
+    }
+
+    public synchronized long getOveruseCount() {
+        return overuseSignals;
+    }
+
+    public synchronized long getFeedbackCount() {
+        return feedbackCount;
+    }
+}
@@ -0,0 +1,53 @@
+package com.vernonsung.testaudiostream;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Metrics of every stream in the current call, looked up by name such as the remote address.
+// Streams register when they start and unregister when they stop. Reading snapshots doesn't
+// block the packet path.
+public class CallMetrics {
+    private final ConcurrentHashMap<String, StreamMetrics> streams = new ConcurrentHashMap<String, StreamMetrics>();
+    private final PipelineClock clock;
+
+    public CallMetrics() {
+        this(PipelineClock.SYSTEM);
+    }
+
+    // Every stream's durations and bitrates go by clock
+    public CallMetrics(PipelineClock clock) {
+        this.clock = clock;
+    }
+
+    // Get the metrics of a stream, creating them on first use
+    public StreamMetrics register(String name) {
+        StreamMetrics metrics = streams.get(name);
+        if (metrics != null) {
+            return metrics;
+        }
+        StreamMetrics created = new StreamMetrics(name, clock);
+        metrics = streams.putIfAbsent(name, created);
+        return metrics == null ? created : metrics;
+    }
+
+    public void unregister(String name) {
+        streams.remove(name);
+    }
+
+    public StreamMetrics get(String name) {
+        return streams.get(name);
+    }
+
+    public void clear() {
+        streams.clear();
+    }
+
+    public List<StreamMetrics.Snapshot> snapshot() {
+        List<StreamMetrics.Snapshot> snapshots = new ArrayList<StreamMetrics.Snapshot>();
+        for (StreamMetrics metrics : streams.values()) {
+            snapshots.add(metrics.snapshot());
+        }
+        return snapshots;
+    }
+}
@@ -0,0 +1,881 @@
+package com.vernonsung.testaudiostream;
+
+import java.nio.ByteBuffer;
+
+// A call on the Java packet path, driven by two PipelineSchedulers ticking every 20 ms.
+// The send lane captures a frame, cleans it up, encodes it, packetizes it and sends it. The receive lane drains
+// the packets that arrived since the last frame into each remote's jitter buffer, takes one frame
+// from every jitter buffer, decodes or conceals it, mixes the remotes and plays the result.
+// Packets come in on the transport thread and reach the receive lane through a FrameRing per
+// remote, so the jitter buffers and decoders are only touched by the receive lane. Nothing is
+// allocated per frame.
+// The playout queue of the audio device tells how far the device clock has drifted from ours,
+// and both lanes stretch or shrink their period to follow it.
+// Moving the call to another peer doesn't stop anything. The new remote is added on standby
+// first, so it receives and decodes ahead of time without being heard. cutOver() then swaps the
+// remotes and the send target on the next frame boundary of each lane.
+// With a DtxController the send lane stops sending during silence, apart from RFC 3389 comfort
+// noise payloads now and then. Remotes play comfort noise from the first such payload until their
+// speech comes back, instead of silence or concealment.
+// With a CallRecorder every packet sent and received is recorded as it passes the send stage or
+// arrives in the receive lane, which costs a copy into memory.
+// The audio device may run at another rate than the call, e.g. its native 48 kHz, with the capture
+// and playout stages resampling every frame. A remote whose clock drifts against ours can have
+// its decoded audio resampled by the drift too, instead of losing or concealing a frame now and
+// then.
+// With a FecController the send lane adds as much redundancy as the remote side's loss reports
+// call for: earlier frames repeated in RFC 2198 RED payloads, and an RFC 5109 XOR parity packet
+// after every group of packets. Remotes added after setFec() repair their losses from both.
+public class CallPipeline {
+    public interface AudioInput {
+        // Read up to samples of 16-bit PCM and return how many were read
+        int read(short[] pcm, int offset, int samples);
+    }
+
+    public interface AudioOutput {
+        // Queue samples for playing and return how many were taken
+        int write(short[] pcm, int offset, int samples);
+
+        // Samples written but not played yet, or -1 if unknown
+        int getQueuedSamples();
+    }
+
+    public interface PacketSink {
+        // Send one RTP packet between position and limit. The buffer is reused after the call.
+        void send(ByteBuffer packet);
+    }
+
+    // Also the audio per packet, which CodecRateController doesn't change here
+    public static final int FRAME_MILLIS = 20;
+    public static final long FRAME_NANOS = FRAME_MILLIS * 1000000L;
+    public static final int MAX_PACKET_SIZE = 1472;
+    public static final int MAX_REMOTES = 32;
+
+    // Stage names
+    public static final String CAPTURE = "capture";
+    public static final String PROCESS = "process";
+    public static final String ENCODE = "encode";
+    public static final String PACKETIZE = "packetize";
+    public static final String SEND = "send";
+    public static final String RECEIVE = "receive";
+    public static final String JITTER = "jitter";
+    public static final String DECODE = "decode";
+    public static final String MIX = "mix";
+    public static final String PLAYOUT = "playout";
+
+    // Packets one remote may queue between two receive ticks
+    private static final int INBOX_PACKETS = 32;
+    private static final int JITTER_CAPACITY = 64;
+    private static final int MIN_DELAY_FRAMES = 1;
+    private static final int MAX_DELAY_FRAMES = 10;
+    // Playout queue the drift control aims for, in frames, and how hard it pulls
+    private static final int TARGET_QUEUE_FRAMES = 2;
+    private static final double PPM_PER_FRAME = 5000;
+    private static final double MAX_DRIFT_PPM = 5000;
+    private static final double QUEUE_SMOOTHING = 0.02;
+    // Largest frame that still fits a RED payload of the full depth in one packet
+    private static final int MAX_RED_FRAME_SIZE = (MAX_PACKET_SIZE - RtpPacket.FIXED_HEADER_LENGTH
+            - RedEncoder.PRIMARY_HEADER_LENGTH - RedEncoder.MAX_DEPTH * RedEncoder.BLOCK_HEADER_LENGTH)
+            / (RedEncoder.MAX_DEPTH + 1);
+
+    // One remote source on the receive lane
+    public static class Remote {
+        private final VoiceCodec decoder;
+        private final JitterBuffer jitterBuffer;
+        private final RtpReceiver receiver;
+        private final FrameRing inbox;
+        private final byte[] payload = new byte[MAX_PACKET_SIZE];
+        private final ByteBuffer packet = ByteBuffer.wrap(new byte[MAX_PACKET_SIZE]);
+        private final short[] pcm;
+        private final ComfortNoise comfortNoise = new ComfortNoise(0);
+        private int payloadLength = JitterBuffer.NO_FRAME;
+        // Whether the frame polled was the empty place holder of a comfort noise payload
+        private boolean silenceDescriptor;
+        private boolean comfortNoiseOn;
+        // Whether pcm holds audio to mix this frame
+        private boolean active;
+        // Standby remotes are decoded but not heard
+        private volatile boolean standby;
+        private volatile SrtpContext srtp;
+        private volatile DriftCompensator driftCompensator;
+        // Compensator of this frame, and whether the jitter stage polled for it
+        private DriftCompensator compensating;
+        private boolean polled;
+        private volatile long inboxDropCount;
+
+        Remote(VoiceCodec decoder, int payloadType, int comfortNoisePayloadType, int redPayloadType,
+               int fecPayloadType, int frameSamples) {
+            this.decoder = decoder;
+            jitterBuffer = new JitterBuffer(JITTER_CAPACITY, MAX_PACKET_SIZE, decoder.getClockRate(), frameSamples,
+                    MIN_DELAY_FRAMES, MAX_DELAY_FRAMES);
+            receiver = new RtpReceiver(jitterBuffer, MAX_PACKET_SIZE);
+            receiver.setPayloadType(payloadType);
+            receiver.setRedPayloadType(redPayloadType);
+            receiver.setFecPayloadType(fecPayloadType, MAX_PACKET_SIZE);
+            if (comfortNoisePayloadType >= 0) {
+                receiver.setComfortNoise(comfortNoisePayloadType, comfortNoise);
+            }
+            inbox = new FrameRing(INBOX_PACKETS, MAX_PACKET_SIZE, 0);
+            pcm = new short[frameSamples];
+        }
+
+        // Queue one datagram between position and limit for the receive lane. Call from one
+        // thread only, normally the transport's. Return false if the inbox was full.
+        public boolean onPacket(ByteBuffer datagram, long arrivalNanos) {
+            int length = datagram.remaining();
+            FrameRing.Slot slot = length <= MAX_PACKET_SIZE ? inbox.claim() : null;
+            if (slot == null) {
+                inboxDropCount++;
+                return false;
+            }
+            int position = datagram.position();
+            datagram.get(slot.data, 0, length);
+            datagram.position(position);
+            slot.length = length;
+            slot.timestamp = arrivalNanos;
+            inbox.publish();
+            return true;
+        }
+
+        public RtpReceiver getReceiver() {
+            return receiver;
+        }
+
+        public JitterBuffer getJitterBuffer() {
+            return jitterBuffer;
+        }
+
+        public long getInboxDropCount() {
+            return inboxDropCount;
+        }
+
+        // Check and decrypt packets from this remote with SRTP from the next frame, or take them
+        // in the clear if null. Packets that fail are dropped and counted by the context. Any thread.
+        public void setSrtp(SrtpContext srtp) {
+            this.srtp = srtp;
+        }
+
+        public SrtpContext getSrtp() {
+            return srtp;
+        }
+
+        // Resample this remote's audio to make up for the drift of its clock against ours from the
+        // next frame, or stop if false. The decoder's clock rate must be one of Resampler.RATES.
+        // Any thread.
+        public void setDriftCompensation(boolean on) {
+            driftCompensator = on ? new DriftCompensator(decoder.getClockRate(), pcm.length) : null;
+        }
+
+        public DriftCompensator getDriftCompensator() {
+            return driftCompensator;
+        }
+
+        public boolean isStandby() {
+            return standby;
+        }
+
+        // Whether the remote is silent and imitated with comfort noise
+        public boolean isComfortNoiseOn() {
+            return comfortNoiseOn;
+        }
+
+        // Whether the jitter buffer is through prefetching, so a cut-over to it plays at once
+        public boolean isWarm() {
+            return jitterBuffer.isPlaying();
+        }
+
+        // Receive lane
+
+        private void receive(CallRecorder recorder) {
+            SrtpContext s = srtp;
+            DriftCompensator d = driftCompensator;
+            int count = inbox.available(INBOX_PACKETS);
+            for (int i = 0; i < count; i++) {
+                FrameRing.Slot slot = inbox.readSlot(i);
+                packet.clear();
+                packet.put(slot.data, 0, slot.length);
+                packet.flip();
+                if (s != null && s.unprotect(packet) < 0) {
+                    continue;
+                }
+                if (recorder != null) {
+                    recorder.append(packet, false, slot.timestamp);
+                }
+                long timestamp = packet.remaining() < RtpPacket.FIXED_HEADER_LENGTH ? 0
+                        : packet.getInt(packet.position() + 4) & 0xFFFFFFFFL;
+                if (receiver.onPacket(packet, slot.timestamp) && d != null) {
+                    d.onPacket(timestamp, slot.timestamp);
+                }
+            }
+            inbox.release(count);
+        }
+
+        // A remote a frame behind its compensator isn't polled
+        private void poll(double lanePpm) {
+            DriftCompensator d = driftCompensator;
+            compensating = d;
+            if (d != null) {
+                d.setLocalPpm(lanePpm);
+            }
+            polled = d == null || d.takesFrame();
+            if (polled) {
+                pollJitterBuffer();
+            }
+        }
+
+        private void pollJitterBuffer() {
+            long played = jitterBuffer.getPlayedCount();
+            payloadLength = jitterBuffer.poll(payload, 0);
+            // Empty frames that were really received can only be comfort noise
+            silenceDescriptor = payloadLength == 0 && jitterBuffer.getPlayedCount() != played;
+        }
+
+        private void decode() {
+            DriftCompensator d = compensating;
+            if (d == null) {
+                decodeFrame();
+                return;
+            }
+            if (polled) {
+                decodeFrame();
+                d.write(pcm, 0);
+            }
+            // Ahead of us the remote gives a second frame now and then
+            while (d.needsFrame()) {
+                pollJitterBuffer();
+                decodeFrame();
+                d.write(pcm, 0);
+            }
+            d.read(pcm, 0);
+            active = true;
+        }
+
+        // Decode, conceal or imitate the frame polled into pcm, silence if there was none
+        private void decodeFrame() {
+            if (silenceDescriptor) {
+                comfortNoiseOn = true;
+            }
+            if (payloadLength > 0) {
+                decoder.decode(payload, 0, payloadLength, pcm, 0);
+                comfortNoiseOn = false;
+                active = true;
+            } else if (comfortNoiseOn) {
+                // Also while the jitter buffer runs dry or prefetches the next talkspurt
+                comfortNoise.generate(pcm, 0, pcm.length);
+                active = true;
+            } else if (payloadLength == 0) {
+                decoder.conceal(pcm, 0, pcm.length);
+                active = true;
+            } else {
+                if (compensating != null) {
+                    for (int i = 0; i < pcm.length; i++) {
+                        pcm[i] = 0;
+                    }
+                }
+                active = false;
+            }
+        }
+    }
+
+    // Redundancy sent at the level of one FecController. Replaced as a whole, and only the send
+    // lane touches the encoders.
+    private static class Fec {
+        final FecController controller;
+        final int redPayloadType;
+        final RedEncoder redEncoder;
+        final byte[] redPayload;
+        final UlpFecEncoder xorEncoder = new UlpFecEncoder(MAX_PACKET_SIZE);
+        final RtpPacketizer parityPacketizer;
+        final byte[] parityPayload = new byte[xorEncoder.getMaxPayloadLength()];
+        final ByteBuffer parity = ByteBuffer.allocate(RtpPacket.FIXED_HEADER_LENGTH
+                + xorEncoder.getMaxPayloadLength());
+
+        Fec(FecController controller, int payloadType, int redPayloadType, int fecPayloadType, int frameSamples) {
+            this.controller = controller;
+            this.redPayloadType = redPayloadType;
+            redEncoder = redPayloadType < 0 ? null : new RedEncoder(payloadType, MAX_RED_FRAME_SIZE);
+            redPayload = redPayloadType < 0 ? null : new byte[redEncoder.getMaxPayloadLength()];
+            parityPacketizer = fecPayloadType < 0 ? null : new RtpPacketizer(null, fecPayloadType, frameSamples);
+        }
+    }
+
+    private final PipelineClock clock;
+    private final VoiceCodec encoder;
+    private final int payloadType;
+    private final AudioInput input;
+    private final AudioOutput output;
+    private PacketSink sink;
+    private final int frameSamples;
+    private final RtpPacketizer packetizer;
+    private final PipelineScheduler sendLane;
+    private final PipelineScheduler receiveLane;
+    private StreamMetrics sendMetrics;
+    private volatile int comfortNoisePayloadType = ComfortNoise.PAYLOAD_TYPE;
+    private volatile DtxController dtx;
+    private volatile VoiceProcessor voiceProcessor;
+    private volatile CallRecorder recorder;
+    private volatile SrtpContext srtp;
+    private volatile Fec fec;
+    private volatile int redPayloadType = -1;
+    private volatile int fecPayloadType = -1;
+    private volatile long parityPacketsSent;
+
+    // Send lane buffers
+    private final short[] captured;
+    private final byte[] encoded = new byte[MAX_PACKET_SIZE];
+    private int encodedLength;
+    private int frameType = DtxController.SPEECH;
+    // Size of the last speech packet, which is what a silent frame saves
+    private int speechPacketBytes;
+    private final ByteBuffer outgoing = ByteBuffer.allocate(MAX_PACKET_SIZE);
+    private boolean packetReady;
+    private volatile long shortReadCount;
+
+    // Cut-over waiting for the next frame of each lane
+    private volatile PacketSink pendingSink;
+    private volatile Remote pendingFrom;
+    private volatile Remote pendingTo;
+    private volatile boolean receiveCutOverPending;
+    // Remote cut over to, until it plays its first frame
+    private Remote switchingTo;
+    private long switchFrame;
+    private volatile long lastSwitchGapNanos = -1;
+    private volatile long switchCount;
+
+    // Receive lane. Remotes are replaced as a whole, so the lane sees a consistent array.
+    private volatile Remote[] remotes = new Remote[0];
+    private final short[] mixed;
+    private final short[] silence;
+    private double smoothedQueue = -1;
+    private boolean primed;
+
+    // Audio device at another rate than the call, set before start()
+    private int deviceRate;
+    private Resampler captureResampler;
+    private Resampler playoutResampler;
+    private short[] deviceCaptured;
+    private short[] devicePlayout;
+
+    // The encoder's clock rate is the rate of the whole call
+    public CallPipeline(PipelineClock clock, VoiceCodec encoder, int payloadType, AudioInput input, AudioOutput output,
+                        PacketSink sink) {
+        this.clock = clock;
+        this.encoder = encoder;
+        this.payloadType = payloadType;
+        this.input = input;
+        this.output = output;
+        this.sink = sink;
+        deviceRate = encoder.getClockRate();
+        frameSamples = encoder.getClockRate() * FRAME_MILLIS / 1000;
+        captured = new short[frameSamples];
+        mixed = new short[frameSamples];
+        silence = new short[frameSamples];
+        packetizer = new RtpPacketizer(null, payloadType, frameSamples);
+        speechPacketBytes = RtpPacket.FIXED_HEADER_LENGTH + encoder.getBitrate() * FRAME_MILLIS / 8000;
+        sendLane = new PipelineScheduler("send", clock, FRAME_NANOS);
+        receiveLane = new PipelineScheduler("receive", clock, FRAME_NANOS);
+        buildSendLane();
+        buildReceiveLane();
+    }
+
+    private void buildSendLane() {
+        sendLane.addStage(CAPTURE, FRAME_NANOS / 2, new PipelineScheduler.Stage() {
+            @Override
+            public void process(long frameIndex) {
+                if (captureResampler == null) {
+                    read(captured, frameSamples);
+                } else {
+                    read(deviceCaptured, deviceCaptured.length);
+                    captureResampler.process(deviceCaptured, 0, deviceCaptured.length, captured, 0);
+                }
+            }
+        });
+        sendLane.addStage(PROCESS, FRAME_NANOS / 4, new PipelineScheduler.Stage() {
+            @Override
+            public void process(long frameIndex) {
+                VoiceProcessor p = voiceProcessor;
+                if (p != null) {
+                    p.process(captured, 0, frameSamples);
+                }
+            }
+        });
+        sendLane.addStage(ENCODE, FRAME_NANOS / 4, new PipelineScheduler.Stage() {
+            @Override
+            public void process(long frameIndex) {
+                DtxController d = dtx;
+                frameType = d == null ? DtxController.SPEECH : d.process(captured, 0, frameSamples);
+                if (frameType == DtxController.SPEECH) {
+                    encodedLength = encoder.encode(captured, 0, frameSamples, encoded, 0);
+                } else if (frameType == DtxController.COMFORT_NOISE) {
+                    encodedLength = d.getPayload(encoded, 0);
+                }
+            }
+        });
+        sendLane.addStage(PACKETIZE, FRAME_NANOS / 10, new PipelineScheduler.Stage() {
+            @Override
+            public void process(long frameIndex) {
+                if (frameType == DtxController.SPEECH) {
+                    packetizeSpeech();
+                    return;
+                }
+                forgetRedundancy();
+                if (frameType == DtxController.COMFORT_NOISE) {
+                    packetReady = packetizer.packetizeComfortNoise(comfortNoisePayloadType, encoded, 0,
+                            encodedLength, outgoing);
+                } else {
+                    packetizer.skipFrame();
+                    packetReady = false;
+                }
+            }
+        });
+        sendLane.addStage(SEND, FRAME_NANOS / 10, new PipelineScheduler.Stage() {
+            @Override
+            public void process(long frameIndex) {
+                PacketSink next = pendingSink;
+                if (next != null) {
+                    // Packets of this frame on go to the new target
+                    sink = next;
+                    pendingSink = null;
+                }
+                SrtpContext s = srtp;
+                Fec f = fec;
+                // Parity shares our SSRC with a sequence of its own, which SRTP can't tell apart
+                boolean parityDue = packetReady && f != null && s == null && protect(f);
+                if (packetReady) {
+                    CallRecorder r = recorder;
+                    if (r != null) {
+                        r.append(outgoing, true, clock.nanoTime());
+                    }
+                    if (s != null) {
+                        s.protect(outgoing);
+                    }
+                }
+                int bytes = packetReady ? outgoing.remaining() : 0;
+                if (packetReady) {
+                    sink.send(outgoing);
+                    if (sendMetrics != null) {
+                        sendMetrics.onPacketSent(bytes);
+                    }
+                    if (s != null) {
+                        // The next packet's key stream, while there's time to spare
+                        s.precompute(packetizer.getSsrc(), packetizer.getSequenceNumber(), encodedLength);
+                    }
+                }
+                if (parityDue) {
+                    sendParity(f);
+                }
+                if (frameType == DtxController.SPEECH) {
+                    if (packetReady) {
+                        speechPacketBytes = bytes;
+                    }
+                } else if (sendMetrics != null) {
+                    sendMetrics.onSilentFrame(!packetReady, speechPacketBytes - bytes);
+                }
+            }
+        });
+    }
+
+    // Send lane: packetize the encoded frame, inside a RED payload while the loss calls for it
+    private void packetizeSpeech() {
+        Fec f = fec;
+        int depth = f == null || f.redEncoder == null ? 0 : f.controller.getRedDepth();
+        if (depth == 0 || encodedLength > MAX_RED_FRAME_SIZE) {
+            forgetRedundancy();
+            packetizer.setPayloadType(payloadType);
+            packetReady = packetizer.packetize(encoded, 0, encodedLength, outgoing);
+            return;
+        }
+        f.redEncoder.setDepth(depth);
+        int length = f.redEncoder.encode(encoded, 0, encodedLength, packetizer.getTimestamp(), f.redPayload, 0);
+        packetizer.setPayloadType(f.redPayloadType);
+        packetReady = packetizer.packetize(f.redPayload, 0, length, outgoing);
+        if (!packetReady) {
+            forgetRedundancy();
+        }
+    }
+
+    // Send lane: the receiver places redundant frames by sequence number, so they must be those of
+    // the packets right before. Start over after any packet, or gap, without them.
+    private void forgetRedundancy() {
+        Fec f = fec;
+        if (f != null && f.redEncoder != null) {
+            f.redEncoder.reset();
+        }
+    }
+
+    // Send lane: fold the outgoing packet into the parity at the group size the loss calls for.
+    // Return true when the group is complete.
+    private boolean protect(Fec f) {
+        if (f.parityPacketizer == null) {
+            return false;
+        }
+        int groupSize = f.controller.getXorGroupSize();
+        if (groupSize != f.xorEncoder.getGroupSize()) {
+            f.xorEncoder.setGroupSize(groupSize);
+        }
+        return f.xorEncoder.protect(outgoing);
+    }
+
+    // Send lane: send the parity of the group just completed
+    private void sendParity(Fec f) {
+        int length = f.xorEncoder.writePayload(f.parityPayload, 0);
+        if (f.parityPacketizer.getSsrc() != packetizer.getSsrc()) {
+            f.parityPacketizer.setSsrc(packetizer.getSsrc());
+        }
+        if (!f.parityPacketizer.packetize(f.parityPayload, 0, length, f.parity)) {
+            return;
+        }
+        CallRecorder r = recorder;
+        if (r != null) {
+            r.append(f.parity, true, clock.nanoTime());
+        }
+        int bytes = f.parity.remaining();
+        sink.send(f.parity);
+        parityPacketsSent++;
+        if (sendMetrics != null) {
+            sendMetrics.onPacketSent(bytes);
+        }
+    }
+
+    // Send lane: read samples from the device into pcm
+    private void read(short[] pcm, int samples) {
+        int n = input.read(pcm, 0, samples);
+        if (n < samples) {
+            // Keep the timing and fill the gap with silence
+            shortReadCount++;
+            for (int i = Math.max(n, 0); i < samples; i++) {
+                pcm[i] = 0;
+            }
+        }
+    }
+
+    private void buildReceiveLane() {
+        receiveLane.addStage(RECEIVE, FRAME_NANOS / 10, new PipelineScheduler.Stage() {
+            @Override
+            public void process(long frameIndex) {
+                if (receiveCutOverPending) {
+                    cutOverReceive(frameIndex);
+                }
+                CallRecorder recording = recorder;
+                for (Remote r : remotes) {
+                    r.receive(recording);
+                }
+            }
+        });
+        receiveLane.addStage(JITTER, FRAME_NANOS / 10, new PipelineScheduler.Stage() {
+            @Override
+            public void process(long frameIndex) {
+                double ppm = receiveLane.getRateCorrectionPpm();
+                for (Remote r : remotes) {
+                    r.poll(ppm);
+                }
+            }
+        });
+        receiveLane.addStage(DECODE, FRAME_NANOS / 4, new PipelineScheduler.Stage() {
+            @Override
+            public void process(long frameIndex) {
+                for (Remote r : remotes) {
+                    r.decode();
+                }
+                if (switchingTo != null && switchingTo.payloadLength > 0) {
+                    // Frames in between had nothing from either side
+                    lastSwitchGapNanos = (frameIndex - switchFrame) * FRAME_NANOS;
+                    switchingTo = null;
+                }
+            }
+        });
+        receiveLane.addStage(MIX, FRAME_NANOS / 10, new PipelineScheduler.Stage() {
+            @Override
+            public void process(long frameIndex) {
+                for (int i = 0; i < frameSamples; i++) {
+                    mixed[i] = 0;
+                }
+                for (Remote r : remotes) {
+                    if (r.active && !r.standby) {
+                        AudioMixer.addSaturating(mixed, 0, r.pcm, 0, frameSamples);
+                    }
+                }
+            }
+        });
+        receiveLane.addStage(PLAYOUT, FRAME_NANOS / 2, new PipelineScheduler.Stage() {
+            @Override
+            public void process(long frameIndex) {
+                if (!primed) {
+                    // Start with the target queue so the device never waits for the first frames
+                    primed = true;
+                    for (int i = 1; i < TARGET_QUEUE_FRAMES; i++) {
+                        write(silence);
+                    }
+                }
+                VoiceProcessor p = voiceProcessor;
+                if (p != null) {
+                    p.onPlayout(mixed, 0, frameSamples);
+                }
+                write(mixed);
+                int queued = output.getQueuedSamples();
+                queued = queued < 0 ? queued : (int) ((long) queued * encoder.getClockRate() / deviceRate);
+                if (p != null && queued >= frameSamples) {
+                    // Ahead of the frame just written
+                    p.setPlayoutDelay(queued - frameSamples);
+                }
+                followDeviceClock(queued);
+            }
+        });
+    }
+
+    // Receive lane: play one frame at the call's rate
+    private void write(short[] pcm) {
+        if (playoutResampler == null) {
+            output.write(pcm, 0, frameSamples);
+        } else {
+            int n = playoutResampler.process(pcm, 0, frameSamples, devicePlayout, 0);
+            output.write(devicePlayout, 0, n);
+        }
+    }
+
+    // Receive lane: hear the new remote instead of the old one from this frame on
+    private void cutOverReceive(long frameIndex) {
+        Remote from = pendingFrom;
+        Remote to = pendingTo;
+        receiveCutOverPending = false;
+        if (to != null) {
+            to.standby = false;
+            switchingTo = to;
+            switchFrame = frameIndex;
+            lastSwitchGapNanos = -1;
+        }
+        if (from != null) {
+            removeRemote(from);
+        }
+        switchCount++;
+    }
+
+    // Stretch both lanes so the device's playout queue stays around its target. A queue that
+    // grows means we produce faster than the device plays.
+    private void followDeviceClock(int queued) {
+        if (queued < 0) {
+            return;
+        }
+        if (smoothedQueue < 0) {
+            smoothedQueue = queued;
+        } else {
+            smoothedQueue += (queued - smoothedQueue) * QUEUE_SMOOTHING;
+        }
+        double error = smoothedQueue / frameSamples - TARGET_QUEUE_FRAMES;
+        double ppm = Math.max(-MAX_DRIFT_PPM, Math.min(MAX_DRIFT_PPM, error * PPM_PER_FRAME));
+        receiveLane.setRateCorrectionPpm(ppm);
+        sendLane.setRateCorrectionPpm(ppm);
+    }
+
+    // Add a remote source decoded by its own decoder at the call's clock rate. Any thread.
+    public Remote addRemote(VoiceCodec decoder, int payloadType) {
+        return addRemote(decoder, payloadType, false);
+    }
+
+    private synchronized Remote addRemote(VoiceCodec decoder, int payloadType, boolean standby) {
+        if (decoder.getClockRate() != encoder.getClockRate()) {
+            throw new IllegalArgumentException("Clock rate " + decoder.getClockRate() + " differs from the call's "
+                    + encoder.getClockRate());
+        }
+        Remote[] old = remotes;
+        if (old.length == MAX_REMOTES) {
+            throw new IllegalStateException("More than " + MAX_REMOTES + " remotes");
+        }
+        Remote r = new Remote(decoder, payloadType, comfortNoisePayloadType, redPayloadType, fecPayloadType,
+                frameSamples);
+        r.standby = standby;
+        Remote[] updated = new Remote[old.length + 1];
+        System.arraycopy(old, 0, updated, 0, old.length);
+        updated[old.length] = r;
+        remotes = updated;
+        return r;
+    }
+
+    // Add a remote that receives and decodes but isn't heard until cutOver() makes it the active
+    // one. Add it as early as possible so its jitter buffer and decoder are warm by then.
+    public Remote addStandbyRemote(VoiceCodec decoder, int payloadType) {
+        return addRemote(decoder, payloadType, true);
+    }
+
+    // Switch from one peer to another without stopping: from the next frame of the receive lane
+    // the remote to is heard and from is removed, and from the next frame of the send lane packets
+    // go to sink. Any of them may be null to leave that part alone. Any thread.
+    public synchronized void cutOver(Remote from, Remote to, PacketSink sink) {
+        pendingFrom = from;
+        pendingTo = to;
+        receiveCutOverPending = from != null || to != null;
+        pendingSink = sink;
+    }
+
+    // Whether a cut-over hasn't reached both lanes yet
+    public boolean isCutOverPending() {
+        return receiveCutOverPending || pendingSink != null;
+    }
+
+    // Cut-overs the receive lane has carried out
+    public long getSwitchCount() {
+        return switchCount;
+    }
+
+    // Time without audio from either peer at the last cut-over, in whole frames, so 0 when the
+    // new remote was warm. -1 until the new remote has played.
+    public long getLastSwitchGapNanos() {
+        return lastSwitchGapNanos;
+    }
+
+    // Any thread. The receive lane stops mixing it from its next frame.
+    public synchronized void removeRemote(Remote remote) {
+        Remote[] old = remotes;
+        for (int i = 0; i < old.length; i++) {
+            if (old[i] == remote) {
+                Remote[] updated = new Remote[old.length - 1];
+                System.arraycopy(old, 0, updated, 0, i);
+                System.arraycopy(old, i + 1, updated, i, old.length - i - 1);
+                remotes = updated;
+                return;
+            }
+        }
+    }
+
+    public int getRemoteCount() {
+        return remotes.length;
+    }
+
+    public void setSendMetrics(StreamMetrics sendMetrics) {
+        this.sendMetrics = sendMetrics;
+    }
+
+    // Stop sending during silence from the next frame, or send every frame again if null. Any
+    // thread.
+    public void setDtx(DtxController dtx) {
+        this.dtx = dtx;
+    }
+
+    public DtxController getDtx() {
+        return dtx;
+    }
+
+    // Cancel echo and suppress noise in captured frames from the next frame, or leave them alone
+    // if null. It must work on frames of getFrameSamples(). Any thread.
+    public void setVoiceProcessor(VoiceProcessor voiceProcessor) {
+        this.voiceProcessor = voiceProcessor;
+    }
+
+    public VoiceProcessor getVoiceProcessor() {
+        return voiceProcessor;
+    }
+
+    // Record packets sent and received from the next frame, or stop if null. Closing the
+    // recorder is up to the caller, after this. Any thread.
+    public void setRecorder(CallRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    public CallRecorder getRecorder() {
+        return recorder;
+    }
+
+    // Protect packets sent with SRTP from the next frame, or send them in the clear if null. The
+    // context is used on the send lane only. Any thread.
+    public void setSrtp(SrtpContext srtp) {
+        this.srtp = srtp;
+    }
+
+    public SrtpContext getSrtp() {
+        return srtp;
+    }
+
+    // Send redundancy at the level controller picks from the next frame, or none if null: RED
+    // payloads of redPayloadType and XOR parity packets of fecPayloadType, -1 for either to send
+    // none of it. No parity is sent while SRTP is on. Feed the controller from the remote side's
+    // reports, e.g. with RtcpSession.setFecController(). Remotes added after this accept both
+    // types. Any thread.
+    public synchronized void setFec(FecController controller, int redPayloadType, int fecPayloadType) {
+        this.redPayloadType = redPayloadType;
+        this.fecPayloadType = fecPayloadType;
+        fec = controller == null ? null
+                : new Fec(controller, payloadType, redPayloadType, fecPayloadType, frameSamples);
+    }
+
+    public FecController getFecController() {
+        Fec f = fec;
+        return f == null ? null : f.controller;
+    }
+
+    // XOR parity packets sent
+    public long getParityPacketsSent() {
+        return parityPacketsSent;
+    }
+
+    // Payload type of comfort noise sent and accepted from remotes added after this, or -1 to
+    // accept none. RFC 3389 comfort noise at 8 kHz has the static type 13.
+    public void setComfortNoisePayloadType(int comfortNoisePayloadType) {
+        this.comfortNoisePayloadType = comfortNoisePayloadType;
+    }
+
+    // Read from the input and write to the output at rate, one of Resampler.RATES, converting
+    // to and from the call's clock rate in the capture and playout stages. Call before start().
+    public void setDeviceSampleRate(int rate) {
+        if (rate == encoder.getClockRate()) {
+            captureResampler = null;
+            playoutResampler = null;
+        } else {
+            captureResampler = new Resampler(rate, encoder.getClockRate());
+            playoutResampler = new Resampler(encoder.getClockRate(), rate);
+            deviceCaptured = new short[rate * FRAME_MILLIS / 1000];
+            devicePlayout = new short[playoutResampler.getMaxOutput(frameSamples)];
+        }
+        deviceRate = rate;
+    }
+
+    public int getDeviceSampleRate() {
+        return deviceRate;
+    }
+
+    // Apply to both lanes before start(), e.g. to raise the thread priority on Android
+    public void setThreadSetup(PipelineScheduler.ThreadSetup threadSetup) {
+        sendLane.setThreadSetup(threadSetup);
+        receiveLane.setThreadSetup(threadSetup);
+    }
+
+    public void start() {
+        receiveLane.start();
+        sendLane.start();
+    }
+
+    public void stop() {
+        sendLane.stop();
+        receiveLane.stop();
+    }
+
+    // What a stage threw to end its lane, null if neither lane failed
+    public RuntimeException getFailure() {
+        RuntimeException f = sendLane.getFailure();
+        return f != null ? f : receiveLane.getFailure();
+    }
+
+    public PipelineScheduler getSendLane() {
+        return sendLane;
+    }
+
+    public PipelineScheduler getReceiveLane() {
+        return receiveLane;
+    }
+
+    public RtpPacketizer getPacketizer() {
+        return packetizer;
+    }
+
+    public PipelineClock getClock() {
+        return clock;
+    }
+
+    public int getFrameSamples() {
+        return frameSamples;
+    }
+
+    // Captured frames that came back short and were padded with silence
+    public long getShortReadCount() {
+        return shortReadCount;
+    }
+}
@@ -0,0 +1,265 @@
+package com.vernonsung.testaudiostream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Records the RTP payloads of a call as they are sent and received, without decoding or
+// re-encoding anything, into an append-only file a CallRecording reads back.
+// The file is memory-mapped one segment at a time, so appending a packet is a copy into memory
+// and the kernel writes it out in its own time. The next segment is mapped ahead by a background
+// thread, which also touches every page of it so the audio threads don't take page faults
+// either; they never wait for the disk or the file system. Should they catch up with it anyway
+// the packet is dropped and counted.
+// A record is only complete once its size is written, which happens last, so a recording cut
+// short by a crash ends at the last whole record. Every second of recording a (time, offset) pair
+// goes into the index file next to it, for seeking.
+// File layout, all big-endian:
+//   header   int magic "CREC", int version, int segment size, long start wall clock millis
+//   record   short size, byte flags, byte payload type, short sequence, int timestamp, int SSRC,
+//            long nanos since the first record, payload
+// A size of 0 ends the recording and SKIP moves on to the next segment. Records never cross
+// segments.
+public class CallRecorder implements Runnable {
+    public static final int MAGIC = 0x43524543;
+    public static final int VERSION = 1;
+    public static final int HEADER_LENGTH = 20;
+    public static final int RECORD_HEADER_LENGTH = 22;
+    public static final int DEFAULT_SEGMENT_SIZE = 4 << 20;
+    public static final short SKIP = -1;
+    // Record flags
+    public static final int OUTGOING = 0x01;
+    public static final int MARKER = 0x80;
+    // Index layout: int magic "CIDX", int entries, then long nanos and long file offset per entry
+    public static final int INDEX_MAGIC = 0x43494458;
+    public static final int INDEX_HEADER_LENGTH = 8;
+    public static final int INDEX_ENTRY_LENGTH = 16;
+    public static final long INDEX_INTERVAL_NANOS = 1000000000L;
+    // Over 18 hours at one entry a second. Later records are found by scanning from the last.
+    public static final int MAX_INDEX_ENTRIES = 1 << 16;
+    private static final int PAGE_SIZE = 4096;
+
+    private final File file;
+    private final int segmentSize;
+    private final RandomAccessFile data;
+    private final RandomAccessFile index;
+    private final MappedByteBuffer indexMap;
+    private final RtpPacket parsed = new RtpPacket();
+    private MappedByteBuffer segment;
+    private int segmentNumber;
+    // Mapped ahead by the background thread, which waits on mapLock rather than this so busy
+    // appenders can't hold it up
+    private volatile MappedByteBuffer nextSegment;
+    private final Object mapLock = new Object();
+    private volatile IOException failure;
+    private int position;
+    private int indexEntries;
+    private long baseNanos = -1;
+    private long nextIndexNanos;
+    private volatile boolean closed;
+    private final Thread thread;
+
+    private long recordCount;
+    private long byteCount;
+    private long droppedCount;
+
+    public CallRecorder(File file) throws IOException {
+        this(file, DEFAULT_SEGMENT_SIZE);
+    }
+
+    // Create or overwrite file and its index. Segments of segmentSize bytes, which must hold
+    // the largest packet, are mapped one after another as the recording grows.
+    public CallRecorder(File file, int segmentSize) throws IOException {
+        if (segmentSize < HEADER_LENGTH + RECORD_HEADER_LENGTH + CallPipeline.MAX_PACKET_SIZE) {
+            throw new IllegalArgumentException("Segment of " + segmentSize + " bytes is too small");
+        }
+        this.file = file;
+        this.segmentSize = segmentSize;
+        data = new RandomAccessFile(file, "rw");
+        index = new RandomAccessFile(indexFileOf(file), "rw");
+        try {
+            data.setLength(0);
+            index.setLength(0);
+            segment = map(0);
+            segment.putInt(MAGIC).putInt(VERSION).putInt(segmentSize).putLong(System.currentTimeMillis());
+            position = HEADER_LENGTH;
+            indexMap = index.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    INDEX_HEADER_LENGTH + (long) MAX_INDEX_ENTRIES * INDEX_ENTRY_LENGTH);
+            indexMap.putInt(0, INDEX_MAGIC);
+            nextSegment = map(1);
+        } catch (IOException e) {
+            data.close();
+            index.close();
+            throw e;
+        }
+        thread = new Thread(this, "CallRecorder");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public static File indexFileOf(File file) {
+        return new File(file.getPath() + ".idx");
+    }
+
+    private MappedByteBuffer map(int number) throws IOException {
+        MappedByteBuffer mapped = data.getChannel().map(FileChannel.MapMode.READ_WRITE, (long) number * segmentSize,
+                segmentSize);
+        for (int i = 0; i < segmentSize; i += PAGE_SIZE) {
+            mapped.put(i, (byte) 0);
+        }
+        return mapped;
+    }
+
+    // Background thread: keep the next segment mapped
+    @Override
+    public void run() {
+        int mapped = 1;
+        while (true) {
+            synchronized (mapLock) {
+                while (!closed && nextSegment != null) {
+                    try {
+                        mapLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+            if (closed) {
+                return;
+            }
+            try {
+                nextSegment = map(++mapped);
+            } catch (IOException e) {
+                failure = e;
+                return;
+            }
+        }
+    }
+
+    // Record the RTP packet between position and limit, sent if outgoing and received
+    // otherwise, at nanos on the monotonic clock. The buffer isn't changed. Any thread. Return
+    // false if it isn't RTP or was dropped.
+    public synchronized boolean append(ByteBuffer packet, boolean outgoing, long nanos) {
+        if (closed || !parsed.parse(packet)) {
+            return false;
+        }
+        int length = parsed.getPayloadLength();
+        int size = RECORD_HEADER_LENGTH + length;
+        if (position + size + 2 > segmentSize) {
+            // Leave room for the size of the next record, which may be the end
+            MappedByteBuffer next = nextSegment;
+            if (next == null) {
+                droppedCount++;
+                return false;
+            }
+            segment.putShort(position, SKIP);
+            segment = next;
+            segmentNumber++;
+            position = 0;
+            synchronized (mapLock) {
+                nextSegment = null;
+                mapLock.notify();
+            }
+        }
+        if (baseNanos < 0) {
+            baseNanos = nanos;
+            nextIndexNanos = nanos;
+        }
+        if (nanos >= nextIndexNanos && indexEntries < MAX_INDEX_ENTRIES) {
+            int entry = INDEX_HEADER_LENGTH + indexEntries * INDEX_ENTRY_LENGTH;
+            indexMap.putLong(entry, nanos - baseNanos);
+            indexMap.putLong(entry + 8, (long) segmentNumber * segmentSize + position);
+            indexMap.putInt(4, ++indexEntries);
+            nextIndexNanos = nanos + INDEX_INTERVAL_NANOS;
+        }
+
+        int p = position;
+        segment.put(p + 2, (byte) ((outgoing ? OUTGOING : 0) | (parsed.getMarker() ? MARKER : 0)));
+        segment.put(p + 3, (byte) parsed.getPayloadType());
+        segment.putShort(p + 4, (short) parsed.getSequenceNumber());
+        segment.putInt(p + 6, (int) parsed.getTimestamp());
+        segment.putInt(p + 10, (int) parsed.getSsrc());
+        segment.putLong(p + 14, nanos - baseNanos);
+        int from = parsed.getPayloadOffset();
+        int to = p + RECORD_HEADER_LENGTH;
+        if (packet.hasArray()) {
+            segment.position(to);
+            segment.put(packet.array(), packet.arrayOffset() + from, length);
+        } else {
+            for (int i = 0; i < length; i++) {
+                segment.put(to + i, packet.get(from + i));
+            }
+        }
+        // Complete
+        segment.putShort(p, (short) size);
+        position += size;
+        recordCount++;
+        byteCount += size;
+        return true;
+    }
+
+    // Flush what was recorded to the disk. Blocks, so not on an audio thread.
+    public void flush() {
+        MappedByteBuffer current;
+        synchronized (this) {
+            current = segment;
+        }
+        current.force();
+        indexMap.force();
+    }
+
+    // Stop recording, flush and cut the file down to what was recorded
+    public void close() throws IOException {
+        long length;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            length = (long) segmentNumber * segmentSize + position;
+        }
+        synchronized (mapLock) {
+            mapLock.notify();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        segment.force();
+        indexMap.force();
+        try {
+            // Leave the end mark, a size of 0, after the last record
+            data.setLength(Math.min(length + 2, (long) (segmentNumber + 1) * segmentSize));
+            index.setLength(INDEX_HEADER_LENGTH + (long) indexEntries * INDEX_ENTRY_LENGTH);
+        } finally {
+            data.close();
+            index.close();
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    // Error mapping the next segment, after which packets are dropped
+    public IOException getFailure() {
+        return failure;
+    }
+
+    public synchronized long getRecordCount() {
+        return recordCount;
+    }
+
+    public synchronized long getByteCount() {
+        return byteCount;
+    }
+
+    // Packets dropped because the next segment wasn't mapped in time
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+}
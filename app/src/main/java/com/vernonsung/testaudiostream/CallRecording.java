@@ -0,0 +1,283 @@
+package com.vernonsung.testaudiostream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Reads back a file written by CallRecorder, one record at a time:
+//   CallRecording recording = CallRecording.open(file);
+//   while (recording.next()) { ... recording.getSsrc() ... }
+// seek() jumps to a time through the index. decode() turns one stream back into PCM, e.g. to
+// write it out as WAV with PcmFile.write(). The file is mapped read-only a segment at a time.
+public class CallRecording {
+    private final RandomAccessFile data;
+    private final int segmentSize;
+    private final long startMillis;
+    private final long length;
+    private final MappedByteBuffer[] segments;
+    private final long[] indexNanos;
+    private final long[] indexOffsets;
+
+    // Current record
+    private int segmentNumber;
+    private int position;
+    private int size;
+    private MappedByteBuffer segment;
+
+    private CallRecording(RandomAccessFile data, long[] indexNanos, long[] indexOffsets) throws IOException {
+        this.data = data;
+        this.indexNanos = indexNanos;
+        this.indexOffsets = indexOffsets;
+        length = data.length();
+        if (length < CallRecorder.HEADER_LENGTH || data.readInt() != CallRecorder.MAGIC) {
+            throw new IOException("Not a call recording");
+        }
+        int version = data.readInt();
+        if (version != CallRecorder.VERSION) {
+            throw new IOException("Unsupported version " + version);
+        }
+        segmentSize = data.readInt();
+        startMillis = data.readLong();
+        if (segmentSize <= CallRecorder.HEADER_LENGTH) {
+            throw new IOException("Bad segment size " + segmentSize);
+        }
+        segments = new MappedByteBuffer[(int) ((length + segmentSize - 1) / segmentSize)];
+        rewind();
+    }
+
+    public static CallRecording open(File file) throws IOException {
+        long[] nanos = new long[0];
+        long[] offsets = new long[0];
+        File indexFile = CallRecorder.indexFileOf(file);
+        if (indexFile.exists()) {
+            RandomAccessFile index = new RandomAccessFile(indexFile, "r");
+            try {
+                if (index.length() >= CallRecorder.INDEX_HEADER_LENGTH
+                        && index.readInt() == CallRecorder.INDEX_MAGIC) {
+                    long stored = (index.length() - CallRecorder.INDEX_HEADER_LENGTH)
+                            / CallRecorder.INDEX_ENTRY_LENGTH;
+                    int entries = (int) Math.min(index.readInt(), stored);
+                    nanos = new long[entries];
+                    offsets = new long[entries];
+                    for (int i = 0; i < entries; i++) {
+                        nanos[i] = index.readLong();
+                        offsets[i] = index.readLong();
+                    }
+                }
+            } finally {
+                index.close();
+            }
+        }
+        RandomAccessFile data = new RandomAccessFile(file, "r");
+        try {
+            return new CallRecording(data, nanos, offsets);
+        } catch (IOException e) {
+            data.close();
+            throw e;
+        }
+    }
+
+    private MappedByteBuffer segment(int number) throws IOException {
+        if (segments[number] == null) {
+            long offset = (long) number * segmentSize;
+            segments[number] = data.getChannel().map(FileChannel.MapMode.READ_ONLY, offset,
+                    Math.min(segmentSize, length - offset));
+        }
+        return segments[number];
+    }
+
+    // Before the first record
+    public void rewind() throws IOException {
+        moveTo(CallRecorder.HEADER_LENGTH);
+    }
+
+    private void moveTo(long offset) throws IOException {
+        segmentNumber = (int) (offset / segmentSize);
+        position = (int) (offset % segmentSize);
+        size = 0;
+        segment = segmentNumber < segments.length ? segment(segmentNumber) : null;
+    }
+
+    // Move to the next record. Return false at the end of the recording.
+    public boolean next() throws IOException {
+        position += size;
+        size = 0;
+        while (true) {
+            if (segment == null || position + 2 > segment.limit()) {
+                return false;
+            }
+            short s = segment.getShort(position);
+            if (s == CallRecorder.SKIP) {
+                if (++segmentNumber >= segments.length) {
+                    segment = null;
+                    return false;
+                }
+                segment = segment(segmentNumber);
+                position = 0;
+                continue;
+            }
+            if (s < CallRecorder.RECORD_HEADER_LENGTH || position + s > segment.limit()) {
+                // The end, or a record that was never completed
+                return false;
+            }
+            size = s;
+            return true;
+        }
+    }
+
+    // Move to just before the first record at or after nanos since the first record
+    public void seek(long nanos) throws IOException {
+        int i = Arrays.binarySearch(indexNanos, nanos);
+        if (i < 0) {
+            i = -i - 2;
+        }
+        if (i < 0) {
+            rewind();
+        } else {
+            moveTo(indexOffsets[i]);
+        }
+        while (next()) {
+            if (getNanos() >= nanos) {
+                // Stay before it
+                size = 0;
+                return;
+            }
+        }
+    }
+
+    public boolean isOutgoing() {
+        return (segment.get(position + 2) & CallRecorder.OUTGOING) != 0;
+    }
+
+    public boolean getMarker() {
+        return (segment.get(position + 2) & CallRecorder.MARKER) != 0;
+    }
+
+    public int getPayloadType() {
+        return segment.get(position + 3) & 0x7F;
+    }
+
+    public int getSequenceNumber() {
+        return segment.getShort(position + 4) & 0xFFFF;
+    }
+
+    public long getTimestamp() {
+        return segment.getInt(position + 6) & 0xFFFFFFFFL;
+    }
+
+    public long getSsrc() {
+        return segment.getInt(position + 10) & 0xFFFFFFFFL;
+    }
+
+    // Since the first record
+    public long getNanos() {
+        return segment.getLong(position + 14);
+    }
+
+    public int getPayloadLength() {
+        return size - CallRecorder.RECORD_HEADER_LENGTH;
+    }
+
+    // Copy the payload to out at offset and return its length
+    public int getPayload(byte[] out, int offset) {
+        int n = getPayloadLength();
+        for (int i = 0; i < n; i++) {
+            out[offset + i] = segment.get(position + CallRecorder.RECORD_HEADER_LENGTH + i);
+        }
+        return n;
+    }
+
+    // SSRCs of the streams sent, or received, in the order they first appear
+    public List<Long> getStreams(boolean outgoing) throws IOException {
+        List<Long> streams = new ArrayList<Long>();
+        rewind();
+        while (next()) {
+            if (isOutgoing() == outgoing && !streams.contains(getSsrc())) {
+                streams.add(getSsrc());
+            }
+        }
+        rewind();
+        return streams;
+    }
+
+    // Decode the stream of ssrc in one direction with decoder into PCM at its clock rate. Every
+    // frame goes where its RTP timestamp puts it, so reordered packets land in place. The stream
+    // starts at its first packet's time since the first record, so streams decoded apart still
+    // line up. Gaps are silent, or comfort noise after an RFC 3389 payload of type
+    // comfortNoisePayloadType. Other payload types are skipped.
+    public PcmFile decode(long ssrc, boolean outgoing, int payloadType, VoiceCodec decoder,
+                          int comfortNoisePayloadType) throws IOException {
+        int rate = decoder.getClockRate();
+        byte[] payload = new byte[CallPipeline.MAX_PACKET_SIZE];
+        short[] pcm = new short[rate];
+        short[] frame = new short[rate];
+        ComfortNoise comfortNoise = new ComfortNoise(0);
+        // Sample of the stream's first timestamp, and where comfort noise started
+        long origin = -1;
+        long firstTimestamp = 0;
+        long noiseFrom = -1;
+        int end = 0;
+        rewind();
+        while (next()) {
+            if (getSsrc() != ssrc || isOutgoing() != outgoing) {
+                continue;
+            }
+            if (origin < 0) {
+                origin = getNanos() * rate / 1000000000L;
+                firstTimestamp = getTimestamp();
+            }
+            // Signed 32-bit distance, so wrap-around doesn't matter
+            long at = origin + (int) (getTimestamp() - firstTimestamp);
+            if (at < 0 || at > Integer.MAX_VALUE - rate) {
+                continue;
+            }
+            int n;
+            int type = getPayloadType();
+            if (type == comfortNoisePayloadType) {
+                comfortNoise.update(payload, 0, getPayload(payload, 0));
+                if (noiseFrom < 0 || at < noiseFrom) {
+                    noiseFrom = at;
+                }
+                continue;
+            } else if (type == payloadType) {
+                n = decoder.decode(payload, 0, getPayload(payload, 0), frame, 0);
+            } else {
+                continue;
+            }
+            if (at + n > pcm.length) {
+                pcm = Arrays.copyOf(pcm, (int) Math.max(at + n, 2L * pcm.length));
+            }
+            if (noiseFrom >= 0 && noiseFrom < at) {
+                // Comfort noise up to where speech came back
+                comfortNoise.generate(pcm, (int) noiseFrom, (int) (at - noiseFrom));
+            }
+            noiseFrom = -1;
+            System.arraycopy(frame, 0, pcm, (int) at, n);
+            end = (int) Math.max(end, at + n);
+        }
+        rewind();
+        return new PcmFile(rate, Arrays.copyOf(pcm, end));
+    }
+
+    // Wall clock time the recording started, in milliseconds since the epoch
+    public long getStartMillis() {
+        return startMillis;
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    public int getIndexSize() {
+        return indexNanos.length;
+    }
+
+    public void close() throws IOException {
+        data.close();
+    }
+}
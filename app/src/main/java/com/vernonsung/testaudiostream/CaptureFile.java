@@ -0,0 +1,231 @@
+package com.vernonsung.testaudiostream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+// Reads the UDP datagrams out of a pcap file, one at a time:
+//   CaptureFile capture = CaptureFile.open(file);
+//   while (capture.next()) { ... capture.getDatagram() ... }
+// Besides what PacketCapture writes it takes what tcpdump writes on a Linux box: microsecond or
+// nanosecond pcap in either byte order, on Ethernet (with VLAN tags), Linux cooked capture
+// ("any" interface) or raw IP. Anything but whole UDP datagrams over IPv4 or IPv6 is skipped:
+// other protocols, fragments and packets cut short by the snapshot length.
+// The file is mapped read-only, so it must be under 2 GB.
+public class CaptureFile {
+    public static final int LINKTYPE_ETHERNET = 1;
+    public static final int LINKTYPE_LINUX_SLL = 113;
+    public static final int LINKTYPE_IPV4 = 228;
+    public static final int LINKTYPE_IPV6 = 229;
+    private static final int ETHERTYPE_IPV4 = 0x0800;
+    private static final int ETHERTYPE_IPV6 = 0x86DD;
+    private static final int ETHERTYPE_VLAN = 0x8100;
+    private static final int ETHERNET_HEADER_LENGTH = 14;
+    private static final int SLL_HEADER_LENGTH = 16;
+    private static final int PROTOCOL_UDP = 17;
+
+    private final RandomAccessFile data;
+    private final MappedByteBuffer map;
+    private final ByteBuffer datagram;
+    private final int linkType;
+    private final boolean nanosecond;
+
+    // Current record
+    private int position;
+    private long nanos;
+    private int ipOffset;
+    private boolean ipv6;
+    private int sourcePort;
+    private int destinationPort;
+    private long skippedCount;
+
+    private CaptureFile(RandomAccessFile data) throws IOException {
+        this.data = data;
+        long length = data.length();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Capture of " + length + " bytes is too large");
+        }
+        if (length < PacketCapture.HEADER_LENGTH) {
+            throw new IOException("Not a pcap file");
+        }
+        map = data.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+        int magic = map.getInt(0);
+        if (magic == Integer.reverseBytes(PacketCapture.MAGIC_MICROS)
+                || magic == Integer.reverseBytes(PacketCapture.MAGIC_NANOS)) {
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            magic = Integer.reverseBytes(magic);
+        }
+        if (magic != PacketCapture.MAGIC_MICROS && magic != PacketCapture.MAGIC_NANOS) {
+            throw new IOException("Not a pcap file");
+        }
+        nanosecond = magic == PacketCapture.MAGIC_NANOS;
+        linkType = map.getInt(20) & 0xFFFF;
+        if (linkType != LINKTYPE_ETHERNET && linkType != PacketCapture.LINKTYPE_RAW && linkType != LINKTYPE_LINUX_SLL
+                && linkType != LINKTYPE_IPV4 && linkType != LINKTYPE_IPV6) {
+            throw new IOException("Unsupported link type " + linkType);
+        }
+        // Packet contents are in network order whatever the file's
+        datagram = map.duplicate().order(ByteOrder.BIG_ENDIAN);
+        rewind();
+    }
+
+    public static CaptureFile open(File file) throws IOException {
+        RandomAccessFile data = new RandomAccessFile(file, "r");
+        try {
+            return new CaptureFile(data);
+        } catch (IOException e) {
+            data.close();
+            throw e;
+        }
+    }
+
+    public void rewind() {
+        position = PacketCapture.HEADER_LENGTH;
+    }
+
+    // Move to the next UDP datagram. Return false at the end, or at a record cut short by the
+    // end of the file.
+    public boolean next() {
+        int end = map.limit();
+        while (position + PacketCapture.RECORD_HEADER_LENGTH <= end) {
+            long seconds = map.getInt(position) & 0xFFFFFFFFL;
+            long fraction = map.getInt(position + 4) & 0xFFFFFFFFL;
+            int captured = map.getInt(position + 8);
+            int original = map.getInt(position + 12);
+            int start = position + PacketCapture.RECORD_HEADER_LENGTH;
+            if (captured < 0 || start + captured > end) {
+                return false;
+            }
+            position = start + captured;
+            nanos = seconds * 1000000000L + (nanosecond ? fraction : fraction * 1000);
+            if (captured == original && parse(start, captured)) {
+                return true;
+            }
+            skippedCount++;
+        }
+        return false;
+    }
+
+    // Find the UDP datagram in the length bytes of the record at offset
+    private boolean parse(int offset, int length) {
+        ByteBuffer b = datagram;
+        b.clear();
+        int end = offset + length;
+        int etherType;
+        switch (linkType) {
+            case LINKTYPE_ETHERNET:
+                if (length < ETHERNET_HEADER_LENGTH) {
+                    return false;
+                }
+                offset += ETHERNET_HEADER_LENGTH;
+                etherType = b.getShort(offset - 2) & 0xFFFF;
+                while (etherType == ETHERTYPE_VLAN && offset + 4 <= end) {
+                    etherType = b.getShort(offset + 2) & 0xFFFF;
+                    offset += 4;
+                }
+                break;
+            case LINKTYPE_LINUX_SLL:
+                if (length < SLL_HEADER_LENGTH) {
+                    return false;
+                }
+                offset += SLL_HEADER_LENGTH;
+                etherType = b.getShort(offset - 2) & 0xFFFF;
+                break;
+            default:
+                if (length < 1) {
+                    return false;
+                }
+                etherType = (b.get(offset) & 0xF0) == 0x60 ? ETHERTYPE_IPV6 : ETHERTYPE_IPV4;
+                break;
+        }
+
+        int udp;
+        if (etherType == ETHERTYPE_IPV4) {
+            if (offset + PacketCapture.IPV4_HEADER_LENGTH > end || (b.get(offset) & 0xF0) != 0x40) {
+                return false;
+            }
+            int headerLength = (b.get(offset) & 0x0F) * 4;
+            int fragment = b.getShort(offset + 6) & 0x3FFF;
+            if (b.get(offset + 9) != PROTOCOL_UDP || fragment != 0 || headerLength < PacketCapture.IPV4_HEADER_LENGTH) {
+                return false;
+            }
+            udp = offset + headerLength;
+            ipv6 = false;
+        } else if (etherType == ETHERTYPE_IPV6) {
+            // Extension headers aren't followed
+            if (offset + PacketCapture.IPV6_HEADER_LENGTH > end || b.get(offset + 6) != PROTOCOL_UDP) {
+                return false;
+            }
+            udp = offset + PacketCapture.IPV6_HEADER_LENGTH;
+            ipv6 = true;
+        } else {
+            return false;
+        }
+        if (udp + PacketCapture.UDP_HEADER_LENGTH > end) {
+            return false;
+        }
+        int udpLength = b.getShort(udp + 4) & 0xFFFF;
+        if (udpLength < PacketCapture.UDP_HEADER_LENGTH || udp + udpLength > end) {
+            return false;
+        }
+        ipOffset = offset;
+        sourcePort = b.getShort(udp) & 0xFFFF;
+        destinationPort = b.getShort(udp + 2) & 0xFFFF;
+        b.limit(udp + udpLength);
+        b.position(udp + PacketCapture.UDP_HEADER_LENGTH);
+        return true;
+    }
+
+    // Capture time in nanoseconds since the epoch
+    public long getNanos() {
+        return nanos;
+    }
+
+    // The UDP payload between position and limit, valid until next(). Don't change its contents.
+    public ByteBuffer getDatagram() {
+        return datagram;
+    }
+
+    public int getSourcePort() {
+        return sourcePort;
+    }
+
+    public int getDestinationPort() {
+        return destinationPort;
+    }
+
+    public InetSocketAddress getSource() throws IOException {
+        return new InetSocketAddress(address(ipv6 ? 8 : 12), sourcePort);
+    }
+
+    public InetSocketAddress getDestination() throws IOException {
+        return new InetSocketAddress(address(ipv6 ? 24 : 16), destinationPort);
+    }
+
+    private InetAddress address(int offset) throws IOException {
+        byte[] bytes = new byte[ipv6 ? 16 : 4];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = map.get(ipOffset + offset + i);
+        }
+        return InetAddress.getByAddress(bytes);
+    }
+
+    public int getLinkType() {
+        return linkType;
+    }
+
+    // Records passed over because they weren't whole UDP datagrams
+    public long getSkippedCount() {
+        return skippedCount;
+    }
+
+    public void close() throws IOException {
+        data.close();
+    }
+}
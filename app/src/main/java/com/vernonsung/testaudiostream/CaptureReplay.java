@@ -0,0 +1,130 @@
+package com.vernonsung.testaudiostream;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+
+// Feeds the datagrams of a capture to a call's receive lane as if they were arriving now, at
+// their recorded spacing, so the jitter buffer and decoder can be profiled on real traffic away
+// from the phone.
+// The clock sets the speed: PipelineClock.SYSTEM replays in real time, a ScaledClock faster with
+// real sleeps between frames, and a VirtualClock as fast as the CPU allows with the same result
+// every time. run() ticks the pipeline's receive lane itself on the calling thread, between the
+// packets, so the pipeline must not be started.
+// RTP goes to the remote and RTCP (payload types 64-95 with the marker, RFC 5761) to an
+// RtcpSession, if one is set. A capture of both directions is cut down to the received side with
+// a filter on the destination port. SRTP captures replay as they are if the remote has the keys.
+public class CaptureReplay {
+    // Frames run after the last packet, enough for the deepest jitter buffer to play out
+    public static final int TAIL_FRAMES = 20;
+
+    // What one replay did
+    public static class Report {
+        public long packets;
+        public long rtcpPackets;
+        // Filtered out, or not UDP
+        public long skippedPackets;
+        public long frames;
+        public long framesPlayed;
+        public long framesConcealed;
+        public long lateDrops;
+        public long inboxDrops;
+        public double captureSeconds;
+        // Elapsed on the wall clock
+        public double replaySeconds;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%d packets (%d RTCP, %d skipped), %d frames: %d played, %d concealed, %d late, %d inbox drops, %.1f s of capture in %.2f s",
+                    packets, rtcpPackets, skippedPackets, frames, framesPlayed, framesConcealed, lateDrops,
+                    inboxDrops, captureSeconds, replaySeconds);
+        }
+    }
+
+    private final CaptureFile capture;
+    private final PipelineClock clock;
+    private int destinationPort = -1;
+    private RtcpSession rtcpSession;
+
+    public CaptureReplay(CaptureFile capture, PipelineClock clock) {
+        this.capture = capture;
+        this.clock = clock;
+    }
+
+    // Only replay datagrams sent to port, or all of them if -1
+    public void setDestinationPort(int port) {
+        if (port < -1 || port > 0xFFFF) {
+            throw new IllegalArgumentException("Port " + port + " is out of range");
+        }
+        destinationPort = port;
+    }
+
+    public void setRtcpSession(RtcpSession rtcpSession) {
+        this.rtcpSession = rtcpSession;
+    }
+
+    // Replay the capture from where it is into remote of pipeline, then run TAIL_FRAMES more
+    public Report run(CallPipeline pipeline, CallPipeline.Remote remote) throws InterruptedException {
+        PipelineScheduler lane = pipeline.getReceiveLane();
+        JitterBuffer jitterBuffer = remote.getJitterBuffer();
+        Report report = new Report();
+        long skipped = capture.getSkippedCount();
+        long played = jitterBuffer.getPlayedCount();
+        long concealed = jitterBuffer.getConcealedCount();
+        long late = jitterBuffer.getLateCount();
+        long inboxDrops = remote.getInboxDropCount();
+        long ticks = lane.getTickCount();
+        long wallStart = System.nanoTime();
+
+        long start = clock.nanoTime();
+        long first = -1;
+        long last = 0;
+        lane.tick();
+        while (capture.next()) {
+            if (destinationPort >= 0 && capture.getDestinationPort() != destinationPort) {
+                report.skippedPackets++;
+                continue;
+            }
+            if (first < 0) {
+                first = capture.getNanos();
+            }
+            last = capture.getNanos();
+            long due = start + last - first;
+            while (lane.getNextFrameNanos() <= due) {
+                lane.tick();
+            }
+            clock.sleepUntil(due);
+            if (isRtcp(capture)) {
+                if (rtcpSession != null) {
+                    rtcpSession.onRtcpPacket(capture.getDatagram(), due, RtcpPacket.toNtp(last / 1000000));
+                }
+                report.rtcpPackets++;
+            } else {
+                remote.onPacket(capture.getDatagram(), due);
+                report.packets++;
+            }
+        }
+        for (int i = 0; i < TAIL_FRAMES; i++) {
+            lane.tick();
+        }
+
+        report.skippedPackets += capture.getSkippedCount() - skipped;
+        report.frames = lane.getTickCount() - ticks;
+        report.framesPlayed = jitterBuffer.getPlayedCount() - played;
+        report.framesConcealed = jitterBuffer.getConcealedCount() - concealed;
+        report.lateDrops = jitterBuffer.getLateCount() - late;
+        report.inboxDrops = remote.getInboxDropCount() - inboxDrops;
+        report.captureSeconds = first < 0 ? 0 : (last - first) / 1e9;
+        report.replaySeconds = (System.nanoTime() - wallStart) / 1e9;
+        return report;
+    }
+
+    private static boolean isRtcp(CaptureFile capture) {
+        ByteBuffer datagram = capture.getDatagram();
+        if (datagram.remaining() < 2) {
+            return false;
+        }
+        int type = datagram.get(datagram.position() + 1) & 0xFF;
+        return type >= 192 && type <= 223;
+    }
+}
@@ -0,0 +1,159 @@
+package com.vernonsung.testaudiostream;
+
+// Adapts the encoder to the link from the loss and round-trip time that RTCP reports.
+// Loss is smoothed so one bad report doesn't swing the settings. High loss lowers the bitrate
+// and turns on in-band FEC. A long round trip moves to longer frames, which cuts header overhead
+// and packet rate. A clean link slowly raises the bitrate back and returns to short frames.
+// Codecs with a fixed bitrate, such as G.711, keep it as the target and only get the frame
+// duration and FEC decisions.
+// With a send-side bandwidth estimate, onBandwidthEstimate() takes over bitrate and frame duration
+// instead: the codec gets what's left of the estimate after packet headers, and frames get
+// longer when the headers would take more than half of it. Use one or the other.
+// CallPipeline sends one 20 ms frame per packet and its receive lane decodes one per tick, so
+// there the encoder follows the bitrate only; getFrameMillis() is for a sender that packetizes on
+// its own clock, as CongestionHarness does.
+public class CodecRateController {
+    public static final int[] FRAME_MILLIS = {20, 40, 60};
+    // RTP, UDP and IPv4 headers of every packet
+    public static final int PACKET_OVERHEAD_BYTES = RtpPacket.FIXED_HEADER_LENGTH + 28;
+
+    // Fractions of packets lost
+    private static final double LOSS_HIGH = 0.10;
+    private static final double LOSS_LOW = 0.02;
+    private static final double LOSS_FEC_ON = 0.03;
+    private static final double LOSS_FEC_OFF = 0.01;
+    // Milliseconds
+    private static final double RTT_HIGH = 300;
+    private static final double RTT_LOW = 150;
+    private static final double DECREASE_FACTOR = 0.85;
+    private static final double INCREASE_FACTOR = 1.05;
+    private static final double SMOOTHING = 0.3;
+    // Share of the estimate headers may take before frames get longer, and the share they must
+    // drop under before they get shorter again
+    private static final double MAX_OVERHEAD_SHARE = 0.5;
+    private static final double MIN_OVERHEAD_SHARE = 0.35;
+
+    private final VoiceCodec codec;
+    private final int minBitrate;
+    private final int maxBitrate;
+    private int targetBitrate;
+    private int frameIndex;
+    private boolean fec;
+    private double smoothedLoss;
+    private double smoothedRtt = -1;
+    private int changes;
+
+    public CodecRateController(VoiceCodec codec, int minBitrate, int maxBitrate) {
+        if (minBitrate <= 0 || maxBitrate < minBitrate) {
+            throw new IllegalArgumentException("Bitrate range " + minBitrate + "~" + maxBitrate + " is invalid");
+        }
+        this.codec = codec;
+        this.minBitrate = minBitrate;
+        this.maxBitrate = maxBitrate;
+        this.targetBitrate = codec.isBitrateAdjustable()
+                ? Math.max(minBitrate, Math.min(maxBitrate, codec.getBitrate())) : codec.getBitrate();
+    }
+
+    // Feed one RTCP report. fractionLost is in 1/256 units as the report block carries it, and
+    // rttMillis is negative if not measured yet. Return true if any setting changed.
+    public boolean onReport(int fractionLost, double rttMillis) {
+        double loss = fractionLost / 256.0;
+        smoothedLoss += (loss - smoothedLoss) * SMOOTHING;
+        if (rttMillis >= 0) {
+            smoothedRtt = smoothedRtt < 0 ? rttMillis : smoothedRtt + (rttMillis - smoothedRtt) * SMOOTHING;
+        }
+        boolean changed = false;
+
+        // Bitrate
+        if (codec.isBitrateAdjustable()) {
+            int bitrate = targetBitrate;
+            if (smoothedLoss > LOSS_HIGH) {
+                bitrate = (int) (bitrate * DECREASE_FACTOR);
+            } else if (smoothedLoss < LOSS_LOW && (smoothedRtt < 0 || smoothedRtt < RTT_HIGH)) {
+                bitrate = (int) Math.ceil(bitrate * INCREASE_FACTOR);
+            }
+            bitrate = Math.max(minBitrate, Math.min(maxBitrate, bitrate));
+            if (bitrate != targetBitrate) {
+                targetBitrate = bitrate;
+                codec.setBitrate(bitrate);
+                changed = true;
+            }
+        }
+
+        // In-band FEC with hysteresis
+        boolean wantFec = fec ? smoothedLoss > LOSS_FEC_OFF : smoothedLoss > LOSS_FEC_ON;
+        if (wantFec != fec && codec.isInbandFecSupported()) {
+            fec = wantFec;
+            codec.setInbandFec(fec);
+            changed = true;
+        }
+
+        // Frame duration, one step at a time
+        if (smoothedRtt > RTT_HIGH && frameIndex < FRAME_MILLIS.length - 1) {
+            frameIndex++;
+            changed = true;
+        } else if (smoothedRtt >= 0 && smoothedRtt < RTT_LOW && smoothedLoss < LOSS_LOW && frameIndex > 0) {
+            frameIndex--;
+            changed = true;
+        }
+        if (changed) {
+            changes++;
+        }
+        return changed;
+    }
+
+    // Feed the bandwidth estimate in bits per second, headers included. Return true if any
+    // setting changed.
+    public boolean onBandwidthEstimate(int bitsPerSecond) {
+        int index = frameIndex;
+        while (index < FRAME_MILLIS.length - 1 && getOverheadBitrate(index) > bitsPerSecond * MAX_OVERHEAD_SHARE) {
+            index++;
+        }
+        while (index > 0 && getOverheadBitrate(index - 1) < bitsPerSecond * MIN_OVERHEAD_SHARE) {
+            index--;
+        }
+        boolean changed = index != frameIndex;
+        frameIndex = index;
+        if (codec.isBitrateAdjustable()) {
+            int bitrate = Math.max(minBitrate, Math.min(maxBitrate, bitsPerSecond - getOverheadBitrate(index)));
+            if (bitrate != targetBitrate) {
+                targetBitrate = bitrate;
+                codec.setBitrate(bitrate);
+                changed = true;
+            }
+        }
+        if (changed) {
+            changes++;
+        }
+        return changed;
+    }
+
+    private static int getOverheadBitrate(int frameIndex) {
+        return PACKET_OVERHEAD_BYTES * 8 * 1000 / FRAME_MILLIS[frameIndex];
+    }
+
+    public int getTargetBitrate() {
+        return targetBitrate;
+    }
+
+    public int getFrameMillis() {
+        return FRAME_MILLIS[frameIndex];
+    }
+
+    // Samples per frame at the codec clock rate
+    public int getFrameSamples() {
+        return codec.getClockRate() * FRAME_MILLIS[frameIndex] / 1000;
+    }
+
+    public boolean isFecEnabled() {
+        return fec;
+    }
+
+    public double getSmoothedLoss() {
+        return smoothedLoss;
+    }
+
+    public int getChangeCount() {
+        return changes;
+    }
+}
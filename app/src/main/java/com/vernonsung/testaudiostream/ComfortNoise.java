@@ -0,0 +1,155 @@
+package com.vernonsung.testaudiostream;
+
+// RFC 3389 comfort noise: describe the background noise at the sender and imitate it at the
+// receiver while no speech is sent.
+// A payload is the noise level in -dBov followed by one byte per reflection coefficient of an
+// all-pole model of the noise spectrum, so a payload of one byte is white noise. Coefficients
+// are quantized uniformly over -1..1 around 127.
+// The sender runs encode() on a silent frame. The receiver feeds every payload to update() and
+// calls generate() for each frame to fill, which shapes white noise through the model and scales
+// it to the level. Nothing is allocated after construction.
+public class ComfortNoise {
+    // Static payload type for 8 kHz, RFC 3551
+    public static final int PAYLOAD_TYPE = 13;
+    public static final int MAX_ORDER = 10;
+    public static final int MAX_PAYLOAD_SIZE = 1 + MAX_ORDER;
+    // Level byte of the quietest noise there is
+    public static final int MIN_LEVEL = 127;
+
+    private static final double FULL_SCALE_POWER = 32768.0 * 32768.0;
+    // Keeps the model stable after quantization
+    private static final int MAX_QUANTIZED = 126;
+
+    private final int order;
+
+    // Analysis scratch
+    private final double[] autocorrelation = new double[MAX_ORDER + 1];
+    private final double[] predictor = new double[MAX_ORDER + 1];
+    private final double[] previous = new double[MAX_ORDER + 1];
+
+    // Synthesis state
+    private final double[] filter = new double[MAX_ORDER + 1];
+    private final double[] history = new double[MAX_ORDER];
+    private int filterOrder;
+    private int level = MIN_LEVEL;
+    private double excitationScale;
+    private long seed = 0x9E3779B97F4A7C15L;
+    private long updateCount;
+
+    // Describe the spectrum with order coefficients, 0 for the level only. Either end may use any
+    // order, the receiver follows the payload.
+    public ComfortNoise(int order) {
+        if (order < 0 || order > MAX_ORDER) {
+            throw new IllegalArgumentException("Order " + order + " is out of range");
+        }
+        this.order = order;
+    }
+
+    // Write a payload describing the spectrum of pcm at levelDbov and return its length
+    public int encode(short[] pcm, int offset, int samples, double levelDbov, byte[] out, int outOffset) {
+        out[outOffset] = (byte) quantizeLevel(levelDbov);
+        for (int lag = 0; lag <= order; lag++) {
+            double sum = 0;
+            for (int i = offset + lag; i < offset + samples; i++) {
+                sum += (double) pcm[i] * pcm[i - lag];
+            }
+            autocorrelation[lag] = sum;
+        }
+        // A touch of white noise keeps Levinson-Durbin well away from a singular matrix
+        autocorrelation[0] *= 1.0001;
+        double error = autocorrelation[0];
+        for (int i = 0; i <= order; i++) {
+            predictor[i] = 0;
+        }
+        for (int m = 1; m <= order; m++) {
+            double k = 0;
+            if (error > 0) {
+                double acc = autocorrelation[m];
+                for (int i = 1; i < m; i++) {
+                    acc += predictor[i] * autocorrelation[m - i];
+                }
+                k = -acc / error;
+            }
+            k = Math.max(-1, Math.min(1, k));
+            stepUp(predictor, m, k);
+            error *= 1 - k * k;
+            out[outOffset + m] = (byte) (Math.round(k * 127) + 127);
+        }
+        return 1 + order;
+    }
+
+    // Take a payload from the sender. Return false if it's malformed.
+    public boolean update(byte[] payload, int offset, int length) {
+        if (length < 1 || (payload[offset] & 0x80) != 0) {
+            return false;
+        }
+        level = payload[offset];
+        filterOrder = Math.min(length - 1, MAX_ORDER);
+        for (int i = 0; i <= MAX_ORDER; i++) {
+            filter[i] = 0;
+        }
+        // The residual of the model has this fraction of the noise power
+        double gain = 1;
+        for (int m = 1; m <= filterOrder; m++) {
+            int q = Math.max(-MAX_QUANTIZED, Math.min(MAX_QUANTIZED, (payload[offset + m] & 0xFF) - 127));
+            double k = q / 127.0;
+            stepUp(filter, m, k);
+            gain *= 1 - k * k;
+        }
+        double power = FULL_SCALE_POWER * Math.pow(10, -level / 10.0);
+        // Uniform noise over -1..1 has a power of 1/3
+        excitationScale = Math.sqrt(3 * power * gain);
+        updateCount++;
+        return true;
+    }
+
+    // Fill samples of pcm with noise like the last payload described
+    public void generate(short[] pcm, int offset, int samples) {
+        for (int n = offset; n < offset + samples; n++) {
+            seed ^= seed << 13;
+            seed ^= seed >>> 7;
+            seed ^= seed << 17;
+            double y = excitationScale * ((seed >>> 11) * 0x1.0p-52 - 1);
+            for (int i = 1; i <= filterOrder; i++) {
+                y -= filter[i] * history[i - 1];
+            }
+            for (int i = filterOrder - 1; i > 0; i--) {
+                history[i] = history[i - 1];
+            }
+            if (filterOrder > 0) {
+                history[0] = y;
+            }
+            pcm[n] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(y)));
+        }
+    }
+
+    // Level byte of levelDbov: its magnitude, 0 to 127
+    public static int quantizeLevel(double levelDbov) {
+        return (int) Math.max(0, Math.min(MIN_LEVEL, Math.round(-levelDbov)));
+    }
+
+    // Levinson step from order m - 1 to m of the predictor a with reflection coefficient k
+    private void stepUp(double[] a, int m, double k) {
+        for (int i = 1; i < m; i++) {
+            previous[i] = a[i];
+        }
+        for (int i = 1; i < m; i++) {
+            a[i] = previous[i] + k * previous[m - i];
+        }
+        a[m] = k;
+    }
+
+    public int getOrder() {
+        return order;
+    }
+
+    // Noise level of the last payload in -dBov
+    public int getLevel() {
+        return level;
+    }
+
+    // Payloads taken by update()
+    public long getUpdateCount() {
+        return updateCount;
+    }
+}
@@ -0,0 +1,287 @@
+package com.vernonsung.testaudiostream;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+// A call direction with congestion control in one process on a virtual clock: an adjustable
+// encoder driven by CodecRateController, a PacedSender, a NetworkSimulator bottleneck, and a
+// receiver RtcpSession sending transport-wide feedback every 50 ms over a return link to the
+// sender's RtcpSession and BandwidthEstimator.
+// Every packet carries the time its frame was ready to send, so the receiver measures the
+// queueing delay: the one-way delay less the link's fixed latency, which leaves the time spent in
+// the pacer and the bottleneck queue and on the bottleneck itself. Without
+// adaptation the encoder sends at its top rate in 20 ms frames straight onto the link, which is
+// how the app behaves today.
+// Time moves in 1 ms steps, so a minute of call runs in a fraction of a second.
+public class CongestionHarness implements NetworkSimulator.Receiver {
+    private static final int CLOCK_RATE = 48000;
+    private static final int MIN_BITRATE = 6000;
+    private static final int MAX_BITRATE = 64000;
+    private static final int START_BITRATE = 32000;
+    // The estimate includes headers: up to 16 kbps of them in 20 ms frames, 5.3 kbps in 60 ms
+    private static final int MIN_ESTIMATE = 10000;
+    private static final int MAX_ESTIMATE = MAX_BITRATE + 16000;
+    private static final long STEP_NANOS = 1000000;
+    private static final int MAX_PACKET = 1472;
+    private static final long SSRC = 0xC0C0;
+    private static final long RECEIVER_SSRC = 0xFEED;
+    private static final long[] DELAY_BOUNDS = buildDelayBounds();
+
+    // What one run measured
+    public static class Report {
+        public double goodputKbps;
+        public double lossPercent;
+        public double meanQueueingDelayMillis;
+        public long p95QueueingDelayMillis;
+        public long maxQueueingDelayMillis;
+        public double meanTargetKbps;
+        public double finalTargetKbps;
+        public double meanFrameMillis;
+        public long overuseCount;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "goodput %.1f kbps loss %.2f%% queueing delay mean %.1f ms p95 %d ms max %d ms target mean %.1f kbps final %.1f kbps frames %.0f ms overuse %d",
+                    goodputKbps, lossPercent, meanQueueingDelayMillis, p95QueueingDelayMillis,
+                    maxQueueingDelayMillis, meanTargetKbps, finalTargetKbps, meanFrameMillis, overuseCount);
+        }
+    }
+
+    // Encoder of a variable bitrate codec, which only makes payloads of the right size
+    private static class AdjustableCodec implements VoiceCodec {
+        int bitrate = MAX_BITRATE;
+
+        @Override
+        public String getName() {
+            return "SIM";
+        }
+
+        @Override
+        public int getPayloadType() {
+            return -1;
+        }
+
+        @Override
+        public int getClockRate() {
+            return CLOCK_RATE;
+        }
+
+        @Override
+        public int encode(short[] pcm, int offset, int samples, byte[] out, int outOffset) {
+            return (int) ((long) bitrate * samples / CLOCK_RATE / 8);
+        }
+
+        @Override
+        public int decode(byte[] payload, int offset, int length, short[] pcm, int pcmOffset) {
+            return 0;
+        }
+
+        @Override
+        public int conceal(short[] pcm, int offset, int samples) {
+            return 0;
+        }
+
+        @Override
+        public boolean isBitrateAdjustable() {
+            return true;
+        }
+
+        @Override
+        public int getBitrate() {
+            return bitrate;
+        }
+
+        @Override
+        public int setBitrate(int bitrate) {
+            this.bitrate = Math.max(MIN_BITRATE, Math.min(MAX_BITRATE, bitrate));
+            return this.bitrate;
+        }
+
+        @Override
+        public boolean isInbandFecSupported() {
+            return false;
+        }
+
+        @Override
+        public void setInbandFec(boolean enabled) {
+        }
+
+        @Override
+        public void reset() {
+        }
+    }
+
+    private final long latencyNanos;
+    private final VirtualClock clock = new VirtualClock();
+    private final NetworkSimulator link;
+    private final NetworkSimulator returnLink;
+    private final List<long[]> bandwidthChanges = new ArrayList<long[]>();
+    private int queueLimitBytes = 64000;
+    private boolean adaptive = true;
+
+    // Receiver side
+    private final RtpPacket parsed = new RtpPacket();
+    private final RtcpSession receiverSession = new RtcpSession(RECEIVER_SSRC, "receiver", 1000);
+    private final Histogram queueingDelay = new Histogram(DELAY_BOUNDS);
+    private long delaySum;
+    private long delayMax;
+    private long delayCount;
+    private long goodputBytes;
+
+    // Sender side
+    private RtcpSession session;
+
+    // latencyNanos is the fixed one-way delay both ways
+    public CongestionHarness(Random random, long latencyNanos) {
+        this.latencyNanos = latencyNanos;
+        link = new NetworkSimulator(random, this, 4096, MAX_PACKET);
+        link.setDelay(latencyNanos, 0);
+        returnLink = new NetworkSimulator(random, new NetworkSimulator.Receiver() {
+            @Override
+            public void onPacket(ByteBuffer packet, long arrivalNanos) {
+                session.onRtcpPacket(packet, arrivalNanos, 0);
+            }
+        }, 256, MAX_PACKET);
+        returnLink.setDelay(latencyNanos, 0);
+    }
+
+    // The forward link, to impair before run()
+    public NetworkSimulator getLink() {
+        return link;
+    }
+
+    // Cap the forward link at bitsPerSecond from the start, with a drop-tail queue of
+    // queueLimitBytes
+    public void setBottleneck(long bitsPerSecond, int queueLimitBytes) {
+        this.queueLimitBytes = queueLimitBytes;
+        link.setBandwidth(bitsPerSecond, queueLimitBytes);
+    }
+
+    // Change the bottleneck to bitsPerSecond atMillis into the run
+    public void addBandwidthChange(long atMillis, long bitsPerSecond) {
+        bandwidthChanges.add(new long[]{atMillis * 1000000L, bitsPerSecond});
+    }
+
+    // Whether to estimate bandwidth and adapt to it, or send at the top rate in 20 ms frames
+    public void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    // Run a call of this many seconds. Call it once per harness.
+    public Report run(int seconds) {
+        AdjustableCodec codec = new AdjustableCodec();
+        CodecRateController controller = new CodecRateController(codec, MIN_BITRATE, MAX_BITRATE);
+        BandwidthEstimator estimator = new BandwidthEstimator(MIN_ESTIMATE, MAX_ESTIMATE, START_BITRATE);
+        estimator.onRtt(2 * latencyNanos / 1000);
+        session = new RtcpSession(SSRC, "sender", 1000);
+        session.setBandwidthEstimator(estimator);
+        if (adaptive) {
+            controller.onBandwidthEstimate(estimator.getTargetBitrate());
+        }
+        CallPipeline.PacketSink wire = new CallPipeline.PacketSink() {
+            @Override
+            public void send(ByteBuffer packet) {
+                link.send(packet, clock.nanoTime());
+            }
+        };
+        PacedSender pacer = new PacedSender(clock, wire, estimator, PacedSender.DEFAULT_CAPACITY);
+        RtpPacketizer packetizer = new RtpPacketizer(null, SSRC, 96, CLOCK_RATE / 50);
+        ByteBuffer packet = ByteBuffer.allocate(MAX_PACKET);
+        ByteBuffer report = ByteBuffer.allocate(MAX_PACKET);
+        byte[] payload = new byte[MAX_PACKET];
+        short[] pcm = new short[CLOCK_RATE * CodecRateController.FRAME_MILLIS[2] / 1000];
+
+        long end = seconds * 1000000000L;
+        long nextFrame = 0;
+        long targetSum = 0;
+        long frameMillisSum = 0;
+        long frames = 0;
+        int changeIndex = 0;
+        for (long now = 0; now < end + 2000000000L; now += STEP_NANOS) {
+            clock.advance(now - clock.nanoTime());
+            while (changeIndex < bandwidthChanges.size() && bandwidthChanges.get(changeIndex)[0] <= now) {
+                link.setBandwidth(bandwidthChanges.get(changeIndex)[1], queueLimitBytes);
+                changeIndex++;
+            }
+            link.advanceTo(now);
+            returnLink.advanceTo(now);
+
+            if (now >= nextFrame && now < end) {
+                if (adaptive) {
+                    controller.onBandwidthEstimate(estimator.getTargetBitrate());
+                }
+                int frameMillis = adaptive ? controller.getFrameMillis() : CodecRateController.FRAME_MILLIS[0];
+                int samples = CLOCK_RATE * frameMillis / 1000;
+                int length = Math.max(codec.encode(pcm, 0, samples, payload, 0), 8);
+                // The frame is complete and ready to send now
+                ByteBuffer.wrap(payload).putLong(now);
+                packetizer.setTimestampIncrement(samples);
+                packetizer.packetize(payload, 0, length, packet);
+                if (adaptive) {
+                    pacer.send(packet);
+                } else {
+                    link.send(packet, now);
+                }
+                nextFrame += frameMillis * 1000000L;
+                targetSum += estimator.getTargetBitrate();
+                frameMillisSum += frameMillis;
+                frames++;
+            }
+            if (adaptive) {
+                pacer.tick(now);
+            }
+
+            if (receiverSession.isFeedbackDue(now)) {
+                report.clear();
+                receiverSession.buildFeedback(report, now);
+                report.flip();
+                returnLink.send(report, now);
+            }
+            if (now >= end && link.getInFlightCount() == 0) {
+                break;
+            }
+        }
+
+        Report r = new Report();
+        r.goodputKbps = goodputBytes * 8 / (seconds * 1e3);
+        long sent = link.getSentCount();
+        r.lossPercent = sent == 0 ? 0 : 100.0 * (sent - link.getDeliveredCount()) / sent;
+        r.meanQueueingDelayMillis = delayCount == 0 ? 0 : (double) delaySum / delayCount;
+        // The histogram only knows the bucket's upper bound, which can be above anything seen
+        r.p95QueueingDelayMillis = Math.min(queueingDelay.getPercentile(95), delayMax);
+        r.maxQueueingDelayMillis = delayMax;
+        r.meanTargetKbps = frames == 0 ? 0 : targetSum / 1e3 / frames;
+        r.finalTargetKbps = estimator.getTargetBitrate() / 1e3;
+        r.meanFrameMillis = frames == 0 ? 0 : (double) frameMillisSum / frames;
+        r.overuseCount = estimator.getOveruseCount();
+        return r;
+    }
+
+    @Override
+    public void onPacket(ByteBuffer packet, long arrivalNanos) {
+        if (!parsed.parse(packet)) {
+            return;
+        }
+        receiverSession.onRtpReceived(parsed.getSsrc(), parsed.getSequenceNumber(), arrivalNanos);
+        int offset = parsed.getPayloadOffset();
+        long ready = packet.getLong(offset);
+        long millis = (arrivalNanos - ready - latencyNanos) / 1000000;
+        queueingDelay.record(millis);
+        delaySum += millis;
+        delayMax = Math.max(delayMax, millis);
+        delayCount++;
+        goodputBytes += parsed.getPayloadLength();
+    }
+
+    private static long[] buildDelayBounds() {
+        long[] bounds = new long[2000];
+        for (int i = 0; i < bounds.length; i++) {
+            bounds[i] = (i + 1) * 5;
+        }
+        return bounds;
+    }
+}
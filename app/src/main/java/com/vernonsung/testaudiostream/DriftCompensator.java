@@ -0,0 +1,190 @@
+package com.vernonsung.testaudiostream;
+
+// Makes up for a remote whose sampling clock runs a little faster or slower than ours. Left alone
+// its frames pile up in the jitter buffer, or run out, until a whole frame is dropped or
+// concealed every few minutes; here the decoded audio is resampled by the difference instead,
+// which nobody hears.
+// The drift comes from the RTP timestamps against the arrival times. The transit time of the
+// packet that got through fastest in every WINDOW_NANOS, which carries the least queueing, is
+// fitted to a line over the last WINDOWS windows, and its slope is how much faster our clock
+// runs than the sender's.
+// Decoded frames go in with write() and frames to play come out with read(), one per frame
+// period. While the sender is ahead a frame comes out of a little more than one frame in, so
+// every so often needsFrame() asks for a second frame before a read(); while it's behind,
+// takesFrame() says to skip one. A frame of the resampled audio is kept in reserve, so a second
+// frame is taken only once the sender is a whole frame ahead and the jitter buffer really has it,
+// rather than at the first sample of difference. A frame is skipped half a frame early, as the
+// jitter buffer already fell behind while the drift was being estimated. The reserve is about
+// one frame of delay.
+// One thread only, the receive lane. Nothing is allocated after construction.
+public class DriftCompensator {
+    public static final long WINDOW_NANOS = 1000000000L;
+    public static final int WINDOWS = 60;
+    // Windows needed before the estimate is used
+    public static final int MIN_WINDOWS = 10;
+    // Crystals are good to a few hundred ppm, so more than this is something else
+    public static final double MAX_DRIFT_PPM = 1000;
+    // A timestamp jump of more than this many seconds is a new source
+    private static final int MAX_TIMESTAMP_JUMP_SECONDS = 10;
+
+    private final int clockRate;
+    private final int frameSamples;
+    private final Resampler resampler;
+    // Output of the resampler not read yet
+    private final short[] fifo;
+    private int fifoCount;
+
+    // Drift estimate
+    private final long[] windowStart = new long[WINDOWS];
+    private final long[] windowTransit = new long[WINDOWS];
+    private int windows;
+    private int newest = -1;
+    private boolean started;
+    private long lastTimestamp;
+    private long unwrappedTimestamp;
+    private long firstArrival;
+    private double senderPpm;
+    private double localPpm;
+
+    // frameSamples at clockRate, which must be one of Resampler.RATES
+    public DriftCompensator(int clockRate, int frameSamples) {
+        this.clockRate = clockRate;
+        this.frameSamples = frameSamples;
+        resampler = new Resampler(clockRate, clockRate);
+        fifo = new short[2 * frameSamples + resampler.getMaxOutput(frameSamples)];
+        fifoCount = frameSamples;
+    }
+
+    // Take note of a packet of the remote with RTP timestamp that arrived at arrivalNanos
+    public void onPacket(long timestamp, long arrivalNanos) {
+        if (!started) {
+            started = true;
+            firstArrival = arrivalNanos;
+        } else {
+            int delta = (int) (timestamp - lastTimestamp);
+            if (Math.abs(delta) > MAX_TIMESTAMP_JUMP_SECONDS * clockRate) {
+                resetEstimate(arrivalNanos);
+            } else {
+                unwrappedTimestamp += delta;
+            }
+        }
+        lastTimestamp = timestamp;
+        // Both relative to the first packet so the sums stay small
+        long arrival = arrivalNanos - firstArrival;
+        long transit = arrival - unwrappedTimestamp * 1000000000L / clockRate;
+        if (newest < 0 || arrival - windowStart[newest] >= WINDOW_NANOS) {
+            newest = (newest + 1) % WINDOWS;
+            windowStart[newest] = arrival;
+            windowTransit[newest] = transit;
+            windows = Math.min(windows + 1, WINDOWS);
+            estimate();
+        } else if (transit < windowTransit[newest]) {
+            windowTransit[newest] = transit;
+        }
+    }
+
+    private void resetEstimate(long arrivalNanos) {
+        firstArrival = arrivalNanos;
+        unwrappedTimestamp = 0;
+        windows = 0;
+        newest = -1;
+    }
+
+    // Least squares slope of the finished windows' fastest transit against their start
+    private void estimate() {
+        int n = windows - 1;
+        if (n < MIN_WINDOWS) {
+            return;
+        }
+        double sumX = 0;
+        double sumY = 0;
+        for (int i = 1; i <= n; i++) {
+            int w = (newest - i + WINDOWS) % WINDOWS;
+            sumX += windowStart[w];
+            sumY += windowTransit[w];
+        }
+        double meanX = sumX / n;
+        double meanY = sumY / n;
+        double sxx = 0;
+        double sxy = 0;
+        for (int i = 1; i <= n; i++) {
+            int w = (newest - i + WINDOWS) % WINDOWS;
+            double x = windowStart[w] - meanX;
+            sxx += x * x;
+            sxy += x * (windowTransit[w] - meanY);
+        }
+        // Transit that grows means the sender's timestamps fall behind: it runs slow
+        double ppm = sxx == 0 ? 0 : -sxy / sxx * 1e6;
+        senderPpm = Math.max(-MAX_DRIFT_PPM, Math.min(MAX_DRIFT_PPM, ppm));
+    }
+
+    // How much slower our frame period runs than nominal, e.g. the receive lane's rate correction
+    // while it follows the audio device. The remote's frames then come that much faster per
+    // period.
+    public void setLocalPpm(double ppm) {
+        localPpm = ppm;
+    }
+
+    // Whether to write() the frame of this period, false once the sender is half a frame behind
+    public boolean takesFrame() {
+        return fifoCount < frameSamples + frameSamples / 2;
+    }
+
+    // Whether write() must be given another frame before the next read()
+    public boolean needsFrame() {
+        return fifoCount < frameSamples;
+    }
+
+    // Add one decoded frame of frameSamples at offset
+    public void write(short[] pcm, int offset) {
+        double ppm = senderPpm + localPpm;
+        if (ppm != resampler.getDriftPpm()) {
+            resampler.setDriftPpm(Math.max(-Resampler.MAX_DRIFT_PPM, Math.min(Resampler.MAX_DRIFT_PPM, ppm)));
+        }
+        if (fifoCount + resampler.getMaxOutput(frameSamples) > fifo.length) {
+            // Written without reading: drop the oldest frame
+            fifoCount -= frameSamples;
+            System.arraycopy(fifo, frameSamples, fifo, 0, fifoCount);
+        }
+        fifoCount += resampler.process(pcm, offset, frameSamples, fifo, fifoCount);
+    }
+
+    // Take one frame to play into pcm at offset. Whatever write() didn't provide is silence.
+    public void read(short[] pcm, int offset) {
+        int n = Math.min(fifoCount, frameSamples);
+        System.arraycopy(fifo, 0, pcm, offset, n);
+        for (int i = n; i < frameSamples; i++) {
+            pcm[offset + i] = 0;
+        }
+        fifoCount -= n;
+        System.arraycopy(fifo, n, fifo, 0, fifoCount);
+    }
+
+    // Forget the audio and the estimate, e.g. when the remote source changes
+    public void reset() {
+        resampler.reset();
+        for (int i = 0; i < frameSamples; i++) {
+            fifo[i] = 0;
+        }
+        fifoCount = frameSamples;
+        started = false;
+        windows = 0;
+        newest = -1;
+        senderPpm = 0;
+    }
+
+    // How much faster the sender's clock runs than ours, 0 until there's an estimate
+    public double getSenderDriftPpm() {
+        return senderPpm;
+    }
+
+    // Samples of the remote that were resampled but not read yet
+    public int getBufferedSamples() {
+        return fifoCount;
+    }
+
+    // Audio delay added on top of the jitter buffer, in samples: the reserve and the filter
+    public int getDelaySamples() {
+        return frameSamples + resampler.getDelaySamples();
+    }
+}
@@ -0,0 +1,99 @@
+package com.vernonsung.testaudiostream;
+
+// Discontinuous transmission: decide for every captured frame whether to send it as speech, as an
+// RFC 3389 comfort noise payload or not at all.
+// Speech is sent as usual. The first silent frame after speech is sent as comfort noise so the
+// receiver can start imitating the background. After that silent frames are suppressed, except
+// for a fresh comfort noise payload when the noise level moves or the last one gets old, which
+// also lets a receiver that lost one catch up.
+public class DtxController {
+    // What process() decided
+    public static final int SPEECH = 0;
+    public static final int COMFORT_NOISE = 1;
+    public static final int SUPPRESSED = 2;
+
+    // Frames between comfort noise payloads at most, 500 ms at 20 ms frames
+    private static final int MAX_UPDATE_INTERVAL = 25;
+    private static final double LEVEL_CHANGE_DB = 3;
+    private static final double LEVEL_SMOOTHING = 0.3;
+
+    private final VoiceActivityDetector vad;
+    private final ComfortNoise comfortNoise;
+    private final byte[] payload = new byte[ComfortNoise.MAX_PAYLOAD_SIZE];
+    private int payloadLength;
+    private boolean silent;
+    private double noiseLevel;
+    private double sentLevel;
+    private int framesSinceUpdate;
+    private long speechFrames;
+    private long comfortNoiseFrames;
+    private long suppressedFrames;
+
+    public DtxController(VoiceActivityDetector vad, int comfortNoiseOrder) {
+        this.vad = vad;
+        comfortNoise = new ComfortNoise(comfortNoiseOrder);
+    }
+
+    // Default detector and a 4th order noise spectrum
+    public DtxController() {
+        this(new VoiceActivityDetector(), 4);
+    }
+
+    // Classify one captured frame and return SPEECH, COMFORT_NOISE or SUPPRESSED. For
+    // COMFORT_NOISE the payload to send is ready in getPayload().
+    public int process(short[] pcm, int offset, int samples) {
+        if (vad.process(pcm, offset, samples)) {
+            silent = false;
+            speechFrames++;
+            return SPEECH;
+        }
+        double level = vad.getLevel();
+        if (!silent) {
+            silent = true;
+            noiseLevel = level;
+            return update(pcm, offset, samples);
+        }
+        noiseLevel += (level - noiseLevel) * LEVEL_SMOOTHING;
+        if (++framesSinceUpdate >= MAX_UPDATE_INTERVAL || Math.abs(noiseLevel - sentLevel) >= LEVEL_CHANGE_DB) {
+            return update(pcm, offset, samples);
+        }
+        suppressedFrames++;
+        return SUPPRESSED;
+    }
+
+    private int update(short[] pcm, int offset, int samples) {
+        payloadLength = comfortNoise.encode(pcm, offset, samples, noiseLevel, payload, 0);
+        sentLevel = noiseLevel;
+        framesSinceUpdate = 0;
+        comfortNoiseFrames++;
+        return COMFORT_NOISE;
+    }
+
+    // Copy the last comfort noise payload to out and return its length
+    public int getPayload(byte[] out, int offset) {
+        System.arraycopy(payload, 0, out, offset, payloadLength);
+        return payloadLength;
+    }
+
+    // Start over with the next frame taken as the end of a talkspurt
+    public void reset() {
+        vad.reset();
+        silent = false;
+    }
+
+    public VoiceActivityDetector getDetector() {
+        return vad;
+    }
+
+    public long getSpeechFrames() {
+        return speechFrames;
+    }
+
+    public long getComfortNoiseFrames() {
+        return comfortNoiseFrames;
+    }
+
+    public long getSuppressedFrames() {
+        return suppressedFrames;
+    }
+}
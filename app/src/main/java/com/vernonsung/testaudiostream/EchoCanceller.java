@@ -0,0 +1,376 @@
+package com.vernonsung.testaudiostream;
+
+// Acoustic echo canceller: an adaptive filter learns the path from the far-end signal played by
+// the speaker to the microphone, and its estimate of the echo is subtracted from the near-end
+// signal.
+// The filter is a partitioned block frequency-domain NLMS. The echo tail is cut into partitions of
+// one block, each with its own weights per frequency bin, and every block is filtered and adapted
+// by overlap-save in the frequency domain. Normalizing the step per bin by the far-end power in
+// that bin makes it converge as fast on colored speech as on white noise, which a time-domain
+// NLMS doesn't, and the whole filter costs a few small FFTs per block. One partition per block is
+// constrained back to a causal block-long response, in turn, to keep the cost down.
+// The far-end samples are appended to a history as they are played, and every near-end frame
+// takes the next frame of it, so the far end stays one continuous signal however the playout and
+// capture sides are scheduled against each other. The far-end frame is held about the bulk
+// delay behind the newest far-end sample: what the audio device still had queued to play when
+// it was handed over, set with setBulkDelay(). The tail then only has to cover the room, and the
+// capture side's own delay. Only when the two sides slip by more than JITTER_FRAMES, or the far
+// end runs out, is the history read from the bulk delay again, which is counted.
+// Adaptation stops while the near end talks too, found by the Geigel test: a near-end peak above
+// a fraction of the recent far-end peak can't be echo alone. Otherwise the filter would learn the
+// near-end speaker and cancel it.
+// Samples are floats in 16-bit PCM units. Nothing is allocated after construction.
+public class EchoCanceller {
+    // Frames adaptation stays off after double talk was last seen
+    private static final int DOUBLE_TALK_HOLD_FRAMES = 10;
+    private static final int MAX_BLOCK = 64;
+    // Frames by which the far end may run ahead of the capture side before it's realigned
+    public static final int JITTER_FRAMES = 2;
+    // Longest bulk delay, in frames
+    public static final int MAX_BULK_DELAY_FRAMES = 16;
+    // Smoothing of the far-end power per bin
+    private static final float POWER_SMOOTHING = 0.3f;
+    // Far-end power per sample below which there is nothing to learn from
+    private static final float MIN_FAR_POWER = 1;
+    // Error magnitude per bin, relative to the far end in that bin, that an update may follow.
+    // Echo alone stays below it; near-end speech missed by the double talk test doesn't.
+    private static final float ERROR_LIMIT = 0.5f;
+    private static final double ERLE_SMOOTHING = 0.05;
+
+    private final int frameSamples;
+    private final int block;
+    private final int partitions;
+    private final int bins;
+    private final float stepSize;
+    private final float doubleTalkThreshold;
+    private final Fft fft;
+    private final float[] re;
+    private final float[] im;
+    // Far-end spectra of the last blocks, newest at newest, and the weights of each partition
+    private final float[][] farRe;
+    private final float[][] farIm;
+    private final float[][] weightRe;
+    private final float[][] weightIm;
+    private final float[] farPower;
+    private int newest;
+    private int constrained;
+    // Far end of the previous and the current block
+    private final float[] window;
+    // Every far-end sample played, the last history.length of them kept, and how many so far
+    private final float[] history;
+    private long farWritten;
+    // Index in the history of the far-end frame for the next near-end frame
+    private long farRead;
+    private boolean farAligned;
+    private int bulkDelay;
+    private long realignCount;
+    // The far-end frame of this near-end frame, and the peaks of recent blocks
+    private final float[] farFrame;
+    private final float[] blockPeaks;
+    private int holdFrames;
+    private double nearPower;
+    private double errorPower;
+    private long doubleTalkFrames;
+    private long frames;
+
+    // tailSamples is the echo tail, e.g. 1024 for 128 ms at 8 kHz. Near-end frames are of
+    // frameSamples. stepSize between 0 and 1 trades convergence speed against noise.
+    public EchoCanceller(int tailSamples, int frameSamples, float stepSize, float doubleTalkThreshold) {
+        if (tailSamples < 1 || frameSamples < 1 || stepSize <= 0 || stepSize >= 2 || doubleTalkThreshold <= 0) {
+            throw new IllegalArgumentException("Tail " + tailSamples + ", frame " + frameSamples + ", step "
+                    + stepSize + " or threshold " + doubleTalkThreshold + " is out of range");
+        }
+        this.frameSamples = frameSamples;
+        this.stepSize = stepSize;
+        this.doubleTalkThreshold = doubleTalkThreshold;
+        // The largest power of two up to MAX_BLOCK that divides a frame
+        block = Math.min(MAX_BLOCK, Integer.lowestOneBit(frameSamples));
+        partitions = (tailSamples + block - 1) / block;
+        bins = block + 1;
+        fft = new Fft(Math.max(2, 2 * block));
+        re = new float[fft.getSize()];
+        im = new float[fft.getSize()];
+        farRe = new float[partitions][bins];
+        farIm = new float[partitions][bins];
+        weightRe = new float[partitions][bins];
+        weightIm = new float[partitions][bins];
+        farPower = new float[bins];
+        window = new float[2 * block];
+        history = new float[(MAX_BULK_DELAY_FRAMES + JITTER_FRAMES + 2) * frameSamples];
+        farFrame = new float[frameSamples];
+        blockPeaks = new float[partitions + frameSamples / block];
+    }
+
+    // Step 0.5 and the classic Geigel threshold of half the far-end peak
+    public EchoCanceller(int tailSamples, int frameSamples) {
+        this(tailSamples, frameSamples, 0.5f, 0.5f);
+    }
+
+    // Append far-end samples as they are played
+    public void addFarEnd(float[] far, int offset, int samples) {
+        if (samples >= history.length) {
+            offset += samples - history.length;
+            farWritten += samples - history.length;
+            samples = history.length;
+        }
+        int at = (int) (farWritten % history.length);
+        int first = Math.min(samples, history.length - at);
+        System.arraycopy(far, offset, history, at, first);
+        System.arraycopy(far, offset + first, history, 0, samples - first);
+        farWritten += samples;
+    }
+
+    // Samples between handing a far-end sample over and its sound leaving the speaker, e.g. what
+    // the playout queue holds ahead of it. Taken up at the next realignment, or at once if the far
+    // end then falls outside JITTER_FRAMES of it.
+    public void setBulkDelay(int samples) {
+        bulkDelay = Math.max(0, Math.min(MAX_BULK_DELAY_FRAMES * frameSamples, samples));
+    }
+
+    public int getBulkDelay() {
+        return bulkDelay;
+    }
+
+    // Take the far-end frame of the next near-end frame into farFrame. It's held between
+    // JITTER_FRAMES behind the bulk delay and the bulk delay behind the newest far end.
+    private void takeFarFrame() {
+        int samples = frameSamples;
+        long newer = farWritten - (farRead + samples);
+        int latest = bulkDelay;
+        int earliest = Math.max(0, bulkDelay - JITTER_FRAMES * samples);
+        if (!farAligned || newer < earliest || newer > latest) {
+            if (farAligned) {
+                realignCount++;
+            }
+            farAligned = true;
+            farRead = farWritten - samples - Math.max(earliest, bulkDelay - samples);
+        }
+        long oldest = farWritten - history.length;
+        for (int i = 0; i < samples; i++) {
+            long index = farRead + i;
+            // Silence before the first sample played
+            farFrame[i] = index < 0 || index < oldest ? 0 : history[(int) (index % history.length)];
+        }
+        farRead += samples;
+    }
+
+    // Remove the echo from one near-end frame in place
+    public void process(float[] near, int offset, int samples) {
+        if (samples != frameSamples) {
+            throw new IllegalArgumentException(samples + " samples aren't one frame of " + frameSamples);
+        }
+        takeFarFrame();
+
+        // Geigel double talk detection over the frame
+        float nearPeak = 0;
+        for (int i = offset; i < offset + samples; i++) {
+            nearPeak = Math.max(nearPeak, Math.abs(near[i]));
+        }
+        int blocks = samples / block;
+        for (int b = 0; b < blocks; b++) {
+            float peak = 0;
+            for (int i = b * block; i < (b + 1) * block; i++) {
+                peak = Math.max(peak, Math.abs(farFrame[i]));
+            }
+            System.arraycopy(blockPeaks, 1, blockPeaks, 0, blockPeaks.length - 1);
+            blockPeaks[blockPeaks.length - 1] = peak;
+        }
+        float farPeak = 0;
+        for (float p : blockPeaks) {
+            farPeak = Math.max(farPeak, p);
+        }
+        if (nearPeak > doubleTalkThreshold * farPeak && nearPeak > 0) {
+            holdFrames = DOUBLE_TALK_HOLD_FRAMES;
+        } else if (holdFrames > 0) {
+            holdFrames--;
+        }
+        if (holdFrames > 0) {
+            doubleTalkFrames++;
+        }
+
+        double framePower = 0;
+        double frameError = 0;
+        for (int b = 0; b < blocks; b++) {
+            int o = offset + b * block;
+            for (int i = 0; i < block; i++) {
+                framePower += near[o + i] * near[o + i];
+            }
+            processBlock(farFrame, b * block, near, o);
+            for (int i = 0; i < block; i++) {
+                frameError += near[o + i] * near[o + i];
+            }
+        }
+        if (holdFrames == 0) {
+            // Echo return loss enhancement only means something without near-end speech
+            nearPower += (framePower - nearPower) * ERLE_SMOOTHING;
+            errorPower += (frameError - errorPower) * ERLE_SMOOTHING;
+        }
+        frames++;
+    }
+
+    private void processBlock(float[] far, int farOffset, float[] near, int nearOffset) {
+        int size = 2 * block;
+        // Spectrum of the previous and this far-end block
+        System.arraycopy(window, block, window, 0, block);
+        System.arraycopy(far, farOffset, window, block, block);
+        for (int i = 0; i < size; i++) {
+            re[i] = window[i];
+            im[i] = 0;
+        }
+        fft.forward(re, im);
+        newest = newest == 0 ? partitions - 1 : newest - 1;
+        float[] xr = farRe[newest];
+        float[] xi = farIm[newest];
+        float total = 0;
+        for (int k = 0; k < bins; k++) {
+            xr[k] = re[k];
+            xi[k] = im[k];
+            float power = re[k] * re[k] + im[k] * im[k];
+            farPower[k] += (power - farPower[k]) * POWER_SMOOTHING;
+            total += farPower[k];
+        }
+        boolean adapt = holdFrames == 0 && total > MIN_FAR_POWER * size * bins;
+
+        // Echo estimate: the sum over partitions of weights times the far-end block that old
+        for (int k = 0; k < bins; k++) {
+            float yr = 0;
+            float yi = 0;
+            for (int p = 0, x = newest; p < partitions; p++, x = x + 1 == partitions ? 0 : x + 1) {
+                float wr = weightRe[p][k];
+                float wi = weightIm[p][k];
+                yr += wr * farRe[x][k] - wi * farIm[x][k];
+                yi += wr * farIm[x][k] + wi * farRe[x][k];
+            }
+            re[k] = yr;
+            im[k] = yi;
+        }
+        mirror();
+        fft.inverse(re, im);
+        // Overlap-save: the second half is the linear convolution
+        for (int i = 0; i < block; i++) {
+            near[nearOffset + i] -= re[block + i];
+        }
+        if (!adapt) {
+            return;
+        }
+
+        // Error spectrum, padded in front
+        for (int i = 0; i < block; i++) {
+            re[i] = 0;
+            im[i] = 0;
+            re[block + i] = near[nearOffset + i];
+            im[block + i] = 0;
+        }
+        fft.forward(re, im);
+        for (int k = 0; k < bins; k++) {
+            float g = stepSize / (partitions * farPower[k] + 1e-3f * total + 1);
+            float errorPower = re[k] * re[k] + im[k] * im[k];
+            float limit = ERROR_LIMIT * ERROR_LIMIT * farPower[k];
+            if (errorPower > limit) {
+                g *= (float) Math.sqrt(limit / errorPower);
+            }
+            float er = re[k] * g;
+            float ei = im[k] * g;
+            for (int p = 0, x = newest; p < partitions; p++, x = x + 1 == partitions ? 0 : x + 1) {
+                // Weight += step * conj(X) * E / power
+                weightRe[p][k] += farRe[x][k] * er + farIm[x][k] * ei;
+                weightIm[p][k] += farRe[x][k] * ei - farIm[x][k] * er;
+            }
+        }
+        constrain(constrained);
+        constrained = constrained + 1 == partitions ? 0 : constrained + 1;
+    }
+
+    // Fill the upper half of the spectrum as the conjugate of the lower half
+    private void mirror() {
+        int size = 2 * block;
+        for (int k = 1; k < block; k++) {
+            re[size - k] = re[k];
+            im[size - k] = -im[k];
+        }
+        im[0] = 0;
+        im[block] = 0;
+    }
+
+    // Cut the response of one partition to a block, dropping what circular convolution wrapped in
+    private void constrain(int p) {
+        for (int k = 0; k < bins; k++) {
+            re[k] = weightRe[p][k];
+            im[k] = weightIm[p][k];
+        }
+        mirror();
+        fft.inverse(re, im);
+        for (int i = block; i < 2 * block; i++) {
+            re[i] = 0;
+            im[i] = 0;
+        }
+        for (int i = 0; i < block; i++) {
+            im[i] = 0;
+        }
+        fft.forward(re, im);
+        for (int k = 0; k < bins; k++) {
+            weightRe[p][k] = re[k];
+            weightIm[p][k] = im[k];
+        }
+    }
+
+    // Forget the echo path, e.g. when the output device changes
+    public void reset() {
+        for (int p = 0; p < partitions; p++) {
+            for (int k = 0; k < bins; k++) {
+                farRe[p][k] = 0;
+                farIm[p][k] = 0;
+                weightRe[p][k] = 0;
+                weightIm[p][k] = 0;
+            }
+        }
+        for (int k = 0; k < bins; k++) {
+            farPower[k] = 0;
+        }
+        for (int i = 0; i < window.length; i++) {
+            window[i] = 0;
+        }
+        for (int i = 0; i < blockPeaks.length; i++) {
+            blockPeaks[i] = 0;
+        }
+        for (int i = 0; i < history.length; i++) {
+            history[i] = 0;
+        }
+        farWritten = 0;
+        farRead = 0;
+        farAligned = false;
+        holdFrames = 0;
+        nearPower = 0;
+        errorPower = 0;
+    }
+
+    // Smoothed echo return loss enhancement in dB over frames without double talk
+    public double getErleDb() {
+        if (nearPower <= 0 || errorPower <= 0) {
+            return 0;
+        }
+        return 10 * Math.log10(nearPower / errorPower);
+    }
+
+    public boolean isDoubleTalk() {
+        return holdFrames > 0;
+    }
+
+    public long getDoubleTalkFrames() {
+        return doubleTalkFrames;
+    }
+
+    public long getFrameCount() {
+        return frames;
+    }
+
+    // Times the far end was read from the bulk delay again after the two sides slipped
+    public long getRealignCount() {
+        return realignCount;
+    }
+
+    // Echo tail covered, in samples
+    public int getTailSamples() {
+        return partitions * block;
+    }
+}
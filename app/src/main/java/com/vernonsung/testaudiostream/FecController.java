@@ -0,0 +1,56 @@
+package com.vernonsung.testaudiostream;
+
+// Pick how much redundancy to send from the loss the remote side reports.
+// Level 0 sends none. Each level up adds more, as RED depth or as a smaller XOR parity group.
+// A level turns on when the smoothed loss passes its threshold and off again only when the loss
+// falls below half of it, so the overhead doesn't flap with every report.
+public class FecController {
+    public static final int MAX_LEVEL = 3;
+
+    // Smoothed loss fraction at which levels 1, 2 and 3 turn on
+    private static final double[] LEVEL_ON = {0.01, 0.05, 0.15};
+    private static final double OFF_RATIO = 0.5;
+    private static final double SMOOTHING = 0.3;
+    // Packets per parity packet at each level
+    private static final int[] XOR_GROUP_SIZES = {0, 8, 4, 2};
+
+    private double smoothedLoss;
+    // Reports come in on the RTCP thread while the send lane reads the level
+    private volatile int level;
+
+    // Feed the fraction lost of one RTCP report block, in 1/256 units. Return true if the level
+    // changed.
+    public boolean onReport(int fractionLost) {
+        smoothedLoss += (fractionLost / 256.0 - smoothedLoss) * SMOOTHING;
+        int wanted = level;
+        while (wanted < MAX_LEVEL && smoothedLoss >= LEVEL_ON[wanted]) {
+            wanted++;
+        }
+        while (wanted > 0 && smoothedLoss < LEVEL_ON[wanted - 1] * OFF_RATIO) {
+            wanted--;
+        }
+        if (wanted == level) {
+            return false;
+        }
+        level = wanted;
+        return true;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    // Previous frames each RED payload repeats
+    public int getRedDepth() {
+        return Math.min(level, RedEncoder.MAX_DEPTH);
+    }
+
+    // Media packets per XOR parity packet, 0 for none
+    public int getXorGroupSize() {
+        return XOR_GROUP_SIZES[level];
+    }
+
+    public double getSmoothedLoss() {
+        return smoothedLoss;
+    }
+}
@@ -0,0 +1,79 @@
+package com.vernonsung.testaudiostream;
+
+// In-place radix-2 complex FFT on float arrays of one fixed power-of-two size.
+// Twiddle factors and the bit reversal permutation are computed once, so a transform is only
+// loads, multiplies and adds, with nothing allocated.
+public class Fft {
+    private final int size;
+    private final int[] reversed;
+    private final float[] cos;
+    private final float[] sin;
+
+    public Fft(int size) {
+        if (size < 2 || Integer.bitCount(size) != 1) {
+            throw new IllegalArgumentException("Size " + size + " isn't a power of two");
+        }
+        this.size = size;
+        int bits = Integer.numberOfTrailingZeros(size);
+        reversed = new int[size];
+        for (int i = 0; i < size; i++) {
+            reversed[i] = Integer.reverse(i) >>> (32 - bits);
+        }
+        cos = new float[size / 2];
+        sin = new float[size / 2];
+        for (int i = 0; i < size / 2; i++) {
+            cos[i] = (float) Math.cos(2 * Math.PI * i / size);
+            sin[i] = (float) -Math.sin(2 * Math.PI * i / size);
+        }
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    // Forward transform of re + j im, without scaling
+    public void forward(float[] re, float[] im) {
+        transform(re, im, false);
+    }
+
+    // Inverse transform of re + j im, scaled by 1 / size so it undoes forward()
+    public void inverse(float[] re, float[] im) {
+        transform(re, im, true);
+        float scale = 1f / size;
+        for (int i = 0; i < size; i++) {
+            re[i] *= scale;
+            im[i] *= scale;
+        }
+    }
+
+    private void transform(float[] re, float[] im, boolean inverse) {
+        for (int i = 0; i < size; i++) {
+            int j = reversed[i];
+            if (j > i) {
+                float t = re[i];
+                re[i] = re[j];
+                re[j] = t;
+                t = im[i];
+                im[i] = im[j];
+                im[j] = t;
+            }
+        }
+        for (int half = 1; half < size; half <<= 1) {
+            int step = size / (half << 1);
+            for (int start = 0; start < size; start += half << 1) {
+                for (int k = 0; k < half; k++) {
+                    float wr = cos[k * step];
+                    float wi = inverse ? -sin[k * step] : sin[k * step];
+                    int a = start + k;
+                    int b = a + half;
+                    float tr = re[b] * wr - im[b] * wi;
+                    float ti = re[b] * wi + im[b] * wr;
+                    re[b] = re[a] - tr;
+                    im[b] = im[a] - ti;
+                    re[a] += tr;
+                    im[a] += ti;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.vernonsung.testaudiostream;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Lock-free ring of preallocated frames between exactly one producer thread and one consumer
+// thread, e.g. capture to encode or receive to playout.
+// The producer fills slots it has claimed and publishes them, the consumer reads published slots
+// and releases them, so frames are handed over without copying or allocating. Both sides can work
+// on several slots at once and publish or release them together with one ordered store.
+// The head and tail counters live far apart in one array so the two threads don't share a cache
+// line, and each side caches the other's counter to touch the shared line only when it looks
+// full or empty.
+public class FrameRing {
+    // One frame. Only the side that currently owns the slot may touch it.
+    public static class Slot {
+        public final byte[] data;
+        public final short[] samples;
+        // Bytes or samples in use
+        public int length;
+        public long timestamp;
+        public int sequenceNumber;
+
+        Slot(int dataSize, int sampleCount) {
+            data = new byte[dataSize];
+            samples = new short[sampleCount];
+        }
+    }
+
+    // Longs between the hot fields, two cache lines with adjacent line prefetch
+    private static final int PAD = 16;
+    private static final int HEAD = PAD;
+    private static final int TAIL = 2 * PAD;
+    // Producer's own tail and its view of head, then the consumer's own head and view of tail
+    private static final int PRODUCER_TAIL = PAD;
+    private static final int PRODUCER_HEAD = PAD + 1;
+    private static final int CONSUMER_HEAD = 2 * PAD;
+    private static final int CONSUMER_TAIL = 2 * PAD + 1;
+
+    private final Slot[] slots;
+    private final int mask;
+    // head: next slot to read, tail: next slot to write. Both only grow.
+    private final AtomicLongArray counters = new AtomicLongArray(3 * PAD);
+    // Plain copies of the counters, each pair only touched by one side
+    private final long[] local = new long[3 * PAD];
+
+    // capacity is rounded up to a power of two. Slots have room for dataSize bytes and
+    // sampleCount PCM samples; either may be 0.
+    public FrameRing(int capacity, int dataSize, int sampleCount) {
+        if (capacity < 2 || capacity > 1 << 20) {
+            throw new IllegalArgumentException("Capacity " + capacity + " is out of range");
+        }
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        slots = new Slot[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = new Slot(dataSize, sampleCount);
+        }
+        mask = size - 1;
+    }
+
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    // Producer side
+
+    // Claim up to count free slots and return how many were granted, possibly 0 when full.
+    // Fill them through writeSlot(0)... then publish().
+    public int claim(int count) {
+        long tail = local[PRODUCER_TAIL];
+        long free = slots.length - (tail - local[PRODUCER_HEAD]);
+        if (free < count) {
+            local[PRODUCER_HEAD] = counters.get(HEAD);
+            free = slots.length - (tail - local[PRODUCER_HEAD]);
+        }
+        return (int) Math.min(free, count);
+    }
+
+    // The i-th claimed slot
+    public Slot writeSlot(int i) {
+        return slots[(int) (local[PRODUCER_TAIL] + i) & mask];
+    }
+
+    // Hand the first count claimed slots to the consumer
+    public void publish(int count) {
+        long tail = local[PRODUCER_TAIL] + count;
+        local[PRODUCER_TAIL] = tail;
+        counters.lazySet(TAIL, tail);
+    }
+
+    // Claim one slot, or return null if the ring is full
+    public Slot claim() {
+        return claim(1) == 1 ? writeSlot(0) : null;
+    }
+
+    public void publish() {
+        publish(1);
+    }
+
+    // Consumer side
+
+    // Return how many published slots are ready, up to count, possibly 0 when empty.
+    // Read them through readSlot(0)... then release().
+    public int available(int count) {
+        long head = local[CONSUMER_HEAD];
+        long ready = local[CONSUMER_TAIL] - head;
+        if (ready < count) {
+            local[CONSUMER_TAIL] = counters.get(TAIL);
+            ready = local[CONSUMER_TAIL] - head;
+        }
+        return (int) Math.min(ready, count);
+    }
+
+    // The i-th ready slot
+    public Slot readSlot(int i) {
+        return slots[(int) (local[CONSUMER_HEAD] + i) & mask];
+    }
+
+    // Give the first count read slots back to the producer
+    public void release(int count) {
+        long head = local[CONSUMER_HEAD] + count;
+        local[CONSUMER_HEAD] = head;
+        counters.lazySet(HEAD, head);
+    }
+
+    // The next ready slot, or null if the ring is empty
+    public Slot peek() {
+        return available(1) == 1 ? readSlot(0) : null;
+    }
+
+    public void release() {
+        release(1);
+    }
+
+    // Either side
+
+    // Frames published and not yet released. Only a hint while the other side is running.
+    public int size() {
+        return (int) (counters.get(TAIL) - counters.get(HEAD));
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+}
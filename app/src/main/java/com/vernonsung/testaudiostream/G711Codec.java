@@ -0,0 +1,193 @@
+package com.vernonsung.testaudiostream;
+
+// G.711 mu-law (PCMU) and A-law (PCMA) at 8 kHz, 64 kbps.
+// Decoding is a table lookup. Encoding uses the segment search of the reference implementation
+// with the segment found by a leading-zero count instead of a loop. Lost frames are concealed by
+// replaying the last good frame with fading gain.
+public class G711Codec implements VoiceCodec {
+    public static final int CLOCK_RATE = 8000;
+    public static final int BITRATE = 64000;
+    public static final int PAYLOAD_TYPE_PCMU = 0;
+    public static final int PAYLOAD_TYPE_PCMA = 8;
+
+    private static final int ULAW_BIAS = 0x84;
+    private static final int ULAW_CLIP = 32635;
+    // Longest frame whose history is kept for concealment, 60 ms
+    private static final int MAX_HISTORY = 480;
+
+    private static final short[] ULAW_TO_LINEAR = new short[256];
+    private static final short[] ALAW_TO_LINEAR = new short[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            ULAW_TO_LINEAR[i] = (short) ulawToLinear(i);
+            ALAW_TO_LINEAR[i] = (short) alawToLinear(i);
+        }
+    }
+
+    private final boolean aLaw;
+    private final short[] history = new short[MAX_HISTORY];
+    private int historyLength;
+    private int concealedFrames;
+
+    private G711Codec(boolean aLaw) {
+        this.aLaw = aLaw;
+    }
+
+    public static G711Codec createUlaw() {
+        return new G711Codec(false);
+    }
+
+    public static G711Codec createAlaw() {
+        return new G711Codec(true);
+    }
+
+    @Override
+    public String getName() {
+        return aLaw ? "PCMA" : "PCMU";
+    }
+
+    @Override
+    public int getPayloadType() {
+        return aLaw ? PAYLOAD_TYPE_PCMA : PAYLOAD_TYPE_PCMU;
+    }
+
+    @Override
+    public int getClockRate() {
+        return CLOCK_RATE;
+    }
+
+    @Override
+    public int encode(short[] pcm, int offset, int samples, byte[] out, int outOffset) {
+        if (aLaw) {
+            for (int i = 0; i < samples; i++) {
+                out[outOffset + i] = linearToAlaw(pcm[offset + i]);
+            }
+        } else {
+            for (int i = 0; i < samples; i++) {
+                out[outOffset + i] = linearToUlaw(pcm[offset + i]);
+            }
+        }
+        return samples;
+    }
+
+    @Override
+    public int decode(byte[] payload, int offset, int length, short[] pcm, int pcmOffset) {
+        short[] table = aLaw ? ALAW_TO_LINEAR : ULAW_TO_LINEAR;
+        for (int i = 0; i < length; i++) {
+            pcm[pcmOffset + i] = table[payload[offset + i] & 0xFF];
+        }
+        // Remember the frame for concealment
+        historyLength = Math.min(length, MAX_HISTORY);
+        System.arraycopy(pcm, pcmOffset + length - historyLength, history, 0, historyLength);
+        concealedFrames = 0;
+        return length;
+    }
+
+    @Override
+    public int conceal(short[] pcm, int offset, int samples) {
+        // Repeat the last frame, halving the level on every consecutive loss
+        int shift = Math.min(++concealedFrames, 15);
+        for (int i = 0; i < samples; i++) {
+            pcm[offset + i] = historyLength == 0 ? 0 : (short) (history[i % historyLength] >> shift);
+        }
+        return samples;
+    }
+
+    @Override
+    public boolean isBitrateAdjustable() {
+        return false;
+    }
+
+    @Override
+    public int getBitrate() {
+        return BITRATE;
+    }
+
+    @Override
+    public int setBitrate(int bitrate) {
+        return BITRATE;
+    }
+
+    @Override
+    public boolean isInbandFecSupported() {
+        return false;
+    }
+
+    @Override
+    public void setInbandFec(boolean enabled) {
+    }
+
+    @Override
+    public void reset() {
+        historyLength = 0;
+        concealedFrames = 0;
+    }
+
+    public static byte linearToUlaw(int sample) {
+        int sign = (sample >> 8) & 0x80;
+        if (sign != 0) {
+            sample = -sample;
+        }
+        if (sample > ULAW_CLIP) {
+            sample = ULAW_CLIP;
+        }
+        sample += ULAW_BIAS;
+        int exponent = 31 - Integer.numberOfLeadingZeros(sample >> 7);
+        if (exponent < 0) {
+            exponent = 0;
+        }
+        int mantissa = (sample >> (exponent + 3)) & 0x0F;
+        return (byte) ~(sign | (exponent << 4) | mantissa);
+    }
+
+    public static int ulawToLinear(int ulaw) {
+        ulaw = ~ulaw;
+        int exponent = (ulaw >> 4) & 0x07;
+        int mantissa = ulaw & 0x0F;
+        int sample = (((mantissa << 3) + ULAW_BIAS) << exponent) - ULAW_BIAS;
+        return (ulaw & 0x80) != 0 ? -sample : sample;
+    }
+
+    public static byte linearToAlaw(int sample) {
+        int mask;
+        sample >>= 3;
+        if (sample >= 0) {
+            mask = 0xD5;
+        } else {
+            mask = 0x55;
+            sample = -sample - 1;
+        }
+        // Segment ends are 0x1F, 0x3F, 0x7F ... 0xFFF, one more bit each
+        int segment = 32 - Integer.numberOfLeadingZeros(sample >> 5);
+        if (segment >= 8) {
+            return (byte) (0x7F ^ mask);
+        }
+        int value = segment << 4;
+        if (segment < 2) {
+            value |= (sample >> 1) & 0x0F;
+        } else {
+            value |= (sample >> segment) & 0x0F;
+        }
+        return (byte) (value ^ mask);
+    }
+
+    public static int alawToLinear(int alaw) {
+        alaw ^= 0x55;
+        int t = (alaw & 0x0F) << 4;
+        int segment = (alaw & 0x70) >> 4;
+        switch (segment) {
+            case 0:
+                t += 8;
+                break;
+            case 1:
+                t += 0x108;
+                break;
+            default:
+                t += 0x108;
+                t <<= segment - 1;
+                break;
+        }
+        return (alaw & 0x80) != 0 ? t : -t;
+    }
+}
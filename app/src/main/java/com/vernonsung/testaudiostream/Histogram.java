@@ -0,0 +1,80 @@
+package com.vernonsung.testaudiostream;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Fixed-size histogram that any thread can record into without locks or allocation.
+// Bucket i counts values up to bounds[i]. One more bucket at the end counts larger values.
+public class Histogram {
+    private final long[] bounds;
+    private final AtomicLongArray counts;
+
+    // bounds must be ascending
+    public Histogram(long[] bounds) {
+        for (int i = 1; i < bounds.length; i++) {
+            if (bounds[i] <= bounds[i - 1]) {
+                throw new IllegalArgumentException("Bucket bounds must be ascending");
+            }
+        }
+        this.bounds = bounds.clone();
+        this.counts = new AtomicLongArray(bounds.length + 1);
+    }
+
+    public void record(long value) {
+        // Binary search for the first bound not below value
+        int low = 0;
+        int high = bounds.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (bounds[middle] < value) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        counts.incrementAndGet(low);
+    }
+
+    public int getBucketCount() {
+        return bounds.length + 1;
+    }
+
+    // Upper bound of a bucket. The overflow bucket has Long.MAX_VALUE.
+    public long getBound(int bucket) {
+        return bucket < bounds.length ? bounds[bucket] : Long.MAX_VALUE;
+    }
+
+    public long getCount(int bucket) {
+        return counts.get(bucket);
+    }
+
+    public long getTotalCount() {
+        long total = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    // Upper bound of the bucket holding the given percentile (0~100), or 0 if nothing recorded
+    public long getPercentile(double percentile) {
+        long total = getTotalCount();
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(total * percentile / 100.0);
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank && seen > 0) {
+                return getBound(i);
+            }
+        }
+        return getBound(counts.length() - 1);
+    }
+
+    public void reset() {
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0);
+        }
+    }
+}
@@ -0,0 +1,199 @@
+package com.vernonsung.testaudiostream;
+
+import java.net.DatagramSocket;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+// Pick the local address to bind a stream to for one remote endpoint, so that every participant
+// of a multi-homed device gets the interface that suits it best.
+// Each usable address of a LocalAddressTable gets a score:
+//   - the preferred interface of the table                      +200
+//   - the remote is in the same subnet                           +60
+//   - the kernel routes to the remote from this address          +40
+//   - link type: ethernet +30, Wi-Fi +25, other +10, cellular +5, VPN 0
+//   - private address for a private remote, public for public    +20
+//   - address family the table prefers                           +10
+//   - MTU of 1500 or more +5, below 576 -50
+// Addresses of the other family than the remote's can't reach it and are left out. The best score
+// wins; ties keep the table's order. Choices are cached per remote until the table changes.
+public class InterfaceSelector implements LocalAddressTable.Listener {
+    public interface RouteProbe {
+        // Local address the system would send to remote from, or null if there is no route
+        InetAddress sourceFor(InetAddress remote);
+    }
+
+    // One scored address
+    public static class Choice {
+        public final LocalAddressTable.Entry entry;
+        public final int score;
+        public final boolean onLink;
+        public final boolean routed;
+
+        Choice(LocalAddressTable.Entry entry, int score, boolean onLink, boolean routed) {
+            this.entry = entry;
+            this.score = score;
+            this.onLink = onLink;
+            this.routed = routed;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s %s mtu %d score %d%s%s", entry, entry.linkType, entry.mtu, score,
+                    onLink ? " on-link" : "", routed ? " routed" : "");
+        }
+    }
+
+    public static final int PREFERRED_INTERFACE = 200;
+    public static final int ON_LINK = 60;
+    public static final int ROUTED = 40;
+    public static final int SAME_SCOPE = 20;
+    public static final int PREFERRED_FAMILY = 10;
+    public static final int LARGE_MTU = 5;
+    public static final int SMALL_MTU = -50;
+
+    // Connecting a UDP socket makes the kernel pick the route and source address without sending
+    // anything
+    public static final RouteProbe SYSTEM = new RouteProbe() {
+        @Override
+        public InetAddress sourceFor(InetAddress remote) {
+            DatagramSocket socket = null;
+            try {
+                socket = new DatagramSocket();
+                socket.connect(new InetSocketAddress(remote, 9));
+                InetAddress local = socket.getLocalAddress();
+                return local == null || local.isAnyLocalAddress() ? null : local;
+            } catch (SocketException e) {
+                return null;
+            } finally {
+                if (socket != null) {
+                    socket.close();
+                }
+            }
+        }
+    };
+
+    private final LocalAddressTable table;
+    private final RouteProbe probe;
+    private final Map<InetAddress, LocalAddressTable.Entry> cache = new HashMap<InetAddress, LocalAddressTable.Entry>();
+    private long probeCount;
+
+    public InterfaceSelector(LocalAddressTable table, RouteProbe probe) {
+        this.table = table;
+        this.probe = probe;
+        table.addListener(this);
+    }
+
+    // Forget every choice, the routes may have changed along with the addresses
+    @Override
+    public synchronized void onAddressesChanged(LocalAddressTable t) {
+        cache.clear();
+    }
+
+    // Forget the choice for remote, e.g. once its route is known
+    public synchronized void forget(InetAddress remote) {
+        cache.remove(remote);
+    }
+
+    // Best address to talk to remote from, or null if none can reach it. A null remote gets the
+    // table's own choice.
+    public InetAddress select(InetAddress remote) {
+        LocalAddressTable.Entry e = selectEntry(remote);
+        return e == null ? null : e.address;
+    }
+
+    public synchronized LocalAddressTable.Entry selectEntry(InetAddress remote) {
+        if (remote == null) {
+            List<LocalAddressTable.Entry> candidates = table.getCandidates();
+            return candidates.isEmpty() ? null : candidates.get(0);
+        }
+        if (cache.containsKey(remote)) {
+            return cache.get(remote);
+        }
+        List<Choice> choices = rank(remote);
+        LocalAddressTable.Entry best = choices.isEmpty() ? null : choices.get(0).entry;
+        cache.put(remote, best);
+        return best;
+    }
+
+    // Every address that can reach remote, best first, with its score. Not cached.
+    public synchronized List<Choice> rank(InetAddress remote) {
+        boolean remoteIpv6 = remote instanceof Inet6Address;
+        boolean remotePrivate = LocalAddressTable.isPrivate(remote);
+        LocalAddressTable.Family family = table.getFamily();
+        String preferred = table.getPreferredInterface();
+        probeCount++;
+        InetAddress routedSource = probe.sourceFor(remote);
+
+        List<Choice> choices = new ArrayList<Choice>();
+        for (LocalAddressTable.Entry e : table.getEntries()) {
+            if (!e.isUsable() || e.isIpv6() != remoteIpv6
+                    || (family == LocalAddressTable.Family.IPV4_ONLY && e.isIpv6())
+                    || (family == LocalAddressTable.Family.IPV6_ONLY && !e.isIpv6())) {
+                continue;
+            }
+            int score = 0;
+            if (e.interfaceName.equals(preferred)) {
+                score += PREFERRED_INTERFACE;
+            }
+            boolean onLink = e.isOnLink(remote);
+            if (onLink) {
+                score += ON_LINK;
+            }
+            boolean routed = e.address.equals(routedSource);
+            if (routed) {
+                score += ROUTED;
+            }
+            score += linkScore(e.linkType);
+            if (e.isPrivate() == remotePrivate) {
+                score += SAME_SCOPE;
+            }
+            if (e.isIpv6() == (family == LocalAddressTable.Family.IPV6_FIRST
+                    || family == LocalAddressTable.Family.IPV6_ONLY)) {
+                score += PREFERRED_FAMILY;
+            }
+            if (e.mtu >= 1500) {
+                score += LARGE_MTU;
+            } else if (e.mtu > 0 && e.mtu < 576) {
+                score += SMALL_MTU;
+            }
+            choices.add(new Choice(e, score, onLink, routed));
+        }
+        // Stable, so ties keep the table's order
+        Collections.sort(choices, new Comparator<Choice>() {
+            @Override
+            public int compare(Choice a, Choice b) {
+                return a.score == b.score ? 0 : (a.score > b.score ? -1 : 1);
+            }
+        });
+        return choices;
+    }
+
+    // Route probes done so far, i.e. cache misses
+    public synchronized long getProbeCount() {
+        return probeCount;
+    }
+
+    private static int linkScore(LocalAddressTable.LinkType type) {
+        switch (type) {
+            case ETHERNET:
+                return 30;
+            case WIFI:
+                return 25;
+            case CELLULAR:
+                return 5;
+            case VPN:
+                return 0;
+            default:
+                return 10;
+        }
+    }
+}
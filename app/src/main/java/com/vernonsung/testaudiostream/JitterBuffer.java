@@ -0,0 +1,330 @@
+package com.vernonsung.testaudiostream;
+
+// Adaptive jitter buffer of one RTP source.
+// Frames are stored in a ring of preallocated slots indexed by sequence number, so packets that
+// arrive out of order fall into place and nothing is allocated per packet. The playout side
+// polls one frame per frame period. The target delay follows the RFC 3550 interarrival jitter
+// estimate: it grows at once when jitter rises and shrinks one frame at a time when it settles.
+// Missing frames are handed to a Concealer which can synthesize something to play instead.
+// An empty frame, such as the place holder of a comfort noise payload, ends a talkspurt: running
+// dry after it is the sender being silent, not loss, so nothing is concealed.
+public class JitterBuffer {
+    public interface Concealer {
+        // Fill out with a replacement for the missing frame and return its length, or 0 to play
+        // silence. Called on the playout thread.
+        int conceal(int sequenceNumber, byte[] out, int offset);
+    }
+
+    // Returned by poll() when nothing was played, not even a concealed frame
+    public static final int NO_FRAME = -1;
+
+    // How many multiples of the jitter estimate to keep buffered
+    private static final int JITTER_MULTIPLIER = 3;
+    // Polls with more than the target buffered before one frame is dropped to reduce delay
+    private static final int SHRINK_HOLD_FRAMES = 50;
+
+    private final int capacity;
+    private final int mask;
+    private final int maxPayloadSize;
+    private final int clockRate;
+    private final int samplesPerFrame;
+    private final byte[][] payloads;
+    private final int[] lengths;
+    private final int[] sequences;
+    private final boolean[] filled;
+    private final int minDelayFrames;
+    private final int maxDelayFrames;
+    private Concealer concealer;
+
+    private boolean playing;
+    private boolean started;
+    private int nextSeq;
+    private int highestSeq;
+    private int bufferedCount;
+    private int targetDelayFrames;
+    private int shrinkCounter;
+    private boolean endOfTalkspurt;
+
+    // RFC 3550 jitter estimate in timestamp units, scaled by 16 to keep it in integers
+    private long jitterQ4;
+    private boolean hasTransit;
+    private long lastTransit;
+
+    private long receivedCount;
+    private long playedCount;
+    private long concealedCount;
+    private long lateCount;
+    private long duplicateCount;
+    private long overflowCount;
+    private long underrunCount;
+    private long shrinkCount;
+    private long recoveredCount;
+
+    // capacity is rounded up to a power of two. Delays are in frames.
+    public JitterBuffer(int capacity, int maxPayloadSize, int clockRate, int samplesPerFrame,
+                        int minDelayFrames, int maxDelayFrames) {
+        if (capacity < 2 || capacity > 1 << 14) {
+            throw new IllegalArgumentException("Capacity " + capacity + " is out of range");
+        }
+        if (minDelayFrames < 1 || maxDelayFrames < minDelayFrames || maxDelayFrames >= capacity) {
+            throw new IllegalArgumentException("Delay range " + minDelayFrames + "~" + maxDelayFrames + " is invalid");
+        }
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        this.capacity = size;
+        this.mask = size - 1;
+        this.maxPayloadSize = maxPayloadSize;
+        this.clockRate = clockRate;
+        this.samplesPerFrame = samplesPerFrame;
+        this.minDelayFrames = minDelayFrames;
+        this.maxDelayFrames = maxDelayFrames;
+        payloads = new byte[size][maxPayloadSize];
+        lengths = new int[size];
+        sequences = new int[size];
+        filled = new boolean[size];
+        targetDelayFrames = minDelayFrames;
+    }
+
+    public synchronized void setConcealer(Concealer concealer) {
+        this.concealer = concealer;
+    }
+
+    // Store one frame. arrivalNanos comes from a monotonic clock such as System.nanoTime().
+    // Return false if the frame was dropped as late, duplicate or oversized.
+    public synchronized boolean put(int sequenceNumber, long timestamp, byte[] payload, int offset, int length,
+                                    long arrivalNanos) {
+        if (length > maxPayloadSize) {
+            return false;
+        }
+        updateJitter(timestamp, arrivalNanos);
+        return store(sequenceNumber & 0xFFFF, payload, offset, length, false);
+    }
+
+    // Store a frame rebuilt by FEC or carried as redundancy. It says nothing about network timing,
+    // and one that comes too late is dropped without counting it as late.
+    public synchronized boolean putRecovered(int sequenceNumber, byte[] payload, int offset, int length) {
+        if (length > maxPayloadSize) {
+            return false;
+        }
+        if (!store(sequenceNumber & 0xFFFF, payload, offset, length, true)) {
+            return false;
+        }
+        recoveredCount++;
+        return true;
+    }
+
+    private boolean store(int seq, byte[] payload, int offset, int length, boolean recovered) {
+        if (!started) {
+            started = true;
+            nextSeq = seq;
+            highestSeq = seq;
+        }
+        int distance = (short) (seq - nextSeq);
+        if (recovered && (distance >= capacity || distance < 0)) {
+            // Rebuilt frames never move the playout point
+            return false;
+        }
+        if (distance >= capacity || distance < -capacity) {
+            // Too far from the playout point to be a late or early frame. The source jumped, so
+            // start over from this frame.
+            overflowCount++;
+            clear();
+            nextSeq = seq;
+            highestSeq = seq;
+        } else if (distance < 0) {
+            // Its playout time has passed
+            lateCount++;
+            return false;
+        }
+        int index = seq & mask;
+        if (filled[index] && sequences[index] == seq) {
+            if (!recovered) {
+                duplicateCount++;
+            }
+            return false;
+        }
+        System.arraycopy(payload, offset, payloads[index], 0, length);
+        lengths[index] = length;
+        sequences[index] = seq;
+        filled[index] = true;
+        bufferedCount++;
+        receivedCount++;
+        if ((short) (seq - highestSeq) > 0) {
+            highestSeq = seq;
+        }
+        return true;
+    }
+
+    // Take the frame due now into out and return its length, 0 for silence or NO_FRAME while
+    // prefetching. Call once per frame period from the playout thread.
+    public synchronized int poll(byte[] out, int offset) {
+        if (!playing) {
+            // Prefetch up to the target delay before starting or after an underrun
+            if (!started || getDepth() < targetDelayFrames) {
+                return NO_FRAME;
+            }
+            playing = true;
+            shrinkCounter = 0;
+        }
+        if (bufferedCount == 0) {
+            playing = false;
+            if (endOfTalkspurt) {
+                return NO_FRAME;
+            }
+            underrunCount++;
+            return conceal(nextSeq, out, offset);
+        }
+
+        // Reduce delay one frame at a time when the buffer stays deeper than needed
+        if (getDepth() > targetDelayFrames + 1) {
+            if (++shrinkCounter >= SHRINK_HOLD_FRAMES) {
+                shrinkCounter = 0;
+                shrinkCount++;
+                discard(nextSeq);
+                nextSeq = (nextSeq + 1) & 0xFFFF;
+            }
+        } else {
+            shrinkCounter = 0;
+        }
+
+        int seq = nextSeq;
+        nextSeq = (nextSeq + 1) & 0xFFFF;
+        int index = seq & mask;
+        if (filled[index] && sequences[index] == seq) {
+            int length = lengths[index];
+            System.arraycopy(payloads[index], 0, out, offset, length);
+            filled[index] = false;
+            bufferedCount--;
+            playedCount++;
+            endOfTalkspurt = length == 0;
+            return length;
+        }
+        endOfTalkspurt = false;
+        return conceal(seq, out, offset);
+    }
+
+    // Forget everything, e.g. when the remote source changes
+    public synchronized void reset() {
+        clear();
+        started = false;
+        endOfTalkspurt = false;
+        hasTransit = false;
+        jitterQ4 = 0;
+        shrinkCounter = 0;
+        targetDelayFrames = minDelayFrames;
+    }
+
+    private void clear() {
+        for (int i = 0; i < capacity; i++) {
+            filled[i] = false;
+        }
+        bufferedCount = 0;
+        playing = false;
+    }
+
+    private int conceal(int seq, byte[] out, int offset) {
+        concealedCount++;
+        if (concealer == null) {
+            return 0;
+        }
+        return concealer.conceal(seq, out, offset);
+    }
+
+    private void discard(int seq) {
+        int index = seq & mask;
+        if (filled[index] && sequences[index] == seq) {
+            filled[index] = false;
+            bufferedCount--;
+        }
+    }
+
+    // J(i) = J(i-1) + (|D(i-1,i)| - J(i-1)) / 16, in timestamp units
+    private void updateJitter(long timestamp, long arrivalNanos) {
+        long micros = arrivalNanos / 1000;
+        long arrival = micros / 1000000 * clockRate + micros % 1000000 * clockRate / 1000000;
+        long transit = (arrival - timestamp) & 0xFFFFFFFFL;
+        if (hasTransit) {
+            long d = (int) (transit - lastTransit);
+            if (d < 0) {
+                d = -d;
+            }
+            jitterQ4 += d - ((jitterQ4 + 8) >> 4);
+        }
+        lastTransit = transit;
+        hasTransit = true;
+
+        // One frame for the packet itself plus enough to cover the jitter
+        long jitterSamples = (jitterQ4 >> 4) * JITTER_MULTIPLIER;
+        int target = 1 + (int) ((jitterSamples + samplesPerFrame - 1) / samplesPerFrame);
+        targetDelayFrames = Math.max(minDelayFrames, Math.min(maxDelayFrames, target));
+    }
+
+    // Frames between the playout point and the newest frame received
+    public synchronized int getDepth() {
+        if (!started || bufferedCount == 0) {
+            return 0;
+        }
+        return (short) (highestSeq - nextSeq) + 1;
+    }
+
+    public synchronized int getBufferedCount() {
+        return bufferedCount;
+    }
+
+    public synchronized int getTargetDelayFrames() {
+        return targetDelayFrames;
+    }
+
+    // Interarrival jitter in timestamp units
+    public synchronized long getJitter() {
+        return jitterQ4 >> 4;
+    }
+
+    public synchronized boolean isPlaying() {
+        return playing;
+    }
+
+    public int getClockRate() {
+        return clockRate;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized long getReceivedCount() {
+        return receivedCount;
+    }
+
+    public synchronized long getPlayedCount() {
+        return playedCount;
+    }
+
+    public synchronized long getConcealedCount() {
+        return concealedCount;
+    }
+
+    public synchronized long getLateCount() {
+        return lateCount;
+    }
+
+    public synchronized long getDuplicateCount() {
+        return duplicateCount;
+    }
+
+    public synchronized long getOverflowCount() {
+        return overflowCount;
+    }
+
+    public synchronized long getUnderrunCount() {
+        return underrunCount;
+    }
+
+    public synchronized long getShrinkCount() {
+        return shrinkCount;
+    }
+
+    // Frames stored by putRecovered() that weren't already here
+    public synchronized long getRecoveredCount() {
+        return recoveredCount;
+    }
+}
@@ -0,0 +1,280 @@
+package com.vernonsung.testaudiostream;
+
+import java.net.Inet4Address;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// Local addresses of every interface that is up, enumerated once and cached until refresh() is
+// told the network changed. Listeners only hear about refreshes that actually changed something.
+// select() picks the address to bind streams to by an explicit policy:
+//   1. Loopback, link-local, multicast and wildcard addresses are never used.
+//   2. The preferred interface, if one is set and has a usable address, wins.
+//   3. Private addresses come before public ones: IPv4 10/8, 172.16/12, 192.168/16, the carrier
+//      grade 100.64/10 and IPv6 unique local fc00::/7, since calls are mostly within one site.
+//   4. The preferred address family comes first.
+//   5. Otherwise interfaces keep the order the system lists them in.
+public class LocalAddressTable {
+    public interface Source {
+        // Every address of every interface that is up, loopback ones included
+        List<Entry> enumerate() throws SocketException;
+    }
+
+    public interface Listener {
+        // Called on the thread that refreshed
+        void onAddressesChanged(LocalAddressTable table);
+    }
+
+    public enum Family {
+        IPV4_FIRST, IPV6_FIRST, IPV4_ONLY, IPV6_ONLY
+    }
+
+    public enum LinkType {
+        ETHERNET, WIFI, CELLULAR, VPN, OTHER;
+
+        // Guess from the names Android and Linux give interfaces
+        public static LinkType fromInterfaceName(String name) {
+            if (name.startsWith("eth") || name.startsWith("en")) {
+                return ETHERNET;
+            }
+            if (name.startsWith("wlan") || name.startsWith("wl") || name.startsWith("p2p")) {
+                return WIFI;
+            }
+            if (name.startsWith("rmnet") || name.startsWith("ccmni") || name.startsWith("pdp")
+                    || name.startsWith("wwan") || name.startsWith("v4-rmnet")) {
+                return CELLULAR;
+            }
+            if (name.startsWith("tun") || name.startsWith("ppp") || name.startsWith("ipsec") || name.startsWith("wg")) {
+                return VPN;
+            }
+            return OTHER;
+        }
+    }
+
+    // One address of one interface
+    public static class Entry {
+        public final String interfaceName;
+        public final InetAddress address;
+        public final int prefixLength;
+        // 0 if unknown
+        public final int mtu;
+        public final LinkType linkType;
+
+        public Entry(String interfaceName, InetAddress address, int prefixLength) {
+            this(interfaceName, address, prefixLength, 0, LinkType.fromInterfaceName(interfaceName));
+        }
+
+        public Entry(String interfaceName, InetAddress address, int prefixLength, int mtu, LinkType linkType) {
+            this.interfaceName = interfaceName;
+            this.address = address;
+            this.prefixLength = prefixLength;
+            this.mtu = mtu;
+            this.linkType = linkType;
+        }
+
+        // Whether other lies in the same subnet, so it's reached without a router
+        public boolean isOnLink(InetAddress other) {
+            byte[] a = address.getAddress();
+            byte[] b = other.getAddress();
+            if (a.length != b.length || prefixLength <= 0 || prefixLength > a.length * 8) {
+                return false;
+            }
+            int bits = prefixLength;
+            for (int i = 0; bits > 0; i++, bits -= 8) {
+                int mask = bits >= 8 ? 0xFF : (0xFF << (8 - bits)) & 0xFF;
+                if ((a[i] & mask) != (b[i] & mask)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public boolean isIpv6() {
+            return address instanceof Inet6Address;
+        }
+
+        // Whether streams may bind to it at all
+        public boolean isUsable() {
+            return !address.isLoopbackAddress() && !address.isLinkLocalAddress() && !address.isMulticastAddress()
+                    && !address.isAnyLocalAddress();
+        }
+
+        public boolean isPrivate() {
+            return LocalAddressTable.isPrivate(address);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Entry)) {
+                return false;
+            }
+            Entry e = (Entry) o;
+            return interfaceName.equals(e.interfaceName) && address.equals(e.address) && prefixLength == e.prefixLength
+                    && mtu == e.mtu && linkType == e.linkType;
+        }
+
+        @Override
+        public int hashCode() {
+            return (interfaceName.hashCode() * 31 + address.hashCode()) * 31 + prefixLength;
+        }
+
+        @Override
+        public String toString() {
+            return interfaceName + " " + address.getHostAddress() + "/" + prefixLength;
+        }
+    }
+
+    // Reads the real interfaces
+    public static final Source SYSTEM = new Source() {
+        @Override
+        public List<Entry> enumerate() throws SocketException {
+            List<Entry> entries = new ArrayList<Entry>();
+            List<NetworkInterface> interfaces = Collections.list(NetworkInterface.getNetworkInterfaces());
+            for (NetworkInterface i : interfaces) {
+                if (!i.isUp()) {
+                    continue;
+                }
+                int mtu = i.getMTU();
+                LinkType type = LinkType.fromInterfaceName(i.getName());
+                for (InterfaceAddress a : i.getInterfaceAddresses()) {
+                    entries.add(new Entry(i.getName(), a.getAddress(), a.getNetworkPrefixLength(), Math.max(mtu, 0),
+                            type));
+                }
+            }
+            return entries;
+        }
+    };
+
+    private final Source source;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+    private volatile List<Entry> entries = Collections.emptyList();
+    private volatile boolean loaded;
+    private volatile Family family = Family.IPV4_FIRST;
+    private volatile String preferredInterface;
+
+    public LocalAddressTable(Source source) {
+        this.source = source;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public Family getFamily() {
+        return family;
+    }
+
+    public String getPreferredInterface() {
+        return preferredInterface;
+    }
+
+    public void setFamily(Family family) {
+        this.family = family;
+    }
+
+    // Interface to use whenever it has a usable address, e.g. "wlan0", or null for none
+    public void setPreferredInterface(String preferredInterface) {
+        this.preferredInterface = preferredInterface;
+    }
+
+    // Enumerate the interfaces again. Return true if the addresses changed, in which case the
+    // listeners have been told. A failed enumeration keeps the previous table.
+    public boolean refresh() {
+        List<Entry> fresh;
+        try {
+            fresh = Collections.unmodifiableList(new ArrayList<Entry>(source.enumerate()));
+        } catch (SocketException e) {
+            return false;
+        }
+        synchronized (this) {
+            loaded = true;
+            if (fresh.equals(entries)) {
+                return false;
+            }
+            entries = fresh;
+        }
+        for (Listener l : listeners) {
+            l.onAddressesChanged(this);
+        }
+        return true;
+    }
+
+    // Every address, refreshing first if the table was never loaded
+    public List<Entry> getEntries() {
+        if (!loaded) {
+            refresh();
+        }
+        return entries;
+    }
+
+    // Usable addresses in the order of the policy, best first
+    public List<Entry> getCandidates() {
+        final Family f = family;
+        final String preferred = preferredInterface;
+        List<Entry> candidates = new ArrayList<Entry>();
+        for (Entry e : getEntries()) {
+            if (!e.isUsable() || (f == Family.IPV4_ONLY && e.isIpv6()) || (f == Family.IPV6_ONLY && !e.isIpv6())) {
+                continue;
+            }
+            candidates.add(e);
+        }
+        // Stable, so ties keep the system's order
+        Collections.sort(candidates, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                if (preferred != null) {
+                    boolean pa = preferred.equals(a.interfaceName);
+                    if (pa != preferred.equals(b.interfaceName)) {
+                        return pa ? -1 : 1;
+                    }
+                }
+                if (a.isPrivate() != b.isPrivate()) {
+                    return a.isPrivate() ? -1 : 1;
+                }
+                if (a.isIpv6() != b.isIpv6()) {
+                    return a.isIpv6() == (f == Family.IPV6_FIRST) ? -1 : 1;
+                }
+                return 0;
+            }
+        });
+        return candidates;
+    }
+
+    // The address to bind streams to, or null if there is none
+    public InetAddress select() {
+        List<Entry> candidates = getCandidates();
+        return candidates.isEmpty() ? null : candidates.get(0).address;
+    }
+
+    // Whether an address is still one of ours
+    public boolean contains(InetAddress address) {
+        for (Entry e : getEntries()) {
+            if (e.address.equals(address)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static boolean isPrivate(InetAddress address) {
+        byte[] a = address.getAddress();
+        if (address instanceof Inet4Address) {
+            int b0 = a[0] & 0xFF;
+            int b1 = a[1] & 0xFF;
+            return b0 == 10 || (b0 == 172 && (b1 & 0xF0) == 16) || (b0 == 192 && b1 == 168)
+                    || (b0 == 100 && (b1 & 0xC0) == 64);
+        }
+        return (a[0] & 0xFE) == 0xFC;
+    }
+}
@@ -0,0 +1,159 @@
+package com.vernonsung.testaudiostream;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Random;
+
+// A whole call direction in one process on a virtual clock: a sender packetizing one frame every
+// frame period, a NetworkSimulator link, and a receiver with its jitter buffer polled by a
+// playout clock. Each frame carries its index so the playout side knows when it was captured.
+// Mouth-to-ear latency is from the start of capturing a frame to the start of playing it,
+// leaving out the device's own audio buffers. Nothing waits on the wall clock, so a minute of
+// call runs in milliseconds and the same seed always gives the same result.
+public class LoopbackHarness implements NetworkSimulator.Receiver {
+    private static final int CLOCK_RATE = 8000;
+    private static final int FRAME_SAMPLES = 160;
+    private static final long FRAME_NANOS = 20000000L;
+    // G.711 at 20 ms
+    private static final int FRAME_SIZE = 160;
+    private static final int MAX_PACKET = 1472;
+    private static final int PAYLOAD_TYPE = 0;
+    private static final int RED_PAYLOAD_TYPE = 99;
+    // Milliseconds
+    private static final long[] LATENCY_BOUNDS = buildLatencyBounds();
+
+    // What one run measured
+    public static class Report {
+        public long framesSent;
+        public long framesPlayed;
+        public long framesConcealed;
+        public long lateDrops;
+        public long recoveredFrames;
+        public double networkLossPercent;
+        // Frames that never played, after any repair
+        public double frameLossPercent;
+        public double meanLatencyMillis;
+        public long p95LatencyMillis;
+        public long maxLatencyMillis;
+        // On the wire, IP and UDP headers included
+        public double throughputKbps;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "network loss %.2f%% frame loss %.2f%% (%d recovered, %d late) mouth-to-ear mean %.1f ms p95 %d ms max %d ms throughput %.1f kbps",
+                    networkLossPercent, frameLossPercent, recoveredFrames, lateDrops, meanLatencyMillis,
+                    p95LatencyMillis, maxLatencyMillis, throughputKbps);
+        }
+    }
+
+    private final NetworkSimulator link;
+    private final RtpBufferPool pool = new RtpBufferPool(4, MAX_PACKET, false);
+    private final JitterBuffer jitterBuffer;
+    private final RtpReceiver receiver;
+    private final byte[] frame = new byte[FRAME_SIZE];
+    private final byte[] payload = new byte[MAX_PACKET];
+    private final byte[] playout = new byte[MAX_PACKET];
+    private int redDepth;
+
+    // delays are the jitter buffer's range in frames
+    public LoopbackHarness(Random random, int minDelayFrames, int maxDelayFrames) {
+        link = new NetworkSimulator(random, this, 1024, MAX_PACKET);
+        jitterBuffer = new JitterBuffer(64, MAX_PACKET, CLOCK_RATE, FRAME_SAMPLES, minDelayFrames, maxDelayFrames);
+        receiver = new RtpReceiver(jitterBuffer, MAX_PACKET);
+        receiver.setPayloadType(PAYLOAD_TYPE);
+        receiver.setRedPayloadType(RED_PAYLOAD_TYPE);
+    }
+
+    // The link to impair before run()
+    public NetworkSimulator getLink() {
+        return link;
+    }
+
+    // Send RFC 2198 redundancy of this depth, 0 for none
+    public void setRedDepth(int redDepth) {
+        this.redDepth = redDepth;
+    }
+
+    // Run a call of this many frames. Call it once per harness.
+    public Report run(int frames) {
+        RtpPacketizer packetizer = new RtpPacketizer(pool, 0x5EED, redDepth > 0 ? RED_PAYLOAD_TYPE : PAYLOAD_TYPE,
+                FRAME_SAMPLES);
+        RedEncoder redEncoder = new RedEncoder(PAYLOAD_TYPE, FRAME_SIZE);
+        redEncoder.setDepth(redDepth);
+        Histogram latency = new Histogram(LATENCY_BOUNDS);
+        long latencySum = 0;
+        long latencyMax = 0;
+        long played = 0;
+        long lastIndex = -1;
+
+        // The playout clock ticks half a frame after the capture clock
+        long playoutPhase = FRAME_NANOS / 2;
+        long end = frames * FRAME_NANOS + 5000000000L;
+        for (long tick = 0; tick * FRAME_NANOS < end; tick++) {
+            long now = tick * FRAME_NANOS;
+            link.advanceTo(now);
+            if (tick >= 1 && tick <= frames) {
+                // Frame tick - 1 has just been captured
+                ByteBuffer.wrap(frame).putInt((int) (tick - 1));
+                ByteBuffer packet;
+                if (redDepth > 0) {
+                    int length = redEncoder.encode(frame, 0, FRAME_SIZE, packetizer.getTimestamp(), payload, 0);
+                    packet = packetizer.packetize(payload, 0, length);
+                } else {
+                    packet = packetizer.packetize(frame, 0, FRAME_SIZE);
+                }
+                link.send(packet, now);
+                pool.release(packet);
+            }
+
+            long playoutNanos = now + playoutPhase;
+            link.advanceTo(playoutNanos);
+            int length = jitterBuffer.poll(playout, 0);
+            if (length == FRAME_SIZE) {
+                long index = ByteBuffer.wrap(playout).getInt() & 0xFFFFFFFFL;
+                if (index > lastIndex) {
+                    lastIndex = index;
+                    long millis = (playoutNanos - index * FRAME_NANOS) / 1000000;
+                    latency.record(millis);
+                    latencySum += millis;
+                    latencyMax = Math.max(latencyMax, millis);
+                    played++;
+                }
+            }
+            if (tick > frames && link.getInFlightCount() == 0 && jitterBuffer.getBufferedCount() == 0) {
+                break;
+            }
+        }
+
+        Report r = new Report();
+        r.framesSent = frames;
+        r.framesPlayed = played;
+        r.framesConcealed = jitterBuffer.getConcealedCount();
+        r.lateDrops = jitterBuffer.getLateCount();
+        r.recoveredFrames = jitterBuffer.getRecoveredCount();
+        long sent = link.getSentCount();
+        r.networkLossPercent = sent == 0 ? 0 : 100.0 * (sent - link.getDeliveredCount()) / sent;
+        r.frameLossPercent = frames == 0 ? 0 : 100.0 * (frames - played) / frames;
+        r.meanLatencyMillis = played == 0 ? 0 : (double) latencySum / played;
+        r.p95LatencyMillis = latency.getPercentile(95);
+        r.maxLatencyMillis = latencyMax;
+        long wireBytes = link.getDeliveredBytes() + link.getDeliveredCount() * NetworkSimulator.IP_UDP_OVERHEAD;
+        r.throughputKbps = frames == 0 ? 0 : wireBytes * 8 / (frames * FRAME_NANOS / 1e6);
+        return r;
+    }
+
+    @Override
+    public void onPacket(ByteBuffer packet, long arrivalNanos) {
+        receiver.onPacket(packet, arrivalNanos);
+    }
+
+    // 5 ms buckets up to 1 s
+    private static long[] buildLatencyBounds() {
+        long[] bounds = new long[200];
+        for (int i = 0; i < bounds.length; i++) {
+            bounds[i] = (i + 1) * 5;
+        }
+        return bounds;
+    }
+}
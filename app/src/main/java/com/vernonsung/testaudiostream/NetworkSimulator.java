@@ -0,0 +1,244 @@
+package com.vernonsung.testaudiostream;
+
+import java.nio.ByteBuffer;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+// One direction of a simulated network link on a virtual clock.
+// A packet handed to send() first waits for the bottleneck (bandwidth cap with a drop-tail
+// queue), then may be lost by a Gilbert-Elliott channel, then takes the base latency plus random
+// jitter. Packets keep their order unless picked for reordering, in which case they're held back
+// long enough for later ones to overtake them. advanceTo() delivers everything due by then, in
+// delivery order and with the exact delivery time. Packets are copied into pooled slots, so the
+// link doesn't keep the caller's buffers.
+public class NetworkSimulator {
+    public interface Receiver {
+        // packet is only valid during the call
+        void onPacket(ByteBuffer packet, long arrivalNanos);
+    }
+
+    // IPv4 and UDP headers, counted against the bandwidth like a real link would
+    public static final int IP_UDP_OVERHEAD = 28;
+
+    private static class Slot implements Comparable<Slot> {
+        final byte[] data;
+        int length;
+        long deliveryNanos;
+        // Keeps packets due at the same time in sending order
+        long order;
+
+        Slot(int size) {
+            data = new byte[size];
+        }
+
+        @Override
+        public int compareTo(Slot other) {
+            if (deliveryNanos != other.deliveryNanos) {
+                return deliveryNanos < other.deliveryNanos ? -1 : 1;
+            }
+            return order < other.order ? -1 : (order == other.order ? 0 : 1);
+        }
+    }
+
+    private final Random random;
+    private final Receiver receiver;
+    private final int maxPacketSize;
+    private final PriorityQueue<Slot> inFlight;
+    private final Slot[] free;
+    private int freeCount;
+    private final ByteBuffer delivered;
+
+    private long latencyNanos;
+    private long jitterNanos;
+    // Gilbert-Elliott: state transition and loss probabilities
+    private double goodToBad;
+    private double badToGood = 1;
+    private double lossInGood;
+    private double lossInBad;
+    private boolean bad;
+    private double reorderProbability;
+    private long reorderDelayNanos;
+    // Bits per second, 0 for no cap
+    private long bandwidth;
+    private int queueLimitBytes = Integer.MAX_VALUE;
+
+    private long linkFreeNanos;
+    private long lastInOrderDelivery;
+    private long sequence;
+
+    private long sentCount;
+    private long lostCount;
+    private long queueDropCount;
+    private long deliveredCount;
+    private long reorderedCount;
+    private long deliveredBytes;
+
+    // capacity bounds the packets in flight at once; more are dropped as if the queue were full
+    public NetworkSimulator(Random random, Receiver receiver, int capacity, int maxPacketSize) {
+        this.random = random;
+        this.receiver = receiver;
+        this.maxPacketSize = maxPacketSize;
+        inFlight = new PriorityQueue<Slot>(capacity);
+        free = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            free[i] = new Slot(maxPacketSize);
+        }
+        freeCount = capacity;
+        delivered = ByteBuffer.allocate(maxPacketSize);
+    }
+
+    // One way delay every packet has, plus up to jitter more, uniformly distributed
+    public void setDelay(long latencyNanos, long jitterNanos) {
+        if (latencyNanos < 0 || jitterNanos < 0) {
+            throw new IllegalArgumentException("Delay can't be negative");
+        }
+        this.latencyNanos = latencyNanos;
+        this.jitterNanos = jitterNanos;
+    }
+
+    // Independent loss with the same probability for every packet
+    public void setRandomLoss(double loss) {
+        setBurstLoss(0, 1, loss, loss);
+    }
+
+    // Gilbert-Elliott channel. Bursts last 1 / badToGood packets on average.
+    public void setBurstLoss(double goodToBad, double badToGood, double lossInGood, double lossInBad) {
+        checkProbability(goodToBad);
+        checkProbability(badToGood);
+        checkProbability(lossInGood);
+        checkProbability(lossInBad);
+        this.goodToBad = goodToBad;
+        this.badToGood = badToGood;
+        this.lossInGood = lossInGood;
+        this.lossInBad = lossInBad;
+        bad = false;
+    }
+
+    // Hold back this fraction of packets by delayNanos more so later packets overtake them
+    public void setReordering(double probability, long delayNanos) {
+        checkProbability(probability);
+        this.reorderProbability = probability;
+        this.reorderDelayNanos = delayNanos;
+    }
+
+    // Cap the link at bitsPerSecond, 0 for none. Packets that would make the bottleneck queue
+    // exceed queueLimitBytes are dropped.
+    public void setBandwidth(long bitsPerSecond, int queueLimitBytes) {
+        if (bitsPerSecond < 0 || queueLimitBytes <= 0) {
+            throw new IllegalArgumentException("Bandwidth " + bitsPerSecond + " or queue " + queueLimitBytes + " is invalid");
+        }
+        this.bandwidth = bitsPerSecond;
+        this.queueLimitBytes = queueLimitBytes;
+    }
+
+    private static void checkProbability(double p) {
+        if (p < 0 || p > 1) {
+            throw new IllegalArgumentException("Probability " + p + " is out of range");
+        }
+    }
+
+    // Put a packet between position and limit on the link at nowNanos. The buffer isn't changed.
+    // Return false if it was dropped.
+    public boolean send(ByteBuffer packet, long nowNanos) {
+        sentCount++;
+        int length = packet.remaining();
+        if (length > maxPacketSize) {
+            throw new IllegalArgumentException("Packet of " + length + " bytes is larger than " + maxPacketSize);
+        }
+
+        // Bottleneck queue
+        long departure = nowNanos;
+        if (bandwidth > 0) {
+            long start = Math.max(nowNanos, linkFreeNanos);
+            long backlogBytes = (start - nowNanos) * bandwidth / 8000000000L;
+            if (backlogBytes + length + IP_UDP_OVERHEAD > queueLimitBytes) {
+                queueDropCount++;
+                return false;
+            }
+            departure = start + (length + IP_UDP_OVERHEAD) * 8000000000L / bandwidth;
+            linkFreeNanos = departure;
+        }
+
+        // Channel loss
+        bad = bad ? random.nextDouble() >= badToGood : random.nextDouble() < goodToBad;
+        if (random.nextDouble() < (bad ? lossInBad : lossInGood)) {
+            lostCount++;
+            return false;
+        }
+        if (freeCount == 0) {
+            queueDropCount++;
+            return false;
+        }
+
+        long delivery = departure + latencyNanos;
+        if (jitterNanos > 0) {
+            delivery += (long) (random.nextDouble() * jitterNanos);
+        }
+        if (reorderProbability > 0 && random.nextDouble() < reorderProbability) {
+            delivery += reorderDelayNanos;
+            reorderedCount++;
+        } else {
+            // Jitter alone doesn't reorder, as on a single path
+            delivery = Math.max(delivery, lastInOrderDelivery);
+            lastInOrderDelivery = delivery;
+        }
+
+        Slot slot = free[--freeCount];
+        int position = packet.position();
+        packet.get(slot.data, 0, length);
+        packet.position(position);
+        slot.length = length;
+        slot.deliveryNanos = delivery;
+        slot.order = sequence++;
+        inFlight.add(slot);
+        return true;
+    }
+
+    // Deliver every packet due by nowNanos
+    public void advanceTo(long nowNanos) {
+        while (!inFlight.isEmpty() && inFlight.peek().deliveryNanos <= nowNanos) {
+            Slot slot = inFlight.poll();
+            delivered.clear();
+            delivered.put(slot.data, 0, slot.length);
+            delivered.flip();
+            deliveredCount++;
+            deliveredBytes += slot.length;
+            free[freeCount++] = slot;
+            receiver.onPacket(delivered, slot.deliveryNanos);
+        }
+    }
+
+    // Delivery time of the next packet, or -1 if none is in flight
+    public long getNextDeliveryNanos() {
+        return inFlight.isEmpty() ? -1 : inFlight.peek().deliveryNanos;
+    }
+
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    public long getSentCount() {
+        return sentCount;
+    }
+
+    public long getLostCount() {
+        return lostCount;
+    }
+
+    public long getQueueDropCount() {
+        return queueDropCount;
+    }
+
+    public long getDeliveredCount() {
+        return deliveredCount;
+    }
+
+    public long getReorderedCount() {
+        return reorderedCount;
+    }
+
+    // Payload bytes delivered, without IP and UDP headers
+    public long getDeliveredBytes() {
+        return deliveredBytes;
+    }
+}
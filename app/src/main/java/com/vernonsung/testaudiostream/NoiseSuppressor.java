@@ -0,0 +1,155 @@
+package com.vernonsung.testaudiostream;
+
+// Spectral noise suppression: each half frame the last full frame is windowed, transformed, and
+// every frequency bin scaled by a Wiener gain from its estimated signal to noise ratio, then
+// transformed back and overlap-added. Square root Hann windows at half overlap add up to exactly
+// the input when every gain is 1. The output lags the input by half a frame.
+// The noise estimate of each bin follows quieter spectra quickly and louder ones by at most
+// 0.1 dB per half frame, so it settles on the background between words without growing much
+// during them. Gains use the decision-directed a priori SNR, which keeps residual noise from
+// sounding musical, and never go below the attenuation limit so speech isn't carved out.
+// Samples are floats in 16-bit PCM units. Nothing is allocated after construction.
+public class NoiseSuppressor {
+    private static final float DECISION_DIRECTED = 0.98f;
+    private static final float NOISE_RISE = 1.023f;
+    private static final float NOISE_FALL = 0.3f;
+    private static final float SPECTRUM_SMOOTHING = 0.5f;
+    // The estimate follows minima, which sit below the mean of a noisy spectrum
+    private static final float NOISE_BIAS = 1.5f;
+    // Half frames averaged for the first noise estimate
+    private static final int INITIAL_FRAMES = 10;
+    private static final float MIN_NOISE = 1e-3f;
+
+    private final int frameSamples;
+    private final int hop;
+    private final Fft fft;
+    private final int bins;
+    private final float minGain;
+    private final float[] window;
+    private final float[] input;
+    private final float[] overlap;
+    private final float[] re;
+    private final float[] im;
+    private final float[] noise;
+    private final float[] smoothed;
+    private final float[] gain;
+    private final float[] lastSnr;
+    private long halfFrames;
+
+    // Frames of frameSamples, an even number, with gains no lower than maxAttenuationDb below 1
+    public NoiseSuppressor(int frameSamples, double maxAttenuationDb) {
+        if (frameSamples < 4 || frameSamples % 2 != 0 || maxAttenuationDb < 0) {
+            throw new IllegalArgumentException("Frame of " + frameSamples + " samples or attenuation "
+                    + maxAttenuationDb + " dB is out of range");
+        }
+        this.frameSamples = frameSamples;
+        hop = frameSamples / 2;
+        fft = new Fft(Integer.highestOneBit(frameSamples - 1) << 1);
+        bins = fft.getSize() / 2 + 1;
+        minGain = (float) Math.pow(10, -maxAttenuationDb / 20);
+        window = new float[frameSamples];
+        for (int i = 0; i < frameSamples; i++) {
+            window[i] = (float) Math.sqrt(0.5 - 0.5 * Math.cos(2 * Math.PI * i / frameSamples));
+        }
+        input = new float[frameSamples];
+        overlap = new float[frameSamples];
+        re = new float[fft.getSize()];
+        im = new float[fft.getSize()];
+        noise = new float[bins];
+        smoothed = new float[bins];
+        gain = new float[bins];
+        lastSnr = new float[bins];
+        for (int k = 0; k < bins; k++) {
+            gain[k] = 1;
+        }
+    }
+
+    // At most 15 dB of suppression
+    public NoiseSuppressor(int frameSamples) {
+        this(frameSamples, 15);
+    }
+
+    // Suppress noise in samples, a whole number of half frames, in place
+    public void process(float[] pcm, int offset, int samples) {
+        if (samples % hop != 0) {
+            throw new IllegalArgumentException(samples + " samples aren't a whole number of half frames");
+        }
+        for (int h = offset; h < offset + samples; h += hop) {
+            processHalf(pcm, h);
+        }
+    }
+
+    private void processHalf(float[] pcm, int offset) {
+        System.arraycopy(input, hop, input, 0, hop);
+        System.arraycopy(pcm, offset, input, hop, hop);
+        int size = fft.getSize();
+        for (int i = 0; i < frameSamples; i++) {
+            re[i] = input[i] * window[i];
+            im[i] = 0;
+        }
+        for (int i = frameSamples; i < size; i++) {
+            re[i] = 0;
+            im[i] = 0;
+        }
+        fft.forward(re, im);
+
+        halfFrames++;
+        for (int k = 0; k < bins; k++) {
+            float power = re[k] * re[k] + im[k] * im[k];
+            float s = smoothed[k] += (power - smoothed[k]) * SPECTRUM_SMOOTHING;
+            if (halfFrames <= INITIAL_FRAMES) {
+                noise[k] += (power - noise[k]) / halfFrames;
+            } else if (s < noise[k] / NOISE_BIAS) {
+                noise[k] += (s * NOISE_BIAS - noise[k]) * NOISE_FALL;
+            } else {
+                noise[k] = Math.min(noise[k] * NOISE_RISE, s * NOISE_BIAS);
+            }
+            float snr = power / Math.max(noise[k], MIN_NOISE);
+            float prior = DECISION_DIRECTED * gain[k] * gain[k] * lastSnr[k]
+                    + (1 - DECISION_DIRECTED) * Math.max(snr - 1, 0);
+            float g = Math.max(minGain, prior / (1 + prior));
+            gain[k] = g;
+            lastSnr[k] = snr;
+            re[k] *= g;
+            im[k] *= g;
+            if (k > 0 && k < size / 2) {
+                re[size - k] *= g;
+                im[size - k] *= g;
+            }
+        }
+        fft.inverse(re, im);
+
+        for (int i = 0; i < frameSamples; i++) {
+            overlap[i] += re[i] * window[i];
+        }
+        System.arraycopy(overlap, 0, pcm, offset, hop);
+        System.arraycopy(overlap, hop, overlap, 0, hop);
+        for (int i = hop; i < frameSamples; i++) {
+            overlap[i] = 0;
+        }
+    }
+
+    // Forget the noise and the signal in flight
+    public void reset() {
+        for (int i = 0; i < frameSamples; i++) {
+            input[i] = 0;
+            overlap[i] = 0;
+        }
+        for (int k = 0; k < bins; k++) {
+            noise[k] = 0;
+            smoothed[k] = 0;
+            gain[k] = 1;
+            lastSnr[k] = 0;
+        }
+        halfFrames = 0;
+    }
+
+    // Samples the output lags behind the input
+    public int getLatency() {
+        return hop;
+    }
+
+    public int getFrameSamples() {
+        return frameSamples;
+    }
+}
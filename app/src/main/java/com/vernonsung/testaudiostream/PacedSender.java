@@ -0,0 +1,183 @@
+package com.vernonsung.testaudiostream;
+
+import java.nio.ByteBuffer;
+
+// Sends packets on to the transport no faster than a pacing rate, so bursts (a long frame's
+// worth of FEC, a retargeted stream catching up) don't land in the bottleneck queue all at once.
+// The rate is 2.5 times the bandwidth estimate, as in GCC, so a steady stream is never held up
+// and only bursts are spread out.
+// It sits between the call pipeline and the transport as their PacketSink. Packets are copied
+// into a FrameRing on the send lane and a pacer thread takes them out as the budget allows,
+// like RtpRelay's. The budget is a leaky bucket of at most 5 ms at the pacing rate. Packets that
+// waited longer than 250 ms go out anyway, since an audio frame that late is better sent than
+// queued further. Each one sent is noted with the bandwidth estimator, if any, with the time it
+// really left.
+public class PacedSender implements CallPipeline.PacketSink, Runnable {
+    public static final double PACING_FACTOR = 2.5;
+    public static final int DEFAULT_CAPACITY = 64;
+    private static final long BURST_NANOS = 5000000;
+    private static final long MAX_QUEUE_NANOS = 250000000;
+    private static final long POLL_NANOS = 1000000;
+    private static final long MIN_SLEEP_NANOS = 250000;
+
+    private final PipelineClock clock;
+    private final CallPipeline.PacketSink sink;
+    private final BandwidthEstimator estimator;
+    private final FrameRing ring;
+    private final ByteBuffer[] views;
+    private final int mask;
+    private long head;
+    private volatile int pacingBitrate;
+    // Bytes that may go out now, negative while paying off the last packet
+    private double budget;
+    private long lastTickNanos = -1;
+
+    private volatile boolean running;
+    private Thread thread;
+
+    private volatile long sentCount;
+    private volatile long droppedCount;
+    private volatile long queueNanos;
+
+    // Packets go on to sink. With an estimator the pacing rate follows its target, otherwise it's
+    // what setPacingBitrate() says, and until then packets aren't held back.
+    public PacedSender(PipelineClock clock, CallPipeline.PacketSink sink, BandwidthEstimator estimator, int capacity) {
+        this.clock = clock;
+        this.sink = sink;
+        this.estimator = estimator;
+        ring = new FrameRing(capacity, CallPipeline.MAX_PACKET_SIZE, 0);
+        mask = ring.getCapacity() - 1;
+        views = new ByteBuffer[ring.getCapacity()];
+        if (estimator != null) {
+            pacingBitrate = (int) (estimator.getTargetBitrate() * PACING_FACTOR);
+        }
+    }
+
+    // Any thread
+    public void setPacingBitrate(int bitsPerSecond) {
+        if (bitsPerSecond <= 0) {
+            throw new IllegalArgumentException("Pacing rate " + bitsPerSecond + " must be positive");
+        }
+        pacingBitrate = bitsPerSecond;
+    }
+
+    public int getPacingBitrate() {
+        return pacingBitrate;
+    }
+
+    // Queue the packet between position and limit. Call from one thread only, normally the send
+    // lane. It's dropped and counted if the queue is full.
+    @Override
+    public void send(ByteBuffer packet) {
+        int length = packet.remaining();
+        FrameRing.Slot slot = length <= CallPipeline.MAX_PACKET_SIZE ? ring.claim() : null;
+        if (slot == null) {
+            droppedCount++;
+            return;
+        }
+        int position = packet.position();
+        packet.get(slot.data, 0, length);
+        packet.position(position);
+        slot.length = length;
+        slot.timestamp = clock.nanoTime();
+        ring.publish();
+    }
+
+    // Pacer: send what the budget allows by nowNanos. Return when the next packet may go, or -1
+    // if none is waiting.
+    public long tick(long nowNanos) {
+        if (estimator != null) {
+            pacingBitrate = (int) (estimator.getTargetBitrate() * PACING_FACTOR);
+        }
+        double bytesPerNano = pacingBitrate / 8e9;
+        if (lastTickNanos >= 0) {
+            budget = Math.min(budget + (nowNanos - lastTickNanos) * bytesPerNano, BURST_NANOS * bytesPerNano);
+        }
+        lastTickNanos = nowNanos;
+        while (ring.available(1) > 0) {
+            FrameRing.Slot slot = ring.readSlot(0);
+            if (budget < 0 && bytesPerNano > 0 && nowNanos - slot.timestamp < MAX_QUEUE_NANOS) {
+                return nowNanos + (long) (-budget / bytesPerNano) + 1;
+            }
+            int index = (int) head & mask;
+            if (views[index] == null) {
+                views[index] = ByteBuffer.wrap(slot.data);
+            }
+            ByteBuffer view = views[index];
+            view.clear();
+            view.limit(slot.length);
+            byte[] data = slot.data;
+            if (estimator != null && slot.length >= RtpPacket.FIXED_HEADER_LENGTH) {
+                estimator.onPacketSent(((data[2] & 0xFF) << 8) | (data[3] & 0xFF), slot.length, nowNanos);
+            }
+            sink.send(view);
+            budget -= slot.length;
+            queueNanos += nowNanos - slot.timestamp;
+            sentCount++;
+            ring.release(1);
+            head++;
+        }
+        return -1;
+    }
+
+    // Pacer thread
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                long now = clock.nanoTime();
+                long due = tick(now);
+                long wake = now + POLL_NANOS;
+                if (due >= 0) {
+                    wake = Math.min(wake, Math.max(due, now + MIN_SLEEP_NANOS));
+                }
+                clock.sleepUntil(wake);
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        }
+    }
+
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this, "PacedSender");
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.start();
+    }
+
+    public void stop() {
+        Thread t;
+        synchronized (this) {
+            t = thread;
+            thread = null;
+            running = false;
+        }
+        if (t == null) {
+            return;
+        }
+        t.interrupt();
+        try {
+            t.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public long getSentCount() {
+        return sentCount;
+    }
+
+    // Packets dropped because the queue was full
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    // Mean time a packet waited to be sent
+    public long getMeanQueueNanos() {
+        long sent = sentCount;
+        return sent == 0 ? 0 : queueNanos / sent;
+    }
+}
@@ -0,0 +1,406 @@
+package com.vernonsung.testaudiostream;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Captures the UDP datagrams of a call, RTP and RTCP both ways, into a pcap file that Wireshark,
+// tcpdump and CaptureFile read. Opt-in: RtpTransport.setCapture() turns it on for everything
+// the transport sends and receives.
+// Capturing never blocks. Every thread that captures gets its own FrameRing, so it only copies
+// the datagram and its addresses into a slot. A background thread drains the rings about every
+// 10 ms, oldest packet first across rings, and writes the records. When a ring is full the
+// packet is dropped and counted. The ring of a thread that has ended goes to the next new
+// thread, as lanes, pacers and relay threads come and go with every start and stop.
+// The file is nanosecond pcap with raw IP link type. Every datagram gets a made-up IPv4 header,
+// or IPv6 if either address is, and a UDP header with a real checksum. Times are the monotonic
+// nanoseconds the caller gives, moved onto the wall clock.
+public class PacketCapture {
+    public static final int MAGIC_NANOS = 0xA1B23C4D;
+    public static final int MAGIC_MICROS = 0xA1B2C3D4;
+    public static final int LINKTYPE_RAW = 101;
+    public static final int SNAPLEN = 65535;
+    public static final int HEADER_LENGTH = 24;
+    public static final int RECORD_HEADER_LENGTH = 16;
+    public static final int IPV4_HEADER_LENGTH = 20;
+    public static final int IPV6_HEADER_LENGTH = 40;
+    public static final int UDP_HEADER_LENGTH = 8;
+    public static final int DEFAULT_CAPACITY = 256;
+    // Threads that may capture at the same time. Packets of any more are dropped.
+    public static final int MAX_TAPS = 16;
+    private static final int PROTOCOL_UDP = 17;
+    private static final int TTL = 64;
+    private static final long POLL_NANOS = 10000000;
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    // Slot layout: IPv6 flag, source address, destination address, source port, destination
+    // port, then the datagram. IPv4 addresses take the first 4 of their 16 bytes.
+    private static final int SOURCE = 1;
+    private static final int DESTINATION = 17;
+    private static final int SOURCE_PORT = 33;
+    private static final int DESTINATION_PORT = 35;
+    private static final int DATAGRAM = 37;
+    private static final byte[] IPV4_MAPPED_PREFIX = {0, 0, 0, 0, 0, 0, 0, 0, 0, 0, (byte) 0xFF, (byte) 0xFF};
+
+    // One capturing thread's ring, with its last addresses so their bytes aren't fetched again
+    private static class Tap {
+        final FrameRing ring;
+        // Once it has ended, the ring's producer side is free for another thread
+        volatile Thread owner;
+        // Set while the owner is between the closed check and publishing
+        volatile boolean busy;
+        InetSocketAddress source;
+        byte[] sourceBytes = new byte[4];
+        InetSocketAddress destination;
+        byte[] destinationBytes = new byte[4];
+
+        Tap(int capacity, Thread owner) {
+            this.owner = owner;
+            ring = new FrameRing(capacity, DATAGRAM + CallPipeline.MAX_PACKET_SIZE, 0);
+        }
+    }
+
+    private final File file;
+    private final FileOutputStream stream;
+    private final FileChannel channel;
+    private final int capacity;
+    private final long wallClockOffsetNanos;
+    private final ThreadLocal<Tap> localTap = new ThreadLocal<Tap>();
+    // Replaced as a whole, so the writer sees a consistent array
+    private volatile Tap[] taps = new Tap[0];
+    private volatile boolean closed;
+    private volatile IOException failure;
+    private final Thread thread;
+
+    // Writer thread
+    private final ByteBuffer out = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+    private final int[] pending = new int[MAX_TAPS];
+    private final int[] taken = new int[MAX_TAPS];
+    private int identification;
+
+    private final AtomicLong capturedCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private volatile long writtenCount;
+
+    // Create or overwrite file. Captured times are System.nanoTime().
+    public PacketCapture(File file) throws IOException {
+        this(file, DEFAULT_CAPACITY, System.currentTimeMillis() * 1000000L, System.nanoTime());
+    }
+
+    // Rings hold capacity packets each. The monotonic time monotonicNanos was wallClockNanos
+    // since the epoch.
+    public PacketCapture(File file, int capacity, long wallClockNanos, long monotonicNanos) throws IOException {
+        this.file = file;
+        this.capacity = capacity;
+        wallClockOffsetNanos = wallClockNanos - monotonicNanos;
+        stream = new FileOutputStream(file);
+        channel = stream.getChannel();
+        try {
+            out.putInt(MAGIC_NANOS);
+            out.putShort((short) 2).putShort((short) 4);
+            out.putInt(0).putInt(0);
+            out.putInt(SNAPLEN);
+            out.putInt(LINKTYPE_RAW);
+            flushOut();
+        } catch (IOException e) {
+            stream.close();
+            throw e;
+        }
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        }, "PacketCapture");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Capture the datagram between position and limit, sent from source to destination at
+    // nanos on the monotonic clock. The buffer isn't changed. Any thread. Return false if it was
+    // dropped.
+    public boolean capture(ByteBuffer datagram, InetSocketAddress source, InetSocketAddress destination, long nanos) {
+        Tap tap = localTap.get();
+        if (tap == null) {
+            tap = addTap();
+            if (tap == null) {
+                droppedCount.incrementAndGet();
+                return false;
+            }
+        }
+        // close() waits for a capture that got past the closed check, so its packet is written
+        tap.busy = true;
+        try {
+            return capture(tap, datagram, source, destination, nanos);
+        } finally {
+            tap.busy = false;
+        }
+    }
+
+    private boolean capture(Tap tap, ByteBuffer datagram, InetSocketAddress source, InetSocketAddress destination,
+                            long nanos) {
+        int length = datagram.remaining();
+        FrameRing.Slot slot = closed || length > CallPipeline.MAX_PACKET_SIZE ? null : tap.ring.claim();
+        if (slot == null) {
+            droppedCount.incrementAndGet();
+            return false;
+        }
+        byte[] data = slot.data;
+        if (source != tap.source && (source == null || !source.equals(tap.source))) {
+            tap.source = source;
+            tap.sourceBytes = addressBytes(source);
+        }
+        if (destination != tap.destination && (destination == null || !destination.equals(tap.destination))) {
+            tap.destination = destination;
+            tap.destinationBytes = addressBytes(destination);
+        }
+        boolean ipv6 = tap.sourceBytes.length == 16 || tap.destinationBytes.length == 16;
+        data[0] = (byte) (ipv6 ? 1 : 0);
+        putAddress(data, SOURCE, tap.sourceBytes, ipv6);
+        putAddress(data, DESTINATION, tap.destinationBytes, ipv6);
+        putPort(data, SOURCE_PORT, source);
+        putPort(data, DESTINATION_PORT, destination);
+        int position = datagram.position();
+        datagram.get(data, DATAGRAM, length);
+        datagram.position(position);
+        slot.length = length;
+        slot.timestamp = nanos;
+        tap.ring.publish();
+        capturedCount.incrementAndGet();
+        return true;
+    }
+
+    // Take over the tap of a thread that has ended, or add one. The ended thread's writes to the
+    // ring happen before this sees it dead, so the ring carries on with a single producer.
+    private synchronized Tap addTap() {
+        Tap[] current = taps;
+        if (closed) {
+            return null;
+        }
+        Thread thread = Thread.currentThread();
+        for (Tap tap : current) {
+            if (!tap.owner.isAlive()) {
+                tap.owner = thread;
+                localTap.set(tap);
+                return tap;
+            }
+        }
+        if (current.length == MAX_TAPS) {
+            return null;
+        }
+        Tap tap = new Tap(capacity, thread);
+        Tap[] grown = new Tap[current.length + 1];
+        System.arraycopy(current, 0, grown, 0, current.length);
+        grown[current.length] = tap;
+        taps = grown;
+        localTap.set(tap);
+        return tap;
+    }
+
+    // Unknown addresses are all zeros
+    private static byte[] addressBytes(InetSocketAddress address) {
+        if (address == null || address.getAddress() == null) {
+            return new byte[4];
+        }
+        return address.getAddress().getAddress();
+    }
+
+    private static void putAddress(byte[] data, int offset, byte[] address, boolean ipv6) {
+        if (ipv6 && address.length == 4) {
+            System.arraycopy(IPV4_MAPPED_PREFIX, 0, data, offset, IPV4_MAPPED_PREFIX.length);
+            System.arraycopy(address, 0, data, offset + IPV4_MAPPED_PREFIX.length, 4);
+        } else {
+            System.arraycopy(address, 0, data, offset, address.length);
+        }
+    }
+
+    private static void putPort(byte[] data, int offset, InetSocketAddress address) {
+        int port = address == null ? 0 : address.getPort();
+        data[offset] = (byte) (port >>> 8);
+        data[offset + 1] = (byte) port;
+    }
+
+    // Background thread: write out what was captured until closed
+    private void writeLoop() {
+        try {
+            while (!closed) {
+                if (drain() == 0) {
+                    LockSupport.parkNanos(POLL_NANOS);
+                }
+            }
+            // No tap is added once closed. Let the captures already past the check publish.
+            for (Tap tap : taps) {
+                while (tap.busy) {
+                    Thread.yield();
+                }
+            }
+            drain();
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    // Write every packet waiting in the rings, oldest first. Return how many.
+    private int drain() throws IOException {
+        Tap[] current = taps;
+        int total = 0;
+        for (int i = 0; i < current.length; i++) {
+            pending[i] = current[i].ring.available(capacity);
+            taken[i] = 0;
+            total += pending[i];
+        }
+        for (int n = 0; n < total; n++) {
+            int oldest = -1;
+            long oldestNanos = 0;
+            for (int i = 0; i < current.length; i++) {
+                if (taken[i] < pending[i]) {
+                    long nanos = current[i].ring.readSlot(taken[i]).timestamp;
+                    if (oldest < 0 || nanos < oldestNanos) {
+                        oldest = i;
+                        oldestNanos = nanos;
+                    }
+                }
+            }
+            write(current[oldest].ring.readSlot(taken[oldest]));
+            taken[oldest]++;
+        }
+        flushOut();
+        for (int i = 0; i < current.length; i++) {
+            current[i].ring.release(pending[i]);
+        }
+        writtenCount += total;
+        return total;
+    }
+
+    private void write(FrameRing.Slot slot) throws IOException {
+        byte[] data = slot.data;
+        boolean ipv6 = data[0] != 0;
+        int udpLength = UDP_HEADER_LENGTH + slot.length;
+        int ipLength = (ipv6 ? IPV6_HEADER_LENGTH : IPV4_HEADER_LENGTH) + udpLength;
+        if (out.remaining() < RECORD_HEADER_LENGTH + ipLength) {
+            flushOut();
+        }
+        long wallClock = slot.timestamp + wallClockOffsetNanos;
+        out.putInt((int) (wallClock / 1000000000L));
+        out.putInt((int) (wallClock % 1000000000L));
+        out.putInt(ipLength);
+        out.putInt(ipLength);
+        int addressLength = ipv6 ? 16 : 4;
+        if (ipv6) {
+            out.putInt(0x60000000);
+            out.putShort((short) udpLength);
+            out.put((byte) PROTOCOL_UDP);
+            out.put((byte) TTL);
+            out.put(data, SOURCE, 16);
+            out.put(data, DESTINATION, 16);
+        } else {
+            int start = out.position();
+            out.put((byte) 0x45);
+            out.put((byte) 0);
+            out.putShort((short) ipLength);
+            out.putShort((short) identification++);
+            // Don't fragment
+            out.putShort((short) 0x4000);
+            out.put((byte) TTL);
+            out.put((byte) PROTOCOL_UDP);
+            out.putShort((short) 0);
+            out.put(data, SOURCE, 4);
+            out.put(data, DESTINATION, 4);
+            out.putShort(start + 10, (short) ~sum(out, start, IPV4_HEADER_LENGTH, 0));
+        }
+        int udp = out.position();
+        out.put(data, SOURCE_PORT, 4);
+        out.putShort((short) udpLength);
+        out.putShort((short) 0);
+        out.put(data, DATAGRAM, slot.length);
+        // Pseudo header: addresses, protocol and UDP length, then the UDP header and data
+        long pseudo = sumBytes(data, SOURCE, addressLength) + sumBytes(data, DESTINATION, addressLength)
+                + PROTOCOL_UDP + udpLength;
+        int checksum = ~sum(out, udp, udpLength, pseudo) & 0xFFFF;
+        // All zeros means no checksum, so a real zero goes as all ones
+        out.putShort(udp + 6, (short) (checksum == 0 ? 0xFFFF : checksum));
+    }
+
+    // Ones' complement sum of length bytes of buffer at offset, plus initial, folded to 16 bits
+    private static int sum(ByteBuffer buffer, int offset, int length, long initial) {
+        long sum = initial;
+        int end = offset + length;
+        for (int i = offset; i + 1 < end; i += 2) {
+            sum += buffer.getShort(i) & 0xFFFF;
+        }
+        if ((length & 1) != 0) {
+            sum += (buffer.get(end - 1) & 0xFF) << 8;
+        }
+        return fold(sum);
+    }
+
+    private static long sumBytes(byte[] data, int offset, int length) {
+        long sum = 0;
+        for (int i = offset; i < offset + length; i += 2) {
+            sum += ((data[i] & 0xFF) << 8) | (data[i + 1] & 0xFF);
+        }
+        return sum;
+    }
+
+    private static int fold(long sum) {
+        while ((sum >>> 16) != 0) {
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+        }
+        return (int) sum;
+    }
+
+    private void flushOut() throws IOException {
+        out.flip();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        out.clear();
+    }
+
+    // Stop capturing, write out what's left and close the file
+    public void close() throws IOException {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        stream.close();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    // Error writing the file, after which nothing more is written
+    public IOException getFailure() {
+        return failure;
+    }
+
+    public long getCapturedCount() {
+        return capturedCount.get();
+    }
+
+    // Packets dropped because a ring was full, too many threads captured at once or it came
+    // after close()
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public long getWrittenCount() {
+        return writtenCount;
+    }
+}
@@ -0,0 +1,115 @@
+package com.vernonsung.testaudiostream;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// 16-bit PCM recordings for replaying through the audio path off the device, e.g. in tests and
+// benchmarks. A WAV file is read by its header; anything else is taken as raw little-endian mono
+// at the rate given. Only the first channel of a multi-channel file is kept. write() saves mono
+// 16-bit WAV.
+public class PcmFile {
+    public final int sampleRate;
+    public final short[] samples;
+
+    public PcmFile(int sampleRate, short[] samples) {
+        this.sampleRate = sampleRate;
+        this.samples = samples;
+    }
+
+    // rawSampleRate is the rate of a file without a WAV header
+    public static PcmFile read(File file, int rawSampleRate) throws IOException {
+        InputStream in = new FileInputStream(file);
+        try {
+            return read(in, rawSampleRate);
+        } finally {
+            in.close();
+        }
+    }
+
+    public static PcmFile read(InputStream in, int rawSampleRate) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] chunk = new byte[8192];
+        int n;
+        while ((n = in.read(chunk)) > 0) {
+            out.write(chunk, 0, n);
+        }
+        ByteBuffer data = ByteBuffer.wrap(out.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+        if (data.remaining() < 12 || data.getInt(0) != 0x46464952 || data.getInt(8) != 0x45564157) {
+            // Not "RIFF....WAVE"
+            return new PcmFile(rawSampleRate, toSamples(data, 1));
+        }
+        int sampleRate = 0;
+        int channels = 0;
+        data.position(12);
+        while (data.remaining() >= 8) {
+            int id = data.getInt();
+            int size = data.getInt();
+            if (size < 0 || size > data.remaining()) {
+                size = data.remaining();
+            }
+            if (id == 0x20746D66) {
+                // "fmt "
+                int format = data.getShort(data.position()) & 0xFFFF;
+                channels = data.getShort(data.position() + 2);
+                sampleRate = data.getInt(data.position() + 4);
+                int bits = data.getShort(data.position() + 14);
+                if (format != 1 || bits != 16 || channels < 1) {
+                    throw new IOException("Only 16-bit PCM is supported, not format " + format + " of " + bits
+                            + " bits");
+                }
+            } else if (id == 0x61746164) {
+                // "data"
+                if (sampleRate == 0) {
+                    throw new IOException("Data before format");
+                }
+                ByteBuffer pcm = data.slice().order(ByteOrder.LITTLE_ENDIAN);
+                pcm.limit(size);
+                return new PcmFile(sampleRate, toSamples(pcm, channels));
+            }
+            // Chunks are padded to even sizes
+            data.position(Math.min(data.limit(), data.position() + size + (size & 1)));
+        }
+        throw new IOException("No data chunk");
+    }
+
+    public void write(File file) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            write(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    public void write(OutputStream out) throws IOException {
+        ByteBuffer wav = ByteBuffer.allocate(44 + samples.length * 2).order(ByteOrder.LITTLE_ENDIAN);
+        // "RIFF", "WAVE", "fmt " of PCM, mono, 16 bits, then "data"
+        wav.putInt(0x46464952).putInt(36 + samples.length * 2).putInt(0x45564157);
+        wav.putInt(0x20746D66).putInt(16).putShort((short) 1).putShort((short) 1).putInt(sampleRate)
+                .putInt(sampleRate * 2).putShort((short) 2).putShort((short) 16);
+        wav.putInt(0x61746164).putInt(samples.length * 2);
+        for (short s : samples) {
+            wav.putShort(s);
+        }
+        out.write(wav.array());
+    }
+
+    private static short[] toSamples(ByteBuffer pcm, int channels) {
+        short[] samples = new short[pcm.remaining() / 2 / channels];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = pcm.getShort(pcm.position() + i * 2 * channels);
+        }
+        return samples;
+    }
+
+    public double getDurationSeconds() {
+        return (double) samples.length / sampleRate;
+    }
+}
@@ -0,0 +1,41 @@
+package com.vernonsung.testaudiostream;
+
+import java.util.concurrent.locks.LockSupport;
+
+// Monotonic time source of the audio pipeline. SYSTEM reads System.nanoTime() and really waits;
+// tests use a VirtualClock so timing is exact and nothing waits on the wall clock.
+public interface PipelineClock {
+    long nanoTime();
+
+    // Return once nanoTime() has reached deadlineNanos, at once if it already has
+    void sleepUntil(long deadlineNanos) throws InterruptedException;
+
+    PipelineClock SYSTEM = new PipelineClock() {
+        // Park until this close to the deadline, then yield the rest. Parking alone can oversleep
+        // by a scheduler tick.
+        private static final long SPIN_NANOS = 200000;
+
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public void sleepUntil(long deadlineNanos) throws InterruptedException {
+            while (true) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                long remaining = deadlineNanos - System.nanoTime();
+                if (remaining <= 0) {
+                    return;
+                }
+                if (remaining > SPIN_NANOS) {
+                    LockSupport.parkNanos(remaining - SPIN_NANOS);
+                } else {
+                    Thread.yield();
+                }
+            }
+        }
+    };
+}
@@ -0,0 +1,330 @@
+package com.vernonsung.testaudiostream;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Runs a chain of stages once per frame period on one dedicated thread.
+// Frame n starts at anchor + n * period on the pipeline clock, so waking up a little late never
+// pushes later frames back and the frame clock doesn't drift from the monotonic clock. A thread
+// that fell behind runs the missed frames back to back to catch up; one that fell hopelessly
+// behind, e.g. after the device stalled, drops them and starts a new grid from now.
+// The period can be stretched by a few ppm to follow the audio device's own clock.
+// Every stage has a time budget. It misses its deadline when it runs longer than that or
+// finishes after its frame period is over. Run times and misses are kept per stage and can be
+// read from any thread.
+// A stage that throws ends the thread: the lane's state is unknown after it. isRunning() turns
+// false and getFailure() keeps the exception.
+public class PipelineScheduler implements Runnable {
+    public interface Stage {
+        // Do the work of one frame. frameIndex counts periods since the start, skipping only
+        // frames that were dropped to resynchronize.
+        void process(long frameIndex);
+    }
+
+    public interface ThreadSetup {
+        // Called first on the scheduler thread, e.g. to raise its priority
+        void onThreadStart(Thread thread);
+    }
+
+    // What one stage did so far
+    public static class StageStats {
+        public String name;
+        public long budgetNanos;
+        public long runs;
+        public long misses;
+        public long meanNanos;
+        public long maxNanos;
+        public long p99Micros;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%s: %d runs, %d misses, mean %.3f ms, max %.3f ms, p99 %d us (budget %.3f ms)",
+                    name, runs, misses, meanNanos / 1e6, maxNanos / 1e6, p99Micros, budgetNanos / 1e6);
+        }
+    }
+
+    public static final int MAX_STAGES = 16;
+    // Frames behind at which the backlog is dropped instead of caught up
+    public static final int MAX_CATCH_UP_FRAMES = 5;
+    // Largest rate correction accepted
+    public static final double MAX_CORRECTION_PPM = 10000;
+
+    // Stage counters, one group of fields per stage
+    private static final int RUNS = 0;
+    private static final int MISSES = 1;
+    private static final int TOTAL_NANOS = 2;
+    private static final int MAX_NANOS = 3;
+    private static final int FIELDS = 4;
+    // Microseconds
+    private static final long[] RUN_TIME_BOUNDS = {
+            10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 20000, 50000, 100000
+    };
+
+    private final String name;
+    private final PipelineClock clock;
+    private final long periodNanos;
+    private final String[] stageNames = new String[MAX_STAGES];
+    private final Stage[] stages = new Stage[MAX_STAGES];
+    private final long[] budgets = new long[MAX_STAGES];
+    private final Histogram[] runTimes = new Histogram[MAX_STAGES];
+    private final AtomicLongArray counters = new AtomicLongArray(MAX_STAGES * FIELDS);
+    private int stageCount;
+    private ThreadSetup threadSetup;
+
+    // Frame grid, only touched by the scheduler thread
+    private boolean anchored;
+    private long anchorNanos;
+    private long anchorFrame;
+    private double correctedPeriod;
+    private double correctionPpm;
+    private volatile double requestedPpm;
+    private volatile long frameIndex;
+
+    private volatile long tickCount;
+    private volatile long lateCount;
+    private volatile long overrunCount;
+    private volatile long droppedFrameCount;
+
+    private Thread thread;
+    private volatile boolean running;
+    private volatile RuntimeException failure;
+
+    public PipelineScheduler(String name, PipelineClock clock, long periodNanos) {
+        if (periodNanos <= 0) {
+            throw new IllegalArgumentException("Period " + periodNanos + " is invalid");
+        }
+        this.name = name;
+        this.clock = clock;
+        this.periodNanos = periodNanos;
+        correctedPeriod = periodNanos;
+    }
+
+    // Append a stage. Stages run in the order they were added. Only before start().
+    public int addStage(String stageName, long budgetNanos, Stage stage) {
+        if (running) {
+            throw new IllegalStateException("Stages can't be added while running");
+        }
+        if (stageCount == MAX_STAGES) {
+            throw new IllegalStateException("More than " + MAX_STAGES + " stages");
+        }
+        if (budgetNanos <= 0 || budgetNanos > periodNanos) {
+            throw new IllegalArgumentException("Budget " + budgetNanos + " of " + stageName + " is invalid");
+        }
+        stageNames[stageCount] = stageName;
+        stages[stageCount] = stage;
+        budgets[stageCount] = budgetNanos;
+        runTimes[stageCount] = new Histogram(RUN_TIME_BOUNDS);
+        return stageCount++;
+    }
+
+    public void setThreadSetup(ThreadSetup threadSetup) {
+        this.threadSetup = threadSetup;
+    }
+
+    // Stretch the period by ppm, negative to shorten it. Takes effect from the next frame without
+    // moving the frames already scheduled.
+    public void setRateCorrectionPpm(double ppm) {
+        requestedPpm = Math.max(-MAX_CORRECTION_PPM, Math.min(MAX_CORRECTION_PPM, ppm));
+    }
+
+    public double getRateCorrectionPpm() {
+        return requestedPpm;
+    }
+
+    // Start the scheduler thread
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this, name);
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.start();
+    }
+
+    // Stop the scheduler thread and wait for the stage in progress to finish
+    public void stop() {
+        Thread t;
+        synchronized (this) {
+            t = thread;
+            thread = null;
+            running = false;
+        }
+        if (t == null) {
+            return;
+        }
+        t.interrupt();
+        if (t == Thread.currentThread()) {
+            return;
+        }
+        boolean interrupted = false;
+        while (t.isAlive()) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    // What a stage threw to end the thread, null if nothing did
+    public RuntimeException getFailure() {
+        return failure;
+    }
+
+    @Override
+    public void run() {
+        if (threadSetup != null) {
+            threadSetup.onThreadStart(Thread.currentThread());
+        }
+        try {
+            while (running) {
+                tick();
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        } catch (RuntimeException e) {
+            failure = e;
+        } finally {
+            running = false;
+        }
+    }
+
+    // Wait for the next frame and run every stage once. The scheduler thread calls this in a
+    // loop; tests call it directly with a VirtualClock.
+    public void tick() throws InterruptedException {
+        if (!anchored) {
+            anchored = true;
+            anchorNanos = clock.nanoTime();
+            anchorFrame = frameIndex;
+        }
+        if (requestedPpm != correctionPpm) {
+            // Keep this frame where it was and space the following ones differently
+            anchorNanos = frameStart(frameIndex);
+            anchorFrame = frameIndex;
+            correctionPpm = requestedPpm;
+            correctedPeriod = periodNanos * (1 + correctionPpm / 1e6);
+        }
+
+        long start = frameStart(frameIndex);
+        clock.sleepUntil(start);
+        long now = clock.nanoTime();
+        long late = now - start;
+        if (late >= MAX_CATCH_UP_FRAMES * correctedPeriod) {
+            long behind = (long) (late / correctedPeriod);
+            droppedFrameCount += behind;
+            frameIndex += behind;
+            anchorNanos = now;
+            anchorFrame = frameIndex;
+            start = now;
+        } else if (late > correctedPeriod / 4) {
+            lateCount++;
+        }
+
+        long frameEnd = start + (long) correctedPeriod;
+        long stageStart = now;
+        for (int i = 0; i < stageCount; i++) {
+            stages[i].process(frameIndex);
+            long end = clock.nanoTime();
+            record(i, end - stageStart, end - stageStart > budgets[i] || end > frameEnd);
+            stageStart = end;
+        }
+        if (stageStart > frameEnd) {
+            overrunCount++;
+        }
+        frameIndex++;
+        tickCount++;
+    }
+
+    private long frameStart(long frame) {
+        return anchorNanos + Math.round((frame - anchorFrame) * correctedPeriod);
+    }
+
+    private void record(int stage, long nanos, boolean missed) {
+        int base = stage * FIELDS;
+        // Only the scheduler thread writes, so ordered stores are enough
+        counters.lazySet(base + RUNS, counters.get(base + RUNS) + 1);
+        counters.lazySet(base + TOTAL_NANOS, counters.get(base + TOTAL_NANOS) + nanos);
+        if (nanos > counters.get(base + MAX_NANOS)) {
+            counters.lazySet(base + MAX_NANOS, nanos);
+        }
+        if (missed) {
+            counters.lazySet(base + MISSES, counters.get(base + MISSES) + 1);
+        }
+        runTimes[stage].record(nanos / 1000);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getPeriodNanos() {
+        return periodNanos;
+    }
+
+    public int getStageCount() {
+        return stageCount;
+    }
+
+    // Index of the next frame to run
+    public long getFrameIndex() {
+        return frameIndex;
+    }
+
+    // When the next frame starts on the pipeline clock, or -1 before the first tick(). For
+    // whoever calls tick() directly, to interleave other work with the frames.
+    public long getNextFrameNanos() {
+        return anchored ? frameStart(frameIndex) : -1;
+    }
+
+    public long getTickCount() {
+        return tickCount;
+    }
+
+    // Frames that started more than a quarter period late but were still caught up
+    public long getLateCount() {
+        return lateCount;
+    }
+
+    // Frames whose stages together didn't finish within the period
+    public long getOverrunCount() {
+        return overrunCount;
+    }
+
+    // Frames skipped to resynchronize after falling too far behind
+    public long getDroppedFrameCount() {
+        return droppedFrameCount;
+    }
+
+    public long getMissCount(int stage) {
+        return counters.get(stage * FIELDS + MISSES);
+    }
+
+    // Run times of one stage in microseconds
+    public Histogram getRunTimeHistogram(int stage) {
+        return runTimes[stage];
+    }
+
+    public StageStats getStats(int stage) {
+        if (stage < 0 || stage >= stageCount) {
+            throw new IllegalArgumentException("No stage " + stage);
+        }
+        int base = stage * FIELDS;
+        StageStats s = new StageStats();
+        s.name = stageNames[stage];
+        s.budgetNanos = budgets[stage];
+        s.runs = counters.get(base + RUNS);
+        s.misses = counters.get(base + MISSES);
+        s.meanNanos = s.runs == 0 ? 0 : counters.get(base + TOTAL_NANOS) / s.runs;
+        s.maxNanos = counters.get(base + MAX_NANOS);
+        s.p99Micros = runTimes[stage].getPercentile(99);
+        return s;
+    }
+}
@@ -0,0 +1,60 @@
+package com.vernonsung.testaudiostream;
+
+// Split a redundant audio payload (RFC 2198) into its blocks.
+// Redundant blocks are assumed to be the packets sent right before this one, as RedEncoder
+// writes them, so each gets the sequence number distance from the packet carrying it.
+public class RedDecoder {
+    // Blocks in one payload beyond this are treated as garbage
+    public static final int MAX_BLOCKS = 16;
+
+    public interface Listener {
+        // distance is how many packets before the carrying one the block was first sent, 0 for
+        // the primary block. data is only valid during the call.
+        void onBlock(int payloadType, int distance, long timestamp, byte[] data, int offset, int length);
+    }
+
+    private final int[] payloadTypes = new int[MAX_BLOCKS];
+    private final int[] timestampOffsets = new int[MAX_BLOCKS];
+    private final int[] lengths = new int[MAX_BLOCKS];
+
+    // Parse the payload of a packet with the given RTP timestamp. Return false if it's malformed,
+    // in which case the listener hasn't been called.
+    public boolean parse(byte[] payload, int offset, int length, long timestamp, Listener listener) {
+        int end = offset + length;
+        int p = offset;
+        int blocks = 0;
+        int dataLength = 0;
+        // Headers up to and including the primary one
+        while (true) {
+            if (p >= end || blocks == MAX_BLOCKS) {
+                return false;
+            }
+            int b0 = payload[p] & 0xFF;
+            payloadTypes[blocks] = b0 & 0x7F;
+            if ((b0 & 0x80) == 0) {
+                p += RedEncoder.PRIMARY_HEADER_LENGTH;
+                break;
+            }
+            if (p + RedEncoder.BLOCK_HEADER_LENGTH > end) {
+                return false;
+            }
+            int header = ((payload[p + 1] & 0xFF) << 16) | ((payload[p + 2] & 0xFF) << 8) | (payload[p + 3] & 0xFF);
+            timestampOffsets[blocks] = header >>> 10;
+            lengths[blocks] = header & RedEncoder.MAX_BLOCK_LENGTH;
+            dataLength += lengths[blocks];
+            blocks++;
+            p += RedEncoder.BLOCK_HEADER_LENGTH;
+        }
+        if (p + dataLength > end) {
+            return false;
+        }
+        for (int i = 0; i < blocks; i++) {
+            listener.onBlock(payloadTypes[i], blocks - i, (timestamp - timestampOffsets[i]) & 0xFFFFFFFFL,
+                    payload, p, lengths[i]);
+            p += lengths[i];
+        }
+        // The primary block takes the rest
+        listener.onBlock(payloadTypes[blocks], 0, timestamp & 0xFFFFFFFFL, payload, p, end - p);
+        return true;
+    }
+}
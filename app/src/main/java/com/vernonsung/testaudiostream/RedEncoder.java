@@ -0,0 +1,116 @@
+package com.vernonsung.testaudiostream;
+
+// Redundant audio payloads (RFC 2198).
+// Every payload carries the current frame plus copies of up to depth frames sent right before
+// it, oldest first. A frame lost on the way is rebuilt from any of the next depth packets.
+// The previous frames are kept in preallocated slots, so encoding doesn't allocate.
+public class RedEncoder {
+    public static final int MAX_DEPTH = 3;
+    // Header of a redundant block: F bit and payload type, 14-bit timestamp offset, 10-bit length
+    public static final int BLOCK_HEADER_LENGTH = 4;
+    public static final int PRIMARY_HEADER_LENGTH = 1;
+    public static final int MAX_TIMESTAMP_OFFSET = 0x3FFF;
+    public static final int MAX_BLOCK_LENGTH = 0x3FF;
+
+    private final int blockPayloadType;
+    private final int maxFrameSize;
+    private final byte[][] frames = new byte[MAX_DEPTH][];
+    private final int[] lengths = new int[MAX_DEPTH];
+    private final long[] timestamps = new long[MAX_DEPTH];
+    // Slot of the newest previous frame and how many slots are in use
+    private int newest = -1;
+    private int count;
+    private int depth;
+
+    // blockPayloadType is what the frames themselves are, e.g. 0 for PCMU
+    public RedEncoder(int blockPayloadType, int maxFrameSize) {
+        if (blockPayloadType < 0 || blockPayloadType > 127) {
+            throw new IllegalArgumentException("Payload type " + blockPayloadType + " is out of range");
+        }
+        if (maxFrameSize <= 0 || maxFrameSize > MAX_BLOCK_LENGTH) {
+            throw new IllegalArgumentException("Frame size " + maxFrameSize + " doesn't fit a RED block");
+        }
+        this.blockPayloadType = blockPayloadType;
+        this.maxFrameSize = maxFrameSize;
+        for (int i = 0; i < MAX_DEPTH; i++) {
+            frames[i] = new byte[maxFrameSize];
+        }
+    }
+
+    // How many previous frames to repeat, 0 to send the primary frame alone
+    public void setDepth(int depth) {
+        if (depth < 0 || depth > MAX_DEPTH) {
+            throw new IllegalArgumentException("Redundancy depth " + depth + " is out of range");
+        }
+        this.depth = depth;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    // Room a payload needs in the worst case
+    public int getMaxPayloadLength() {
+        return PRIMARY_HEADER_LENGTH + maxFrameSize + MAX_DEPTH * (BLOCK_HEADER_LENGTH + maxFrameSize);
+    }
+
+    // Write the RED payload for one frame to out and return its length. The frame is remembered
+    // as redundancy for the following payloads.
+    public int encode(byte[] frame, int offset, int length, long timestamp, byte[] out, int outOffset) {
+        if (length > maxFrameSize) {
+            throw new IllegalArgumentException("Frame of " + length + " bytes is larger than " + maxFrameSize);
+        }
+        // The newest previous frames that still fit the timestamp offset field
+        int blocks = 0;
+        while (blocks < Math.min(depth, count)) {
+            int slot = slotBack(blocks);
+            long offsetTs = (timestamp - timestamps[slot]) & 0xFFFFFFFFL;
+            if (offsetTs > MAX_TIMESTAMP_OFFSET || lengths[slot] == 0) {
+                break;
+            }
+            blocks++;
+        }
+
+        // Headers, oldest block first, then the primary header with F cleared
+        int p = outOffset;
+        for (int b = blocks - 1; b >= 0; b--) {
+            int slot = slotBack(b);
+            int offsetTs = (int) ((timestamp - timestamps[slot]) & 0xFFFFFFFFL);
+            int header = (offsetTs << 10) | lengths[slot];
+            out[p++] = (byte) (0x80 | blockPayloadType);
+            out[p++] = (byte) (header >>> 16);
+            out[p++] = (byte) (header >>> 8);
+            out[p++] = (byte) header;
+        }
+        out[p++] = (byte) blockPayloadType;
+        for (int b = blocks - 1; b >= 0; b--) {
+            int slot = slotBack(b);
+            System.arraycopy(frames[slot], 0, out, p, lengths[slot]);
+            p += lengths[slot];
+        }
+        System.arraycopy(frame, offset, out, p, length);
+        p += length;
+
+        remember(frame, offset, length, timestamp);
+        return p - outOffset;
+    }
+
+    // Forget the previous frames, e.g. after a pause in sending
+    public void reset() {
+        newest = -1;
+        count = 0;
+    }
+
+    // Slot of the frame sent back + 1 payloads ago
+    private int slotBack(int back) {
+        return (newest - back + MAX_DEPTH) % MAX_DEPTH;
+    }
+
+    private void remember(byte[] frame, int offset, int length, long timestamp) {
+        newest = (newest + 1) % MAX_DEPTH;
+        System.arraycopy(frame, offset, frames[newest], 0, length);
+        lengths[newest] = length;
+        timestamps[newest] = timestamp & 0xFFFFFFFFL;
+        count = Math.min(count + 1, MAX_DEPTH);
+    }
+}
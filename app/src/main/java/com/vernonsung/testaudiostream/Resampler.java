@@ -0,0 +1,232 @@
+package com.vernonsung.testaudiostream;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Sample rate converter between any two of 8, 16, 32, 44.1 and 48 kHz, for 16-bit mono PCM in
+// a stream of frames of any size.
+// It's a polyphase FIR: every output sample is the dot product of the input around its position
+// with one phase of a Kaiser-windowed sinc low-pass, cut off a little below the Nyquist frequency
+// of the lower rate. The input is split into at least MIN_PHASES positions per sample; with the
+// rates reduced to out / in = L / M that's a multiple of L, so every output falls exactly on a
+// phase and costs one dot product. The table of all phases is computed once per pair of rates
+// and shared by every resampler of that pair.
+// setDriftPpm() makes the input count as slightly faster or slower than its nominal rate, to
+// follow a clock that drifts against ours. Outputs then fall between phases and are interpolated
+// linearly between the two neighbours, which costs a second dot product.
+// The output lags the input by half the filter, getDelaySamples() input samples, and a stream
+// without drift gives exactly in * L / M outputs for in inputs, so 20 ms frames stay 20 ms frames.
+// Nothing is allocated after construction.
+public class Resampler {
+    public static final int[] RATES = {8000, 16000, 32000, 44100, 48000};
+    // Positions per input sample the filter is tabulated at, at least
+    public static final int MIN_PHASES = 128;
+    public static final double MAX_DRIFT_PPM = 10000;
+    // Zero crossings of the sinc on each side of the centre
+    private static final int ZERO_CROSSINGS = 24;
+    // Cut-off as a fraction of the lower Nyquist frequency
+    private static final double CUTOFF = 0.9;
+    // About 90 dB of stop band attenuation
+    private static final double KAISER_BETA = 9;
+    private static final int FRACTION_BITS = 16;
+    private static final int FRACTION_MASK = (1 << FRACTION_BITS) - 1;
+    private static final float FRACTION_SCALE = 1f / (1 << FRACTION_BITS);
+    // Input samples taken in at a time
+    private static final int BLOCK = 1024;
+
+    // Phase tables by pair of rates
+    private static final Map<Long, float[]> tables = new HashMap<Long, float[]>();
+
+    private final int inRate;
+    private final int outRate;
+    private final int phases;
+    private final int taps;
+    // phases + 1 rows of taps; the last is the first moved on by one input sample
+    private final float[] coefficients;
+    // Input positions per output in units of 1 / phases, in fixed point
+    private final long nominalStep;
+    private long step;
+    private double driftPpm;
+
+    // Input not used up yet, the first at the start of the next output's window
+    private final float[] history;
+    private int count;
+    // Position of the next output after the start of its window, in fixed point phases
+    private long phase;
+
+    public Resampler(int inRate, int outRate) {
+        if (!isSupported(inRate) || !isSupported(outRate)) {
+            throw new IllegalArgumentException("Can't convert " + inRate + " Hz to " + outRate + " Hz");
+        }
+        this.inRate = inRate;
+        this.outRate = outRate;
+        int gcd = gcd(inRate, outRate);
+        int up = outRate / gcd;
+        int down = inRate / gcd;
+        phases = up * ((MIN_PHASES + up - 1) / up);
+        double cutoff = 0.5 * CUTOFF * Math.min(1, (double) up / down);
+        taps = 2 * (int) Math.ceil(ZERO_CROSSINGS / (2 * cutoff));
+        coefficients = table(inRate, outRate, phases, taps, cutoff);
+        nominalStep = (long) down * (phases / up) << FRACTION_BITS;
+        step = nominalStep;
+        history = new float[taps - 1 + BLOCK];
+        reset();
+    }
+
+    public static boolean isSupported(int rate) {
+        for (int r : RATES) {
+            if (r == rate) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+    private static synchronized float[] table(int inRate, int outRate, int phases, int taps, double cutoff) {
+        Long key = (long) inRate << 32 | outRate;
+        float[] table = tables.get(key);
+        if (table == null) {
+            table = design(phases, taps, cutoff);
+            tables.put(key, table);
+        }
+        return table;
+    }
+
+    // Row p, tap j weighs the input j samples into the window for an output taps / 2 - 1 + p /
+    // phases samples into it. Every row is scaled to a gain of exactly 1 at DC.
+    private static float[] design(int phases, int taps, double cutoff) {
+        float[] table = new float[(phases + 1) * taps];
+        double halfWidth = taps / 2;
+        double i0Beta = besselI0(KAISER_BETA);
+        for (int p = 0; p <= phases; p++) {
+            double sum = 0;
+            for (int j = 0; j < taps; j++) {
+                double t = halfWidth - 1 + (double) p / phases - j;
+                double x = 2 * cutoff * t;
+                double sinc = x == 0 ? 1 : Math.sin(Math.PI * x) / (Math.PI * x);
+                double r = t / halfWidth;
+                double window = r * r >= 1 ? 0 : besselI0(KAISER_BETA * Math.sqrt(1 - r * r)) / i0Beta;
+                table[p * taps + j] = (float) (sinc * window);
+                sum += sinc * window;
+            }
+            for (int j = 0; j < taps; j++) {
+                table[p * taps + j] /= sum;
+            }
+        }
+        return table;
+    }
+
+    // Modified Bessel function of the first kind, order 0, by its power series
+    private static double besselI0(double x) {
+        double sum = 1;
+        double term = 1;
+        for (int k = 1; term > sum * 1e-12; k++) {
+            double half = x / (2 * k);
+            term *= half * half;
+            sum += term;
+        }
+        return sum;
+    }
+
+    // Forget the input so far, as at construction. The drift stays.
+    public void reset() {
+        for (int i = 0; i < history.length; i++) {
+            history[i] = 0;
+        }
+        // Silence before the first sample, so it's in the window of the first output
+        count = taps - 1;
+        phase = 0;
+    }
+
+    // Count the input as ppm faster than its nominal rate, or slower if negative, from the next
+    // output on
+    public void setDriftPpm(double ppm) {
+        if (Math.abs(ppm) > MAX_DRIFT_PPM) {
+            throw new IllegalArgumentException("Drift " + ppm + " ppm is out of range");
+        }
+        driftPpm = ppm;
+        step = Math.round(nominalStep * (1 + ppm / 1e6));
+    }
+
+    public double getDriftPpm() {
+        return driftPpm;
+    }
+
+    // Outputs that inputs samples give at most, at the current drift
+    public int getMaxOutput(int inputs) {
+        return (int) (((long) inputs << FRACTION_BITS) * phases / step) + 1;
+    }
+
+    // Convert length samples of in at offset and append the result to out at outOffset, which
+    // needs room for getMaxOutput(length). Return how many samples were written.
+    public int process(short[] in, int offset, int length, short[] out, int outOffset) {
+        int written = 0;
+        int wholePhase = phases << FRACTION_BITS;
+        while (length > 0) {
+            int n = Math.min(length, history.length - count);
+            for (int i = 0; i < n; i++) {
+                history[count + i] = in[offset + i];
+            }
+            count += n;
+            offset += n;
+            length -= n;
+
+            int start = 0;
+            while (start + taps <= count) {
+                int row = (int) (phase >>> FRACTION_BITS);
+                int fraction = (int) phase & FRACTION_MASK;
+                float y = dot(row, start);
+                if (fraction != 0) {
+                    y += (dot(row + 1, start) - y) * (fraction * FRACTION_SCALE);
+                }
+                int sample = (int) (y + (y >= 0 ? 0.5f : -0.5f));
+                out[outOffset + written++] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+                phase += step;
+                start += (int) (phase / wholePhase);
+                phase %= wholePhase;
+            }
+            // Keep what the next outputs still need
+            count -= start;
+            System.arraycopy(history, start, history, 0, count);
+        }
+        return written;
+    }
+
+    private float dot(int row, int start) {
+        float[] c = coefficients;
+        float[] h = history;
+        int base = row * taps;
+        float sum = 0;
+        for (int j = 0; j < taps; j++) {
+            sum += c[base + j] * h[start + j];
+        }
+        return sum;
+    }
+
+    public int getInRate() {
+        return inRate;
+    }
+
+    public int getOutRate() {
+        return outRate;
+    }
+
+    // Length of the filter in input samples, which is the work per output
+    public int getTaps() {
+        return taps;
+    }
+
+    // How far the output lags the input, in input samples
+    public int getDelaySamples() {
+        return taps / 2;
+    }
+}
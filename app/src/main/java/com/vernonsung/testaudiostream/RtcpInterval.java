@@ -0,0 +1,71 @@
+package com.vernonsung.testaudiostream;
+
+import java.util.Random;
+
+// RTCP transmission interval of RFC 3550 section 6.3 and appendix A.7.
+// Reports share 5% of the session bandwidth, a quarter of it for senders when they are few.
+// The interval scales with the number of members and the average compound packet size, never
+// goes below the minimum, and is randomized so members don't synchronize.
+public class RtcpInterval {
+    // Seconds
+    public static final double MIN_INTERVAL = 5.0;
+    public static final double RTCP_BANDWIDTH_FRACTION = 0.05;
+    private static final double SENDER_BANDWIDTH_FRACTION = 0.25;
+    private static final double RECEIVER_BANDWIDTH_FRACTION = 1 - SENDER_BANDWIDTH_FRACTION;
+    // e - 3/2, compensating for the timer reconsideration converging below the average
+    private static final double COMPENSATION = Math.E - 1.5;
+    // IPv4 and UDP headers are counted in the average packet size
+    public static final int UDP_IP_OVERHEAD = 28;
+
+    private final Random random;
+    private double averagePacketSize;
+    private boolean initial = true;
+
+    public RtcpInterval() {
+        this(new Random());
+    }
+
+    // A seeded Random makes the randomization repeatable in tests
+    public RtcpInterval(Random random) {
+        this.random = random;
+        // A first guess of an SR plus SDES
+        averagePacketSize = 100;
+    }
+
+    // Update the average with a compound packet sent or received, excluding UDP/IP headers
+    public void onPacket(int size) {
+        averagePacketSize += ((size + UDP_IP_OVERHEAD) - averagePacketSize) / 16;
+    }
+
+    public double getAveragePacketSize() {
+        return averagePacketSize;
+    }
+
+    // Deterministic interval in seconds before randomization, as rtcp_interval() computes it
+    public double computeBase(int members, int senders, double sessionBandwidth, boolean weSent) {
+        double rtcpBandwidth = sessionBandwidth * RTCP_BANDWIDTH_FRACTION;
+        double minTime = initial ? MIN_INTERVAL / 2 : MIN_INTERVAL;
+        double n = members;
+        if (senders <= members * SENDER_BANDWIDTH_FRACTION) {
+            if (weSent) {
+                rtcpBandwidth *= SENDER_BANDWIDTH_FRACTION;
+                n = senders;
+            } else {
+                rtcpBandwidth *= RECEIVER_BANDWIDTH_FRACTION;
+                n -= senders;
+            }
+        }
+        double t = rtcpBandwidth <= 0 ? minTime : averagePacketSize * n / rtcpBandwidth;
+        return Math.max(t, minTime);
+    }
+
+    // Interval in seconds until the next report. sessionBandwidth is in octets per second.
+    // The first call uses half the minimum interval so a new member reports quickly.
+    public double next(int members, int senders, double sessionBandwidth, boolean weSent) {
+        double t = computeBase(members, senders, sessionBandwidth, weSent);
+        initial = false;
+        // Spread between 0.5 and 1.5 times the base
+        t *= random.nextDouble() + 0.5;
+        return t / COMPENSATION;
+    }
+}
@@ -0,0 +1,335 @@
+package com.vernonsung.testaudiostream;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+// Compose and parse RTCP packets (RFC 3550 section 6): sender report, receiver report, SDES
+// and BYE, plus transport-wide feedback (see TransportFeedback). Writers append one packet at
+// buffer.position() so a compound packet is built by calling them in turn. parse() walks a
+// compound packet and reports what it finds to a Listener, reusing one ReportBlock and one
+// TransportFeedback instance so the common paths don't allocate. SDES items are handed over as
+// their octets in the buffer, which every compound packet carries; only a BYE reason becomes a
+// String.
+public class RtcpPacket {
+    public static final int TYPE_SR = 200;
+    public static final int TYPE_RR = 201;
+    public static final int TYPE_SDES = 202;
+    public static final int TYPE_BYE = 203;
+    public static final int TYPE_APP = 204;
+    // Transport layer feedback (RFC 4585)
+    public static final int TYPE_RTPFB = 205;
+
+    public static final int SDES_END = 0;
+    public static final int SDES_CNAME = 1;
+
+    public static final int HEADER_LENGTH = 4;
+    public static final int SR_LENGTH = 28;
+    public static final int RR_LENGTH = 8;
+    public static final int REPORT_BLOCK_LENGTH = 24;
+    public static final int MAX_REPORT_BLOCKS = 31;
+
+    // Seconds from 1900, the NTP epoch, to 1970, the Java epoch
+    private static final long NTP_EPOCH_OFFSET = 2208988800L;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // One reception report about a source (RFC 3550 section 6.4.1)
+    public static class ReportBlock {
+        public long ssrc;
+        // Fraction lost since the last report, in 1/256 units
+        public int fractionLost;
+        // 24-bit signed cumulative number of packets lost
+        public int cumulativeLost;
+        public long extendedHighestSequence;
+        // Interarrival jitter in timestamp units
+        public long jitter;
+        // Middle 32 bits of the NTP timestamp of the last SR received, 0 if none
+        public long lastSr;
+        // Delay since that SR in 1/65536 seconds
+        public long delaySinceLastSr;
+
+        public void clear() {
+            ssrc = 0;
+            fractionLost = 0;
+            cumulativeLost = 0;
+            extendedHighestSequence = 0;
+            jitter = 0;
+            lastSr = 0;
+            delaySinceLastSr = 0;
+        }
+    }
+
+    public interface Listener {
+        void onSenderReport(long ssrc, long ntpTimestamp, long rtpTimestamp, long packetCount, long octetCount);
+
+        void onReceiverReport(long ssrc);
+
+        // reporterSsrc sent the report. block is reused for the next one.
+        void onReportBlock(long reporterSsrc, ReportBlock block);
+
+        // The item's value is the length octets at offset in buffer, only valid during the call.
+        // readString() decodes it for a listener that wants it.
+        void onSdesItem(long ssrc, int type, ByteBuffer buffer, int offset, int length);
+
+        // reason is null if not given
+        void onBye(long ssrc, String reason);
+
+        // senderSsrc reported the arrivals in feedback, which is reused for the next one
+        void onTransportFeedback(long senderSsrc, TransportFeedback feedback);
+    }
+
+    private final ReportBlock block = new ReportBlock();
+    private final TransportFeedback feedback = new TransportFeedback();
+
+    // Convert wall clock milliseconds to a 64-bit NTP timestamp
+    public static long toNtp(long millis) {
+        long seconds = millis / 1000 + NTP_EPOCH_OFFSET;
+        long fraction = ((millis % 1000) << 32) / 1000;
+        return (seconds << 32) | fraction;
+    }
+
+    // Middle 32 bits of an NTP timestamp, as LSR and RTT computation use
+    public static long compactNtp(long ntp) {
+        return (ntp >>> 16) & 0xFFFFFFFFL;
+    }
+
+    public static void writeSenderReport(ByteBuffer buffer, long ssrc, long ntpTimestamp, long rtpTimestamp,
+                                         long packetCount, long octetCount, ReportBlock[] blocks, int blockCount) {
+        checkBlockCount(blockCount);
+        writeHeader(buffer, blockCount, TYPE_SR, SR_LENGTH + blockCount * REPORT_BLOCK_LENGTH);
+        buffer.putInt((int) ssrc);
+        buffer.putLong(ntpTimestamp);
+        buffer.putInt((int) rtpTimestamp);
+        buffer.putInt((int) packetCount);
+        buffer.putInt((int) octetCount);
+        writeReportBlocks(buffer, blocks, blockCount);
+    }
+
+    public static void writeReceiverReport(ByteBuffer buffer, long ssrc, ReportBlock[] blocks, int blockCount) {
+        checkBlockCount(blockCount);
+        writeHeader(buffer, blockCount, TYPE_RR, RR_LENGTH + blockCount * REPORT_BLOCK_LENGTH);
+        buffer.putInt((int) ssrc);
+        writeReportBlocks(buffer, blocks, blockCount);
+    }
+
+    // SDES with a single chunk carrying the CNAME
+    public static void writeSdes(ByteBuffer buffer, long ssrc, byte[] cname) {
+        if (cname.length > 255) {
+            throw new IllegalArgumentException("CNAME is longer than 255 octets");
+        }
+        // SSRC, item type and length, text, then at least one null octet up to a word boundary
+        int chunk = 4 + 2 + cname.length;
+        int padded = (chunk + 4) & ~3;
+        writeHeader(buffer, 1, TYPE_SDES, HEADER_LENGTH + padded);
+        buffer.putInt((int) ssrc);
+        buffer.put((byte) SDES_CNAME);
+        buffer.put((byte) cname.length);
+        buffer.put(cname);
+        for (int i = chunk; i < padded; i++) {
+            buffer.put((byte) SDES_END);
+        }
+    }
+
+    public static void writeBye(ByteBuffer buffer, long ssrc, String reason) {
+        byte[] text = reason == null ? null : reason.getBytes(UTF_8);
+        int length = HEADER_LENGTH + 4;
+        if (text != null) {
+            if (text.length > 255) {
+                throw new IllegalArgumentException("BYE reason is longer than 255 octets");
+            }
+            length += (1 + text.length + 3) & ~3;
+        }
+        writeHeader(buffer, 1, TYPE_BYE, length);
+        buffer.putInt((int) ssrc);
+        if (text != null) {
+            buffer.put((byte) text.length);
+            buffer.put(text);
+            for (int i = 1 + text.length; (i & 3) != 0; i++) {
+                buffer.put((byte) 0);
+            }
+        }
+    }
+
+    private static void checkBlockCount(int blockCount) {
+        if (blockCount < 0 || blockCount > MAX_REPORT_BLOCKS) {
+            throw new IllegalArgumentException(blockCount + " report blocks don't fit one packet");
+        }
+    }
+
+    // length is the whole packet in octets, a multiple of 4
+    static void writeHeader(ByteBuffer buffer, int count, int type, int length) {
+        buffer.put((byte) ((RtpPacket.VERSION << 6) | count));
+        buffer.put((byte) type);
+        buffer.putShort((short) (length / 4 - 1));
+    }
+
+    private static void writeReportBlocks(ByteBuffer buffer, ReportBlock[] blocks, int blockCount) {
+        for (int i = 0; i < blockCount; i++) {
+            ReportBlock block = blocks[i];
+            buffer.putInt((int) block.ssrc);
+            buffer.putInt((block.fractionLost << 24) | (block.cumulativeLost & 0xFFFFFF));
+            buffer.putInt((int) block.extendedHighestSequence);
+            buffer.putInt((int) block.jitter);
+            buffer.putInt((int) block.lastSr);
+            buffer.putInt((int) block.delaySinceLastSr);
+        }
+    }
+
+    // Parse a compound packet between buffer.position() and buffer.limit() without moving the
+    // position. Return false if it isn't valid RTCP, in which case the listener may already have
+    // seen the packets before the broken one.
+    public boolean parse(ByteBuffer buffer, Listener listener) {
+        int offset = buffer.position();
+        int end = buffer.limit();
+        if (end - offset < HEADER_LENGTH) {
+            return false;
+        }
+        // The first packet of a compound is always a report, except that feedback may be sent
+        // on its own (RFC 5506)
+        int firstType = buffer.get(offset + 1) & 0xFF;
+        if (firstType != TYPE_SR && firstType != TYPE_RR && firstType != TYPE_RTPFB) {
+            return false;
+        }
+        while (offset < end) {
+            if (end - offset < HEADER_LENGTH) {
+                return false;
+            }
+            int b0 = buffer.get(offset) & 0xFF;
+            if (b0 >>> 6 != RtpPacket.VERSION) {
+                return false;
+            }
+            int count = b0 & 0x1F;
+            int type = buffer.get(offset + 1) & 0xFF;
+            int length = ((buffer.getShort(offset + 2) & 0xFFFF) + 1) * 4;
+            if (offset + length > end) {
+                return false;
+            }
+            boolean valid;
+            switch (type) {
+                case TYPE_SR:
+                    valid = parseReport(buffer, offset, length, count, true, listener);
+                    break;
+                case TYPE_RR:
+                    valid = parseReport(buffer, offset, length, count, false, listener);
+                    break;
+                case TYPE_SDES:
+                    valid = parseSdes(buffer, offset, length, count, listener);
+                    break;
+                case TYPE_BYE:
+                    valid = parseBye(buffer, offset, length, count, listener);
+                    break;
+                case TYPE_RTPFB:
+                    // Only transport-wide feedback. Other feedback, and reports on more packets
+                    // than we ever send between two, are skipped.
+                    if (count == TransportFeedback.FMT && feedback.parse(buffer, offset, length)) {
+                        listener.onTransportFeedback(buffer.getInt(offset + 4) & 0xFFFFFFFFL, feedback);
+                    }
+                    valid = true;
+                    break;
+                default:
+                    // APP and unknown types are skipped
+                    valid = true;
+                    break;
+            }
+            if (!valid) {
+                return false;
+            }
+            offset += length;
+        }
+        return true;
+    }
+
+    private boolean parseReport(ByteBuffer buffer, int offset, int length, int count, boolean sender,
+                                Listener listener) {
+        int fixed = sender ? SR_LENGTH : RR_LENGTH;
+        if (length < fixed + count * REPORT_BLOCK_LENGTH) {
+            return false;
+        }
+        long ssrc = buffer.getInt(offset + 4) & 0xFFFFFFFFL;
+        if (sender) {
+            listener.onSenderReport(ssrc, buffer.getLong(offset + 8), buffer.getInt(offset + 16) & 0xFFFFFFFFL,
+                    buffer.getInt(offset + 20) & 0xFFFFFFFFL, buffer.getInt(offset + 24) & 0xFFFFFFFFL);
+        } else {
+            listener.onReceiverReport(ssrc);
+        }
+        int p = offset + fixed;
+        for (int i = 0; i < count; i++) {
+            block.ssrc = buffer.getInt(p) & 0xFFFFFFFFL;
+            int loss = buffer.getInt(p + 4);
+            block.fractionLost = loss >>> 24;
+            // Sign extend the 24-bit count
+            block.cumulativeLost = (loss << 8) >> 8;
+            block.extendedHighestSequence = buffer.getInt(p + 8) & 0xFFFFFFFFL;
+            block.jitter = buffer.getInt(p + 12) & 0xFFFFFFFFL;
+            block.lastSr = buffer.getInt(p + 16) & 0xFFFFFFFFL;
+            block.delaySinceLastSr = buffer.getInt(p + 20) & 0xFFFFFFFFL;
+            listener.onReportBlock(ssrc, block);
+            p += REPORT_BLOCK_LENGTH;
+        }
+        return true;
+    }
+
+    private boolean parseSdes(ByteBuffer buffer, int offset, int length, int count, Listener listener) {
+        int p = offset + HEADER_LENGTH;
+        int end = offset + length;
+        for (int i = 0; i < count; i++) {
+            if (p + 4 > end) {
+                return false;
+            }
+            long ssrc = buffer.getInt(p) & 0xFFFFFFFFL;
+            p += 4;
+            while (true) {
+                if (p >= end) {
+                    return false;
+                }
+                int type = buffer.get(p) & 0xFF;
+                if (type == SDES_END) {
+                    // Null octets up to the next word boundary end the chunk. Offsets are aligned
+                    // relative to the packet start, which is itself aligned.
+                    p = offset + ((p - offset + 4) & ~3);
+                    break;
+                }
+                if (p + 2 > end) {
+                    return false;
+                }
+                int itemLength = buffer.get(p + 1) & 0xFF;
+                if (p + 2 + itemLength > end) {
+                    return false;
+                }
+                listener.onSdesItem(ssrc, type, buffer, p + 2, itemLength);
+                p += 2 + itemLength;
+            }
+        }
+        return true;
+    }
+
+    private boolean parseBye(ByteBuffer buffer, int offset, int length, int count, Listener listener) {
+        int p = offset + HEADER_LENGTH;
+        int end = offset + length;
+        if (p + count * 4 > end) {
+            return false;
+        }
+        String reason = null;
+        int reasonOffset = p + count * 4;
+        if (reasonOffset < end) {
+            int reasonLength = buffer.get(reasonOffset) & 0xFF;
+            if (reasonOffset + 1 + reasonLength > end) {
+                return false;
+            }
+            reason = readString(buffer, reasonOffset + 1, reasonLength);
+        }
+        for (int i = 0; i < count; i++) {
+            listener.onBye(buffer.getInt(p) & 0xFFFFFFFFL, reason);
+            p += 4;
+        }
+        return true;
+    }
+
+    // Decode length octets of UTF-8 text at offset in buffer
+    public static String readString(ByteBuffer buffer, int offset, int length) {
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(offset + i);
+        }
+        return new String(bytes, UTF_8);
+    }
+}
@@ -0,0 +1,293 @@
+package com.vernonsung.testaudiostream;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+// RTCP state of one RTP stream with a single remote source.
+// It counts what we send, builds SR or RR plus SDES compound packets when the bandwidth-scaled
+// interval expires, and processes the remote side's reports. A report block about our SSRC
+// carrying LSR/DLSR gives the round-trip time, which goes to the stream metrics. Its fraction lost
+// goes to a FecController, if one is set, to pick the redundancy we send.
+// As the receiver of a congestion controlled stream it also records every RTP packet that arrives
+// and writes transport-wide feedback about them every FEEDBACK_INTERVAL_NANOS, which the sender's
+// session hands to its BandwidthEstimator.
+// Times come in as parameters: monotonic nanoseconds for intervals and delays, and an NTP
+// wall clock timestamp for what goes on the wire, so tests can drive it with fixed values.
+public class RtcpSession implements RtcpPacket.Listener {
+    public interface Listener {
+        // The remote source said goodbye
+        void onBye(long ssrc, String reason);
+    }
+
+    public static final long FEEDBACK_INTERVAL_NANOS = 50000000;
+
+    private final long ssrc;
+    private final byte[] cname;
+    private final RtcpPacket parser = new RtcpPacket();
+    private final RtcpInterval interval;
+    private final RtcpPacket.ReportBlock[] blocks = {new RtcpPacket.ReportBlock()};
+    private RtpReceiver receiver;
+    private StreamMetrics metrics;
+    private Listener listener;
+    private BandwidthEstimator estimator;
+    private FecController fecController;
+    private final TransportFeedback feedback = new TransportFeedback();
+    private long nextFeedbackNanos = -1;
+    private long feedbackSent;
+
+    // Session bandwidth in octets per second, e.g. 8 kB/s for a 64 kbps stream
+    private double sessionBandwidth;
+    private int members = 2;
+
+    private long packetsSent;
+    private long octetsSent;
+    private long lastRtpTimestamp;
+    private long packetsSentAtLastReport;
+    private boolean remoteSent;
+
+    // Last SR from the remote source
+    private long lastSrCompact;
+    private long lastSrArrivalNanos;
+
+    private long nextReportNanos = -1;
+    private long rttMicros = -1;
+    private long reportsSent;
+    private long reportsReceived;
+
+    // Per-packet arrival state set by onRtcpPacket() for the listener callbacks
+    private long arrivalNtp;
+    private long arrivalNanos;
+
+    public RtcpSession(long ssrc, String cname, double sessionBandwidth) {
+        this(ssrc, cname, sessionBandwidth, new RtcpInterval());
+    }
+
+    public RtcpSession(long ssrc, String cname, double sessionBandwidth, RtcpInterval interval) {
+        this.ssrc = ssrc & 0xFFFFFFFFL;
+        this.cname = cname.getBytes(Charset.forName("UTF-8"));
+        this.sessionBandwidth = sessionBandwidth;
+        this.interval = interval;
+    }
+
+    // Receive statistics for report blocks come from here. Without it only SRs are sent.
+    public void setReceiver(RtpReceiver receiver) {
+        this.receiver = receiver;
+    }
+
+    public void setMetrics(StreamMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    // Transport-wide feedback about our stream and the round-trip time go here
+    public void setBandwidthEstimator(BandwidthEstimator estimator) {
+        this.estimator = estimator;
+    }
+
+    // The fraction lost the remote side reports about our stream goes here
+    public void setFecController(FecController fecController) {
+        this.fecController = fecController;
+    }
+
+    public void setSessionBandwidth(double sessionBandwidth) {
+        this.sessionBandwidth = sessionBandwidth;
+    }
+
+    public void setMembers(int members) {
+        this.members = Math.max(2, members);
+    }
+
+    // Count an RTP packet we sent
+    public void onRtpSent(int payloadLength, long rtpTimestamp) {
+        packetsSent++;
+        octetsSent += payloadLength;
+        lastRtpTimestamp = rtpTimestamp;
+    }
+
+    // Record an RTP packet of the remote source for transport-wide feedback. Return false if it
+    // can't be reported: already reported as missing, or the feedback is full and buildFeedback()
+    // is overdue.
+    public boolean onRtpReceived(long ssrc, int sequenceNumber, long arrivalNanos) {
+        if (nextFeedbackNanos < 0) {
+            nextFeedbackNanos = arrivalNanos + FEEDBACK_INTERVAL_NANOS;
+        }
+        return feedback.record(ssrc & 0xFFFFFFFFL, sequenceNumber, arrivalNanos);
+    }
+
+    public boolean isFeedbackDue(long nowNanos) {
+        return feedback.hasPackets() && nowNanos - nextFeedbackNanos >= 0;
+    }
+
+    // Write transport-wide feedback about the packets recorded since the last one, if any, and
+    // schedule the next. Return its length, 0 if there was nothing to report.
+    public int buildFeedback(ByteBuffer buffer, long nowNanos) {
+        nextFeedbackNanos = nowNanos + FEEDBACK_INTERVAL_NANOS;
+        if (!feedback.hasPackets()) {
+            return 0;
+        }
+        int start = buffer.position();
+        feedback.write(buffer, ssrc);
+        int length = buffer.position() - start;
+        interval.onPacket(length);
+        feedbackSent++;
+        return length;
+    }
+
+    public boolean isReportDue(long nowNanos) {
+        return nextReportNanos < 0 || nowNanos - nextReportNanos >= 0;
+    }
+
+    public long getNextReportNanos() {
+        return nextReportNanos;
+    }
+
+    // Write an SR, or an RR if we haven't sent since the last report, followed by SDES CNAME.
+    // Schedule the next report and return the compound length.
+    public int buildReport(ByteBuffer buffer, long nowNanos, long ntpNow) {
+        int start = buffer.position();
+        boolean weSent = packetsSent != packetsSentAtLastReport;
+        int blockCount = fillReportBlock(nowNanos);
+        if (weSent) {
+            RtcpPacket.writeSenderReport(buffer, ssrc, ntpNow, lastRtpTimestamp, packetsSent, octetsSent,
+                    blocks, blockCount);
+        } else {
+            RtcpPacket.writeReceiverReport(buffer, ssrc, blocks, blockCount);
+        }
+        RtcpPacket.writeSdes(buffer, ssrc, cname);
+        int length = buffer.position() - start;
+        interval.onPacket(length);
+
+        int senders = (weSent ? 1 : 0) + (remoteSent ? 1 : 0);
+        double seconds = interval.next(members, senders, sessionBandwidth, weSent);
+        nextReportNanos = nowNanos + (long) (seconds * 1e9);
+        packetsSentAtLastReport = packetsSent;
+        remoteSent = false;
+        reportsSent++;
+        return length;
+    }
+
+    // Write an RR and BYE to leave the session. Return the compound length.
+    public int buildBye(ByteBuffer buffer, String reason) {
+        int start = buffer.position();
+        RtcpPacket.writeReceiverReport(buffer, ssrc, blocks, 0);
+        RtcpPacket.writeBye(buffer, ssrc, reason);
+        return buffer.position() - start;
+    }
+
+    private int fillReportBlock(long nowNanos) {
+        if (receiver == null) {
+            return 0;
+        }
+        RtpSequenceTracker tracker = receiver.getSequenceTracker();
+        if (!tracker.isValid()) {
+            return 0;
+        }
+        RtcpPacket.ReportBlock block = blocks[0];
+        block.ssrc = tracker.getSsrc();
+        block.fractionLost = tracker.takeFractionLost();
+        // Clamp to the 24-bit signed field
+        block.cumulativeLost = (int) Math.max(-0x800000, Math.min(0x7FFFFF, tracker.getCumulativeLost()));
+        block.extendedHighestSequence = tracker.getExtendedHighestSequence() & 0xFFFFFFFFL;
+        block.jitter = receiver.getJitterBuffer().getJitter();
+        if (lastSrCompact != 0) {
+            block.lastSr = lastSrCompact;
+            block.delaySinceLastSr = (nowNanos - lastSrArrivalNanos) * 65536 / 1000000000L;
+        } else {
+            block.lastSr = 0;
+            block.delaySinceLastSr = 0;
+        }
+        return 1;
+    }
+
+    // Handle an RTCP compound from the remote side. Return false if it isn't valid.
+    public boolean onRtcpPacket(ByteBuffer buffer, long arrivalNanos, long arrivalNtp) {
+        this.arrivalNtp = arrivalNtp;
+        this.arrivalNanos = arrivalNanos;
+        if (!parser.parse(buffer, this)) {
+            return false;
+        }
+        interval.onPacket(buffer.remaining());
+        reportsReceived++;
+        return true;
+    }
+
+    @Override
+    public void onSenderReport(long ssrc, long ntpTimestamp, long rtpTimestamp, long packetCount, long octetCount) {
+        lastSrCompact = RtcpPacket.compactNtp(ntpTimestamp);
+        lastSrArrivalNanos = arrivalNanos;
+        remoteSent = true;
+    }
+
+    @Override
+    public void onReceiverReport(long ssrc) {
+    }
+
+    @Override
+    public void onReportBlock(long reporterSsrc, RtcpPacket.ReportBlock block) {
+        if (block.ssrc != ssrc) {
+            return;
+        }
+        if (fecController != null) {
+            fecController.onReport(block.fractionLost);
+        }
+        if (block.lastSr == 0) {
+            return;
+        }
+        // RTT = A - LSR - DLSR in 1/65536 seconds (RFC 3550 section 6.4.1)
+        long a = RtcpPacket.compactNtp(arrivalNtp);
+        long rtt = (a - block.lastSr - block.delaySinceLastSr) & 0xFFFFFFFFL;
+        if (rtt > 0x7FFFFFFFL) {
+            // Negative, the clocks went backwards
+            return;
+        }
+        rttMicros = rtt * 1000000 / 65536;
+        if (metrics != null) {
+            metrics.onRtt(rttMicros);
+        }
+        if (estimator != null) {
+            estimator.onRtt(rttMicros);
+        }
+    }
+
+    @Override
+    public void onSdesItem(long ssrc, int type, ByteBuffer buffer, int offset, int length) {
+    }
+
+    @Override
+    public void onBye(long ssrc, String reason) {
+        if (listener != null) {
+            listener.onBye(ssrc, reason);
+        }
+    }
+
+    @Override
+    public void onTransportFeedback(long senderSsrc, TransportFeedback feedback) {
+        if (estimator != null && feedback.getMediaSsrc() == ssrc) {
+            estimator.onTransportFeedback(feedback, arrivalNanos);
+        }
+    }
+
+    public long getSsrc() {
+        return ssrc;
+    }
+
+    // Latest round-trip time in microseconds, -1 until measured
+    public long getRttMicros() {
+        return rttMicros;
+    }
+
+    public long getReportsSent() {
+        return reportsSent;
+    }
+
+    public long getReportsReceived() {
+        return reportsReceived;
+    }
+
+    public long getFeedbackSent() {
+        return feedbackSent;
+    }
+}
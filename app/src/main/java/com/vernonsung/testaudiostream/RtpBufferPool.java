@@ -0,0 +1,78 @@
+package com.vernonsung.testaudiostream;
+
+import java.nio.ByteBuffer;
+
+// A fixed set of packet buffers allocated once up front.
+// acquire() and release() only move references on an array stack, so the steady-state send and
+// receive paths produce no garbage. When every buffer is in use acquire() returns null and the
+// caller drops the packet instead of allocating a new one.
+public class RtpBufferPool {
+    // Ethernet MTU minus IPv4 and UDP headers
+    public static final int DEFAULT_BUFFER_SIZE = 1472;
+
+    private final ByteBuffer[] free;
+    private final int bufferSize;
+    private final int capacity;
+    private int freeCount;
+    private long exhaustedCount;
+
+    public RtpBufferPool(int capacity) {
+        this(capacity, DEFAULT_BUFFER_SIZE, false);
+    }
+
+    public RtpBufferPool(int capacity, int bufferSize, boolean direct) {
+        if (capacity <= 0 || bufferSize < RtpPacket.FIXED_HEADER_LENGTH) {
+            throw new IllegalArgumentException("Pool of " + capacity + " x " + bufferSize + " bytes is invalid");
+        }
+        this.capacity = capacity;
+        this.bufferSize = bufferSize;
+        free = new ByteBuffer[capacity];
+        for (int i = 0; i < capacity; i++) {
+            free[i] = direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+        }
+        freeCount = capacity;
+    }
+
+    // Take a cleared buffer. Return null if the pool is exhausted.
+    public synchronized ByteBuffer acquire() {
+        if (freeCount == 0) {
+            exhaustedCount++;
+            return null;
+        }
+        ByteBuffer buffer = free[--freeCount];
+        free[freeCount] = null;
+        buffer.clear();
+        return buffer;
+    }
+
+    // Give a buffer back. Buffers that don't belong to a pool of this shape are rejected.
+    public synchronized void release(ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        if (buffer.capacity() != bufferSize) {
+            throw new IllegalArgumentException("Buffer of " + buffer.capacity() + " bytes isn't from this pool");
+        }
+        if (freeCount == capacity) {
+            throw new IllegalStateException("Buffer released more than once");
+        }
+        free[freeCount++] = buffer;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized int getAvailable() {
+        return freeCount;
+    }
+
+    // How many times acquire() found the pool empty
+    public synchronized long getExhaustedCount() {
+        return exhaustedCount;
+    }
+}
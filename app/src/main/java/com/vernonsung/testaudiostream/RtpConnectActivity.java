@@ -20,13 +20,16 @@ import android.widget.TextView;
 import android.widget.Toast;
 
 import java.net.InetSocketAddress;
+import java.util.List;
 
 public class RtpConnectActivity extends AppCompatActivity {
     private static final String LOG_TAG = "testtest";
     private static final int PERMISSIONS_REQUEST_START_AUDIO_SERVICE = 100;
+    private static final long METRICS_REFRESH_MS = 1000;
     private InetSocketAddress localSocket;
     private InetSocketAddress remoteSocket;
     private AudioGroupService mService;
+    private AudioGroupService.LocalBinder mBinder;
     private ServiceConnection mConnection;
 
     // UI
@@ -37,6 +40,18 @@ public class RtpConnectActivity extends AppCompatActivity {
     private Button   buttonPlay;
     private Button   buttonStop;
     private Button   buttonRefresh;
+    private Button   buttonAdd;
+    private Button   buttonRemove;
+    private TextView textViewMetrics;
+
+    // Refresh call-quality metrics periodically while the service is bound
+    private final Runnable metricsRefresher = new Runnable() {
+        @Override
+        public void run() {
+            showMetrics();
+            textViewMetrics.postDelayed(this, METRICS_REFRESH_MS);
+        }
+    };
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -51,6 +66,9 @@ public class RtpConnectActivity extends AppCompatActivity {
         buttonPlay = (Button) findViewById(R.id.buttonPlay);
         buttonStop = (Button) findViewById(R.id.buttonStop);
         buttonRefresh = (Button) findViewById(R.id.buttonRefresh);
+        buttonAdd = (Button) findViewById(R.id.buttonAdd);
+        buttonRemove = (Button) findViewById(R.id.buttonRemove);
+        textViewMetrics = (TextView) findViewById(R.id.textViewMetrics);
 
         // Set UI action
         buttonPlay.setOnClickListener(new View.OnClickListener() {
@@ -71,6 +89,18 @@ public class RtpConnectActivity extends AppCompatActivity {
                 showLocalSocket();
             }
         });
+        buttonAdd.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                addParticipant();
+            }
+        });
+        buttonRemove.setOnClickListener(new View.OnClickListener() {
+            @Override
+            public void onClick(View v) {
+                removeParticipant();
+            }
+        });
     }
 
     @Override
@@ -124,7 +154,35 @@ public class RtpConnectActivity extends AppCompatActivity {
     private void startAudioService() {
         Intent intent = new Intent(this, AudioGroupService.class);
         intent.setAction(AudioGroupService.ACTION_PLAY);
-        // Get remote IP and port from UI and put them into the intent
+        if (!putRemoteSocket(intent)) {
+            return;
+        }
+        // Make service running until manually stop it
+        startService(intent);
+    }
+
+    // Join the remote IP and port on UI to the conference
+    private void addParticipant() {
+        Intent intent = new Intent(this, AudioGroupService.class);
+        intent.setAction(AudioGroupService.ACTION_ADD_PARTICIPANT);
+        if (!putRemoteSocket(intent)) {
+            return;
+        }
+        startService(intent);
+    }
+
+    // Remove the remote IP and port on UI from the conference
+    private void removeParticipant() {
+        Intent intent = new Intent(this, AudioGroupService.class);
+        intent.setAction(AudioGroupService.ACTION_REMOVE_PARTICIPANT);
+        if (!putRemoteSocket(intent)) {
+            return;
+        }
+        startService(intent);
+    }
+
+    // Get remote IP and port from UI and put them into the intent. Return false if they're wrong.
+    private boolean putRemoteSocket(Intent intent) {
         try {
             String ip = editTextRemoteIp.getText().toString();
             int port = Integer.parseInt(editTextRemotePort.getText().toString());
@@ -132,12 +190,13 @@ public class RtpConnectActivity extends AppCompatActivity {
                 Log.e(LOG_TAG, "No remote IP");
                 Toast.makeText(this, R.string.please_give_the_remote_device_ip, Toast.LENGTH_LONG).show();
                 editTextRemoteIp.requestFocus();
-                return;
+                return false;
             }
             if (port < 1 || port > 65534) {
                 Log.e(LOG_TAG, "Wrong remote port " + editTextRemotePort.getText().toString());
                 Toast.makeText(this, R.string.please_give_the_right_port, Toast.LENGTH_LONG).show();
                 editTextRemotePort.requestFocus();
+                return false;
             }
             remoteSocket = new InetSocketAddress(ip, port);
             intent.putExtra(AudioGroupService.INTENT_EXTRA_IP, ip);
@@ -146,14 +205,13 @@ public class RtpConnectActivity extends AppCompatActivity {
             Log.e(LOG_TAG, "Wrong remote port " + editTextRemotePort.getText().toString());
             Toast.makeText(this, R.string.please_give_the_right_port, Toast.LENGTH_LONG).show();
             editTextRemotePort.requestFocus();
-            return;
+            return false;
         } catch (Exception e) {
             Log.e(LOG_TAG, e.getMessage());
             e.printStackTrace();
-            return;
+            return false;
         }
-        // Make service running until manually stop it
-        startService(intent);
+        return true;
     }
 
     private void stopAudioService() {
@@ -171,10 +229,12 @@ public class RtpConnectActivity extends AppCompatActivity {
                 public void onServiceConnected(ComponentName className,
                                                IBinder service) {
                     // We've bound to LocalService, cast the IBinder and get LocalService instance
-                    AudioGroupService.LocalBinder binder = (AudioGroupService.LocalBinder) service;
-                    mService = binder.getService();
+                    mBinder = (AudioGroupService.LocalBinder) service;
+                    mService = mBinder.getService();
                     showLocalSocket();
                     showRemoteSocket();
+                    textViewMetrics.removeCallbacks(metricsRefresher);
+                    textViewMetrics.post(metricsRefresher);
                     Log.d(LOG_TAG, "Audio service is connected. Update local IP port");
                 }
 
@@ -198,7 +258,9 @@ public class RtpConnectActivity extends AppCompatActivity {
 
     // Unbind AudioGroupService when activity stops
     private void unbindAudioService() {
+        textViewMetrics.removeCallbacks(metricsRefresher);
         unbindService(mConnection);
+        mBinder = null;
     }
 
     private void showLocalSocket() {
@@ -234,4 +296,17 @@ public class RtpConnectActivity extends AppCompatActivity {
         editTextRemoteIp.setText(remoteSocket.getAddress().getHostAddress());
         editTextRemotePort.setText(String.valueOf(remoteSocket.getPort()));
     }
+
+    private void showMetrics() {
+        // Check service is bound
+        if (mBinder == null) {
+            return;
+        }
+        List<StreamMetrics.Snapshot> snapshots = mBinder.getMetrics();
+        StringBuilder text = new StringBuilder();
+        for (StreamMetrics.Snapshot s : snapshots) {
+            text.append(s.toString()).append('\n');
+        }
+        textViewMetrics.setText(text);
+    }
 }
@@ -0,0 +1,258 @@
+package com.vernonsung.testaudiostream;
+
+import java.nio.ByteBuffer;
+
+// A reusable view of one RTP packet (RFC 3550 section 5.1).
+// parse() reads the fixed header, CSRC list, header extension and padding of a packet in a
+// ByteBuffer without copying the payload. writeHeader() serializes the current fields.
+// Nothing here allocates after construction, so one instance can be kept per stream.
+public class RtpPacket {
+    public static final int VERSION = 2;
+    public static final int FIXED_HEADER_LENGTH = 12;
+    public static final int MAX_CSRC_COUNT = 15;
+
+    private int version = VERSION;
+    private boolean padding;
+    private boolean extension;
+    private boolean marker;
+    private int payloadType;
+    private int sequenceNumber;
+    private long timestamp;
+    private long ssrc;
+    private int csrcCount;
+    private final long[] csrc = new long[MAX_CSRC_COUNT];
+    private int extensionProfile;
+    private int extensionOffset;
+    private int extensionLength;
+    private int payloadOffset;
+    private int payloadLength;
+    private int paddingLength;
+
+    // Parse the packet between buffer.position() and buffer.limit(). The buffer position isn't
+    // changed. Offsets returned by getPayloadOffset() and getExtensionOffset() are absolute
+    // indexes into the buffer. Return false if it isn't a valid RTP packet.
+    public boolean parse(ByteBuffer buffer) {
+        int start = buffer.position();
+        int length = buffer.limit() - start;
+        if (length < FIXED_HEADER_LENGTH) {
+            return false;
+        }
+        int b0 = buffer.get(start) & 0xFF;
+        int b1 = buffer.get(start + 1) & 0xFF;
+        version = b0 >>> 6;
+        if (version != VERSION) {
+            return false;
+        }
+        padding = (b0 & 0x20) != 0;
+        extension = (b0 & 0x10) != 0;
+        csrcCount = b0 & 0x0F;
+        marker = (b1 & 0x80) != 0;
+        payloadType = b1 & 0x7F;
+        sequenceNumber = buffer.getShort(start + 2) & 0xFFFF;
+        timestamp = buffer.getInt(start + 4) & 0xFFFFFFFFL;
+        ssrc = buffer.getInt(start + 8) & 0xFFFFFFFFL;
+
+        // CSRC list
+        int offset = start + FIXED_HEADER_LENGTH;
+        int end = start + length;
+        if (offset + csrcCount * 4 > end) {
+            return false;
+        }
+        for (int i = 0; i < csrcCount; i++) {
+            csrc[i] = buffer.getInt(offset) & 0xFFFFFFFFL;
+            offset += 4;
+        }
+
+        // Header extension
+        if (extension) {
+            if (offset + 4 > end) {
+                return false;
+            }
+            extensionProfile = buffer.getShort(offset) & 0xFFFF;
+            extensionLength = (buffer.getShort(offset + 2) & 0xFFFF) * 4;
+            extensionOffset = offset + 4;
+            offset = extensionOffset + extensionLength;
+            if (offset > end) {
+                return false;
+            }
+        } else {
+            extensionProfile = 0;
+            extensionLength = 0;
+            extensionOffset = offset;
+        }
+
+        // Padding. The last octet counts how many octets to ignore, including itself.
+        if (padding) {
+            paddingLength = buffer.get(end - 1) & 0xFF;
+            if (paddingLength == 0 || offset + paddingLength > end) {
+                return false;
+            }
+        } else {
+            paddingLength = 0;
+        }
+        payloadOffset = offset;
+        payloadLength = end - paddingLength - offset;
+        return true;
+    }
+
+    // Write the header at buffer.position() and advance the position past it. The extension
+    // content, if any, is left for the caller to put right after. Return the header length.
+    public int writeHeader(ByteBuffer buffer) {
+        int start = buffer.position();
+        buffer.put((byte) ((VERSION << 6) | (padding ? 0x20 : 0) | (extension ? 0x10 : 0) | csrcCount));
+        buffer.put((byte) ((marker ? 0x80 : 0) | payloadType));
+        buffer.putShort((short) sequenceNumber);
+        buffer.putInt((int) timestamp);
+        buffer.putInt((int) ssrc);
+        for (int i = 0; i < csrcCount; i++) {
+            buffer.putInt((int) csrc[i]);
+        }
+        if (extension) {
+            buffer.putShort((short) extensionProfile);
+            buffer.putShort((short) (extensionLength / 4));
+        }
+        return buffer.position() - start;
+    }
+
+    // Length of the header writeHeader() produces, including the 4-octet extension header
+    public int getHeaderLength() {
+        return FIXED_HEADER_LENGTH + csrcCount * 4 + (extension ? 4 : 0);
+    }
+
+    // Reset to an empty header before filling fields for sending
+    public void clear() {
+        version = VERSION;
+        padding = false;
+        extension = false;
+        marker = false;
+        payloadType = 0;
+        sequenceNumber = 0;
+        timestamp = 0;
+        ssrc = 0;
+        csrcCount = 0;
+        extensionProfile = 0;
+        extensionOffset = 0;
+        extensionLength = 0;
+        payloadOffset = 0;
+        payloadLength = 0;
+        paddingLength = 0;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public boolean hasPadding() {
+        return padding;
+    }
+
+    public boolean hasExtension() {
+        return extension;
+    }
+
+    public boolean getMarker() {
+        return marker;
+    }
+
+    public void setMarker(boolean marker) {
+        this.marker = marker;
+    }
+
+    public int getPayloadType() {
+        return payloadType;
+    }
+
+    public void setPayloadType(int payloadType) {
+        if (payloadType < 0 || payloadType > 127) {
+            throw new IllegalArgumentException("Payload type " + payloadType + " is out of range");
+        }
+        this.payloadType = payloadType;
+    }
+
+    public int getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    public void setSequenceNumber(int sequenceNumber) {
+        this.sequenceNumber = sequenceNumber & 0xFFFF;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp & 0xFFFFFFFFL;
+    }
+
+    public long getSsrc() {
+        return ssrc;
+    }
+
+    public void setSsrc(long ssrc) {
+        this.ssrc = ssrc & 0xFFFFFFFFL;
+    }
+
+    public int getCsrcCount() {
+        return csrcCount;
+    }
+
+    public long getCsrc(int index) {
+        if (index < 0 || index >= csrcCount) {
+            throw new IndexOutOfBoundsException("CSRC index " + index + " of " + csrcCount);
+        }
+        return csrc[index];
+    }
+
+    public void addCsrc(long source) {
+        if (csrcCount == MAX_CSRC_COUNT) {
+            throw new IllegalStateException("CSRC list is full");
+        }
+        csrc[csrcCount++] = source & 0xFFFFFFFFL;
+    }
+
+    public void clearCsrc() {
+        csrcCount = 0;
+    }
+
+    public int getExtensionProfile() {
+        return extensionProfile;
+    }
+
+    public int getExtensionOffset() {
+        return extensionOffset;
+    }
+
+    // Extension content length in octets, excluding the 4-octet extension header
+    public int getExtensionLength() {
+        return extensionLength;
+    }
+
+    // Declare a header extension of the given content length, which must be a multiple of 4
+    public void setExtension(int profile, int length) {
+        if (length < 0 || length % 4 != 0 || length / 4 > 0xFFFF) {
+            throw new IllegalArgumentException("Extension length " + length + " isn't a valid word count");
+        }
+        extension = true;
+        extensionProfile = profile & 0xFFFF;
+        extensionLength = length;
+    }
+
+    public void clearExtension() {
+        extension = false;
+        extensionProfile = 0;
+        extensionLength = 0;
+    }
+
+    public int getPayloadOffset() {
+        return payloadOffset;
+    }
+
+    public int getPayloadLength() {
+        return payloadLength;
+    }
+
+    public int getPaddingLength() {
+        return paddingLength;
+    }
+}
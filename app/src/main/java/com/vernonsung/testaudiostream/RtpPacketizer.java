@@ -0,0 +1,152 @@
+package com.vernonsung.testaudiostream;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+
+// Send side of one RTP source. It owns the SSRC, sequence number and timestamp and writes a
+// header plus payload into a buffer from the pool for every frame.
+// The sequence number and timestamp start from random values as RFC 3550 recommends.
+public class RtpPacketizer {
+    private final RtpBufferPool pool;
+    private final RtpPacket header = new RtpPacket();
+    private long ssrc;
+    private int payloadType;
+    private int sequenceNumber;
+    private long timestamp;
+    private int timestampIncrement;
+    private boolean firstPacket = true;
+
+    // timestampIncrement is the number of samples of one frame, e.g. 160 for 20 ms at 8 kHz
+    public RtpPacketizer(RtpBufferPool pool, int payloadType, int timestampIncrement) {
+        this(pool, new SecureRandom().nextInt() & 0xFFFFFFFFL, payloadType, timestampIncrement);
+    }
+
+    public RtpPacketizer(RtpBufferPool pool, long ssrc, int payloadType, int timestampIncrement) {
+        SecureRandom random = new SecureRandom();
+        this.pool = pool;
+        this.ssrc = ssrc & 0xFFFFFFFFL;
+        this.sequenceNumber = random.nextInt() & 0xFFFF;
+        this.timestamp = random.nextInt() & 0xFFFFFFFFL;
+        setPayloadType(payloadType);
+        setTimestampIncrement(timestampIncrement);
+    }
+
+    // Build one packet in a pooled buffer, flipped and ready to send. The caller must release the
+    // buffer to the pool after sending. Return null if the pool is exhausted or the payload
+    // doesn't fit, in which case the frame is dropped but the sequence number isn't consumed.
+    public ByteBuffer packetize(byte[] payload, int offset, int length) {
+        ByteBuffer buffer = pool.acquire();
+        if (buffer == null) {
+            return null;
+        }
+        if (!packetize(payload, offset, length, buffer)) {
+            pool.release(buffer);
+            return null;
+        }
+        return buffer;
+    }
+
+    // Same as above but write into a buffer the caller owns. The buffer is cleared first.
+    public boolean packetize(byte[] payload, int offset, int length, ByteBuffer buffer) {
+        if (!write(payloadType, firstPacket, payload, offset, length, buffer)) {
+            return false;
+        }
+        firstPacket = false;
+        return true;
+    }
+
+    // Build an RFC 3389 comfort noise packet of its own payload type in the same sequence. It
+    // never carries the marker, and whatever speech comes next still starts a talkspurt.
+    public boolean packetizeComfortNoise(int comfortNoisePayloadType, byte[] payload, int offset, int length,
+                                         ByteBuffer buffer) {
+        if (!write(comfortNoisePayloadType, false, payload, offset, length, buffer)) {
+            return false;
+        }
+        firstPacket = true;
+        return true;
+    }
+
+    private boolean write(int type, boolean marker, byte[] payload, int offset, int length, ByteBuffer buffer) {
+        buffer.clear();
+        if (header.getHeaderLength() + length > buffer.remaining()) {
+            return false;
+        }
+        header.setMarker(marker);
+        header.setPayloadType(type);
+        header.setSequenceNumber(sequenceNumber);
+        header.setTimestamp(timestamp);
+        header.setSsrc(ssrc);
+        header.writeHeader(buffer);
+        buffer.put(payload, offset, length);
+        buffer.flip();
+        sequenceNumber = (sequenceNumber + 1) & 0xFFFF;
+        timestamp = (timestamp + timestampIncrement) & 0xFFFFFFFFL;
+        return true;
+    }
+
+    // Advance the timestamp without sending, e.g. for a frame suppressed during silence.
+    // The next packet carries the marker bit to flag the start of a talkspurt.
+    public void skipFrame() {
+        timestamp = (timestamp + timestampIncrement) & 0xFFFFFFFFL;
+        firstPacket = true;
+    }
+
+    // Contributing sources are copied into every following header, e.g. by a mixer
+    public void addCsrc(long source) {
+        header.addCsrc(source);
+    }
+
+    public void clearCsrc() {
+        header.clearCsrc();
+    }
+
+    public long getSsrc() {
+        return ssrc;
+    }
+
+    // Change SSRC after a collision. The sequence restarts a talkspurt.
+    public void setSsrc(long ssrc) {
+        this.ssrc = ssrc & 0xFFFFFFFFL;
+        firstPacket = true;
+    }
+
+    public int getPayloadType() {
+        return payloadType;
+    }
+
+    public void setPayloadType(int payloadType) {
+        if (payloadType < 0 || payloadType > 127) {
+            throw new IllegalArgumentException("Payload type " + payloadType + " is out of range");
+        }
+        this.payloadType = payloadType;
+    }
+
+    public int getTimestampIncrement() {
+        return timestampIncrement;
+    }
+
+    public void setTimestampIncrement(int timestampIncrement) {
+        if (timestampIncrement <= 0) {
+            throw new IllegalArgumentException("Timestamp increment " + timestampIncrement + " must be positive");
+        }
+        this.timestampIncrement = timestampIncrement;
+    }
+
+    // Sequence number of the next packet
+    public int getSequenceNumber() {
+        return sequenceNumber;
+    }
+
+    public void setSequenceNumber(int sequenceNumber) {
+        this.sequenceNumber = sequenceNumber & 0xFFFF;
+    }
+
+    // Timestamp of the next packet
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public void setTimestamp(long timestamp) {
+        this.timestamp = timestamp & 0xFFFFFFFFL;
+    }
+}
@@ -0,0 +1,201 @@
+package com.vernonsung.testaudiostream;
+
+import java.nio.ByteBuffer;
+
+// Receive path of one RTP stream: parse, validate the source, then queue the payload in the
+// jitter buffer. Whatever owns the socket hands every datagram to onPacket(); the playout side
+// polls the jitter buffer returned by getJitterBuffer().
+// Optionally frames lost on the way are repaired from RFC 2198 redundant payloads or RFC 5109
+// XOR parity packets. Loss statistics stay those of the network, before any repair.
+// RFC 3389 comfort noise payloads update a ComfortNoise generator and hold their place in the
+// playout order as empty frames, so the playout side knows when the silence begins.
+public class RtpReceiver implements RedDecoder.Listener, UlpFecDecoder.Listener {
+    private final RtpPacket packet = new RtpPacket();
+    private final RtpPacket recoveredPacket = new RtpPacket();
+    private final RtpSequenceTracker tracker = new RtpSequenceTracker();
+    private final JitterBuffer jitterBuffer;
+    private final byte[] scratch;
+    private int payloadType = -1;
+    private long playingSsrc = -1;
+    private long invalidCount;
+    private StreamMetrics metrics;
+    private int redPayloadType = -1;
+    private final RedDecoder redDecoder = new RedDecoder();
+    // State of the RED packet being split, for the block callbacks
+    private int redSequenceNumber;
+    private long redArrivalNanos;
+    private boolean redQueued;
+    // Every block of a rebuilt RED packet is a recovered frame
+    private final RedDecoder.Listener recoveredBlocks = new RedDecoder.Listener() {
+        @Override
+        public void onBlock(int type, int distance, long timestamp, byte[] data, int offset, int length) {
+            if (payloadType < 0 || type == payloadType) {
+                jitterBuffer.putRecovered(redSequenceNumber - distance, data, offset, length);
+            }
+        }
+    };
+    private int fecPayloadType = -1;
+    private UlpFecDecoder fecDecoder;
+    private int comfortNoisePayloadType = -1;
+    private ComfortNoise comfortNoise;
+
+    public RtpReceiver(JitterBuffer jitterBuffer, int maxPayloadSize) {
+        this.jitterBuffer = jitterBuffer;
+        this.scratch = new byte[maxPayloadSize];
+    }
+
+    // Only accept this payload type, or any when it's negative
+    public void setPayloadType(int payloadType) {
+        this.payloadType = payloadType;
+    }
+
+    // Accept RFC 2198 redundant payloads of this type, or none when it's negative
+    public void setRedPayloadType(int redPayloadType) {
+        this.redPayloadType = redPayloadType;
+    }
+
+    // Accept RFC 5109 parity packets of this type, or none when it's negative
+    public void setFecPayloadType(int fecPayloadType, int maxPacketSize) {
+        this.fecPayloadType = fecPayloadType;
+        fecDecoder = fecPayloadType < 0 ? null : new UlpFecDecoder(maxPacketSize, this);
+    }
+
+    // Accept RFC 3389 comfort noise of this type into comfortNoise, or none when it's negative
+    public void setComfortNoise(int comfortNoisePayloadType, ComfortNoise comfortNoise) {
+        this.comfortNoisePayloadType = comfortNoise == null ? -1 : comfortNoisePayloadType;
+        this.comfortNoise = comfortNoise;
+    }
+
+    // Handle one datagram between buffer.position() and buffer.limit(). The buffer isn't kept, so
+    // the caller can reuse it right away. Return true if the payload was queued for playout.
+    public boolean onPacket(ByteBuffer buffer, long arrivalNanos) {
+        if (!packet.parse(buffer)) {
+            invalidCount++;
+            return false;
+        }
+        if (metrics != null) {
+            metrics.onPacketReceived(buffer.remaining());
+        }
+        int type = packet.getPayloadType();
+        if (fecDecoder != null && type == fecPayloadType) {
+            // Parity has its own sequence numbers. Rebuilt packets come back to onRecovered().
+            if (!fecDecoder.onFec(buffer)) {
+                invalidCount++;
+            }
+            return false;
+        }
+        if (payloadType >= 0 && type != payloadType && type != redPayloadType && type != comfortNoisePayloadType) {
+            invalidCount++;
+            return false;
+        }
+        if (!tracker.update(packet.getSsrc(), packet.getSequenceNumber())) {
+            return false;
+        }
+        if (playingSsrc != packet.getSsrc()) {
+            // A new source has passed probation. Drop whatever the previous one left behind.
+            playingSsrc = packet.getSsrc();
+            jitterBuffer.reset();
+            if (fecDecoder != null) {
+                fecDecoder.reset();
+            }
+        }
+        int length = packet.getPayloadLength();
+        if (length > scratch.length) {
+            invalidCount++;
+            return false;
+        }
+        int position = buffer.position();
+        buffer.position(packet.getPayloadOffset());
+        buffer.get(scratch, 0, length);
+        buffer.position(position);
+        boolean queued;
+        if (type == comfortNoisePayloadType) {
+            if (!comfortNoise.update(scratch, 0, length)) {
+                invalidCount++;
+                return false;
+            }
+            queued = jitterBuffer.put(packet.getSequenceNumber(), packet.getTimestamp(), scratch, 0, 0,
+                                      arrivalNanos);
+        } else if (type == redPayloadType) {
+            // The primary block is put with the arrival time, older ones as recovered frames
+            queued = queueRed(packet, length, arrivalNanos);
+        } else {
+            queued = jitterBuffer.put(packet.getSequenceNumber(), packet.getTimestamp(), scratch, 0, length,
+                                      arrivalNanos);
+        }
+        if (fecDecoder != null) {
+            fecDecoder.onMedia(buffer);
+        }
+        if (metrics != null) {
+            metrics.setLoss(tracker.getExpected(), tracker.getCumulativeLost());
+            metrics.setJitterMicros(jitterBuffer.getJitter() * 1000000 / jitterBuffer.getClockRate());
+            metrics.onJitterBufferDepth(jitterBuffer.getDepth());
+            metrics.setPlayoutCounts(jitterBuffer.getLateCount(), jitterBuffer.getConcealedCount());
+        }
+        return queued;
+    }
+
+    private boolean queueRed(RtpPacket red, int length, long arrivalNanos) {
+        redSequenceNumber = red.getSequenceNumber();
+        redArrivalNanos = arrivalNanos;
+        redQueued = false;
+        if (!redDecoder.parse(scratch, 0, length, red.getTimestamp(), this)) {
+            invalidCount++;
+        }
+        return redQueued;
+    }
+
+    @Override
+    public void onBlock(int payloadType, int distance, long timestamp, byte[] data, int offset, int length) {
+        if (this.payloadType >= 0 && payloadType != this.payloadType) {
+            return;
+        }
+        if (distance == 0) {
+            redQueued = jitterBuffer.put(redSequenceNumber, timestamp, data, offset, length, redArrivalNanos);
+        } else {
+            jitterBuffer.putRecovered(redSequenceNumber - distance, data, offset, length);
+        }
+    }
+
+    @Override
+    public void onRecovered(ByteBuffer buffer) {
+        if (!recoveredPacket.parse(buffer) || recoveredPacket.getSsrc() != playingSsrc) {
+            return;
+        }
+        int length = recoveredPacket.getPayloadLength();
+        if (length > scratch.length) {
+            return;
+        }
+        buffer.position(recoveredPacket.getPayloadOffset());
+        buffer.get(scratch, 0, length);
+        if (recoveredPacket.getPayloadType() == redPayloadType) {
+            redSequenceNumber = recoveredPacket.getSequenceNumber();
+            redDecoder.parse(scratch, 0, length, recoveredPacket.getTimestamp(), recoveredBlocks);
+        } else {
+            jitterBuffer.putRecovered(recoveredPacket.getSequenceNumber(), scratch, 0, length);
+        }
+    }
+
+    // Report received packets, loss, jitter and buffer depth here, or nowhere if null
+    public void setMetrics(StreamMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public JitterBuffer getJitterBuffer() {
+        return jitterBuffer;
+    }
+
+    public RtpSequenceTracker getSequenceTracker() {
+        return tracker;
+    }
+
+    // Frames rebuilt from parity, not counting redundant copies
+    public long getFecRecoveredCount() {
+        return fecDecoder == null ? 0 : fecDecoder.getRecoveredCount();
+    }
+
+    // Datagrams that weren't RTP of the expected payload type
+    public long getInvalidCount() {
+        return invalidCount;
+    }
+}
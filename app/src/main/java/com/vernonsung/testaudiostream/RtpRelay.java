@@ -0,0 +1,404 @@
+package com.vernonsung.testaudiostream;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+// Selective forwarding of one talker's RTP stream to many subscribers, e.g. for paging, so the
+// talker sends once whatever the audience.
+// Packets arrive on the transport thread and are copied once into a FrameRing. The pacer thread
+// sends each to every subscriber from that same copy: before each send only the 12-byte fixed
+// header is rewritten in place with the subscriber's own SSRC, sequence number and timestamp,
+// and the payload is never copied again.
+// Every subscriber sees one continuous stream of its own, whoever the talker is. When the source
+// SSRC changes, sequence numbers carry on from the last one sent and timestamps from the last one
+// plus the time in between, and the first packet carries the marker.
+// Sending to a long list of subscribers all at once would put a burst on the wire every packet.
+// Instead subscriber k of n gets each packet k * spread / n after it arrived, so the sends are
+// spread evenly over that time.
+// Only the RTP stream is relayed; RTCP of the subscribers isn't aggregated back to the talker.
+// SRTP is terminated here, since the rewritten header would fail authentication: with setSrtp()
+// the talker's packets are authenticated and decrypted as they come in, and a subscriber added
+// with an SrtpContext of its own gets each packet protected again under its key. That takes a
+// copy of the packet per such subscriber, as protection encrypts in place.
+public class RtpRelay implements RtpTransport.Listener, Runnable {
+    public static final int DEFAULT_CAPACITY = 64;
+    public static final long DEFAULT_SPREAD_NANOS = 10000000L;
+    // Longest pacer sleep, so a new packet waits at most this long for its first send
+    private static final long POLL_NANOS = 1000000;
+    // Shortest pacer sleep. Subscribers due within it are sent together.
+    private static final long MIN_SLEEP_NANOS = 250000;
+
+    // One listener, with its own view of the stream
+    public static class Subscriber {
+        private final CallPipeline.PacketSink sink;
+        private final long ssrc;
+        // Outgoing protection, null for plain RTP
+        private final SrtpContext srtp;
+        private long sourceSsrc = -1;
+        private int sequenceDelta;
+        private long timestampDelta;
+        private int lastSequence;
+        private long lastTimestamp;
+        private long lastArrivalNanos;
+        private volatile long sentCount;
+
+        Subscriber(CallPipeline.PacketSink sink, SrtpContext srtp, long ssrc, int firstSequence,
+                   long firstTimestamp) {
+            this.sink = sink;
+            this.srtp = srtp;
+            this.ssrc = ssrc;
+            lastSequence = (firstSequence - 1) & 0xFFFF;
+            lastTimestamp = firstTimestamp;
+        }
+
+        public long getSsrc() {
+            return ssrc;
+        }
+
+        public long getSentCount() {
+            return sentCount;
+        }
+
+        // Rewrite the header of packet, between position and limit, for this subscriber
+        private void rewrite(ByteBuffer packet, long source, int sequence, long timestamp, long arrivalNanos,
+                             int clockRate) {
+            int start = packet.position();
+            boolean marker = false;
+            if (source != sourceSsrc) {
+                // A new talker: carry on from where the last one left off
+                long elapsed = sourceSsrc < 0 ? 0 : (arrivalNanos - lastArrivalNanos) * clockRate / 1000000000L;
+                sequenceDelta = lastSequence + 1 - sequence;
+                timestampDelta = lastTimestamp + Math.max(elapsed, 1) - timestamp;
+                sourceSsrc = source;
+                marker = true;
+            }
+            int outSequence = (sequence + sequenceDelta) & 0xFFFF;
+            long outTimestamp = (timestamp + timestampDelta) & 0xFFFFFFFFL;
+            // Only newer packets move the stream on; reordered ones keep their place
+            if (marker || ((outSequence - lastSequence) & 0x8000) == 0) {
+                lastSequence = outSequence;
+                lastTimestamp = outTimestamp;
+                lastArrivalNanos = arrivalNanos;
+            }
+            if (marker) {
+                packet.put(start + 1, (byte) (packet.get(start + 1) | 0x80));
+            }
+            packet.putShort(start + 2, (short) outSequence);
+            packet.putInt(start + 4, (int) outTimestamp);
+            packet.putInt(start + 8, (int) ssrc);
+        }
+    }
+
+    private final PipelineClock clock;
+    private final int clockRate;
+    private final long spreadNanos;
+    private final FrameRing ring;
+    private final int mask;
+    private final Random random = new Random();
+
+    // Transport side: the talker's SRTP, and a view of each slot's data to unprotect it in
+    private volatile SrtpContext srtp;
+    private final ByteBuffer[] receiveViews;
+    private long tail;
+
+    // Pacer side: a view of each slot's data, the audience it goes to and how far through it
+    private final ByteBuffer[] views;
+    private final Subscriber[][] audiences;
+    private final int[] nextSubscriber;
+    private final byte[] header = new byte[RtpPacket.FIXED_HEADER_LENGTH];
+    // A subscriber's copy of the packet to protect
+    private final ByteBuffer secure = ByteBuffer.allocate(CallPipeline.MAX_PACKET_SIZE + SrtpContext.AUTH_TAG_LENGTH);
+    private long head;
+    private int taken;
+
+    // Subscribers are replaced as a whole, so the pacer sees a consistent array
+    private volatile Subscriber[] subscribers = new Subscriber[0];
+    private volatile boolean running;
+    private Thread thread;
+
+    private volatile long receivedCount;
+    private volatile long droppedCount;
+    private volatile long rejectedCount;
+    private volatile long forwardedCount;
+    private volatile long busyNanos;
+
+    // clockRate of the stream, for timestamps across a change of talker. Up to capacity packets
+    // may wait to be sent to everyone.
+    public RtpRelay(PipelineClock clock, int clockRate, int capacity, long spreadNanos) {
+        if (clockRate <= 0 || spreadNanos < 0) {
+            throw new IllegalArgumentException("Clock rate " + clockRate + " or spread " + spreadNanos
+                    + " is out of range");
+        }
+        this.clock = clock;
+        this.clockRate = clockRate;
+        this.spreadNanos = spreadNanos;
+        ring = new FrameRing(capacity, CallPipeline.MAX_PACKET_SIZE, 0);
+        mask = ring.getCapacity() - 1;
+        views = new ByteBuffer[ring.getCapacity()];
+        receiveViews = new ByteBuffer[ring.getCapacity()];
+        audiences = new Subscriber[ring.getCapacity()][];
+        nextSubscriber = new int[ring.getCapacity()];
+    }
+
+    public RtpRelay(PipelineClock clock, int clockRate) {
+        this(clock, clockRate, DEFAULT_CAPACITY, DEFAULT_SPREAD_NANOS);
+    }
+
+    // Start forwarding to sink with the next packet. Any thread.
+    public Subscriber addSubscriber(CallPipeline.PacketSink sink) {
+        return addSubscriber(sink, null);
+    }
+
+    // Start forwarding to sink with the next packet, protected with srtp if it isn't null. srtp
+    // is this subscriber's own and is only used on the pacer thread from now on. Any thread.
+    public synchronized Subscriber addSubscriber(CallPipeline.PacketSink sink, SrtpContext srtp) {
+        Subscriber subscriber = new Subscriber(sink, srtp, random.nextInt() & 0xFFFFFFFFL, random.nextInt(0x10000),
+                random.nextInt() & 0xFFFFFFFFL);
+        Subscriber[] old = subscribers;
+        Subscriber[] updated = new Subscriber[old.length + 1];
+        System.arraycopy(old, 0, updated, 0, old.length);
+        updated[old.length] = subscriber;
+        subscribers = updated;
+        return subscriber;
+    }
+
+    // Any thread. Packets already on their way may still reach it.
+    public synchronized void removeSubscriber(Subscriber subscriber) {
+        Subscriber[] old = subscribers;
+        for (int i = 0; i < old.length; i++) {
+            if (old[i] == subscriber) {
+                Subscriber[] updated = new Subscriber[old.length - 1];
+                System.arraycopy(old, 0, updated, 0, i);
+                System.arraycopy(old, i + 1, updated, i, old.length - i - 1);
+                subscribers = updated;
+                return;
+            }
+        }
+    }
+
+    // Take the talker's packets as SRTP and unprotect them with srtp, or as plain RTP if null.
+    // srtp is only used on the thread of onPacket() from then on. Set it before packets come.
+    public void setSrtp(SrtpContext srtp) {
+        this.srtp = srtp;
+    }
+
+    public int getSubscriberCount() {
+        return subscribers.length;
+    }
+
+    @Override
+    public void onPacket(RtpTransport.Endpoint endpoint, ByteBuffer packet, SocketAddress source, long arrivalNanos) {
+        onPacket(packet, arrivalNanos);
+    }
+
+    // Queue one RTP packet between position and limit for forwarding. Call from one thread only,
+    // normally the transport's. Return false if it isn't RTP, fails SRTP or the relay is too far
+    // behind.
+    public boolean onPacket(ByteBuffer packet, long arrivalNanos) {
+        int length = packet.remaining();
+        int start = packet.position();
+        if (length < RtpPacket.FIXED_HEADER_LENGTH || length > CallPipeline.MAX_PACKET_SIZE
+                || (packet.get(start) & 0xC0) != RtpPacket.VERSION << 6) {
+            return false;
+        }
+        int type = packet.get(start + 1) & 0xFF;
+        if (type >= 192 && type <= 223) {
+            // RTCP multiplexed on the same port (RFC 5761)
+            return false;
+        }
+        receivedCount++;
+        FrameRing.Slot slot = ring.claim();
+        if (slot == null) {
+            droppedCount++;
+            return false;
+        }
+        packet.get(slot.data, 0, length);
+        packet.position(start);
+        SrtpContext context = srtp;
+        if (context != null) {
+            int index = (int) tail & mask;
+            ByteBuffer view = receiveViews[index];
+            if (view == null) {
+                view = ByteBuffer.wrap(slot.data);
+                receiveViews[index] = view;
+            }
+            view.clear();
+            view.limit(length);
+            length = context.unprotect(view);
+            if (length < 0) {
+                // Not published, so the slot is claimed again by the next packet
+                rejectedCount++;
+                return false;
+            }
+        }
+        slot.length = length;
+        slot.timestamp = arrivalNanos;
+        ring.publish();
+        tail++;
+        return true;
+    }
+
+    // Pacer: send every packet to the subscribers due by nowNanos. Return when the next one is
+    // due, or -1 if nothing is waiting.
+    public long tick(long nowNanos) {
+        long started = System.nanoTime();
+        int ready = ring.available(mask + 1);
+        for (; taken < ready; taken++) {
+            // Each packet goes to the subscribers there when it's first seen
+            int index = (int) (head + taken) & mask;
+            if (views[index] == null) {
+                views[index] = ByteBuffer.wrap(ring.readSlot(taken).data);
+            }
+            audiences[index] = subscribers;
+            nextSubscriber[index] = 0;
+        }
+        long nextDue = -1;
+        int done = 0;
+        for (int i = 0; i < ready; i++) {
+            int index = (int) (head + i) & mask;
+            FrameRing.Slot slot = ring.readSlot(i);
+            Subscriber[] audience = audiences[index];
+            int next = nextSubscriber[index];
+            if (next < audience.length) {
+                next = send(slot, views[index], audience, next, nowNanos);
+                nextSubscriber[index] = next;
+            }
+            if (next < audience.length) {
+                long due = dueNanos(slot.timestamp, next, audience.length);
+                nextDue = nextDue < 0 ? due : Math.min(nextDue, due);
+            } else if (done == i) {
+                // Packets are released in order once everyone had them
+                done++;
+            }
+        }
+        if (done > 0) {
+            for (int i = 0; i < done; i++) {
+                audiences[(int) (head + i) & mask] = null;
+            }
+            ring.release(done);
+            head += done;
+            taken -= done;
+        }
+        busyNanos += System.nanoTime() - started;
+        return nextDue;
+    }
+
+    private long dueNanos(long arrivalNanos, int subscriber, int count) {
+        return arrivalNanos + spreadNanos * subscriber / count;
+    }
+
+    // Send the packet in slot to the subscribers of audience from next on that are due, and
+    // return the first one that isn't
+    private int send(FrameRing.Slot slot, ByteBuffer view, Subscriber[] audience, int next, long nowNanos) {
+        int length = slot.length;
+        byte[] data = slot.data;
+        // The talker's header, restored after the last subscriber
+        System.arraycopy(data, 0, header, 0, RtpPacket.FIXED_HEADER_LENGTH);
+        long source = ((data[8] & 0xFFL) << 24) | ((data[9] & 0xFF) << 16) | ((data[10] & 0xFF) << 8)
+                | (data[11] & 0xFF);
+        int sequence = ((data[2] & 0xFF) << 8) | (data[3] & 0xFF);
+        long timestamp = ((data[4] & 0xFFL) << 24) | ((data[5] & 0xFF) << 16) | ((data[6] & 0xFF) << 8)
+                | (data[7] & 0xFF);
+        int count = audience.length;
+        int sent = 0;
+        while (next < count && dueNanos(slot.timestamp, next, count) <= nowNanos) {
+            Subscriber s = audience[next++];
+            ByteBuffer out = view;
+            if (s.srtp != null) {
+                out = secure;
+                out.clear();
+                out.put(data, 0, length);
+                out.flip();
+            } else {
+                out.clear();
+                out.limit(length);
+            }
+            s.rewrite(out, source, sequence, timestamp, slot.timestamp, clockRate);
+            if (s.srtp == null || s.srtp.protect(out) >= 0) {
+                s.sink.send(out);
+                s.sentCount++;
+                sent++;
+            }
+            data[1] = header[1];
+        }
+        System.arraycopy(header, 0, data, 0, RtpPacket.FIXED_HEADER_LENGTH);
+        forwardedCount += sent;
+        return next;
+    }
+
+    // Pacer thread
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                long now = clock.nanoTime();
+                long due = tick(now);
+                long wake = now + POLL_NANOS;
+                if (due >= 0) {
+                    wake = Math.min(wake, Math.max(due, now + MIN_SLEEP_NANOS));
+                }
+                clock.sleepUntil(wake);
+            }
+        } catch (InterruptedException e) {
+            // Stopped
+        }
+    }
+
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this, "RtpRelay");
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.start();
+    }
+
+    public void stop() {
+        Thread t;
+        synchronized (this) {
+            t = thread;
+            thread = null;
+            running = false;
+        }
+        if (t == null) {
+            return;
+        }
+        t.interrupt();
+        try {
+            t.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // RTP packets taken in
+    public long getReceivedCount() {
+        return receivedCount;
+    }
+
+    // Packets dropped because the ring was full
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    // SRTP packets of the talker that failed authentication or were replayed
+    public long getRejectedCount() {
+        return rejectedCount;
+    }
+
+    // Packets sent, counting one per subscriber
+    public long getForwardedCount() {
+        return forwardedCount;
+    }
+
+    // Time the pacer spent forwarding, on the monotonic clock
+    public long getBusyNanos() {
+        return busyNanos;
+    }
+
+    public long getSpreadNanos() {
+        return spreadNanos;
+    }
+}
@@ -0,0 +1,120 @@
+package com.vernonsung.testaudiostream;
+
+// Receive side sequence number bookkeeping of one source, following RFC 3550 appendix A.1.
+// It validates a new source with a probation period, extends the 16-bit sequence number with a
+// cycle count, and keeps the expected and received counts that loss statistics are based on.
+public class RtpSequenceTracker {
+    private static final int RTP_SEQ_MOD = 1 << 16;
+    private static final int MAX_DROPOUT = 3000;
+    private static final int MAX_MISORDER = 100;
+    private static final int MIN_SEQUENTIAL = 2;
+
+    private long ssrc = -1;
+    private int maxSeq;
+    private long cycles;
+    private int baseSeq;
+    private int badSeq;
+    private int probation;
+    private long received;
+    private long expectedPrior;
+    private long receivedPrior;
+
+    // Feed the sequence number of a packet from ssrc. Return false if the packet should be
+    // discarded, either because the source is still on probation or because it jumped too far.
+    public boolean update(long ssrc, int seq) {
+        seq &= 0xFFFF;
+        if (ssrc != this.ssrc) {
+            // New or changed source
+            this.ssrc = ssrc;
+            init(seq);
+            maxSeq = seq - 1;
+            probation = MIN_SEQUENTIAL;
+        }
+        int udelta = (seq - maxSeq) & 0xFFFF;
+
+        // Source isn't valid until MIN_SEQUENTIAL packets with sequential numbers are received
+        if (probation > 0) {
+            if (seq == ((maxSeq + 1) & 0xFFFF)) {
+                probation--;
+                maxSeq = seq;
+                if (probation == 0) {
+                    init(seq);
+                    received++;
+                    return true;
+                }
+            } else {
+                probation = MIN_SEQUENTIAL - 1;
+                maxSeq = seq;
+            }
+            return false;
+        } else if (udelta < MAX_DROPOUT) {
+            // In order, with permissible gap
+            if (seq < maxSeq) {
+                cycles += RTP_SEQ_MOD;
+            }
+            maxSeq = seq;
+        } else if (udelta <= RTP_SEQ_MOD - MAX_MISORDER) {
+            // The sequence number made a very large jump
+            if (seq == badSeq) {
+                // Two sequential packets. Assume the other side restarted without telling us.
+                init(seq);
+            } else {
+                badSeq = (seq + 1) & (RTP_SEQ_MOD - 1);
+                return false;
+            }
+        }
+        // Otherwise duplicate or reordered packet
+        received++;
+        return true;
+    }
+
+    private void init(int seq) {
+        baseSeq = seq;
+        maxSeq = seq;
+        badSeq = RTP_SEQ_MOD + 1;
+        cycles = 0;
+        received = 0;
+        expectedPrior = 0;
+        receivedPrior = 0;
+    }
+
+    public long getSsrc() {
+        return ssrc;
+    }
+
+    public boolean isValid() {
+        return ssrc != -1 && probation == 0;
+    }
+
+    // Highest sequence number received, extended with the wrap-around count
+    public long getExtendedHighestSequence() {
+        return cycles + (maxSeq & 0xFFFF);
+    }
+
+    public long getExpected() {
+        return getExtendedHighestSequence() - baseSeq + 1;
+    }
+
+    public long getReceived() {
+        return received;
+    }
+
+    // Cumulative number of packets lost. It can be negative when duplicates arrive.
+    public long getCumulativeLost() {
+        return getExpected() - received;
+    }
+
+    // Fraction lost since the previous call, in 1/256 units as an RTCP report block carries it
+    public int takeFractionLost() {
+        long expected = getExpected();
+        long expectedInterval = expected - expectedPrior;
+        long receivedInterval = received - receivedPrior;
+        expectedPrior = expected;
+        receivedPrior = received;
+        long lostInterval = expectedInterval - receivedInterval;
+        if (expectedInterval == 0 || lostInterval <= 0) {
+            return 0;
+        }
+        return (int) ((lostInterval << 8) / expectedInterval);
+    }
+}
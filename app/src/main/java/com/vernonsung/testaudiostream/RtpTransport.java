@@ -0,0 +1,348 @@
+package com.vernonsung.testaudiostream;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// UDP transport for many RTP streams on one event loop thread.
+// Every stream is a non-blocking DatagramChannel registered with a single Selector. On each
+// wakeup the loop drains up to maxBatch datagrams per ready channel into one direct buffer and
+// hands them to the stream's Listener on the loop thread. Sends go straight to the channel from
+// any thread. Counters of packets and system calls tell how much work each packet costs.
+// A Listener that throws loses that packet only; the loop goes on and getFailure() keeps the
+// exception. An I/O error of the selector itself ends the loop and is kept the same way.
+// With a PacketCapture every datagram sent and received also goes into a pcap file.
+public class RtpTransport implements Runnable {
+    public interface Listener {
+        // packet is only valid during the call. source is null on a connected endpoint.
+        void onPacket(Endpoint endpoint, ByteBuffer packet, SocketAddress source, long arrivalNanos);
+    }
+
+    public static class Endpoint {
+        private final DatagramChannel channel;
+        private final Listener listener;
+        private final InetSocketAddress localAddress;
+        private InetSocketAddress remoteAddress;
+        private SelectionKey key;
+
+        private Endpoint(DatagramChannel channel, Listener listener) throws IOException {
+            this.channel = channel;
+            this.listener = listener;
+            this.localAddress = (InetSocketAddress) channel.socket().getLocalSocketAddress();
+        }
+
+        public InetSocketAddress getLocalAddress() {
+            return localAddress;
+        }
+
+        public InetSocketAddress getRemoteAddress() {
+            return remoteAddress;
+        }
+    }
+
+    public static final int DEFAULT_BATCH = 32;
+    private static final long SELECT_TIMEOUT_MS = 100;
+
+    private final Selector selector;
+    private final ByteBuffer receiveBuffer;
+    private final int maxBatch;
+    private final ConcurrentLinkedQueue<Endpoint> pendingOpen = new ConcurrentLinkedQueue<Endpoint>();
+    private final ConcurrentLinkedQueue<Endpoint> pendingClose = new ConcurrentLinkedQueue<Endpoint>();
+    private volatile boolean running;
+    private Thread thread;
+
+    private final AtomicLong packetsReceived = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong packetsSent = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong sendDropped = new AtomicLong();
+    private final AtomicLong receiveCalls = new AtomicLong();
+    private final AtomicLong sendCalls = new AtomicLong();
+    private final AtomicLong selectCalls = new AtomicLong();
+    private volatile long startNanos;
+    private volatile PacketCapture capture;
+    private volatile Exception failure;
+    private final AtomicLong listenerFailures = new AtomicLong();
+
+    public RtpTransport() throws IOException {
+        this(DEFAULT_BATCH, RtpBufferPool.DEFAULT_BUFFER_SIZE);
+    }
+
+    public RtpTransport(int maxBatch, int bufferSize) throws IOException {
+        if (maxBatch <= 0) {
+            throw new IllegalArgumentException("Batch size " + maxBatch + " must be positive");
+        }
+        this.maxBatch = maxBatch;
+        this.receiveBuffer = ByteBuffer.allocateDirect(bufferSize);
+        this.selector = Selector.open();
+    }
+
+    // Bind a new endpoint. If remote isn't null the channel is connected to it, which filters
+    // other senders in the kernel and avoids a source address object per received packet.
+    public Endpoint open(InetSocketAddress local, InetSocketAddress remote, Listener listener) throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            channel.configureBlocking(false);
+            channel.socket().setReuseAddress(true);
+            channel.socket().bind(local);
+            if (remote != null) {
+                channel.connect(remote);
+            }
+            Endpoint endpoint = new Endpoint(channel, listener);
+            endpoint.remoteAddress = remote;
+            // Registration has to happen on the loop thread or it blocks behind select()
+            pendingOpen.add(endpoint);
+            selector.wakeup();
+            return endpoint;
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    // Capture everything sent and received from now on, or stop if null. Closing the capture is
+    // up to the caller, after this. Any thread.
+    public void setCapture(PacketCapture capture) {
+        this.capture = capture;
+    }
+
+    public PacketCapture getCapture() {
+        return capture;
+    }
+
+    public void close(Endpoint endpoint) {
+        pendingClose.add(endpoint);
+        selector.wakeup();
+    }
+
+    // Send one datagram between packet.position() and packet.limit(). target may be null on a
+    // connected endpoint. The packet position is restored so the same buffer can be sent again.
+    // Return false if the socket buffer is full and the packet was dropped.
+    public boolean send(Endpoint endpoint, ByteBuffer packet, SocketAddress target) throws IOException {
+        int position = packet.position();
+        int length = packet.remaining();
+        int sent;
+        sendCalls.incrementAndGet();
+        if (target == null) {
+            sent = endpoint.channel.write(packet);
+        } else {
+            sent = endpoint.channel.send(packet, target);
+        }
+        packet.position(position);
+        if (sent == 0 && length > 0) {
+            sendDropped.incrementAndGet();
+            return false;
+        }
+        packetsSent.incrementAndGet();
+        bytesSent.addAndGet(sent);
+        PacketCapture c = capture;
+        if (c != null) {
+            c.capture(packet, endpoint.localAddress,
+                    target == null ? endpoint.remoteAddress : (InetSocketAddress) target, System.nanoTime());
+        }
+        return true;
+    }
+
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        running = true;
+        startNanos = System.nanoTime();
+        thread = new Thread(this, "RtpTransport");
+        thread.setPriority(Thread.MAX_PRIORITY);
+        thread.start();
+    }
+
+    // Close every endpoint and the selector. A stopped transport can't be started again.
+    public synchronized void stop() throws InterruptedException {
+        if (thread == null) {
+            return;
+        }
+        running = false;
+        selector.wakeup();
+        thread.join();
+        thread = null;
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                registerPending();
+                selectCalls.incrementAndGet();
+                if (selector.select(SELECT_TIMEOUT_MS) == 0) {
+                    continue;
+                }
+                long now = System.nanoTime();
+                Set<SelectionKey> keys = selector.selectedKeys();
+                Iterator<SelectionKey> iterator = keys.iterator();
+                while (iterator.hasNext()) {
+                    SelectionKey key = iterator.next();
+                    iterator.remove();
+                    if (key.isValid() && key.isReadable()) {
+                        drain((Endpoint) key.attachment(), now);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            running = false;
+            closeAll();
+        }
+    }
+
+    // Read until the socket is empty or the batch is used up, so one busy stream can't starve
+    // the others on the same loop
+    private void drain(Endpoint endpoint, long arrivalNanos) throws IOException {
+        DatagramChannel channel = endpoint.channel;
+        boolean connected = endpoint.remoteAddress != null;
+        for (int i = 0; i < maxBatch; i++) {
+            receiveBuffer.clear();
+            SocketAddress source = null;
+            receiveCalls.incrementAndGet();
+            if (connected) {
+                int read;
+                try {
+                    read = channel.read(receiveBuffer);
+                } catch (IOException e) {
+                    // ICMP port unreachable from the remote side. Keep going.
+                    continue;
+                }
+                if (read <= 0) {
+                    return;
+                }
+            } else {
+                source = channel.receive(receiveBuffer);
+                if (source == null) {
+                    return;
+                }
+            }
+            receiveBuffer.flip();
+            packetsReceived.incrementAndGet();
+            bytesReceived.addAndGet(receiveBuffer.remaining());
+            PacketCapture c = capture;
+            if (c != null) {
+                c.capture(receiveBuffer, connected ? endpoint.remoteAddress : (InetSocketAddress) source,
+                        endpoint.localAddress, arrivalNanos);
+            }
+            try {
+                endpoint.listener.onPacket(endpoint, receiveBuffer, source, arrivalNanos);
+            } catch (RuntimeException e) {
+                listenerFailures.incrementAndGet();
+                failure = e;
+            }
+        }
+    }
+
+    private void registerPending() throws ClosedChannelException {
+        Endpoint endpoint;
+        while ((endpoint = pendingOpen.poll()) != null) {
+            endpoint.key = endpoint.channel.register(selector, SelectionKey.OP_READ, endpoint);
+        }
+        while ((endpoint = pendingClose.poll()) != null) {
+            closeEndpoint(endpoint);
+        }
+    }
+
+    private void closeEndpoint(Endpoint endpoint) {
+        if (endpoint.key != null) {
+            endpoint.key.cancel();
+        }
+        try {
+            endpoint.channel.close();
+        } catch (IOException e) {
+            // Nothing more to do with a channel being thrown away
+        }
+    }
+
+    private void closeAll() {
+        for (SelectionKey key : selector.keys()) {
+            closeEndpoint((Endpoint) key.attachment());
+        }
+        Endpoint endpoint;
+        while ((endpoint = pendingOpen.poll()) != null) {
+            closeEndpoint(endpoint);
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    // False once stopped, or once the loop ended on an I/O error
+    public boolean isRunning() {
+        return running;
+    }
+
+    // The latest exception of a Listener or the loop, null if none
+    public Exception getFailure() {
+        return failure;
+    }
+
+    // Packets whose Listener threw
+    public long getListenerFailures() {
+        return listenerFailures.get();
+    }
+
+    public long getPacketsReceived() {
+        return packetsReceived.get();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    public long getPacketsSent() {
+        return packetsSent.get();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    // Sends that found the socket buffer full
+    public long getSendDropped() {
+        return sendDropped.get();
+    }
+
+    public long getSelectCalls() {
+        return selectCalls.get();
+    }
+
+    public long getReceiveCalls() {
+        return receiveCalls.get();
+    }
+
+    public long getSendCalls() {
+        return sendCalls.get();
+    }
+
+    // Received packets per second since start()
+    public double getReceivePacketsPerSecond() {
+        long elapsed = System.nanoTime() - startNanos;
+        return elapsed <= 0 ? 0 : packetsReceived.get() * 1e9 / elapsed;
+    }
+
+    // select() plus receive calls per received packet, including the final empty read of a drain
+    public double getReceiveSyscallsPerPacket() {
+        long packets = packetsReceived.get();
+        return packets == 0 ? 0 : (double) (selectCalls.get() + receiveCalls.get()) / packets;
+    }
+
+    public double getSendSyscallsPerPacket() {
+        long packets = packetsSent.get();
+        return packets == 0 ? 0 : (double) sendCalls.get() / packets;
+    }
+}
@@ -0,0 +1,33 @@
+package com.vernonsung.testaudiostream;
+
+// Clock that runs speed times as fast as another, e.g. to replay a capture at 10 times its
+// recorded speed with the pipeline really sleeping between frames: a 20 ms frame period then
+// passes in 2 ms of the underlying clock. It starts at the underlying clock's time.
+public class ScaledClock implements PipelineClock {
+    private final PipelineClock base;
+    private final double speed;
+    private final long origin;
+
+    public ScaledClock(PipelineClock base, double speed) {
+        if (!(speed > 0)) {
+            throw new IllegalArgumentException("Speed " + speed + " must be positive");
+        }
+        this.base = base;
+        this.speed = speed;
+        origin = base.nanoTime();
+    }
+
+    @Override
+    public long nanoTime() {
+        return origin + (long) ((base.nanoTime() - origin) * speed);
+    }
+
+    @Override
+    public void sleepUntil(long deadlineNanos) throws InterruptedException {
+        base.sleepUntil(origin + (long) Math.ceil((deadlineNanos - origin) / speed));
+    }
+
+    public double getSpeed() {
+        return speed;
+    }
+}
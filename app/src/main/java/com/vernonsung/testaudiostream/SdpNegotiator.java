@@ -0,0 +1,210 @@
+package com.vernonsung.testaudiostream;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+// SDP offer/answer (RFC 3264) for a single audio stream.
+// The offer lists every local format, most preferred first. The answerer picks the first format
+// of its own preference order that the offer also has, keeps the offerer's payload type number,
+// and answers with just that one. Both sides end up with the same Result: the codec, the
+// packetization time and where to send.
+// A format only counts as in common if the remote side's fmtp agrees with ours on the parameters
+// that change the payload format. The platform only does octet-aligned AMR, for instance, so AMR
+// without octet-align=1 isn't.
+public class SdpNegotiator {
+    public static final int DEFAULT_PTIME = 20;
+    public static final int DEFAULT_MAX_PTIME = 60;
+
+    // fmtp parameters that change the payload format, with their value when not given (RFC 4867)
+    private static final String[][] FORMAT_PARAMETERS = {
+            {"octet-align", "0"}, {"crc", "0"}, {"robust-sorting", "0"}, {"interleaving", "0"}};
+
+    // What to optimize for when more than one codec is in common
+    public enum Preference {
+        QUALITY("opus", "AMR-WB", "G722", "PCMU", "PCMA", "GSM-EFR", "AMR", "iLBC", "G729", "GSM"),
+        CPU("PCMU", "PCMA", "G722", "GSM", "iLBC", "G729", "GSM-EFR", "AMR", "AMR-WB", "opus");
+
+        private final String[] order;
+
+        Preference(String... order) {
+            this.order = order;
+        }
+
+        // Lower is better. Unknown encodings come last.
+        public int rank(String encodingName) {
+            for (int i = 0; i < order.length; i++) {
+                if (order[i].equalsIgnoreCase(encodingName)) {
+                    return i;
+                }
+            }
+            return order.length;
+        }
+    }
+
+    // The outcome of a negotiation
+    public static class Result {
+        // The format to send and receive, with the payload type of the offer
+        public final SessionDescription.Format format;
+        public final int ptime;
+        public final String remoteAddress;
+        public final int remotePort;
+
+        public Result(SessionDescription.Format format, int ptime, String remoteAddress, int remotePort) {
+            this.format = format;
+            this.ptime = ptime;
+            this.remoteAddress = remoteAddress;
+            this.remotePort = remotePort;
+        }
+
+        @Override
+        public String toString() {
+            return format.getRtpmap() + " pt " + format.payloadType + " ptime " + ptime + " -> " + remoteAddress
+                    + ":" + remotePort;
+        }
+    }
+
+    private final List<SessionDescription.Format> localFormats;
+    private final long sessionId;
+    private long sessionVersion;
+    private int ptime = DEFAULT_PTIME;
+    private int maxPtime = DEFAULT_MAX_PTIME;
+    private SessionDescription lastOffer;
+    private SessionDescription.Format assumed;
+
+    // supported are the formats this side can handle, in any order
+    public SdpNegotiator(List<SessionDescription.Format> supported, final Preference preference) {
+        if (supported.isEmpty()) {
+            throw new IllegalArgumentException("No format is supported");
+        }
+        localFormats = new ArrayList<SessionDescription.Format>(supported);
+        // Stable, so formats of the same rank keep their given order
+        Collections.sort(localFormats, new Comparator<SessionDescription.Format>() {
+            @Override
+            public int compare(SessionDescription.Format a, SessionDescription.Format b) {
+                return preference.rank(a.encodingName) - preference.rank(b.encodingName);
+            }
+        });
+        // NTP-like session ID as RFC 4566 suggests, kept positive
+        sessionId = new Random().nextLong() >>> 1;
+        assumed = localFormats.get(0);
+    }
+
+    // Local formats, most preferred first
+    public List<SessionDescription.Format> getLocalFormats() {
+        return Collections.unmodifiableList(localFormats);
+    }
+
+    public int getPtime() {
+        return ptime;
+    }
+
+    // Preferred and maximum packetization time in milliseconds
+    public void setPtime(int ptime, int maxPtime) {
+        if (ptime <= 0 || maxPtime < ptime) {
+            throw new IllegalArgumentException("ptime " + ptime + " and maxptime " + maxPtime + " are invalid");
+        }
+        this.ptime = ptime;
+        this.maxPtime = maxPtime;
+    }
+
+    // The result both sides get without exchanging SDP: the most preferred local format, or the
+    // one setAssumedEncoding() picked
+    public Result assume(String remoteAddress, int remotePort) {
+        return new Result(assumed, ptime, remoteAddress, remotePort);
+    }
+
+    // Assume the local format of this encoding when no SDP is exchanged, e.g. what peers without
+    // SDP have always used
+    public void setAssumedEncoding(String encodingName) {
+        for (SessionDescription.Format f : localFormats) {
+            if (f.encodingName.equalsIgnoreCase(encodingName)) {
+                assumed = f;
+                return;
+            }
+        }
+        throw new IllegalArgumentException(encodingName + " isn't supported");
+    }
+
+    public SessionDescription createOffer(String address, int port) {
+        SessionDescription offer = newDescription(address, port);
+        for (SessionDescription.Format f : localFormats) {
+            offer.addFormat(f);
+        }
+        lastOffer = offer;
+        return offer;
+    }
+
+    // Pick the format to answer an offer with. Return null if nothing is in common.
+    public Result processOffer(SessionDescription offer) {
+        if (offer.getPort() == 0) {
+            return null;
+        }
+        for (SessionDescription.Format local : localFormats) {
+            for (SessionDescription.Format remote : offer.getFormats()) {
+                if (local.isSameCodec(remote) && agrees(local, remote)) {
+                    return new Result(remote, choosePtime(offer), offer.getAddress(), offer.getPort());
+                }
+            }
+        }
+        return null;
+    }
+
+    public SessionDescription createAnswer(Result result, String address, int port) {
+        SessionDescription answer = newDescription(address, port);
+        answer.addFormat(result.format);
+        answer.setPtime(result.ptime);
+        return answer;
+    }
+
+    // Check the answer to our last offer. Return null if it rejects the call or answers with a
+    // format we didn't offer.
+    public Result processAnswer(SessionDescription answer) {
+        if (lastOffer == null) {
+            throw new IllegalStateException("No offer was made");
+        }
+        if (answer.getPort() == 0) {
+            return null;
+        }
+        for (SessionDescription.Format remote : answer.getFormats()) {
+            for (SessionDescription.Format offered : lastOffer.getFormats()) {
+                if (offered.payloadType == remote.payloadType && offered.isSameCodec(remote)
+                        && agrees(offered, remote)) {
+                    return new Result(remote, choosePtime(answer), answer.getAddress(), answer.getPort());
+                }
+            }
+        }
+        return null;
+    }
+
+    // Whether the remote format's fmtp asks for the same payload format as ours
+    private static boolean agrees(SessionDescription.Format local, SessionDescription.Format remote) {
+        for (String[] parameter : FORMAT_PARAMETERS) {
+            String ours = local.getParameter(parameter[0]);
+            String theirs = remote.getParameter(parameter[0]);
+            if (!(ours == null ? parameter[1] : ours).equals(theirs == null ? parameter[1] : theirs)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Use the remote side's ptime if it asks for one, within both sides' maxptime
+    private int choosePtime(SessionDescription remote) {
+        int chosen = remote.getPtime() > 0 ? remote.getPtime() : ptime;
+        int max = maxPtime;
+        if (remote.getMaxPtime() > 0) {
+            max = Math.min(max, remote.getMaxPtime());
+        }
+        return Math.max(1, Math.min(chosen, max));
+    }
+
+    private SessionDescription newDescription(String address, int port) {
+        SessionDescription d = new SessionDescription(sessionId, sessionVersion++, address, port);
+        d.setPtime(ptime);
+        d.setMaxPtime(maxPtime);
+        return d;
+    }
+}
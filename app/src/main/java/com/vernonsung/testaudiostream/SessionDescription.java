@@ -0,0 +1,387 @@
+package com.vernonsung.testaudiostream;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+// The part of an SDP session description (RFC 4566) an audio call needs: where to send, which
+// payload formats with their rtpmap and fmtp, and the packetization time. Only the first audio
+// media section is read. Everything else, including other media, is ignored.
+public class SessionDescription {
+    public static final String SENDRECV = "sendrecv";
+    public static final String SENDONLY = "sendonly";
+    public static final String RECVONLY = "recvonly";
+    public static final String INACTIVE = "inactive";
+
+    private static final String CRLF = "\r\n";
+
+    // One payload format of the media line
+    public static class Format {
+        public final int payloadType;
+        public final String encodingName;
+        public final int clockRate;
+        public final int channels;
+        // Format specific parameters, null if none
+        public final String fmtp;
+
+        public Format(int payloadType, String encodingName, int clockRate, int channels, String fmtp) {
+            if (payloadType < 0 || payloadType > 127) {
+                throw new IllegalArgumentException("Payload type " + payloadType + " is out of range");
+            }
+            if (clockRate <= 0 || channels <= 0) {
+                throw new IllegalArgumentException("Clock rate " + clockRate + " or channels " + channels + " is invalid");
+            }
+            this.payloadType = payloadType;
+            this.encodingName = encodingName;
+            this.clockRate = clockRate;
+            this.channels = channels;
+            this.fmtp = fmtp;
+        }
+
+        // Build from an rtpmap value without the payload type, e.g. "AMR/8000" or "opus/48000/2"
+        public static Format fromRtpmap(int payloadType, String rtpmap, String fmtp) {
+            String[] parts = rtpmap.trim().split("/");
+            if (parts.length < 2 || parts.length > 3 || parts[0].isEmpty()) {
+                throw new IllegalArgumentException("rtpmap " + rtpmap + " is invalid");
+            }
+            int clockRate = parseInt(parts[1], "clock rate");
+            int channels = parts.length == 3 ? parseInt(parts[2], "channels") : 1;
+            return new Format(payloadType, parts[0], clockRate, channels, fmtp);
+        }
+
+        public String getRtpmap() {
+            return encodingName + "/" + clockRate + (channels == 1 ? "" : "/" + channels);
+        }
+
+        // Same codec regardless of the payload type number
+        public boolean isSameCodec(Format other) {
+            return encodingName.equalsIgnoreCase(other.encodingName) && clockRate == other.clockRate
+                    && channels == other.channels;
+        }
+
+        // Value of one fmtp parameter, e.g. "1" for "octet-align" in "octet-align=1; mode-set=7", or
+        // null if it isn't given
+        public String getParameter(String name) {
+            if (fmtp == null) {
+                return null;
+            }
+            for (String parameter : fmtp.split(";")) {
+                int equals = parameter.indexOf('=');
+                if (equals > 0 && parameter.substring(0, equals).trim().equalsIgnoreCase(name)) {
+                    return parameter.substring(equals + 1).trim();
+                }
+            }
+            return null;
+        }
+
+        public Format withPayloadType(int payloadType) {
+            return new Format(payloadType, encodingName, clockRate, channels, fmtp);
+        }
+
+        @Override
+        public String toString() {
+            return payloadType + " " + getRtpmap() + (fmtp == null ? "" : " " + fmtp);
+        }
+    }
+
+    private long sessionId;
+    private long sessionVersion;
+    private String address;
+    private int port;
+    private final List<Format> formats = new ArrayList<Format>();
+    // Milliseconds, -1 if not given
+    private int ptime = -1;
+    private int maxPtime = -1;
+    private String direction = SENDRECV;
+
+    public SessionDescription(long sessionId, long sessionVersion, String address, int port) {
+        this.sessionId = sessionId;
+        this.sessionVersion = sessionVersion;
+        this.address = address;
+        setPort(port);
+    }
+
+    // Parse SDP text. Throw IllegalArgumentException if it's malformed or has no audio.
+    public static SessionDescription parse(String sdp) {
+        SessionDescription d = new SessionDescription(0, 0, null, 0);
+        String sessionAddress = null;
+        String mediaAddress = null;
+        // 0 in the session section, 1 in the audio section, 2 in any other media section
+        int section = 0;
+        boolean audioFound = false;
+        List<Integer> payloadTypes = new ArrayList<Integer>();
+        List<String> rtpmaps = new ArrayList<String>();
+        List<String> fmtps = new ArrayList<String>();
+        String[] lines = sdp.split("\r?\n");
+        if (lines.length == 0 || !lines[0].trim().equals("v=0")) {
+            throw new IllegalArgumentException("SDP doesn't start with v=0");
+        }
+        for (String line : lines) {
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            if (line.length() < 2 || line.charAt(1) != '=') {
+                throw new IllegalArgumentException("SDP line \"" + line + "\" is malformed");
+            }
+            char type = line.charAt(0);
+            String value = line.substring(2);
+            if (type == 'm') {
+                if (!audioFound && value.startsWith("audio ")) {
+                    section = 1;
+                    audioFound = true;
+                    parseMedia(d, value, payloadTypes);
+                } else {
+                    section = 2;
+                }
+                continue;
+            }
+            if (section == 2) {
+                continue;
+            }
+            switch (type) {
+                case 'o':
+                    parseOrigin(d, value);
+                    break;
+                case 'c':
+                    if (section == 0) {
+                        sessionAddress = parseConnection(value);
+                    } else {
+                        mediaAddress = parseConnection(value);
+                    }
+                    break;
+                case 'a':
+                    if (section == 1) {
+                        parseAttribute(d, value, rtpmaps, fmtps);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        if (!audioFound) {
+            throw new IllegalArgumentException("SDP has no audio media");
+        }
+        d.address = mediaAddress != null ? mediaAddress : sessionAddress;
+        if (d.address == null) {
+            throw new IllegalArgumentException("SDP has no connection address");
+        }
+        for (int pt : payloadTypes) {
+            String rtpmap = findAttribute(rtpmaps, pt);
+            String fmtp = findAttribute(fmtps, pt);
+            if (rtpmap != null) {
+                d.formats.add(Format.fromRtpmap(pt, rtpmap, fmtp));
+            } else {
+                Format f = getStaticFormat(pt);
+                // A dynamic payload type without rtpmap can't be understood
+                if (f != null) {
+                    d.formats.add(fmtp == null ? f : new Format(pt, f.encodingName, f.clockRate, f.channels, fmtp));
+                }
+            }
+        }
+        return d;
+    }
+
+    private static void parseOrigin(SessionDescription d, String value) {
+        // <username> <sess-id> <sess-version> <nettype> <addrtype> <unicast-address>
+        String[] fields = value.split(" +");
+        if (fields.length != 6) {
+            throw new IllegalArgumentException("o=" + value + " is malformed");
+        }
+        d.sessionId = parseLong(fields[1], "session ID");
+        d.sessionVersion = parseLong(fields[2], "session version");
+    }
+
+    private static String parseConnection(String value) {
+        // IN IP4 <address>[/ttl]
+        String[] fields = value.split(" +");
+        if (fields.length != 3 || !fields[0].equals("IN") || !(fields[1].equals("IP4") || fields[1].equals("IP6"))) {
+            throw new IllegalArgumentException("c=" + value + " is malformed");
+        }
+        int slash = fields[2].indexOf('/');
+        return slash < 0 ? fields[2] : fields[2].substring(0, slash);
+    }
+
+    private static void parseMedia(SessionDescription d, String value, List<Integer> payloadTypes) {
+        // audio <port>[/<count>] <proto> <fmt> ...
+        String[] fields = value.split(" +");
+        if (fields.length < 4) {
+            throw new IllegalArgumentException("m=" + value + " is malformed");
+        }
+        int slash = fields[1].indexOf('/');
+        d.setPort(parseInt(slash < 0 ? fields[1] : fields[1].substring(0, slash), "port"));
+        if (!fields[2].startsWith("RTP/")) {
+            throw new IllegalArgumentException("Media transport " + fields[2] + " isn't RTP");
+        }
+        for (int i = 3; i < fields.length; i++) {
+            payloadTypes.add(parseInt(fields[i], "payload type"));
+        }
+    }
+
+    private static void parseAttribute(SessionDescription d, String value, List<String> rtpmaps, List<String> fmtps) {
+        int colon = value.indexOf(':');
+        String name = colon < 0 ? value : value.substring(0, colon);
+        String content = colon < 0 ? null : value.substring(colon + 1).trim();
+        switch (name) {
+            case "rtpmap":
+                rtpmaps.add(content);
+                break;
+            case "fmtp":
+                fmtps.add(content);
+                break;
+            case "ptime":
+                d.ptime = parseInt(content, "ptime");
+                break;
+            case "maxptime":
+                d.maxPtime = parseInt(content, "maxptime");
+                break;
+            case SENDRECV:
+            case SENDONLY:
+            case RECVONLY:
+            case INACTIVE:
+                d.direction = name;
+                break;
+            default:
+                break;
+        }
+    }
+
+    // Value after the payload type of the attribute "<pt> <value>", or null if absent
+    private static String findAttribute(List<String> values, int payloadType) {
+        String prefix = payloadType + " ";
+        for (String v : values) {
+            if (v != null && v.startsWith(prefix)) {
+                return v.substring(prefix.length()).trim();
+            }
+        }
+        return null;
+    }
+
+    // Static audio payload types of RFC 3551 that may appear without rtpmap
+    private static Format getStaticFormat(int payloadType) {
+        switch (payloadType) {
+            case 0:
+                return new Format(0, "PCMU", 8000, 1, null);
+            case 3:
+                return new Format(3, "GSM", 8000, 1, null);
+            case 8:
+                return new Format(8, "PCMA", 8000, 1, null);
+            case 9:
+                return new Format(9, "G722", 8000, 1, null);
+            case 18:
+                return new Format(18, "G729", 8000, 1, null);
+            default:
+                return null;
+        }
+    }
+
+    private static int parseInt(String s, String what) {
+        try {
+            return Integer.parseInt(s.trim());
+        } catch (NumberFormatException | NullPointerException e) {
+            throw new IllegalArgumentException("SDP " + what + " \"" + s + "\" isn't a number");
+        }
+    }
+
+    private static long parseLong(String s, String what) {
+        try {
+            return Long.parseLong(s.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("SDP " + what + " \"" + s + "\" isn't a number");
+        }
+    }
+
+    public long getSessionId() {
+        return sessionId;
+    }
+
+    public long getSessionVersion() {
+        return sessionVersion;
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    // 0 means the media is rejected
+    public int getPort() {
+        return port;
+    }
+
+    public void setPort(int port) {
+        if (port < 0 || port > 65535) {
+            throw new IllegalArgumentException("Port " + port + " is out of range");
+        }
+        this.port = port;
+    }
+
+    public List<Format> getFormats() {
+        return Collections.unmodifiableList(formats);
+    }
+
+    public void addFormat(Format format) {
+        for (Format f : formats) {
+            if (f.payloadType == format.payloadType) {
+                throw new IllegalArgumentException("Payload type " + format.payloadType + " is used twice");
+            }
+        }
+        formats.add(format);
+    }
+
+    public int getPtime() {
+        return ptime;
+    }
+
+    public void setPtime(int ptime) {
+        this.ptime = ptime;
+    }
+
+    public int getMaxPtime() {
+        return maxPtime;
+    }
+
+    public void setMaxPtime(int maxPtime) {
+        this.maxPtime = maxPtime;
+    }
+
+    public String getDirection() {
+        return direction;
+    }
+
+    public void setDirection(String direction) {
+        this.direction = direction;
+    }
+
+    // SDP text with CRLF line endings
+    @Override
+    public String toString() {
+        String addressType = address.indexOf(':') >= 0 ? "IP6" : "IP4";
+        StringBuilder b = new StringBuilder();
+        b.append("v=0").append(CRLF);
+        b.append("o=- ").append(sessionId).append(' ').append(sessionVersion).append(" IN ").append(addressType)
+                .append(' ').append(address).append(CRLF);
+        b.append("s=-").append(CRLF);
+        b.append("c=IN ").append(addressType).append(' ').append(address).append(CRLF);
+        b.append("t=0 0").append(CRLF);
+        b.append("m=audio ").append(port).append(" RTP/AVP");
+        for (Format f : formats) {
+            b.append(' ').append(f.payloadType);
+        }
+        b.append(CRLF);
+        for (Format f : formats) {
+            b.append("a=rtpmap:").append(f.payloadType).append(' ').append(f.getRtpmap()).append(CRLF);
+            if (f.fmtp != null) {
+                b.append("a=fmtp:").append(f.payloadType).append(' ').append(f.fmtp).append(CRLF);
+            }
+        }
+        if (ptime > 0) {
+            b.append(String.format(Locale.US, "a=ptime:%d", ptime)).append(CRLF);
+        }
+        if (maxPtime > 0) {
+            b.append(String.format(Locale.US, "a=maxptime:%d", maxPtime)).append(CRLF);
+        }
+        b.append("a=").append(direction).append(CRLF);
+        return b.toString();
+    }
+}
@@ -0,0 +1,436 @@
+package com.vernonsung.testaudiostream;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+// SRTP and SRTCP protection of one direction of a call with AES_CM_128_HMAC_SHA1_80 (RFC 3711):
+// AES in counter mode for confidentiality, and an 80-bit HMAC-SHA1 tag for integrity.
+// Session keys are derived from the master key and salt once, with a key derivation rate of 0.
+// Every session key gets one AES cipher in ECB mode and one Mac, initialized once and reused for
+// every packet, so the key schedules are computed only once. The counter blocks for a packet are
+// laid out in a buffer and encrypted in one call, which runs on the AES instructions of the CPU
+// where the provider has them. The key stream for the next packet can also be computed ahead with
+// precompute(), off the path of the packet itself.
+// Packets are protected and unprotected in place in heap buffers that have room for the tag.
+// A context isn't thread-safe; use one per direction, e.g. one on the send lane and one on the
+// receive lane, each with its own master key as SDES gives them.
+// The tag covers the RTP header, so anything that rewrites it, like RtpRelay, has to unprotect
+// and protect again.
+public class SrtpContext {
+    public static final int MASTER_KEY_LENGTH = 16;
+    public static final int MASTER_SALT_LENGTH = 14;
+    public static final int AUTH_KEY_LENGTH = 20;
+    public static final int AUTH_TAG_LENGTH = 10;
+    // E flag and SRTCP index after an SRTCP packet
+    public static final int SRTCP_INDEX_LENGTH = 4;
+    // Packets a receiver accepts out of order behind the newest
+    public static final int REPLAY_WINDOW = 64;
+    // Most SSRCs received on one context
+    public static final int MAX_STREAMS = 16;
+
+    // Results of unprotect() other than a length
+    public static final int MALFORMED = -1;
+    public static final int AUTH_FAILED = -2;
+    public static final int REPLAYED = -3;
+
+    // Key derivation labels
+    private static final int LABEL_RTP_CIPHER = 0;
+    private static final int LABEL_RTP_AUTH = 1;
+    private static final int LABEL_RTP_SALT = 2;
+    private static final int LABEL_RTCP_CIPHER = 3;
+    private static final int LABEL_RTCP_AUTH = 4;
+    private static final int LABEL_RTCP_SALT = 5;
+    private static final int BLOCK = 16;
+    private static final int MAX_BLOCKS = (CallPipeline.MAX_PACKET_SIZE + BLOCK - 1) / BLOCK;
+    // Stream key of the SRTCP state of an SSRC
+    private static final long RTCP_STREAM = 1L << 32;
+
+    // Rollover counter and replay window of one SSRC
+    private static class Stream {
+        long ssrc = -1;
+        long roc;
+        int highestSequence;
+        long highestIndex = -1;
+        long window;
+        long lastUsed;
+    }
+
+    // Session keys of RTP or RTCP
+    private static class Keys {
+        final Cipher cipher;
+        final Mac mac;
+        final byte[] salt;
+
+        Keys(Cipher prf, byte[] masterSalt, int cipherLabel, int authLabel, int saltLabel)
+                throws GeneralSecurityException {
+            byte[] key = derive(prf, masterSalt, cipherLabel, MASTER_KEY_LENGTH);
+            cipher = Cipher.getInstance("AES/ECB/NoPadding");
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"));
+            mac = Mac.getInstance("HmacSHA1");
+            mac.init(new SecretKeySpec(derive(prf, masterSalt, authLabel, AUTH_KEY_LENGTH), "HmacSHA1"));
+            salt = derive(prf, masterSalt, saltLabel, MASTER_SALT_LENGTH);
+        }
+    }
+
+    private final Keys rtp;
+    private final Keys rtcp;
+    private final RtpPacket header = new RtpPacket();
+    private final Stream[] streams = new Stream[MAX_STREAMS];
+    private long useCount;
+
+    // Buffers reused for every packet
+    private final byte[] iv = new byte[BLOCK];
+    private final byte[] counters = new byte[MAX_BLOCKS * BLOCK];
+    private final byte[] keystream = new byte[MAX_BLOCKS * BLOCK];
+    private final byte[] digest = new byte[AUTH_KEY_LENGTH];
+    private final byte[] roc = new byte[4];
+
+    // Key stream computed ahead by precompute()
+    private final byte[] precomputed = new byte[MAX_BLOCKS * BLOCK];
+    private long precomputedSsrc = -1;
+    private long precomputedIndex = -1;
+    private int precomputedLength;
+
+    // Sender side of SRTCP
+    private int rtcpIndex;
+
+    private long protectedCount;
+    private long precomputedCount;
+    private long authFailedCount;
+    private long replayedCount;
+
+    public SrtpContext(byte[] masterKey, byte[] masterSalt) throws GeneralSecurityException {
+        if (masterKey.length != MASTER_KEY_LENGTH || masterSalt.length != MASTER_SALT_LENGTH) {
+            throw new IllegalArgumentException("Master key of " + masterKey.length + " bytes or salt of "
+                    + masterSalt.length + " bytes is the wrong size");
+        }
+        Cipher prf = Cipher.getInstance("AES/ECB/NoPadding");
+        prf.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(masterKey, "AES"));
+        rtp = new Keys(prf, masterSalt, LABEL_RTP_CIPHER, LABEL_RTP_AUTH, LABEL_RTP_SALT);
+        rtcp = new Keys(prf, masterSalt, LABEL_RTCP_CIPHER, LABEL_RTCP_AUTH, LABEL_RTCP_SALT);
+        for (int i = 0; i < MAX_STREAMS; i++) {
+            streams[i] = new Stream();
+        }
+    }
+
+    // Session key of label: AES-CM of the master key over (master salt XOR label at byte 7) * 2^16.
+    // With label 0 it's the plain AES-CM key stream of IV masterSalt * 2^16.
+    static byte[] derive(Cipher prf, byte[] masterSalt, int label, int length) throws GeneralSecurityException {
+        byte[] iv = new byte[BLOCK];
+        System.arraycopy(masterSalt, 0, iv, 0, MASTER_SALT_LENGTH);
+        iv[7] ^= (byte) label;
+        byte[] out = new byte[(length + BLOCK - 1) / BLOCK * BLOCK];
+        byte[] counters = new byte[out.length];
+        fillCounters(iv, counters, out.length / BLOCK);
+        prf.doFinal(counters, 0, counters.length, out, 0);
+        return Arrays.copyOf(out, length);
+    }
+
+    // Counter blocks of AES-CM: the IV with the block number in its last two bytes
+    private static void fillCounters(byte[] iv, byte[] counters, int blocks) {
+        for (int j = 0; j < blocks; j++) {
+            int o = j * BLOCK;
+            System.arraycopy(iv, 0, counters, o, BLOCK - 2);
+            counters[o + BLOCK - 2] = (byte) (iv[BLOCK - 2] ^ (j >>> 8));
+            counters[o + BLOCK - 1] = (byte) (iv[BLOCK - 1] ^ j);
+        }
+    }
+
+    // AES-CM key stream of length bytes for IV (salt * 2^16) XOR (SSRC * 2^64) XOR (index * 2^16)
+    private void keystream(Keys keys, long ssrc, long index, int length, byte[] out) {
+        System.arraycopy(keys.salt, 0, iv, 0, MASTER_SALT_LENGTH);
+        iv[14] = 0;
+        iv[15] = 0;
+        for (int i = 0; i < 4; i++) {
+            iv[4 + i] ^= (byte) (ssrc >>> (24 - 8 * i));
+        }
+        for (int i = 0; i < 6; i++) {
+            iv[8 + i] ^= (byte) (index >>> (40 - 8 * i));
+        }
+        int blocks = (length + BLOCK - 1) / BLOCK;
+        fillCounters(iv, counters, blocks);
+        try {
+            keys.cipher.update(counters, 0, blocks * BLOCK, out, 0);
+        } catch (ShortBufferException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void tag(Keys keys, byte[] data, int offset, int length, long rolloverCounter, boolean withRoc) {
+        keys.mac.update(data, offset, length);
+        if (withRoc) {
+            roc[0] = (byte) (rolloverCounter >>> 24);
+            roc[1] = (byte) (rolloverCounter >>> 16);
+            roc[2] = (byte) (rolloverCounter >>> 8);
+            roc[3] = (byte) rolloverCounter;
+            keys.mac.update(roc, 0, 4);
+        }
+        try {
+            keys.mac.doFinal(digest, 0);
+        } catch (ShortBufferException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private Stream stream(long ssrc) {
+        Stream oldest = streams[0];
+        for (Stream s : streams) {
+            if (s.ssrc == ssrc) {
+                s.lastUsed = ++useCount;
+                return s;
+            }
+            if (s.lastUsed < oldest.lastUsed) {
+                oldest = s;
+            }
+        }
+        // A new source takes the place of the one unheard of longest
+        oldest.ssrc = ssrc;
+        oldest.roc = 0;
+        oldest.highestIndex = -1;
+        oldest.window = 0;
+        oldest.lastUsed = ++useCount;
+        return oldest;
+    }
+
+    // Packet index from the sequence number: the rollover counter is guessed as the one that puts
+    // the packet closest to the newest (RFC 3711 section 3.3.1)
+    private static long estimateIndex(Stream s, int sequence) {
+        if (s.highestIndex < 0) {
+            return sequence;
+        }
+        long v = s.roc;
+        if (s.highestSequence < 32768) {
+            if (sequence - s.highestSequence > 32768 && v > 0) {
+                v--;
+            }
+        } else if (s.highestSequence - 32768 > sequence) {
+            v++;
+        }
+        return (v << 16) | sequence;
+    }
+
+    private static void advance(Stream s, long index) {
+        if (index > s.highestIndex) {
+            long shift = s.highestIndex < 0 ? REPLAY_WINDOW : index - s.highestIndex;
+            s.window = shift >= REPLAY_WINDOW ? 1 : (s.window << shift) | 1;
+            s.highestIndex = index;
+            s.highestSequence = (int) (index & 0xFFFF);
+            s.roc = index >>> 16;
+        } else {
+            s.window |= 1L << (s.highestIndex - index);
+        }
+    }
+
+    private static boolean isReplay(Stream s, long index) {
+        if (s.highestIndex < 0 || index > s.highestIndex) {
+            return false;
+        }
+        long behind = s.highestIndex - index;
+        return behind >= REPLAY_WINDOW || (s.window & (1L << behind)) != 0;
+    }
+
+    // Compute the key stream of the RTP packet with sequenceNumber of ssrc ahead, for a payload
+    // of up to length bytes. The next protect() of that packet uses it.
+    public void precompute(long ssrc, int sequenceNumber, int length) {
+        Stream s = stream(ssrc);
+        long index = estimateIndex(s, sequenceNumber);
+        int n = Math.min(length, precomputed.length);
+        keystream(rtp, ssrc, index, n, precomputed);
+        precomputedSsrc = ssrc;
+        precomputedIndex = index;
+        precomputedLength = n;
+    }
+
+    // Encrypt the RTP packet between position and limit in place and append the tag, moving the
+    // limit past it. The buffer must have room for the tag. Return the new length, or MALFORMED.
+    public int protect(ByteBuffer packet) {
+        if (!packet.hasArray() || !header.parse(packet) || packet.remaining() > CallPipeline.MAX_PACKET_SIZE
+                || packet.limit() + AUTH_TAG_LENGTH > packet.capacity()) {
+            return MALFORMED;
+        }
+        byte[] data = packet.array();
+        int base = packet.arrayOffset();
+        long ssrc = header.getSsrc();
+        Stream s = stream(ssrc);
+        long index = estimateIndex(s, header.getSequenceNumber());
+        int payload = base + header.getPayloadOffset();
+        // Padding is encrypted too
+        int length = packet.limit() - header.getPayloadOffset();
+        byte[] stream;
+        if (precomputedSsrc == ssrc && precomputedIndex == index && precomputedLength >= length) {
+            stream = precomputed;
+            precomputedCount++;
+        } else {
+            keystream(rtp, ssrc, index, length, keystream);
+            stream = keystream;
+        }
+        precomputedIndex = -1;
+        for (int i = 0; i < length; i++) {
+            data[payload + i] ^= stream[i];
+        }
+        advance(s, index);
+        int start = base + packet.position();
+        int end = base + packet.limit();
+        tag(rtp, data, start, end - start, index >>> 16, true);
+        System.arraycopy(digest, 0, data, end, AUTH_TAG_LENGTH);
+        packet.limit(packet.limit() + AUTH_TAG_LENGTH);
+        protectedCount++;
+        return packet.remaining();
+    }
+
+    // Check the tag of the SRTP packet between position and limit, reject replays, and decrypt
+    // it in place with the limit moved back before the tag. Return the new length, or MALFORMED,
+    // AUTH_FAILED or REPLAYED with the packet left alone.
+    public int unprotect(ByteBuffer packet) {
+        if (!packet.hasArray() || packet.remaining() < RtpPacket.FIXED_HEADER_LENGTH + AUTH_TAG_LENGTH
+                || packet.remaining() > CallPipeline.MAX_PACKET_SIZE + AUTH_TAG_LENGTH) {
+            return MALFORMED;
+        }
+        int limit = packet.limit();
+        packet.limit(limit - AUTH_TAG_LENGTH);
+        byte[] data = packet.array();
+        int start = packet.arrayOffset() + packet.position();
+        int end = packet.arrayOffset() + packet.limit();
+        // The padding count is encrypted, so only the header can be checked before decryption
+        byte first = data[start];
+        data[start] = (byte) (first & ~0x20);
+        boolean valid = header.parse(packet);
+        data[start] = first;
+        if (!valid) {
+            packet.limit(limit);
+            return MALFORMED;
+        }
+        long ssrc = header.getSsrc();
+        Stream s = find(ssrc);
+        long index = s == null ? header.getSequenceNumber() : estimateIndex(s, header.getSequenceNumber());
+        if (s != null && isReplay(s, index)) {
+            packet.limit(limit);
+            replayedCount++;
+            return REPLAYED;
+        }
+        tag(rtp, data, start, end - start, index >>> 16, true);
+        if (!equalTags(digest, data, end)) {
+            packet.limit(limit);
+            authFailedCount++;
+            return AUTH_FAILED;
+        }
+        int payload = packet.arrayOffset() + header.getPayloadOffset();
+        int length = end - payload;
+        keystream(rtp, ssrc, index, length, keystream);
+        for (int i = 0; i < length; i++) {
+            data[payload + i] ^= keystream[i];
+        }
+        // Only a genuine packet makes state for a new source
+        advance(s == null ? stream(ssrc) : s, index);
+        return packet.remaining();
+    }
+
+    // Encrypt the RTCP compound packet between position and limit in place, after its first
+    // header and SSRC, and append the E flag with the SRTCP index and the tag. Return the new
+    // length, or MALFORMED.
+    public int protectRtcp(ByteBuffer packet) {
+        int length = packet.remaining();
+        if (!packet.hasArray() || length < 8 || length > CallPipeline.MAX_PACKET_SIZE
+                || packet.limit() + SRTCP_INDEX_LENGTH + AUTH_TAG_LENGTH > packet.capacity()) {
+            return MALFORMED;
+        }
+        byte[] data = packet.array();
+        int start = packet.arrayOffset() + packet.position();
+        int end = start + length;
+        long ssrc = packet.getInt(packet.position() + 4) & 0xFFFFFFFFL;
+        int index = rtcpIndex;
+        rtcpIndex = (rtcpIndex + 1) & 0x7FFFFFFF;
+        keystream(rtcp, ssrc, index, length - 8, keystream);
+        for (int i = 0; i < length - 8; i++) {
+            data[start + 8 + i] ^= keystream[i];
+        }
+        int word = index | 0x80000000;
+        data[end] = (byte) (word >>> 24);
+        data[end + 1] = (byte) (word >>> 16);
+        data[end + 2] = (byte) (word >>> 8);
+        data[end + 3] = (byte) word;
+        tag(rtcp, data, start, length + SRTCP_INDEX_LENGTH, 0, false);
+        System.arraycopy(digest, 0, data, end + SRTCP_INDEX_LENGTH, AUTH_TAG_LENGTH);
+        packet.limit(packet.limit() + SRTCP_INDEX_LENGTH + AUTH_TAG_LENGTH);
+        protectedCount++;
+        return packet.remaining();
+    }
+
+    // Check and decrypt an SRTCP packet in place, as unprotect() does for SRTP
+    public int unprotectRtcp(ByteBuffer packet) {
+        int length = packet.remaining() - SRTCP_INDEX_LENGTH - AUTH_TAG_LENGTH;
+        if (!packet.hasArray() || length < 8 || length > CallPipeline.MAX_PACKET_SIZE) {
+            return MALFORMED;
+        }
+        byte[] data = packet.array();
+        int start = packet.arrayOffset() + packet.position();
+        int end = start + length;
+        long ssrc = packet.getInt(packet.position() + 4) & 0xFFFFFFFFL;
+        int word = packet.getInt(packet.position() + length);
+        long index = word & 0x7FFFFFFF;
+        // SRTCP indexes are explicit and never roll over. They are kept apart from the RTP
+        // state of the same SSRC by a key above 32 bits.
+        long key = ssrc | RTCP_STREAM;
+        Stream s = find(key);
+        if (s != null && isReplay(s, index)) {
+            replayedCount++;
+            return REPLAYED;
+        }
+        tag(rtcp, data, start, length + SRTCP_INDEX_LENGTH, 0, false);
+        if (!equalTags(digest, data, end + SRTCP_INDEX_LENGTH)) {
+            authFailedCount++;
+            return AUTH_FAILED;
+        }
+        if (word < 0) {
+            keystream(rtcp, ssrc, index, length - 8, keystream);
+            for (int i = 0; i < length - 8; i++) {
+                data[start + 8 + i] ^= keystream[i];
+            }
+        }
+        advance(s == null ? stream(key) : s, index);
+        packet.limit(packet.position() + length);
+        return length;
+    }
+
+    // State of ssrc, or null if it hasn't been seen
+    private Stream find(long ssrc) {
+        for (Stream s : streams) {
+            if (s.ssrc == ssrc) {
+                return s;
+            }
+        }
+        return null;
+    }
+
+    private static boolean equalTags(byte[] digest, byte[] data, int offset) {
+        int difference = 0;
+        for (int i = 0; i < AUTH_TAG_LENGTH; i++) {
+            difference |= digest[i] ^ data[offset + i];
+        }
+        return difference == 0;
+    }
+
+    // Packets protected, RTP and RTCP
+    public long getProtectedCount() {
+        return protectedCount;
+    }
+
+    // Packets protected with a key stream from precompute()
+    public long getPrecomputedCount() {
+        return precomputedCount;
+    }
+
+    public long getAuthFailedCount() {
+        return authFailedCount;
+    }
+
+    public long getReplayedCount() {
+        return replayedCount;
+    }
+}
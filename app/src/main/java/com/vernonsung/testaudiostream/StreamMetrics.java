@@ -0,0 +1,217 @@
+package com.vernonsung.testaudiostream;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Live call-quality metrics of one stream.
+// The packet path only updates atomic counters and fixed-size histograms, so recording never
+// locks or allocates. Readers such as the UI take a Snapshot, which is where bitrates are
+// computed from the byte counts since the previous snapshot, on the pipeline clock of the stream.
+// A stream only has the figures its packet path feeds in. What nothing fed is -1 in the snapshot
+// and "-" in its text, rather than a zero that looks measured.
+public class StreamMetrics {
+    // Milliseconds
+    private static final long[] RTT_BOUNDS = {10, 20, 50, 100, 150, 200, 300, 500, 1000, 2000};
+    // Frames
+    private static final long[] DEPTH_BOUNDS = {0, 1, 2, 3, 4, 5, 6, 8, 10, 15, 20, 30, 50};
+
+    private final String name;
+    private final AtomicLong packetsSent = new AtomicLong();
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong packetsReceived = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong packetsExpected = new AtomicLong(-1);
+    private final AtomicLong packetsLost = new AtomicLong();
+    private final AtomicLong lateDrops = new AtomicLong();
+    private final AtomicLong concealedFrames = new AtomicLong();
+    private final AtomicLong jitterMicros = new AtomicLong(-1);
+    private final AtomicLong rttMicros = new AtomicLong(-1);
+    private final AtomicLong jitterBufferDepth = new AtomicLong(-1);
+    private final AtomicLong timeToFirstPacketMillis = new AtomicLong(-1);
+    private final AtomicLong silentFrames = new AtomicLong();
+    private final AtomicLong suppressedFrames = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+    private final Histogram rttHistogram = new Histogram(RTT_BOUNDS);
+    private final Histogram depthHistogram = new Histogram(DEPTH_BOUNDS);
+    private final PipelineClock clock;
+    private final long createdNanos;
+
+    // Reader side state for bitrate computation
+    private long lastSnapshotNanos;
+    private long lastBytesSent;
+    private long lastBytesReceived;
+    private long lastBytesSaved;
+
+    public StreamMetrics(String name) {
+        this(name, PipelineClock.SYSTEM);
+    }
+
+    // Durations and bitrates go by clock, the one the stream's packet path runs on
+    public StreamMetrics(String name, PipelineClock clock) {
+        this.name = name;
+        this.clock = clock;
+        createdNanos = clock.nanoTime();
+        lastSnapshotNanos = createdNanos;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void onPacketSent(int bytes) {
+        packetsSent.incrementAndGet();
+        bytesSent.addAndGet(bytes);
+    }
+
+    public void onPacketReceived(int bytes) {
+        packetsReceived.incrementAndGet();
+        bytesReceived.addAndGet(bytes);
+    }
+
+    // Packets and bytes counted elsewhere, e.g. by the system's traffic counters, in bulk
+    public void addTraffic(long sentPackets, long sentBytes, long receivedPackets, long receivedBytes) {
+        packetsSent.addAndGet(sentPackets);
+        bytesSent.addAndGet(sentBytes);
+        packetsReceived.addAndGet(receivedPackets);
+        bytesReceived.addAndGet(receivedBytes);
+    }
+
+    // One frame of silence under discontinuous transmission, sent as comfort noise or suppressed,
+    // and the bytes it saved against sending it as speech
+    public void onSilentFrame(boolean suppressed, int savedBytes) {
+        silentFrames.incrementAndGet();
+        if (suppressed) {
+            suppressedFrames.incrementAndGet();
+        }
+        bytesSaved.addAndGet(savedBytes);
+    }
+
+    // From the request to start the call to its first packet on the wire
+    public void setTimeToFirstPacket(long millis) {
+        timeToFirstPacketMillis.set(millis);
+    }
+
+    // Cumulative expected and lost counts, as RtpSequenceTracker keeps them
+    public void setLoss(long expected, long lost) {
+        packetsExpected.set(expected);
+        packetsLost.set(lost);
+    }
+
+    public void setJitterMicros(long jitter) {
+        jitterMicros.set(jitter);
+    }
+
+    public void onRtt(long rtt) {
+        rttMicros.set(rtt);
+        rttHistogram.record(rtt / 1000);
+    }
+
+    public void onJitterBufferDepth(int frames) {
+        jitterBufferDepth.set(frames);
+        depthHistogram.record(frames);
+    }
+
+    public void setPlayoutCounts(long late, long concealed) {
+        lateDrops.set(late);
+        concealedFrames.set(concealed);
+    }
+
+    public Histogram getRttHistogram() {
+        return rttHistogram;
+    }
+
+    public Histogram getDepthHistogram() {
+        return depthHistogram;
+    }
+
+    // Read everything at once. Bitrates cover the time since the previous snapshot.
+    public synchronized Snapshot snapshot() {
+        long now = clock.nanoTime();
+        long sent = bytesSent.get();
+        long received = bytesReceived.get();
+        long saved = bytesSaved.get();
+        long elapsed = now - lastSnapshotNanos;
+        Snapshot s = new Snapshot();
+        s.name = name;
+        s.durationMillis = (now - createdNanos) / 1000000;
+        s.packetsSent = packetsSent.get();
+        s.packetsReceived = packetsReceived.get();
+        s.packetsLost = packetsLost.get();
+        long expected = packetsExpected.get();
+        s.lossPercent = expected < 0 ? -1 : (expected == 0 ? 0 : Math.max(0, 100.0 * s.packetsLost / expected));
+        s.lateDrops = lateDrops.get();
+        s.concealedFrames = concealedFrames.get();
+        long jitter = jitterMicros.get();
+        s.jitterMillis = jitter < 0 ? -1 : jitter / 1000.0;
+        long rtt = rttMicros.get();
+        s.rttMillis = rtt < 0 ? -1 : rtt / 1000.0;
+        s.rttP95Millis = rttHistogram.getPercentile(95);
+        s.jitterBufferDepth = (int) jitterBufferDepth.get();
+        s.jitterBufferDepthP95 = depthHistogram.getTotalCount() == 0 ? -1 : (int) depthHistogram.getPercentile(95);
+        s.timeToFirstPacketMillis = timeToFirstPacketMillis.get();
+        s.silentFrames = silentFrames.get();
+        s.suppressedFrames = suppressedFrames.get();
+        s.bytesSaved = saved;
+        s.savedPercent = saved + sent <= 0 ? 0 : 100.0 * saved / (saved + sent);
+        s.sendKbps = s.packetsSent == 0 ? -1 : 0;
+        s.receiveKbps = s.packetsReceived == 0 ? -1 : 0;
+        if (elapsed > 0) {
+            if (s.packetsSent > 0) {
+                s.sendKbps = (sent - lastBytesSent) * 8 * 1e6 / elapsed;
+            }
+            if (s.packetsReceived > 0) {
+                s.receiveKbps = (received - lastBytesReceived) * 8 * 1e6 / elapsed;
+            }
+            s.savedKbps = (saved - lastBytesSaved) * 8 * 1e6 / elapsed;
+        }
+        lastSnapshotNanos = now;
+        lastBytesSent = sent;
+        lastBytesReceived = received;
+        lastBytesSaved = saved;
+        return s;
+    }
+
+    public static class Snapshot {
+        public String name;
+        public long durationMillis;
+        public long packetsSent;
+        public long packetsReceived;
+        public long packetsLost;
+        // Loss, jitter, depth and bitrates are -1 while nothing feeds them
+        public double lossPercent;
+        public long lateDrops;
+        public long concealedFrames;
+        public double jitterMillis;
+        // -1 until the first RTCP round trip is measured
+        public double rttMillis;
+        public long rttP95Millis;
+        public int jitterBufferDepth;
+        public int jitterBufferDepthP95;
+        public double sendKbps;
+        public double receiveKbps;
+        // -1 until known
+        public long timeToFirstPacketMillis;
+        // Discontinuous transmission: frames of silence, those not sent at all, and what sending
+        // them as speech would have added to the bytes sent
+        public long silentFrames;
+        public long suppressedFrames;
+        public long bytesSaved;
+        public double savedPercent;
+        public double savedKbps;
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US,
+                    "%s loss %s jitter %s rtt %s depth %s (p95 %s) tx %s rx %s first packet %s"
+                            + " dtx saved %.1f kbps (%.0f%%)",
+                    name, format("%.1f%%", lossPercent), format("%.1f ms", jitterMillis), format("%.0f ms", rttMillis),
+                    format("%.0f", jitterBufferDepth), format("%.0f", jitterBufferDepthP95),
+                    format("%.1f kbps", sendKbps), format("%.1f kbps", receiveKbps),
+                    timeToFirstPacketMillis < 0 ? "-" : timeToFirstPacketMillis + " ms", savedKbps, savedPercent);
+        }
+
+        private static String format(String pattern, double value) {
+            return value < 0 ? "-" : String.format(Locale.US, pattern, value);
+        }
+    }
+}
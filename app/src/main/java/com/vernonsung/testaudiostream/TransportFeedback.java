@@ -0,0 +1,287 @@
+package com.vernonsung.testaudiostream;
+
+import java.nio.ByteBuffer;
+
+// RTCP transport-wide congestion control feedback (RTPFB, FMT 15,
+// draft-holmer-rmcat-transport-wide-cc-extensions-01): which packets arrived and when, for the
+// sender's bandwidth estimation.
+// The receiver record()s the sequence number and arrival time of every packet of the media stream
+// and write()s a feedback packet every few tens of milliseconds, which reports everything since
+// the last one, missing packets included. With one stream per direction the RTP sequence numbers
+// serve as the transport-wide ones, so no header extension is needed.
+// On the sender side RtcpPacket.parse() fills one instance and hands it to its listener.
+// Arrival times go on the wire in 250 us steps from a 64 ms reference, so they come back with
+// that resolution, on the receiver's clock. The reference has 24 bits and wraps every 12 days,
+// so the sender unwraps it against the feedback before.
+public class TransportFeedback {
+    public static final int FMT = 15;
+    // Most packets one feedback reports
+    public static final int MAX_PACKETS = 1024;
+
+    private static final int STATUS_NOT_RECEIVED = 0;
+    private static final int STATUS_SMALL_DELTA = 1;
+    private static final int STATUS_LARGE_DELTA = 2;
+    private static final long TICK_MICROS = 250;
+    private static final long REFERENCE_MICROS = 64000;
+    private static final int FIXED_LENGTH = 20;
+    private static final int MAX_RUN_LENGTH = 0x1FFF;
+    private static final int VECTOR_SYMBOLS = 7;
+
+    private long mediaSsrc;
+    private int baseSequence;
+    private int packetCount;
+    private int feedbackCount;
+    // Receiver side: arrival time by offset from the base, -1 if not arrived
+    private final long[] arrivalNanos = new long[MAX_PACKETS];
+    // Sequence number the next feedback starts at, -1 before the first packet
+    private int nextBase = -1;
+    private final int[] statuses = new int[MAX_PACKETS];
+    private final int[] deltas = new int[MAX_PACKETS];
+
+    // Sender side, after parse()
+    private final boolean[] received = new boolean[MAX_PACKETS];
+    private final long[] arrivalMicros = new long[MAX_PACKETS];
+    private long referenceMicros;
+    // Unwrapped reference of the last feedback parsed, in 64 ms units
+    private long lastReference;
+    private boolean hasReference;
+
+    public TransportFeedback() {
+        clearArrivals();
+    }
+
+    private void clearArrivals() {
+        for (int i = 0; i < MAX_PACKETS; i++) {
+            arrivalNanos[i] = -1;
+        }
+        packetCount = 0;
+    }
+
+    // Receiver: note that the packet with sequenceNumber of mediaSsrc arrived. Return false if it
+    // can't be reported: older than what was already reported, or too far ahead of the base, in
+    // which case write() is overdue.
+    public boolean record(long mediaSsrc, int sequenceNumber, long arrivalNanos) {
+        if (packetCount == 0) {
+            if (nextBase < 0 || this.mediaSsrc != mediaSsrc) {
+                nextBase = sequenceNumber;
+            }
+            this.mediaSsrc = mediaSsrc;
+            int gap = (sequenceNumber - nextBase) & 0xFFFF;
+            if (gap >= 0x8000) {
+                // Already reported as missing
+                return false;
+            }
+            // Packets missing since the last feedback are reported as such
+            baseSequence = gap < MAX_PACKETS ? nextBase : sequenceNumber;
+        }
+        int offset = (sequenceNumber - baseSequence) & 0xFFFF;
+        if (offset >= MAX_PACKETS) {
+            return false;
+        }
+        this.arrivalNanos[offset] = arrivalNanos;
+        packetCount = Math.max(packetCount, offset + 1);
+        return true;
+    }
+
+    // Receiver: whether there's anything to write()
+    public boolean hasPackets() {
+        return packetCount > 0;
+    }
+
+    // Receiver: append a feedback packet from senderSsrc about everything recorded since the last
+    // one, and start over
+    public void write(ByteBuffer buffer, long senderSsrc) {
+        if (packetCount == 0) {
+            throw new IllegalStateException("No packets to report");
+        }
+        long first = -1;
+        for (int i = 0; i < packetCount && first < 0; i++) {
+            first = arrivalNanos[i];
+        }
+        long reference = first / 1000 / REFERENCE_MICROS;
+        long previousTicks = reference * (REFERENCE_MICROS / TICK_MICROS);
+        int deltaBytes = 0;
+        for (int i = 0; i < packetCount; i++) {
+            long arrival = arrivalNanos[i];
+            int status = STATUS_NOT_RECEIVED;
+            if (arrival >= 0) {
+                long ticks = (arrival / 1000 + TICK_MICROS / 2) / TICK_MICROS;
+                long delta = ticks - previousTicks;
+                if (delta >= 0 && delta <= 0xFF) {
+                    status = STATUS_SMALL_DELTA;
+                    deltaBytes += 1;
+                } else if (delta >= Short.MIN_VALUE && delta <= Short.MAX_VALUE) {
+                    status = STATUS_LARGE_DELTA;
+                    deltaBytes += 2;
+                }
+                if (status != STATUS_NOT_RECEIVED) {
+                    deltas[i] = (int) delta;
+                    previousTicks = ticks;
+                }
+            }
+            statuses[i] = status;
+        }
+        int chunks = 0;
+        for (int i = 0; i < packetCount; i += chunkLength(i)) {
+            chunks++;
+        }
+        int length = (FIXED_LENGTH + chunks * 2 + deltaBytes + 3) & ~3;
+        int start = buffer.position();
+        RtcpPacket.writeHeader(buffer, FMT, RtcpPacket.TYPE_RTPFB, length);
+        buffer.putInt((int) senderSsrc);
+        buffer.putInt((int) mediaSsrc);
+        buffer.putShort((short) baseSequence);
+        buffer.putShort((short) packetCount);
+        buffer.putInt((int) ((reference & 0xFFFFFF) << 8) | (feedbackCount & 0xFF));
+        for (int i = 0; i < packetCount; ) {
+            int n = chunkLength(i);
+            if (isRun(i)) {
+                buffer.putShort((short) ((statuses[i] << 13) | n));
+            } else {
+                int chunk = 0xC000;
+                for (int j = 0; j < VECTOR_SYMBOLS; j++) {
+                    int status = i + j < packetCount ? statuses[i + j] : STATUS_NOT_RECEIVED;
+                    chunk |= status << (12 - 2 * j);
+                }
+                buffer.putShort((short) chunk);
+            }
+            i += n;
+        }
+        for (int i = 0; i < packetCount; i++) {
+            if (statuses[i] == STATUS_SMALL_DELTA) {
+                buffer.put((byte) deltas[i]);
+            } else if (statuses[i] == STATUS_LARGE_DELTA) {
+                buffer.putShort((short) deltas[i]);
+            }
+        }
+        while (buffer.position() - start < length) {
+            buffer.put((byte) 0);
+        }
+        nextBase = (baseSequence + packetCount) & 0xFFFF;
+        feedbackCount++;
+        clearArrivals();
+    }
+
+    // A run-length chunk when at least a vector's worth of statuses are the same
+    private boolean isRun(int i) {
+        if (i + VECTOR_SYMBOLS > packetCount) {
+            return false;
+        }
+        for (int j = 1; j < VECTOR_SYMBOLS; j++) {
+            if (statuses[i + j] != statuses[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int chunkLength(int i) {
+        if (!isRun(i)) {
+            return VECTOR_SYMBOLS;
+        }
+        int n = VECTOR_SYMBOLS;
+        while (i + n < packetCount && n < MAX_RUN_LENGTH && statuses[i + n] == statuses[i]) {
+            n++;
+        }
+        return n;
+    }
+
+    // Sender: read a feedback packet of length octets at offset. Return false if it's malformed
+    // or reports more than MAX_PACKETS.
+    boolean parse(ByteBuffer buffer, int offset, int length) {
+        if (length < FIXED_LENGTH) {
+            return false;
+        }
+        int end = offset + length;
+        mediaSsrc = buffer.getInt(offset + 8) & 0xFFFFFFFFL;
+        baseSequence = buffer.getShort(offset + 12) & 0xFFFF;
+        int count = buffer.getShort(offset + 14) & 0xFFFF;
+        int word = buffer.getInt(offset + 16);
+        long reference = (word >>> 8) & 0xFFFFFF;
+        if (hasReference) {
+            // The nearest value with these low 24 bits
+            reference = lastReference + (((reference - lastReference) << 40) >> 40);
+        }
+        referenceMicros = reference * REFERENCE_MICROS;
+        feedbackCount = word & 0xFF;
+        if (count > MAX_PACKETS) {
+            return false;
+        }
+        int p = offset + FIXED_LENGTH;
+        int n = 0;
+        while (n < count) {
+            if (p + 2 > end) {
+                return false;
+            }
+            int chunk = buffer.getShort(p) & 0xFFFF;
+            p += 2;
+            if ((chunk & 0x8000) == 0) {
+                int status = (chunk >>> 13) & 3;
+                int run = chunk & MAX_RUN_LENGTH;
+                for (int j = 0; j < run && n < count; j++) {
+                    statuses[n++] = status;
+                }
+            } else if ((chunk & 0x4000) == 0) {
+                for (int j = 0; j < 14 && n < count; j++) {
+                    statuses[n++] = (chunk >>> (13 - j)) & 1;
+                }
+            } else {
+                for (int j = 0; j < VECTOR_SYMBOLS && n < count; j++) {
+                    statuses[n++] = (chunk >>> (12 - 2 * j)) & 3;
+                }
+            }
+        }
+        long micros = referenceMicros;
+        for (int i = 0; i < count; i++) {
+            int status = statuses[i];
+            if (status == STATUS_SMALL_DELTA) {
+                if (p + 1 > end) {
+                    return false;
+                }
+                micros += (buffer.get(p) & 0xFF) * TICK_MICROS;
+                p += 1;
+            } else if (status == STATUS_LARGE_DELTA) {
+                if (p + 2 > end) {
+                    return false;
+                }
+                micros += buffer.getShort(p) * TICK_MICROS;
+                p += 2;
+            } else if (status != STATUS_NOT_RECEIVED) {
+                return false;
+            }
+            received[i] = status != STATUS_NOT_RECEIVED;
+            arrivalMicros[i] = micros;
+        }
+        packetCount = count;
+        lastReference = reference;
+        hasReference = true;
+        return true;
+    }
+
+    public long getMediaSsrc() {
+        return mediaSsrc;
+    }
+
+    public int getBaseSequence() {
+        return baseSequence;
+    }
+
+    // Packets reported, received or not
+    public int getPacketCount() {
+        return packetCount;
+    }
+
+    public int getFeedbackCount() {
+        return feedbackCount;
+    }
+
+    // Sender: whether the packet with sequence number base + index arrived
+    public boolean isReceived(int index) {
+        return received[index];
+    }
+
+    // Sender: when it arrived, in microseconds on the receiver's clock
+    public long getArrivalMicros(int index) {
+        return arrivalMicros[index];
+    }
+}
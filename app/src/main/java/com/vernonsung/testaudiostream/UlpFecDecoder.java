@@ -0,0 +1,260 @@
+package com.vernonsung.testaudiostream;
+
+import java.nio.ByteBuffer;
+
+// Rebuild lost media packets from XOR parity FEC (RFC 5109).
+// Copies of recent media packets are kept in a ring indexed by sequence number, and FEC
+// payloads wait until all but one of the packets they protect are there. The missing one is then
+// the XOR of the parity with the others. A rebuilt packet counts as received, so it may in turn
+// complete another group. All storage is preallocated.
+public class UlpFecDecoder {
+    public interface Listener {
+        // A complete RTP packet between position and limit, only valid during the call
+        void onRecovered(ByteBuffer packet);
+    }
+
+    // Media packets remembered, a power of two well above the FEC group size
+    private static final int HISTORY = 64;
+    private static final int MAX_PENDING = 16;
+
+    private final int maxPacketSize;
+    private final Listener listener;
+    private final RtpPacket fecHeader = new RtpPacket();
+
+    private final byte[][] media;
+    private final int[] mediaLengths = new int[HISTORY];
+    private final int[] mediaSequences = new int[HISTORY];
+    private final boolean[] mediaFilled = new boolean[HISTORY];
+    private int newestSeq = -1;
+
+    private final byte[][] pending;
+    private final int[] pendingLengths = new int[MAX_PENDING];
+    private final long[] pendingSsrcs = new long[MAX_PENDING];
+    private final boolean[] pendingFilled = new boolean[MAX_PENDING];
+
+    private final byte[] recovered;
+    private final ByteBuffer recoveredBuffer;
+    private long recoveredCount;
+    private long unrecoverableCount;
+
+    public UlpFecDecoder(int maxPacketSize, Listener listener) {
+        this.maxPacketSize = maxPacketSize;
+        this.listener = listener;
+        media = new byte[HISTORY][maxPacketSize];
+        pending = new byte[MAX_PENDING][maxPacketSize];
+        recovered = new byte[maxPacketSize];
+        recoveredBuffer = ByteBuffer.wrap(recovered);
+    }
+
+    // Remember a media packet, between position and limit, that arrived
+    public void onMedia(ByteBuffer packet) {
+        int length = packet.remaining();
+        if (length < RtpPacket.FIXED_HEADER_LENGTH || length > maxPacketSize) {
+            return;
+        }
+        int start = packet.position();
+        int seq = packet.getShort(start + 2) & 0xFFFF;
+        int slot = seq & (HISTORY - 1);
+        for (int i = 0; i < length; i++) {
+            media[slot][i] = packet.get(start + i);
+        }
+        store(seq, slot, length);
+        recover();
+    }
+
+    // Take a FEC packet, RTP header included, between position and limit. Return false if it's
+    // malformed.
+    public boolean onFec(ByteBuffer packet) {
+        if (!fecHeader.parse(packet)) {
+            return false;
+        }
+        int length = fecHeader.getPayloadLength();
+        if (length < UlpFecEncoder.FEC_HEADER_LENGTH + UlpFecEncoder.LEVEL_HEADER_LENGTH || length > maxPacketSize) {
+            return false;
+        }
+        int offset = fecHeader.getPayloadOffset();
+        // Only the short mask (L = 0) without extension (E = 0) is understood
+        if ((packet.get(offset) & 0xC0) != 0) {
+            return false;
+        }
+        int protectionLength = packet.getShort(offset + UlpFecEncoder.FEC_HEADER_LENGTH) & 0xFFFF;
+        if (UlpFecEncoder.FEC_HEADER_LENGTH + UlpFecEncoder.LEVEL_HEADER_LENGTH + protectionLength > length
+                || RtpPacket.FIXED_HEADER_LENGTH + protectionLength > maxPacketSize) {
+            return false;
+        }
+        // Take a free slot, or the oldest one
+        int slot = -1;
+        for (int i = 0; i < MAX_PENDING; i++) {
+            if (!pendingFilled[i]) {
+                slot = i;
+                break;
+            }
+        }
+        if (slot < 0) {
+            slot = oldestPending();
+            unrecoverableCount++;
+        }
+        for (int i = 0; i < length; i++) {
+            pending[slot][i] = packet.get(offset + i);
+        }
+        pendingLengths[slot] = length;
+        pendingSsrcs[slot] = fecHeader.getSsrc();
+        pendingFilled[slot] = true;
+        recover();
+        return true;
+    }
+
+    // Forget everything, e.g. when the remote source changes
+    public void reset() {
+        for (int i = 0; i < HISTORY; i++) {
+            mediaFilled[i] = false;
+        }
+        for (int i = 0; i < MAX_PENDING; i++) {
+            pendingFilled[i] = false;
+        }
+        newestSeq = -1;
+    }
+
+    public long getRecoveredCount() {
+        return recoveredCount;
+    }
+
+    // FEC packets given up on because more than one of their packets were missing
+    public long getUnrecoverableCount() {
+        return unrecoverableCount;
+    }
+
+    private void store(int seq, int slot, int length) {
+        mediaLengths[slot] = length;
+        mediaSequences[slot] = seq;
+        mediaFilled[slot] = true;
+        if (newestSeq < 0 || (short) (seq - newestSeq) > 0) {
+            newestSeq = seq;
+        }
+    }
+
+    private boolean hasMedia(int seq) {
+        int slot = seq & (HISTORY - 1);
+        return mediaFilled[slot] && mediaSequences[slot] == seq;
+    }
+
+    // Go over the waiting FEC payloads until none can rebuild anything more
+    private void recover() {
+        boolean progress = true;
+        while (progress) {
+            progress = false;
+            for (int i = 0; i < MAX_PENDING; i++) {
+                if (!pendingFilled[i]) {
+                    continue;
+                }
+                byte[] fec = pending[i];
+                int base = ((fec[2] & 0xFF) << 8) | (fec[3] & 0xFF);
+                int mask = ((fec[UlpFecEncoder.FEC_HEADER_LENGTH + 2] & 0xFF) << 8)
+                        | (fec[UlpFecEncoder.FEC_HEADER_LENGTH + 3] & 0xFF);
+                if (newestSeq >= 0 && (short) (newestSeq - base) >= HISTORY - UlpFecEncoder.MAX_GROUP_SIZE) {
+                    // Its packets have left the history
+                    pendingFilled[i] = false;
+                    if (countMissing(base, mask) > 0) {
+                        unrecoverableCount++;
+                    }
+                    continue;
+                }
+                int missing = countMissing(base, mask);
+                if (missing == 0) {
+                    pendingFilled[i] = false;
+                } else if (missing == 1) {
+                    pendingFilled[i] = false;
+                    rebuild(i, base, mask);
+                    progress = true;
+                }
+            }
+        }
+    }
+
+    private int countMissing(int base, int mask) {
+        int missing = 0;
+        for (int bit = 0; bit < UlpFecEncoder.MAX_GROUP_SIZE; bit++) {
+            if ((mask & (0x8000 >>> bit)) != 0 && !hasMedia((base + bit) & 0xFFFF)) {
+                missing++;
+            }
+        }
+        return missing;
+    }
+
+    private void rebuild(int index, int base, int mask) {
+        byte[] fec = pending[index];
+        int b0 = fec[0] & 0xFF;
+        int b1 = fec[1] & 0xFF;
+        int ts = ((fec[4] & 0xFF) << 24) | ((fec[5] & 0xFF) << 16) | ((fec[6] & 0xFF) << 8) | (fec[7] & 0xFF);
+        int lengthRecovery = ((fec[8] & 0xFF) << 8) | (fec[9] & 0xFF);
+        int parityOffset = UlpFecEncoder.FEC_HEADER_LENGTH + UlpFecEncoder.LEVEL_HEADER_LENGTH;
+        int protectionLength = ((fec[UlpFecEncoder.FEC_HEADER_LENGTH] & 0xFF) << 8)
+                | (fec[UlpFecEncoder.FEC_HEADER_LENGTH + 1] & 0xFF);
+        int header = RtpPacket.FIXED_HEADER_LENGTH;
+        System.arraycopy(fec, parityOffset, recovered, header, protectionLength);
+        for (int i = header + protectionLength; i < maxPacketSize; i++) {
+            recovered[i] = 0;
+        }
+
+        int lost = -1;
+        for (int bit = 0; bit < UlpFecEncoder.MAX_GROUP_SIZE; bit++) {
+            if ((mask & (0x8000 >>> bit)) == 0) {
+                continue;
+            }
+            int seq = (base + bit) & 0xFFFF;
+            if (!hasMedia(seq)) {
+                lost = seq;
+                continue;
+            }
+            byte[] m = media[seq & (HISTORY - 1)];
+            int length = mediaLengths[seq & (HISTORY - 1)] - header;
+            b0 ^= m[0] & 0xFF;
+            b1 ^= m[1] & 0xFF;
+            ts ^= ((m[4] & 0xFF) << 24) | ((m[5] & 0xFF) << 16) | ((m[6] & 0xFF) << 8) | (m[7] & 0xFF);
+            lengthRecovery ^= length;
+            for (int i = 0; i < length; i++) {
+                recovered[header + i] ^= m[header + i];
+            }
+        }
+        if (lengthRecovery > protectionLength || header + lengthRecovery > maxPacketSize) {
+            unrecoverableCount++;
+            return;
+        }
+        recovered[0] = (byte) ((RtpPacket.VERSION << 6) | (b0 & 0x3F));
+        recovered[1] = (byte) b1;
+        recovered[2] = (byte) (lost >>> 8);
+        recovered[3] = (byte) lost;
+        recovered[4] = (byte) (ts >>> 24);
+        recovered[5] = (byte) (ts >>> 16);
+        recovered[6] = (byte) (ts >>> 8);
+        recovered[7] = (byte) ts;
+        long ssrc = pendingSsrcs[index];
+        recovered[8] = (byte) (ssrc >>> 24);
+        recovered[9] = (byte) (ssrc >>> 16);
+        recovered[10] = (byte) (ssrc >>> 8);
+        recovered[11] = (byte) ssrc;
+        int length = header + lengthRecovery;
+
+        // Keep it for other groups, then hand it out
+        int slot = lost & (HISTORY - 1);
+        System.arraycopy(recovered, 0, media[slot], 0, length);
+        store(lost, slot, length);
+        recoveredCount++;
+        recoveredBuffer.clear();
+        recoveredBuffer.limit(length);
+        listener.onRecovered(recoveredBuffer);
+    }
+
+    private int oldestPending() {
+        int oldest = 0;
+        int oldestBase = -1;
+        for (int i = 0; i < MAX_PENDING; i++) {
+            int base = ((pending[i][2] & 0xFF) << 8) | (pending[i][3] & 0xFF);
+            if (oldestBase < 0 || (short) (base - oldestBase) < 0) {
+                oldest = i;
+                oldestBase = base;
+            }
+        }
+        return oldest;
+    }
+}
@@ -0,0 +1,120 @@
+package com.vernonsung.testaudiostream;
+
+import java.nio.ByteBuffer;
+
+// XOR parity FEC (RFC 5109) over groups of consecutive media packets.
+// Each outgoing media packet is folded into the running parity as it's sent. After groupSize
+// packets the FEC payload is ready: a FEC header and one level 0 header protecting every packet
+// of the group, then the parity. Any single packet lost from the group can then be rebuilt by
+// UlpFecDecoder. The payload is sent as its own RTP packet with the FEC payload type.
+public class UlpFecEncoder {
+    public static final int FEC_HEADER_LENGTH = 10;
+    public static final int LEVEL_HEADER_LENGTH = 4;
+    // The short mask of a level header covers 16 packets
+    public static final int MAX_GROUP_SIZE = 16;
+
+    private final byte[] parity;
+    private int groupSize;
+
+    // Running state of the current group
+    private int count;
+    private int sequenceBase;
+    private int b0;
+    private int b1;
+    private long timestamp;
+    private int lengthRecovery;
+    private int protectionLength;
+
+    // maxPacketSize bounds the media packets including their RTP header
+    public UlpFecEncoder(int maxPacketSize) {
+        parity = new byte[maxPacketSize - RtpPacket.FIXED_HEADER_LENGTH];
+    }
+
+    // Packets per parity packet, 0 to turn FEC off. A new size starts a new group.
+    public void setGroupSize(int groupSize) {
+        if (groupSize < 0 || groupSize > MAX_GROUP_SIZE) {
+            throw new IllegalArgumentException("FEC group size " + groupSize + " is out of range");
+        }
+        this.groupSize = groupSize;
+        count = 0;
+    }
+
+    public int getGroupSize() {
+        return groupSize;
+    }
+
+    // Room a FEC payload needs in the worst case
+    public int getMaxPayloadLength() {
+        return FEC_HEADER_LENGTH + LEVEL_HEADER_LENGTH + parity.length;
+    }
+
+    // Fold one media packet, between position and limit, into the parity. The buffer isn't
+    // changed. Return true when the group is complete and writePayload() should be called.
+    public boolean protect(ByteBuffer media) {
+        if (groupSize == 0) {
+            return false;
+        }
+        int start = media.position();
+        int length = media.remaining() - RtpPacket.FIXED_HEADER_LENGTH;
+        if (length < 0 || length > parity.length) {
+            throw new IllegalArgumentException("Packet of " + media.remaining() + " bytes can't be protected");
+        }
+        if (count == 0) {
+            sequenceBase = media.getShort(start + 2) & 0xFFFF;
+            b0 = 0;
+            b1 = 0;
+            timestamp = 0;
+            lengthRecovery = 0;
+            protectionLength = 0;
+            for (int i = 0; i < parity.length; i++) {
+                parity[i] = 0;
+            }
+        }
+        b0 ^= media.get(start) & 0xFF;
+        b1 ^= media.get(start + 1) & 0xFF;
+        timestamp ^= media.getInt(start + 4) & 0xFFFFFFFFL;
+        lengthRecovery ^= length;
+        protectionLength = Math.max(protectionLength, length);
+        int p = start + RtpPacket.FIXED_HEADER_LENGTH;
+        for (int i = 0; i < length; i++) {
+            parity[i] ^= media.get(p + i);
+        }
+        return ++count == groupSize;
+    }
+
+    // Write the FEC payload of the completed group to out and return its length. The next
+    // protected packet starts a new group.
+    public int writePayload(byte[] out, int offset) {
+        if (groupSize == 0 || count != groupSize) {
+            throw new IllegalStateException("FEC group isn't complete");
+        }
+        int p = offset;
+        // E = 0, L = 0 for the short mask, then the P, X, CC bits to recover
+        out[p++] = (byte) (b0 & 0x3F);
+        // M and PT to recover
+        out[p++] = (byte) b1;
+        out[p++] = (byte) (sequenceBase >>> 8);
+        out[p++] = (byte) sequenceBase;
+        putInt(out, p, (int) timestamp);
+        p += 4;
+        out[p++] = (byte) (lengthRecovery >>> 8);
+        out[p++] = (byte) lengthRecovery;
+        // Level 0 header
+        out[p++] = (byte) (protectionLength >>> 8);
+        out[p++] = (byte) protectionLength;
+        int mask = (0xFFFF << (MAX_GROUP_SIZE - groupSize)) & 0xFFFF;
+        out[p++] = (byte) (mask >>> 8);
+        out[p++] = (byte) mask;
+        System.arraycopy(parity, 0, out, p, protectionLength);
+        p += protectionLength;
+        count = 0;
+        return p - offset;
+    }
+
+    private static void putInt(byte[] out, int offset, int value) {
+        out[offset] = (byte) (value >>> 24);
+        out[offset + 1] = (byte) (value >>> 16);
+        out[offset + 2] = (byte) (value >>> 8);
+        out[offset + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,35 @@
+package com.vernonsung.testaudiostream;
+
+// Clock that only moves when told to. Sleeping jumps straight to the deadline, and a stage can
+// advance() it to pretend its work took that long, so tests see exact timings at full speed.
+// Meant for one thread at a time.
+public class VirtualClock implements PipelineClock {
+    private volatile long now;
+
+    public VirtualClock() {
+        this(0);
+    }
+
+    public VirtualClock(long startNanos) {
+        now = startNanos;
+    }
+
+    @Override
+    public long nanoTime() {
+        return now;
+    }
+
+    @Override
+    public void sleepUntil(long deadlineNanos) {
+        if (deadlineNanos > now) {
+            now = deadlineNanos;
+        }
+    }
+
+    public void advance(long nanos) {
+        if (nanos < 0) {
+            throw new IllegalArgumentException("Time can't go back");
+        }
+        now += nanos;
+    }
+}
@@ -0,0 +1,122 @@
+package com.vernonsung.testaudiostream;
+
+// Tell speech from background noise one frame at a time by energy against a tracked noise floor.
+// The floor follows quieter frames quickly and louder ones slowly, so it settles on the noise
+// between words and only creeps up during long talkspurts. For the first half second it also
+// rises quickly to levels no more than 20 dB above it, so a call that starts in a noisy room
+// learns the noise before the first words, while words right away still count as speech.
+// A frame is speech when it's loud enough above the floor. Speech keeps going for a hangover
+// after the last loud frame so the quiet ends of words aren't cut off.
+// Levels are in dBov, relative to a full-scale square wave, so 0 is the loudest 16-bit PCM.
+public class VoiceActivityDetector {
+    // Quietest level considered, which digital silence is clamped to
+    public static final double MIN_LEVEL = -127;
+
+    private static final double FULL_SCALE_POWER = 32768.0 * 32768.0;
+    // Per frame smoothing of the noise floor going down and up
+    private static final double FLOOR_FALL = 0.2;
+    private static final double FLOOR_RISE = 0.004;
+    private static final double INITIAL_FLOOR = -60;
+    private static final double STARTUP_RISE = 0.1;
+    private static final int STARTUP_FRAMES = 25;
+    private static final double STARTUP_RANGE = 20;
+
+    private final double thresholdDb;
+    private final double minSpeechLevel;
+    private final int hangoverFrames;
+    private double noiseFloor = INITIAL_FLOOR;
+    private double level = MIN_LEVEL;
+    private int hangover;
+    private int framesSinceReset;
+    private boolean speech;
+    private long speechFrames;
+    private long silenceFrames;
+
+    // Speech is thresholdDb above the floor and louder than minSpeechLevel, and lasts
+    // hangoverFrames after the last frame that was
+    public VoiceActivityDetector(double thresholdDb, double minSpeechLevel, int hangoverFrames) {
+        if (thresholdDb <= 0 || hangoverFrames < 0) {
+            throw new IllegalArgumentException("Threshold " + thresholdDb + " dB or hangover " + hangoverFrames
+                    + " is out of range");
+        }
+        this.thresholdDb = thresholdDb;
+        this.minSpeechLevel = minSpeechLevel;
+        this.hangoverFrames = hangoverFrames;
+    }
+
+    // 9 dB over the floor, nothing below -55 dBov, 200 ms hangover at 20 ms frames
+    public VoiceActivityDetector() {
+        this(9, -55, 10);
+    }
+
+    // Classify one frame and return true if it's speech
+    public boolean process(short[] pcm, int offset, int samples) {
+        level = levelOf(pcm, offset, samples);
+        boolean loud = level > noiseFloor + thresholdDb && level > minSpeechLevel;
+        if (level < noiseFloor) {
+            noiseFloor += (level - noiseFloor) * FLOOR_FALL;
+        } else {
+            boolean learning = framesSinceReset < STARTUP_FRAMES && level < noiseFloor + STARTUP_RANGE;
+            noiseFloor += (level - noiseFloor) * (learning ? STARTUP_RISE : FLOOR_RISE);
+        }
+        framesSinceReset++;
+        if (loud) {
+            hangover = hangoverFrames;
+            speech = true;
+        } else if (hangover > 0) {
+            hangover--;
+            speech = true;
+        } else {
+            speech = false;
+        }
+        if (speech) {
+            speechFrames++;
+        } else {
+            silenceFrames++;
+        }
+        return speech;
+    }
+
+    // Power of samples in dBov, clamped to MIN_LEVEL
+    public static double levelOf(short[] pcm, int offset, int samples) {
+        long sum = 0;
+        for (int i = offset; i < offset + samples; i++) {
+            sum += pcm[i] * pcm[i];
+        }
+        if (sum == 0 || samples <= 0) {
+            return MIN_LEVEL;
+        }
+        return Math.max(MIN_LEVEL, 10 * Math.log10(sum / (FULL_SCALE_POWER * samples)));
+    }
+
+    // Start over, e.g. when the input device changes
+    public void reset() {
+        noiseFloor = INITIAL_FLOOR;
+        level = MIN_LEVEL;
+        hangover = 0;
+        framesSinceReset = 0;
+        speech = false;
+    }
+
+    // Result of the last frame
+    public boolean isSpeech() {
+        return speech;
+    }
+
+    // Level of the last frame in dBov
+    public double getLevel() {
+        return level;
+    }
+
+    public double getNoiseFloor() {
+        return noiseFloor;
+    }
+
+    public long getSpeechFrames() {
+        return speechFrames;
+    }
+
+    public long getSilenceFrames() {
+        return silenceFrames;
+    }
+}
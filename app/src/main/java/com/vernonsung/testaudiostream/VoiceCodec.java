@@ -0,0 +1,42 @@
+package com.vernonsung.testaudiostream;
+
+// A speech codec on the Java packet path. Implementations keep their state between frames and
+// must not allocate in encode(), decode() or conceal(), which run once per frame period.
+// G711Codec is the only implementation. Opus is out of scope for this app: there's no Opus in
+// pure Java, and MediaCodec only encodes it from API 29 while the app supports API 21. A
+// binding to a native Opus library would implement this interface and report itself bitrate
+// adjustable and FEC capable, which is all CodecRateController needs.
+public interface VoiceCodec {
+    // Encoding name as in an SDP rtpmap, e.g. "PCMU"
+    String getName();
+
+    // Static payload type, or -1 if it must be negotiated
+    int getPayloadType();
+
+    int getClockRate();
+
+    // Encode samples of 16-bit PCM and return the payload length written to out
+    int encode(short[] pcm, int offset, int samples, byte[] out, int outOffset);
+
+    // Decode one payload and return the number of samples written to pcm
+    int decode(byte[] payload, int offset, int length, short[] pcm, int pcmOffset);
+
+    // Fill samples of pcm for a lost frame and return how many were written
+    int conceal(short[] pcm, int offset, int samples);
+
+    // Whether setBitrate() has any effect
+    boolean isBitrateAdjustable();
+
+    int getBitrate();
+
+    // Request a target bitrate in bits per second and return the one actually used
+    int setBitrate(int bitrate);
+
+    // Whether the codec can carry redundancy for the previous frame inside its own payload
+    boolean isInbandFecSupported();
+
+    void setInbandFec(boolean enabled);
+
+    // Drop all state, e.g. when the remote source changes
+    void reset();
+}
@@ -0,0 +1,177 @@
+package com.vernonsung.testaudiostream;
+
+import java.util.Locale;
+
+// Clean up captured speech before it's encoded: cancel the echo of what the speaker played, then
+// suppress background noise. Either step can be turned off at any time.
+// The playout side hands every frame it plays to onPlayout(), and the capture side runs process()
+// on every captured frame. The played frames cross over through a FrameRing, so the two sides may
+// be different threads without locking. The playout side also tells how much the device still
+// has queued ahead of what it hands over, which is the echo canceller's bulk delay.
+// Each processed frame is timed on the monotonic clock, which on a thread of its own at audio
+// priority is close to its CPU time.
+public class VoiceProcessor {
+    // Frames of playout that may queue up before the capture side takes them
+    private static final int FAR_END_FRAMES = 16;
+    // Microseconds
+    private static final long[] TIME_BOUNDS = {50, 100, 200, 300, 500, 750, 1000, 1500, 2000, 3000, 5000,
+            10000, 20000};
+
+    private final int frameSamples;
+    private final EchoCanceller echoCanceller;
+    private final NoiseSuppressor noiseSuppressor;
+    private final FrameRing farEnd;
+    private final float[] near;
+    private final float[] far;
+    private volatile boolean echoCancellation = true;
+    private volatile boolean noiseSuppression = true;
+    private volatile long farEndDropCount;
+    private volatile int bulkDelay;
+
+    private final Histogram frameMicros = new Histogram(TIME_BOUNDS);
+    private volatile long frames;
+    private volatile long totalNanos;
+    private volatile long maxNanos;
+    private volatile long echoNanos;
+    private volatile long noiseNanos;
+
+    public VoiceProcessor(int frameSamples, EchoCanceller echoCanceller, NoiseSuppressor noiseSuppressor) {
+        if (noiseSuppressor.getFrameSamples() != frameSamples) {
+            throw new IllegalArgumentException("Noise suppressor frames of " + noiseSuppressor.getFrameSamples()
+                    + " samples differ from " + frameSamples);
+        }
+        this.frameSamples = frameSamples;
+        this.echoCanceller = echoCanceller;
+        this.noiseSuppressor = noiseSuppressor;
+        farEnd = new FrameRing(FAR_END_FRAMES, 0, frameSamples);
+        near = new float[frameSamples];
+        far = new float[frameSamples];
+    }
+
+    // An echo tail of tailMillis and up to 15 dB of noise suppression
+    public VoiceProcessor(int clockRate, int frameSamples, int tailMillis) {
+        this(frameSamples, new EchoCanceller(clockRate * tailMillis / 1000, frameSamples),
+                new NoiseSuppressor(frameSamples));
+    }
+
+    public void setEchoCancellation(boolean enabled) {
+        echoCancellation = enabled;
+    }
+
+    public void setNoiseSuppression(boolean enabled) {
+        noiseSuppression = enabled;
+    }
+
+    public boolean isEchoCancellation() {
+        return echoCancellation;
+    }
+
+    public boolean isNoiseSuppression() {
+        return noiseSuppression;
+    }
+
+    // Playout side: samples about to be played, at most one frame
+    public void onPlayout(short[] pcm, int offset, int samples) {
+        FrameRing.Slot slot = samples <= frameSamples ? farEnd.claim() : null;
+        if (slot == null) {
+            farEndDropCount++;
+            return;
+        }
+        System.arraycopy(pcm, offset, slot.samples, 0, samples);
+        slot.length = samples;
+        farEnd.publish();
+    }
+
+    // Playout side: samples the device had queued to play before the frame last handed to
+    // onPlayout(), at the call's rate
+    public void setPlayoutDelay(int samples) {
+        bulkDelay = samples;
+    }
+
+    // Capture side: clean one frame in place
+    public void process(short[] pcm, int offset, int samples) {
+        if (samples != frameSamples) {
+            throw new IllegalArgumentException(samples + " samples aren't one frame of " + frameSamples);
+        }
+        long start = System.nanoTime();
+        int played = farEnd.available(FAR_END_FRAMES);
+        for (int i = 0; i < played; i++) {
+            FrameRing.Slot slot = farEnd.readSlot(i);
+            if (echoCancellation) {
+                for (int j = 0; j < slot.length; j++) {
+                    far[j] = slot.samples[j];
+                }
+                echoCanceller.addFarEnd(far, 0, slot.length);
+            }
+        }
+        farEnd.release(played);
+        echoCanceller.setBulkDelay(bulkDelay);
+
+        for (int i = 0; i < samples; i++) {
+            near[i] = pcm[offset + i];
+        }
+        if (echoCancellation) {
+            echoCanceller.process(near, 0, samples);
+        }
+        long echoDone = System.nanoTime();
+        if (noiseSuppression) {
+            noiseSuppressor.process(near, 0, samples);
+        }
+        for (int i = 0; i < samples; i++) {
+            float s = near[i];
+            pcm[offset + i] = (short) (s >= Short.MAX_VALUE ? Short.MAX_VALUE
+                    : s <= Short.MIN_VALUE ? Short.MIN_VALUE : Math.round(s));
+        }
+        long end = System.nanoTime();
+
+        long elapsed = end - start;
+        frameMicros.record(elapsed / 1000);
+        frames++;
+        totalNanos += elapsed;
+        echoNanos += echoDone - start;
+        noiseNanos += end - echoDone;
+        if (elapsed > maxNanos) {
+            maxNanos = elapsed;
+        }
+    }
+
+    public EchoCanceller getEchoCanceller() {
+        return echoCanceller;
+    }
+
+    public NoiseSuppressor getNoiseSuppressor() {
+        return noiseSuppressor;
+    }
+
+    // Played frames lost because the capture side fell behind
+    public long getFarEndDropCount() {
+        return farEndDropCount;
+    }
+
+    public long getFrameCount() {
+        return frames;
+    }
+
+    // Processing time per frame, in microseconds
+    public Histogram getFrameMicros() {
+        return frameMicros;
+    }
+
+    public long getMeanNanos() {
+        long n = frames;
+        return n == 0 ? 0 : totalNanos / n;
+    }
+
+    public long getMaxNanos() {
+        return maxNanos;
+    }
+
+    @Override
+    public String toString() {
+        long n = Math.max(frames, 1);
+        return String.format(Locale.US,
+                "%d frames, mean %.1f us (echo %.1f us, noise %.1f us), p99 %d us, max %.1f us, ERLE %.1f dB",
+                frames, totalNanos / 1000.0 / n, echoNanos / 1000.0 / n, noiseNanos / 1000.0 / n,
+                frameMicros.getPercentile(99), maxNanos / 1000.0, echoCanceller.getErleDb());
+    }
+}
@@ -0,0 +1,114 @@
+package com.vernonsung.testaudiostream;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class AudioMixerTest {
+    private static final int FRAME_SAMPLES = 160;
+
+    private static short[][] randomFrames(int count, int amplitude, long seed) {
+        Random random = new Random(seed);
+        short[][] frames = new short[count][FRAME_SAMPLES];
+        for (short[] frame : frames) {
+            for (int s = 0; s < FRAME_SAMPLES; s++) {
+                frame[s] = (short) (random.nextInt(2 * amplitude + 1) - amplitude);
+            }
+        }
+        return frames;
+    }
+
+    @Test
+    public void everyoneHearsEveryoneElse() throws Exception {
+        int count = 5;
+        short[][] inputs = randomFrames(count, 1000, 1);
+        short[][] outputs = new short[count][FRAME_SAMPLES];
+        short[] total = new short[FRAME_SAMPLES];
+        AudioMixer mixer = new AudioMixer(8, FRAME_SAMPLES);
+        mixer.mix(inputs, count, outputs, total);
+
+        for (int i = 0; i < count; i++) {
+            for (int s = 0; s < FRAME_SAMPLES; s++) {
+                int expected = 0;
+                for (int j = 0; j < count; j++) {
+                    if (j != i) {
+                        expected += inputs[j][s];
+                    }
+                }
+                assertEquals(expected, outputs[i][s]);
+                assertEquals(expected + inputs[i][s], total[s]);
+            }
+        }
+    }
+
+    @Test
+    public void saturatesInsteadOfWrapping() throws Exception {
+        short[][] inputs = new short[3][FRAME_SAMPLES];
+        for (int s = 0; s < FRAME_SAMPLES; s++) {
+            inputs[0][s] = 30000;
+            inputs[1][s] = 30000;
+            inputs[2][s] = -30000;
+        }
+        short[][] outputs = new short[3][FRAME_SAMPLES];
+        short[] total = new short[FRAME_SAMPLES];
+        new AudioMixer(3, FRAME_SAMPLES).mix(inputs, 3, outputs, total);
+        assertEquals(30000, total[0]);
+        assertEquals(0, outputs[0][0]);
+        assertEquals(Short.MAX_VALUE, outputs[2][0]);
+
+        short[] dst = {Short.MIN_VALUE + 1, 100};
+        AudioMixer.addSaturating(dst, 0, new short[]{-10, 5}, 0, 2);
+        assertEquals(Short.MIN_VALUE, dst[0]);
+        assertEquals(105, dst[1]);
+    }
+
+    @Test
+    public void appliesGainsAndSkipsMissingInputs() throws Exception {
+        short[][] inputs = new short[3][];
+        inputs[0] = new short[FRAME_SAMPLES];
+        inputs[2] = new short[FRAME_SAMPLES];
+        for (int s = 0; s < FRAME_SAMPLES; s++) {
+            inputs[0][s] = 1000;
+            inputs[2][s] = 400;
+        }
+        AudioMixer mixer = new AudioMixer(3, FRAME_SAMPLES);
+        mixer.setGain(0, 0.5f);
+        mixer.setGain(2, 2.0f);
+        assertEquals(0.5f, mixer.getGain(0), 0.001f);
+        short[][] outputs = new short[3][FRAME_SAMPLES];
+        mixer.mix(inputs, 3, outputs, null);
+        assertEquals(800, outputs[0][0]);
+        assertEquals(1300, outputs[1][0]);
+        assertEquals(500, outputs[2][0]);
+
+        // Muted participant is heard by nobody but still hears everyone else
+        mixer.setGain(2, 0);
+        mixer.mix(inputs, 3, outputs, null);
+        assertEquals(0, outputs[0][0]);
+        assertEquals(500, outputs[2][0]);
+    }
+
+    // How long this takes is measured by MixerBenchmark
+    @Test
+    public void mixesFrom2To64Inputs() throws Exception {
+        int[] sizes = {2, 4, 8, 16, 32, 64};
+        for (int count : sizes) {
+            short[][] inputs = randomFrames(count, 500, count);
+            short[][] outputs = new short[count][FRAME_SAMPLES];
+            short[] total = new short[FRAME_SAMPLES];
+            new AudioMixer(count, FRAME_SAMPLES).mix(inputs, count, outputs, total);
+            for (int s = 0; s < FRAME_SAMPLES; s++) {
+                int sum = 0;
+                for (int i = 0; i < count; i++) {
+                    sum += inputs[i][s];
+                }
+                assertEquals(sum, total[s]);
+                for (int i = 0; i < count; i++) {
+                    assertEquals(sum - inputs[i][s], outputs[i][s]);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,686 @@
+package com.vernonsung.testaudiostream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class CallPipelineTest {
+    private static final long MS = 1000000L;
+    private static final int FRAME = 160;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // 400 Hz tone
+    private static class ToneInput implements CallPipeline.AudioInput {
+        final double amplitude;
+        final int rate;
+        long position;
+
+        ToneInput() {
+            this(8000);
+        }
+
+        ToneInput(double amplitude) {
+            this(amplitude, 8000);
+        }
+
+        ToneInput(double amplitude, int rate) {
+            this.amplitude = amplitude;
+            this.rate = rate;
+        }
+
+        @Override
+        public int read(short[] pcm, int offset, int samples) {
+            for (int i = 0; i < samples; i++) {
+                pcm[offset + i] = (short) (amplitude * Math.sin(2 * Math.PI * 400 * position++ / rate));
+            }
+            return samples;
+        }
+    }
+
+    // Remote peer sending a tone of its own level, one packet per frame
+    private static class Peer {
+        final ToneInput tone;
+        final VoiceCodec codec = G711Codec.createUlaw();
+        final RtpPacketizer packetizer = new RtpPacketizer(null, G711Codec.PAYLOAD_TYPE_PCMU, FRAME);
+        final short[] pcm = new short[FRAME];
+        final byte[] payload = new byte[FRAME];
+        final ByteBuffer packet = ByteBuffer.allocate(CallPipeline.MAX_PACKET_SIZE);
+
+        Peer(double amplitude) {
+            tone = new ToneInput(amplitude);
+        }
+
+        void sendTo(CallPipeline.Remote remote, long nowNanos) {
+            tone.read(pcm, 0, FRAME);
+            int length = codec.encode(pcm, 0, FRAME, payload, 0);
+            packetizer.packetize(payload, 0, length, packet);
+            remote.onPacket(packet, nowNanos);
+        }
+    }
+
+    // Counts the packets sent to one target
+    private static class CountingSink implements CallPipeline.PacketSink {
+        int packets;
+
+        @Override
+        public void send(ByteBuffer packet) {
+            packets++;
+        }
+    }
+
+    // Device that plays at its own rate on the virtual clock, and stops at an empty queue
+    private static class DeviceOutput implements CallPipeline.AudioOutput {
+        final VirtualClock clock;
+        final double samplesPerNano;
+        long written;
+        double played;
+        long lastNanos = -1;
+        long underruns;
+        double energy;
+        long energySamples;
+        final List<Double> frameRms = new ArrayList<Double>();
+
+        DeviceOutput(VirtualClock clock, double driftPpm) {
+            this(clock, driftPpm, 8000);
+        }
+
+        DeviceOutput(VirtualClock clock, double driftPpm, int rate) {
+            this.clock = clock;
+            samplesPerNano = rate * (1 + driftPpm / 1e6) / 1e9;
+        }
+
+        @Override
+        public int write(short[] pcm, int offset, int samples) {
+            advance();
+            written += samples;
+            double frameEnergy = 0;
+            for (int i = 0; i < samples; i++) {
+                frameEnergy += (double) pcm[offset + i] * pcm[offset + i];
+            }
+            energy += frameEnergy;
+            energySamples += samples;
+            frameRms.add(Math.sqrt(frameEnergy / samples));
+            return samples;
+        }
+
+        @Override
+        public int getQueuedSamples() {
+            advance();
+            return (int) (written - (long) played);
+        }
+
+        void advance() {
+            long now = clock.nanoTime();
+            if (lastNanos >= 0) {
+                played += (now - lastNanos) * samplesPerNano;
+                if (played > written) {
+                    underruns++;
+                    played = written;
+                }
+            }
+            lastNanos = now;
+        }
+
+        double rms() {
+            return Math.sqrt(energy / energySamples);
+        }
+    }
+
+    // G.711 that can be told to take time or claim another rate
+    private static class TestCodec implements VoiceCodec {
+        final VoiceCodec codec = G711Codec.createUlaw();
+        VirtualClock clock;
+        long decodeNanos;
+        int clockRate = G711Codec.CLOCK_RATE;
+
+        @Override
+        public String getName() {
+            return codec.getName();
+        }
+
+        @Override
+        public int getPayloadType() {
+            return codec.getPayloadType();
+        }
+
+        @Override
+        public int getClockRate() {
+            return clockRate;
+        }
+
+        @Override
+        public int encode(short[] pcm, int offset, int samples, byte[] out, int outOffset) {
+            return codec.encode(pcm, offset, samples, out, outOffset);
+        }
+
+        @Override
+        public int decode(byte[] payload, int offset, int length, short[] pcm, int pcmOffset) {
+            if (clock != null) {
+                clock.advance(decodeNanos);
+            }
+            return codec.decode(payload, offset, length, pcm, pcmOffset);
+        }
+
+        @Override
+        public int conceal(short[] pcm, int offset, int samples) {
+            return codec.conceal(pcm, offset, samples);
+        }
+
+        @Override
+        public boolean isBitrateAdjustable() {
+            return false;
+        }
+
+        @Override
+        public int getBitrate() {
+            return codec.getBitrate();
+        }
+
+        @Override
+        public int setBitrate(int bitrate) {
+            return codec.getBitrate();
+        }
+
+        @Override
+        public boolean isInbandFecSupported() {
+            return false;
+        }
+
+        @Override
+        public void setInbandFec(boolean enabled) {
+        }
+
+        @Override
+        public void reset() {
+            codec.reset();
+        }
+    }
+
+    private static CallPipeline.PacketSink loopback(final VirtualClock clock, final CallPipeline.Remote[] remote) {
+        return new CallPipeline.PacketSink() {
+            @Override
+            public void send(ByteBuffer packet) {
+                remote[0].onPacket(packet, clock.nanoTime());
+            }
+        };
+    }
+
+    @Test
+    public void talksToItself() throws InterruptedException {
+        VirtualClock clock = new VirtualClock(5000 * MS);
+        DeviceOutput output = new DeviceOutput(clock, 0);
+        CallPipeline.Remote[] remote = new CallPipeline.Remote[1];
+        CallPipeline pipeline = new CallPipeline(clock, G711Codec.createUlaw(), G711Codec.PAYLOAD_TYPE_PCMU,
+                new ToneInput(), output, loopback(clock, remote));
+        remote[0] = pipeline.addRemote(G711Codec.createUlaw(), G711Codec.PAYLOAD_TYPE_PCMU);
+        assertEquals(FRAME, pipeline.getFrameSamples());
+
+        for (int i = 0; i < 250; i++) {
+            pipeline.getSendLane().tick();
+            pipeline.getReceiveLane().tick();
+        }
+        JitterBuffer jitterBuffer = remote[0].getJitterBuffer();
+        assertTrue(jitterBuffer.getPlayedCount() >= 240);
+        assertEquals(0, jitterBuffer.getConcealedCount());
+        assertEquals(0, remote[0].getInboxDropCount());
+        // The tone's RMS is 8000 / sqrt(2), minus the frames before playout started
+        assertEquals(5657, output.rms(), 150);
+
+        // Every stage ran once a frame and nothing takes time on the virtual clock
+        String[] send = {CallPipeline.CAPTURE, CallPipeline.PROCESS, CallPipeline.ENCODE, CallPipeline.PACKETIZE,
+                CallPipeline.SEND};
+        String[] receive = {CallPipeline.RECEIVE, CallPipeline.JITTER, CallPipeline.DECODE, CallPipeline.MIX,
+                CallPipeline.PLAYOUT};
+        for (int i = 0; i < send.length; i++) {
+            PipelineScheduler.StageStats s = pipeline.getSendLane().getStats(i);
+            assertEquals(send[i], s.name);
+            assertEquals(250, s.runs);
+            assertEquals(0, s.misses);
+        }
+        for (int i = 0; i < receive.length; i++) {
+            PipelineScheduler.StageStats s = pipeline.getReceiveLane().getStats(i);
+            assertEquals(receive[i], s.name);
+            assertEquals(250, s.runs);
+            assertEquals(0, s.misses);
+        }
+    }
+
+    @Test
+    public void slowDecoderShowsUpAsMisses() throws InterruptedException {
+        VirtualClock clock = new VirtualClock();
+        DeviceOutput output = new DeviceOutput(clock, 0);
+        CallPipeline.Remote[] remote = new CallPipeline.Remote[1];
+        CallPipeline pipeline = new CallPipeline(clock, G711Codec.createUlaw(), G711Codec.PAYLOAD_TYPE_PCMU,
+                new ToneInput(), output, loopback(clock, remote));
+        // Takes 8 ms per frame, over the decode budget of 5 ms
+        TestCodec slow = new TestCodec();
+        slow.clock = clock;
+        slow.decodeNanos = 8 * MS;
+        remote[0] = pipeline.addRemote(slow, G711Codec.PAYLOAD_TYPE_PCMU);
+        for (int i = 0; i < 100; i++) {
+            pipeline.getSendLane().tick();
+            pipeline.getReceiveLane().tick();
+        }
+        PipelineScheduler lane = pipeline.getReceiveLane();
+        long decoded = remote[0].getJitterBuffer().getPlayedCount();
+        assertTrue(decoded > 90);
+        assertEquals(decoded, lane.getMissCount(2));
+        assertEquals(0, lane.getMissCount(4));
+        assertEquals(8 * MS, lane.getStats(2).maxNanos);
+    }
+
+    @Test
+    public void followsTheDeviceClock() throws InterruptedException {
+        VirtualClock clock = new VirtualClock();
+        // The device plays 0.1% faster than the frame clock
+        DeviceOutput output = new DeviceOutput(clock, 1000);
+        CallPipeline pipeline = new CallPipeline(clock, G711Codec.createUlaw(), G711Codec.PAYLOAD_TYPE_PCMU,
+                new ToneInput(), output, new CallPipeline.PacketSink() {
+                    @Override
+                    public void send(ByteBuffer packet) {
+                    }
+                });
+        PipelineScheduler lane = pipeline.getReceiveLane();
+        // A minute to settle
+        for (int i = 0; i < 3000; i++) {
+            lane.tick();
+        }
+        long underruns = output.underruns;
+        for (int i = 0; i < 3000; i++) {
+            lane.tick();
+        }
+        double ppm = lane.getRateCorrectionPpm();
+        // Frames come about as much faster as the device plays
+        assertEquals(-1000, ppm, 150);
+        assertEquals(ppm, pipeline.getSendLane().getRateCorrectionPpm(), 0);
+        assertEquals(underruns, output.underruns);
+        assertTrue(output.getQueuedSamples() > FRAME / 2 && output.getQueuedSamples() < 3 * FRAME);
+    }
+
+    @Test
+    public void talksToItselfAtTheDeviceRate() throws InterruptedException {
+        VirtualClock clock = new VirtualClock(5000 * MS);
+        DeviceOutput output = new DeviceOutput(clock, 0, 48000);
+        CallPipeline.Remote[] remote = new CallPipeline.Remote[1];
+        CallPipeline pipeline = new CallPipeline(clock, G711Codec.createUlaw(), G711Codec.PAYLOAD_TYPE_PCMU,
+                new ToneInput(8000, 48000), output, loopback(clock, remote));
+        pipeline.setDeviceSampleRate(48000);
+        remote[0] = pipeline.addRemote(G711Codec.createUlaw(), G711Codec.PAYLOAD_TYPE_PCMU);
+
+        for (int i = 0; i < 250; i++) {
+            pipeline.getSendLane().tick();
+            pipeline.getReceiveLane().tick();
+        }
+        // 48 kHz frames, one of them priming the device, with the tone through both conversions
+        assertEquals(251 * 960, output.written);
+        assertEquals(5657, output.rms(), 150);
+        assertEquals(0, remote[0].getJitterBuffer().getConcealedCount());
+        // The device queue counts at the call's rate
+        assertEquals(0, pipeline.getReceiveLane().getRateCorrectionPpm(), 100);
+    }
+
+    // Let a peer whose clock runs senderPpm fast talk to a remote for frames, with packets
+    // arriving right when its clock sends them
+    private static CallPipeline.Remote driftingPeer(boolean compensate, double senderPpm, int frames,
+                                                    DeviceOutput output) throws InterruptedException {
+        VirtualClock clock = output.clock;
+        CallPipeline pipeline = new CallPipeline(clock, G711Codec.createUlaw(), G711Codec.PAYLOAD_TYPE_PCMU,
+                new ToneInput(), output, new CountingSink());
+        CallPipeline.Remote remote = pipeline.addRemote(G711Codec.createUlaw(), G711Codec.PAYLOAD_TYPE_PCMU);
+        remote.setDriftCompensation(compensate);
+        Peer peer = new Peer(8000);
+        PipelineScheduler lane = pipeline.getReceiveLane();
+        long start = clock.nanoTime();
+        long sent = 0;
+        for (int i = 0; i < frames; i++) {
+            lane.tick();
+            long due = start + (long) (sent * CallPipeline.FRAME_NANOS / (1 + senderPpm / 1e6));
+            while (due <= clock.nanoTime()) {
+                peer.sendTo(remote, due);
+                sent++;
+                due = start + (long) (sent * CallPipeline.FRAME_NANOS / (1 + senderPpm / 1e6));
+            }
+        }
+        return remote;
+    }
+
+    @Test
+    public void compensatesTheSendersClockDrift() throws InterruptedException {
+        // Three minutes of a sender 0.05% fast: 90 ms more than we play
+        int frames = 9000;
+        JitterBuffer plain = driftingPeer(false, 500, frames, new DeviceOutput(new VirtualClock(), 0))
+                .getJitterBuffer();
+        DeviceOutput output = new DeviceOutput(new VirtualClock(), 0);
+        CallPipeline.Remote remote = driftingPeer(true, 500, frames, output);
+        JitterBuffer compensated = remote.getJitterBuffer();
+        assertTrue(plain.getShrinkCount() >= 3);
+        assertEquals(0, compensated.getShrinkCount());
+        assertEquals(500, remote.getDriftCompensator().getSenderDriftPpm(), 20);
+        // Not one frame of the tone missing once it started
+        for (int i = 10; i < output.frameRms.size(); i++) {
+            assertEquals("Frame " + i, 8000 / Math.sqrt(2), output.frameRms.get(i), 300);
+        }
+
+        // And 0.05% slow: 90 ms less
+        plain = driftingPeer(false, -500, frames, new DeviceOutput(new VirtualClock(), 0)).getJitterBuffer();
+        remote = driftingPeer(true, -500, frames, new DeviceOutput(new VirtualClock(), 0));
+        compensated = remote.getJitterBuffer();
+        assertTrue(plain.getUnderrunCount() >= 3);
+        assertEquals(0, compensated.getUnderrunCount());
+        assertEquals(-500, remote.getDriftCompensator().getSenderDriftPpm(), 20);
+    }
+
+    // Run both lanes for frames while the peers send to their remotes
+    private static void talk(CallPipeline pipeline, VirtualClock clock, int frames, Peer peerA,
+                             CallPipeline.Remote a, Peer peerB, CallPipeline.Remote b) throws InterruptedException {
+        for (int i = 0; i < frames; i++) {
+            pipeline.getSendLane().tick();
+            if (a != null) {
+                peerA.sendTo(a, clock.nanoTime());
+            }
+            if (b != null) {
+                peerB.sendTo(b, clock.nanoTime());
+            }
+            pipeline.getReceiveLane().tick();
+        }
+    }
+
+    @Test
+    public void warmCutOverHasNoGap() throws InterruptedException {
+        VirtualClock clock = new VirtualClock();
+        DeviceOutput output = new DeviceOutput(clock, 0);
+        CountingSink sinkA = new CountingSink();
+        CountingSink sinkB = new CountingSink();
+        CallPipeline pipeline = new CallPipeline(clock, G711Codec.createUlaw(), G711Codec.PAYLOAD_TYPE_PCMU,
+                new ToneInput(), output, sinkA);
+        Peer peerA = new Peer(2000);
+        Peer peerB = new Peer(8000);
+        CallPipeline.Remote a = pipeline.addRemote(G711Codec.createUlaw(), G711Codec.PAYLOAD_TYPE_PCMU);
+        talk(pipeline, clock, 50, peerA, a, null, null);
+
+        // B warms up unheard
+        CallPipeline.Remote b = pipeline.addStandbyRemote(G711Codec.createUlaw(), G711Codec.PAYLOAD_TYPE_PCMU);
+        talk(pipeline, clock, 10, peerA, a, peerB, b);
+        assertTrue(b.isWarm());
+        assertTrue(b.isStandby());
+        assertEquals(2000 / Math.sqrt(2), output.frameRms.get(output.frameRms.size() - 1), 100);
+        assertEquals(60, sinkA.packets);
+
+        pipeline.cutOver(a, b, sinkB);
+        assertTrue(pipeline.isCutOverPending());
+        talk(pipeline, clock, 1, peerA, null, peerB, b);
+        assertFalse(pipeline.isCutOverPending());
+        assertEquals(1, pipeline.getSwitchCount());
+        assertEquals(0, pipeline.getLastSwitchGapNanos());
+        assertEquals(1, pipeline.getRemoteCount());
+        assertFalse(b.isStandby());
+        // A up to the frame boundary, B right after it
+        int last = output.frameRms.size() - 1;
+        assertEquals(2000 / Math.sqrt(2), output.frameRms.get(last - 1), 100);
+        assertEquals(8000 / Math.sqrt(2), output.frameRms.get(last), 300);
+        assertEquals(60, sinkA.packets);
+        assertEquals(1, sinkB.packets);
+    }
+
+    @Test
+    public void coldCutOverWaitsForPrefetch() throws InterruptedException {
+        VirtualClock clock = new VirtualClock();
+        DeviceOutput output = new DeviceOutput(clock, 0);
+        CallPipeline pipeline = new CallPipeline(clock, G711Codec.createUlaw(), G711Codec.PAYLOAD_TYPE_PCMU,
+                new ToneInput(), output, new CountingSink());
+        Peer peerA = new Peer(2000);
+        Peer peerB = new Peer(8000);
+        CallPipeline.Remote a = pipeline.addRemote(G711Codec.createUlaw(), G711Codec.PAYLOAD_TYPE_PCMU);
+        talk(pipeline, clock, 50, peerA, a, null, null);
+
+        CallPipeline.Remote b = pipeline.addStandbyRemote(G711Codec.createUlaw(), G711Codec.PAYLOAD_TYPE_PCMU);
+        pipeline.cutOver(a, b, null);
+        talk(pipeline, clock, 10, null, null, peerB, b);
+        // Source validation and prefetch of the new remote are heard as silence
+        long gap = pipeline.getLastSwitchGapNanos();
+        assertTrue(gap >= CallPipeline.FRAME_NANOS);
+        // Never more than a frame to validate the source and the jitter buffer's minimum delay
+        assertTrue(gap / MS + " ms", gap <= 3 * CallPipeline.FRAME_NANOS);
+    }
+
+    // 400 Hz tone for the first second of every two, low white noise throughout
+    private static class TalkInput extends ToneInput {
+        final java.util.Random random = new java.util.Random(7);
+
+        @Override
+        public int read(short[] pcm, int offset, int samples) {
+            super.read(pcm, offset, samples);
+            for (int i = offset; i < offset + samples; i++) {
+                boolean talking = (position - samples + i - offset) % 16000 < 8000;
+                pcm[i] = (short) ((talking ? pcm[i] : 0) + random.nextGaussian() * 100);
+            }
+            return samples;
+        }
+    }
+
+    @Test
+    public void recordsBothDirections() throws InterruptedException, IOException {
+        VirtualClock clock = new VirtualClock(5000 * MS);
+        CallPipeline.Remote[] remote = new CallPipeline.Remote[1];
+        CallPipeline pipeline = new CallPipeline(clock, G711Codec.createUlaw(), G711Codec.PAYLOAD_TYPE_PCMU,
+                new ToneInput(), new DeviceOutput(clock, 0), loopback(clock, remote));
+        remote[0] = pipeline.addRemote(G711Codec.createUlaw(), G711Codec.PAYLOAD_TYPE_PCMU);
+        File file = folder.newFile("call.rec");
+        CallRecorder recorder = new CallRecorder(file);
+        pipeline.setRecorder(recorder);
+        for (int i = 0; i < 100; i++) {
+            pipeline.getSendLane().tick();
+            pipeline.getReceiveLane().tick();
+        }
+        pipeline.setRecorder(null);
+        recorder.close();
+        // Sent in the frame's send stage, received on the next receive tick
+        assertEquals(200, recorder.getRecordCount());
+
+        CallRecording recording = CallRecording.open(file);
+        long ssrc = pipeline.getPacketizer().getSsrc();
+        assertEquals(ssrc, (long) recording.getStreams(true).get(0));
+        assertEquals(ssrc, (long) recording.getStreams(false).get(0));
+        PcmFile sent = recording.decode(ssrc, true, G711Codec.PAYLOAD_TYPE_PCMU, G711Codec.createUlaw(), -1);
+        PcmFile received = recording.decode(ssrc, false, G711Codec.PAYLOAD_TYPE_PCMU, G711Codec.createUlaw(), -1);
+        recording.close();
+        assertEquals(100 * FRAME, sent.samples.length);
+        assertArrayEquals(sent.samples, received.samples);
+        assertEquals(8000 * Math.sin(2 * Math.PI * 400 * 1234 / 8000), sent.samples[1234], 300);
+    }
+
+    @Test
+    public void talksToItselfOverSrtp() throws Exception {
+        byte[] key = new byte[SrtpContext.MASTER_KEY_LENGTH];
+        byte[] salt = new byte[SrtpContext.MASTER_SALT_LENGTH];
+        key[0] = 1;
+        salt[0] = 2;
+        VirtualClock clock = new VirtualClock(5000 * MS);
+        DeviceOutput output = new DeviceOutput(clock, 0);
+        final CallPipeline.Remote[] remote = new CallPipeline.Remote[1];
+        final CallPipeline.PacketSink loop = loopback(clock, remote);
+        final List<Integer> sizes = new ArrayList<Integer>();
+        CallPipeline pipeline = new CallPipeline(clock, G711Codec.createUlaw(), G711Codec.PAYLOAD_TYPE_PCMU,
+                new ToneInput(), output, new CallPipeline.PacketSink() {
+                    @Override
+                    public void send(ByteBuffer packet) {
+                        sizes.add(packet.remaining());
+                        loop.send(packet);
+                    }
+                });
+        remote[0] = pipeline.addRemote(G711Codec.createUlaw(), G711Codec.PAYLOAD_TYPE_PCMU);
+        SrtpContext outbound = new SrtpContext(key, salt);
+        SrtpContext inbound = new SrtpContext(key, salt);
+        pipeline.setSrtp(outbound);
+        remote[0].setSrtp(inbound);
+        for (int i = 0; i < 100; i++) {
+            pipeline.getSendLane().tick();
+            pipeline.getReceiveLane().tick();
+        }
+        assertEquals(RtpPacket.FIXED_HEADER_LENGTH + FRAME + SrtpContext.AUTH_TAG_LENGTH, (int) sizes.get(0));
+        // Every packet after the first had its key stream ready
+        assertEquals(99, outbound.getPrecomputedCount());
+        assertEquals(0, inbound.getAuthFailedCount());
+        JitterBuffer jitterBuffer = remote[0].getJitterBuffer();
+        assertTrue(jitterBuffer.getPlayedCount() >= 90);
+        assertEquals(0, jitterBuffer.getConcealedCount());
+        assertEquals(8000 / Math.sqrt(2), output.frameRms.get(output.frameRms.size() - 1), 300);
+
+        // With the wrong key nothing gets through
+        key[0] = 3;
+        SrtpContext wrong = new SrtpContext(key, salt);
+        remote[0].setSrtp(wrong);
+        long received = remote[0].getReceiver().getInvalidCount();
+        for (int i = 0; i < 10; i++) {
+            pipeline.getSendLane().tick();
+            pipeline.getReceiveLane().tick();
+        }
+        assertEquals(10, wrong.getAuthFailedCount());
+        assertEquals(received, remote[0].getReceiver().getInvalidCount());
+    }
+
+    @Test
+    public void dtxSendsComfortNoiseInSilence() throws InterruptedException {
+        VirtualClock clock = new VirtualClock();
+        DeviceOutput output = new DeviceOutput(clock, 0);
+        CallPipeline.Remote[] remote = new CallPipeline.Remote[1];
+        final CountingSink counter = new CountingSink();
+        final CallPipeline.PacketSink loop = loopback(clock, remote);
+        CallPipeline pipeline = new CallPipeline(clock, G711Codec.createUlaw(), G711Codec.PAYLOAD_TYPE_PCMU,
+                new TalkInput(), output, new CallPipeline.PacketSink() {
+                    @Override
+                    public void send(ByteBuffer packet) {
+                        counter.send(packet);
+                        loop.send(packet);
+                    }
+                });
+        remote[0] = pipeline.addRemote(G711Codec.createUlaw(), G711Codec.PAYLOAD_TYPE_PCMU);
+        StreamMetrics metrics = new StreamMetrics("dtx", clock);
+        long start = clock.nanoTime();
+        pipeline.setSendMetrics(metrics);
+        pipeline.setDtx(new DtxController());
+
+        boolean comfortNoiseHeard = false;
+        for (int i = 0; i < 500; i++) {
+            pipeline.getSendLane().tick();
+            pipeline.getReceiveLane().tick();
+            if (i % 100 == 90) {
+                // Late in a pause the remote plays noise near the level sent, not silence
+                assertTrue(remote[0].isComfortNoiseOn());
+                assertEquals(100, output.frameRms.get(output.frameRms.size() - 1), 40);
+                comfortNoiseHeard = true;
+            } else if (i % 100 == 30) {
+                assertFalse(remote[0].isComfortNoiseOn());
+                assertEquals(8000 / Math.sqrt(2), output.frameRms.get(output.frameRms.size() - 1), 300);
+            }
+        }
+        assertTrue(comfortNoiseHeard);
+        StreamMetrics.Snapshot s = metrics.snapshot();
+        double seconds = (clock.nanoTime() - start) / 1e9;
+        // Talk and hangover are 60 of every 100 frames, and a few comfort noise packets go out
+        assertTrue(counter.packets < 330);
+        assertEquals(counter.packets, s.packetsSent);
+        assertEquals(500 - counter.packets, s.suppressedFrames);
+        assertTrue(s.savedPercent > 30);
+        // Every suppressed frame saves a whole speech packet, a comfort noise frame a little less
+        int speechPacket = RtpPacket.FIXED_HEADER_LENGTH + 160;
+        assertTrue(s.bytesSaved > s.suppressedFrames * speechPacket);
+        assertTrue(s.bytesSaved < s.silentFrames * speechPacket);
+        assertEquals(s.bytesSaved * 8 / seconds / 1000, s.savedKbps, 1e-9);
+        // Nearly all of it the suppressed frames, which would have gone at 68.8 kbps
+        assertEquals(s.suppressedFrames * speechPacket * 8 / seconds / 1000, s.savedKbps, 2);
+        assertEquals(0, remote[0].getReceiver().getInvalidCount());
+        // Silence isn't mistaken for loss
+        assertEquals(0, remote[0].getJitterBuffer().getConcealedCount());
+    }
+
+    @Test
+    public void redundancyFollowsTheReportedLoss() throws InterruptedException {
+        final int red = 99;
+        final int ulpfec = 100;
+        VirtualClock clock = new VirtualClock(5000 * MS);
+        DeviceOutput output = new DeviceOutput(clock, 0);
+        final CallPipeline.Remote[] remote = new CallPipeline.Remote[1];
+        final CallPipeline.PacketSink loop = loopback(clock, remote);
+        // Packets of each payload type sent, and every 8th datagram lost while lossy
+        final int[] types = new int[128];
+        final boolean[] lossy = new boolean[1];
+        CallPipeline pipeline = new CallPipeline(clock, G711Codec.createUlaw(), G711Codec.PAYLOAD_TYPE_PCMU,
+                new ToneInput(), output, new CallPipeline.PacketSink() {
+                    int datagrams;
+
+                    @Override
+                    public void send(ByteBuffer packet) {
+                        types[packet.get(packet.position() + 1) & 0x7F]++;
+                        if (!lossy[0] || ++datagrams % 8 != 0) {
+                            loop.send(packet);
+                        }
+                    }
+                });
+        FecController controller = new FecController();
+        pipeline.setFec(controller, red, ulpfec);
+        remote[0] = pipeline.addRemote(G711Codec.createUlaw(), G711Codec.PAYLOAD_TYPE_PCMU);
+        // The remote side reports what it received every second
+        RtcpSession local = new RtcpSession(pipeline.getPacketizer().getSsrc(), "local", 8000);
+        local.setFecController(controller);
+        RtcpSession peer = new RtcpSession(0x5678, "peer", 8000);
+        peer.setReceiver(remote[0].getReceiver());
+        ByteBuffer report = ByteBuffer.allocate(1500);
+
+        lossy[0] = true;
+        long concealed = 0;
+        for (int i = 0; i < 1500; i++) {
+            pipeline.getSendLane().tick();
+            pipeline.getReceiveLane().tick();
+            if (i % 50 == 49) {
+                report.clear();
+                peer.buildReport(report, clock.nanoTime(), clock.nanoTime());
+                report.flip();
+                assertTrue(local.onRtcpPacket(report, clock.nanoTime(), clock.nanoTime()));
+            }
+            if (i == 499) {
+                // 12.5% loss: level 2, RED repeating two frames and parity every 4 packets
+                assertEquals(2, controller.getLevel());
+                assertTrue(types[red] > 0);
+                assertTrue(pipeline.getParityPacketsSent() > 0);
+                concealed = remote[0].getJitterBuffer().getConcealedCount();
+            }
+            if (i == 999) {
+                // Every loss repaired in time
+                assertEquals(concealed, remote[0].getJitterBuffer().getConcealedCount());
+                assertEquals(pipeline.getParityPacketsSent(), types[ulpfec]);
+                lossy[0] = false;
+            }
+        }
+        // A clean line takes the redundancy away again
+        assertEquals(0, controller.getLevel());
+        int redSent = types[red];
+        long paritySent = pipeline.getParityPacketsSent();
+        for (int i = 0; i < 10; i++) {
+            pipeline.getSendLane().tick();
+            pipeline.getReceiveLane().tick();
+        }
+        assertEquals(redSent, types[red]);
+        assertEquals(paritySent, pipeline.getParityPacketsSent());
+        assertEquals(0, remote[0].getReceiver().getInvalidCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void remoteAtAnotherRateIsRejected() {
+        CallPipeline pipeline = new CallPipeline(new VirtualClock(), G711Codec.createUlaw(),
+                G711Codec.PAYLOAD_TYPE_PCMU, new ToneInput(), new DeviceOutput(new VirtualClock(), 0), null);
+        TestCodec wideband = new TestCodec();
+        wideband.clockRate = 16000;
+        pipeline.addRemote(wideband, 96);
+    }
+}
@@ -0,0 +1,242 @@
+package com.vernonsung.testaudiostream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class CallRecorderTest {
+    private static final int FRAME = 160;
+    private static final long MS = 1000000L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // One 20 ms packet of a tone per call, numbered from 0
+    private static class Sender {
+        final VoiceCodec codec = G711Codec.createUlaw();
+        final RtpPacketizer packetizer;
+        final short[] pcm = new short[FRAME];
+        final byte[] payload = new byte[FRAME];
+        final ByteBuffer packet = ByteBuffer.allocate(CallPipeline.MAX_PACKET_SIZE);
+        long position;
+
+        Sender(long ssrc) {
+            packetizer = new RtpPacketizer(null, ssrc, G711Codec.PAYLOAD_TYPE_PCMU, FRAME);
+            packetizer.setTimestamp(0xFFFFFF00L);
+        }
+
+        ByteBuffer next() {
+            for (int i = 0; i < FRAME; i++) {
+                pcm[i] = (short) (8000 * Math.sin(2 * Math.PI * 400 * position++ / 8000));
+            }
+            int length = codec.encode(pcm, 0, FRAME, payload, 0);
+            packetizer.packetize(payload, 0, length, packet);
+            return packet;
+        }
+    }
+
+    @Test
+    public void recordsReadBackAcrossSegments() throws IOException, InterruptedException {
+        File file = folder.newFile("call.rec");
+        // Small segments, so 200 packets of 182 bytes take many
+        CallRecorder recorder = new CallRecorder(file, 4096);
+        Sender out = new Sender(0x11111111L);
+        Sender in = new Sender(0xCAFEBABEL);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(recorder.append(out.next(), true, 1000 * MS + i * 20 * MS));
+            ByteBuffer packet = in.next();
+            int position = packet.position();
+            assertTrue(recorder.append(packet, false, 1000 * MS + i * 20 * MS + 5 * MS));
+            assertEquals(position, packet.position());
+            // A segment only lasts 20 packets, so give the next one time to be mapped
+            Thread.sleep(1);
+        }
+        assertFalse(recorder.append(ByteBuffer.wrap(new byte[4]), true, 0));
+        recorder.close();
+        assertEquals(200, recorder.getRecordCount());
+        assertEquals(0, recorder.getDroppedCount());
+        assertTrue(file.length() > 8 * 4096 && file.length() < 10 * 4096);
+
+        CallRecording recording = CallRecording.open(file);
+        assertEquals(Arrays.asList(0x11111111L), recording.getStreams(true));
+        assertEquals(Arrays.asList(0xCAFEBABEL), recording.getStreams(false));
+        byte[] payload = new byte[FRAME];
+        short[] pcm = new short[FRAME];
+        VoiceCodec decoder = G711Codec.createUlaw();
+        for (int i = 0; i < 200; i++) {
+            assertTrue(recording.next());
+            boolean outgoing = i % 2 == 0;
+            assertEquals(outgoing, recording.isOutgoing());
+            assertEquals(outgoing ? 0x11111111L : 0xCAFEBABEL, recording.getSsrc());
+            assertEquals(G711Codec.PAYLOAD_TYPE_PCMU, recording.getPayloadType());
+            // Across the wrap-around
+            assertEquals((0xFFFFFF00L + i / 2 * FRAME) & 0xFFFFFFFFL, recording.getTimestamp());
+            assertEquals(i < 2, recording.getMarker());
+            assertEquals(i / 2 * 20 * MS + (outgoing ? 0 : 5 * MS), recording.getNanos());
+            assertEquals(FRAME, recording.getPayload(payload, 0));
+            decoder.decode(payload, 0, FRAME, pcm, 0);
+            assertEquals(8000 * Math.sin(2 * Math.PI * 400 * (i / 2 * FRAME + 10) / 8000), pcm[10], 300);
+        }
+        assertFalse(recording.next());
+        recording.close();
+    }
+
+    @Test
+    public void seeksThroughTheIndex() throws IOException {
+        File file = folder.newFile("long.rec");
+        CallRecorder recorder = new CallRecorder(file);
+        Sender sender = new Sender(1);
+        // 30 s
+        for (int i = 0; i < 1500; i++) {
+            recorder.append(sender.next(), true, i * 20 * MS);
+        }
+        recorder.close();
+        CallRecording recording = CallRecording.open(file);
+        assertEquals(30, recording.getIndexSize());
+        recording.seek(12345 * MS);
+        assertTrue(recording.next());
+        assertEquals(12360 * MS, recording.getNanos());
+        recording.seek(0);
+        assertTrue(recording.next());
+        assertEquals(0, recording.getNanos());
+        recording.seek(40000 * MS);
+        assertFalse(recording.next());
+        recording.close();
+    }
+
+    @Test
+    public void recordingCutShortEndsAtTheLastWholeRecord() throws IOException {
+        File file = folder.newFile("cut.rec");
+        CallRecorder recorder = new CallRecorder(file);
+        Sender sender = new Sender(1);
+        for (int i = 0; i < 10; i++) {
+            recorder.append(sender.next(), true, i * 20 * MS);
+        }
+        recorder.close();
+        RandomAccessFile raw = new RandomAccessFile(file, "rw");
+        // Half of the last record is lost
+        raw.setLength(raw.length() - 2 - 100);
+        raw.close();
+        CallRecording recording = CallRecording.open(file);
+        int records = 0;
+        while (recording.next()) {
+            records++;
+        }
+        assertEquals(9, records);
+        recording.close();
+    }
+
+    @Test
+    public void decodesToWavWithGapsAndComfortNoise() throws IOException {
+        File file = folder.newFile("gaps.rec");
+        CallRecorder recorder = new CallRecorder(file);
+        Sender sender = new Sender(7);
+        // Another stream starts the recording, 100 ms before this one
+        recorder.append(new Sender(8).next(), false, 900 * MS);
+        ByteBuffer held = ByteBuffer.allocate(CallPipeline.MAX_PACKET_SIZE);
+        for (int i = 0; i < 50; i++) {
+            long nanos = 1000 * MS + i * 20 * MS;
+            if (i >= 30 && i < 40) {
+                // Silence, described once by comfort noise at -30 dBov
+                sender.position += FRAME;
+                if (i == 30) {
+                    byte[] cn = {30};
+                    sender.packetizer.packetizeComfortNoise(ComfortNoise.PAYLOAD_TYPE, cn, 0, 1, sender.packet);
+                    recorder.append(sender.packet, false, nanos);
+                } else {
+                    sender.packetizer.skipFrame();
+                }
+                continue;
+            }
+            ByteBuffer packet = sender.next();
+            if (i == 10) {
+                // Lost
+                continue;
+            } else if (i == 20) {
+                // Arrives after the next one
+                held.clear();
+                held.put(packet).flip();
+                continue;
+            }
+            recorder.append(packet, false, nanos);
+            if (i == 21) {
+                recorder.append(held, false, nanos + 5 * MS);
+            }
+        }
+        recorder.close();
+
+        CallRecording recording = CallRecording.open(file);
+        PcmFile pcm = recording.decode(7, false, G711Codec.PAYLOAD_TYPE_PCMU, G711Codec.createUlaw(),
+                ComfortNoise.PAYLOAD_TYPE);
+        recording.close();
+        // Starts 100 ms in and runs to the end of the last frame
+        int start = 800;
+        assertEquals(start + 50 * FRAME, pcm.samples.length);
+        for (int i = 0; i < start; i++) {
+            assertEquals(0, pcm.samples[i]);
+        }
+        for (int i = 0; i < 50 * FRAME; i++) {
+            int frame = i / FRAME;
+            short s = pcm.samples[start + i];
+            if (frame == 10) {
+                assertEquals(0, s);
+            } else if (frame < 30 || frame >= 40) {
+                // The reordered frame 20 is in place too
+                assertEquals(8000 * Math.sin(2 * Math.PI * 400 * i / 8000), s, 300);
+            }
+        }
+        // -30 dBov noise in the silence
+        double level = VoiceActivityDetector.levelOf(pcm.samples, start + 31 * FRAME, 8 * FRAME);
+        assertEquals(-30, level, 2);
+
+        File wav = folder.newFile("gaps.wav");
+        pcm.write(wav);
+        PcmFile read = PcmFile.read(wav, 0);
+        assertEquals(8000, read.sampleRate);
+        assertArrayEquals(pcm.samples, read.samples);
+    }
+
+    // Append back to back across many segments, as the send and receive lanes would but without
+    // pause. When the thread mapping segments ahead falls behind, yield to it. What this costs is
+    // measured by CallRecorderBenchmark.
+    @Test
+    public void appendsAcrossSegments() throws IOException {
+        File file = folder.newFile("segments.rec");
+        CallRecorder recorder = new CallRecorder(file);
+        Sender sender = new Sender(1);
+        ByteBuffer packet = sender.next();
+        int packets = 100000;
+        for (int i = 0; i < packets; i++) {
+            while (!recorder.append(packet, true, i * 20 * MS)) {
+                Thread.yield();
+            }
+        }
+        recorder.close();
+        assertNull(recorder.getFailure());
+        assertEquals(packets, recorder.getRecordCount());
+        CallRecording recording = CallRecording.open(file);
+        int records = 0;
+        while (recording.next()) {
+            records++;
+        }
+        recording.close();
+        assertEquals(packets, records);
+    }
+
+    @Test(expected = IOException.class)
+    public void otherFilesAreRejected() throws IOException {
+        File file = folder.newFile("not.rec");
+        RandomAccessFile raw = new RandomAccessFile(file, "rw");
+        raw.write(new byte[64]);
+        raw.close();
+        CallRecording.open(file);
+    }
+}
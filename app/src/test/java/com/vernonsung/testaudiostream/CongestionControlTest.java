@@ -0,0 +1,230 @@
+package com.vernonsung.testaudiostream;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CongestionControlTest {
+    private static final long SSRC = 0x5151;
+
+    // Feedback as the receiver would write it and the sender parse it
+    private static TransportFeedback feedback(int firstSeq, long[] arrivalNanos) {
+        return feedback(new TransportFeedback(), firstSeq, arrivalNanos);
+    }
+
+    // Same, parsed by sender, which may have parsed feedback before
+    private static TransportFeedback feedback(TransportFeedback sender, int firstSeq, long[] arrivalNanos) {
+        TransportFeedback receiver = new TransportFeedback();
+        for (int i = 0; i < arrivalNanos.length; i++) {
+            if (arrivalNanos[i] >= 0) {
+                receiver.record(SSRC, (firstSeq + i) & 0xFFFF, arrivalNanos[i]);
+            }
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        receiver.write(buffer, 0xFEED);
+        buffer.flip();
+        assertTrue(sender.parse(buffer, 0, buffer.limit()));
+        return sender;
+    }
+
+    // Send count packets of bytes every intervalNanos from startNanos, with one-way delays that
+    // grow by growthNanos each, and feed the feedback in groups of ten. Return the last sequence.
+    private static int drive(BandwidthEstimator estimator, int seq, int count, int bytes, long startNanos,
+                             long intervalNanos, long growthNanos) {
+        long[] arrivals = new long[10];
+        for (int i = 0; i < count; i += arrivals.length) {
+            for (int j = 0; j < arrivals.length; j++) {
+                long sent = startNanos + (i + j) * intervalNanos;
+                estimator.onPacketSent((seq + j) & 0xFFFF, bytes, sent);
+                arrivals[j] = sent + 20000000L + (i + j) * growthNanos;
+            }
+            estimator.onTransportFeedback(feedback(seq, arrivals), arrivals[arrivals.length - 1] + 20000000L);
+            seq = (seq + arrivals.length) & 0xFFFF;
+        }
+        return seq;
+    }
+
+    @Test
+    public void feedbackReportsLossesAndArrivals() throws Exception {
+        long[] arrivals = new long[40];
+        for (int i = 0; i < arrivals.length; i++) {
+            arrivals[i] = 5000000000L + i * 20000000L;
+        }
+        // A lost run long enough for a run-length chunk, and a lone loss
+        for (int i = 10; i < 20; i++) {
+            arrivals[i] = -1;
+        }
+        arrivals[25] = -1;
+        TransportFeedback parsed = feedback(65530, arrivals);
+        assertEquals(SSRC, parsed.getMediaSsrc());
+        assertEquals(65530, parsed.getBaseSequence());
+        assertEquals(40, parsed.getPacketCount());
+        for (int i = 0; i < arrivals.length; i++) {
+            assertEquals("packet " + i, arrivals[i] >= 0, parsed.isReceived(i));
+            if (arrivals[i] >= 0) {
+                assertEquals(arrivals[i] / 1000, parsed.getArrivalMicros(i));
+            }
+        }
+    }
+
+    @Test
+    public void referenceTimeIsUnwrapped() throws Exception {
+        // 64 ms references pass 2^23, where a signed field would turn negative, and wrap at 2^24
+        long[] crossings = {(1L << 23) * 64000000L, (1L << 24) * 64000000L};
+        for (long crossing : crossings) {
+            TransportFeedback sender = new TransportFeedback();
+            long[] arrivals = new long[5];
+            int seq = 100;
+            for (long t = crossing - 1000000000L; t < crossing + 1000000000L; t += 100000000L) {
+                for (int i = 0; i < arrivals.length; i++) {
+                    arrivals[i] = t + i * 20000000L;
+                }
+                TransportFeedback parsed = feedback(sender, seq, arrivals);
+                for (int i = 0; i < arrivals.length; i++) {
+                    assertEquals(arrivals[i] / 1000, parsed.getArrivalMicros(i));
+                }
+                seq += arrivals.length;
+            }
+        }
+    }
+
+    @Test
+    public void estimatorBacksOffOnGrowingDelay() throws Exception {
+        BandwidthEstimator estimator = new BandwidthEstimator(10000, 100000, 50000);
+        estimator.onRtt(50000);
+        // A steady 60 kbps stream that the link keeps up with: the estimate may only grow
+        int seq = drive(estimator, 0, 500, 150, 0, 20000000L, 0);
+        int steady = estimator.getTargetBitrate();
+        assertTrue(steady >= 50000);
+        assertEquals(0, estimator.getOveruseCount());
+        assertEquals(0, estimator.getLoss(), 0);
+
+        // The queue grows by 2 ms a packet: the bottleneck is slower than the sending rate
+        drive(estimator, seq, 100, 150, 10000000000L, 20000000L, 2000000L);
+        assertTrue(estimator.getOveruseCount() > 0);
+        assertTrue(estimator.getDelayBasedBitrate() < steady);
+        assertTrue(estimator.getTargetBitrate() < steady);
+        assertTrue(estimator.getTargetBitrate() >= 10000);
+    }
+
+    @Test
+    public void estimatorBacksOffOnHeavyLoss() throws Exception {
+        BandwidthEstimator estimator = new BandwidthEstimator(10000, 100000, 50000);
+        long[] arrivals = new long[20];
+        int seq = 0;
+        for (int round = 0; round < 10; round++) {
+            long start = round * arrivals.length * 20000000L;
+            for (int i = 0; i < arrivals.length; i++) {
+                estimator.onPacketSent(seq + i, 150, start + i * 20000000L);
+                // Every fourth packet lost
+                arrivals[i] = i % 4 == 1 ? -1 : start + i * 20000000L + 20000000L;
+            }
+            estimator.onTransportFeedback(feedback(seq, arrivals), start + 500000000L);
+            seq += arrivals.length;
+        }
+        assertEquals(0.25, estimator.getLoss(), 0.01);
+        assertTrue(estimator.getLossBasedBitrate() < 50000);
+        assertEquals(estimator.getLossBasedBitrate(), estimator.getTargetBitrate());
+    }
+
+    @Test
+    public void pacerSpreadsBursts() throws Exception {
+        VirtualClock clock = new VirtualClock();
+        final List<Long> sentAt = new ArrayList<Long>();
+        final VirtualClock now = clock;
+        PacedSender pacer = new PacedSender(clock, new CallPipeline.PacketSink() {
+            @Override
+            public void send(ByteBuffer packet) {
+                sentAt.add(now.nanoTime());
+            }
+        }, null, 16);
+        // Without a rate nothing is held back
+        ByteBuffer packet = ByteBuffer.allocate(200);
+        pacer.send(packet);
+        assertEquals(-1, pacer.tick(0));
+        assertEquals(1, sentAt.size());
+
+        // 10 packets of 200 bytes at once at 160 kbps: the first goes on the 5 ms burst budget,
+        // which the second waits to pay back, and the rest go 10 ms apart
+        pacer.setPacingBitrate(160000);
+        sentAt.clear();
+        clock.advance(100000000L);
+        pacer.tick(clock.nanoTime());
+        for (int i = 0; i < 10; i++) {
+            packet.clear();
+            pacer.send(packet);
+        }
+        long start = clock.nanoTime();
+        while (clock.nanoTime() < start + 200000000L) {
+            pacer.tick(clock.nanoTime());
+            clock.advance(1000000L);
+        }
+        assertEquals(10, sentAt.size());
+        assertEquals(start, (long) sentAt.get(0));
+        assertEquals(start + 5000000L, (long) sentAt.get(1), 1000000L);
+        for (int i = 2; i < sentAt.size(); i++) {
+            long gap = sentAt.get(i) - sentAt.get(i - 1);
+            assertTrue("gap " + gap, gap >= 9000000L && gap <= 11000000L);
+        }
+        assertEquals(11, pacer.getSentCount());
+        assertEquals(0, pacer.getDroppedCount());
+
+        // A full queue drops
+        for (int i = 0; i < 17; i++) {
+            packet.clear();
+            pacer.send(packet);
+        }
+        assertEquals(1, pacer.getDroppedCount());
+    }
+
+    @Test
+    public void adaptsToBottleneckWithoutBloatingQueue() throws Exception {
+        CongestionHarness fixed = new CongestionHarness(new Random(1), 20000000L);
+        fixed.setBottleneck(48000, 32000);
+        fixed.setAdaptive(false);
+        CongestionHarness.Report before = fixed.run(60);
+        System.out.println("Congestion 48 kbps fixed:    " + before);
+
+        CongestionHarness adaptive = new CongestionHarness(new Random(1), 20000000L);
+        adaptive.setBottleneck(48000, 32000);
+        CongestionHarness.Report after = adaptive.run(60);
+        System.out.println("Congestion 48 kbps adaptive: " + after);
+        // Without adaptation the queue fills up and stays full
+        assertTrue(before.p95QueueingDelayMillis > 1000);
+        assertTrue(before.lossPercent > 10);
+        assertTrue(after.p95QueueingDelayMillis < 100);
+        assertTrue(after.lossPercent < 1);
+        assertTrue(after.goodputKbps > 24);
+        assertTrue(after.finalTargetKbps < 48);
+    }
+
+    @Test
+    public void followsBandwidthDrop() throws Exception {
+        CongestionHarness harness = new CongestionHarness(new Random(2), 30000000L);
+        harness.setBottleneck(100000, 32000);
+        harness.addBandwidthChange(30000, 20000);
+        CongestionHarness.Report report = harness.run(60);
+        System.out.println("Congestion 100 -> 20 kbps:   " + report);
+        assertTrue(report.overuseCount > 0);
+        assertTrue(report.finalTargetKbps < 20);
+        assertTrue(report.meanFrameMillis > 20);
+        assertTrue(report.meanQueueingDelayMillis < 250);
+        assertTrue(report.lossPercent < 1);
+    }
+
+    @Test
+    public void randomLossAloneDoesNotCollapseRate() throws Exception {
+        CongestionHarness harness = new CongestionHarness(new Random(3), 20000000L);
+        harness.getLink().setRandomLoss(0.03);
+        CongestionHarness.Report report = harness.run(60);
+        System.out.println("Congestion 3% random loss:   " + report);
+        // Loss without queueing isn't congestion
+        assertTrue(report.finalTargetKbps > 60);
+        assertEquals(0, report.overuseCount);
+    }
+}
@@ -0,0 +1,167 @@
+package com.vernonsung.testaudiostream;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class DtxTest {
+    private static final int FRAME = 160;
+    private static final int RATE = 8000;
+
+    // Recording of talkspurts over background noise: speech is a warbling tone at -20 dBov,
+    // the noise is white at noiseDbov
+    private static short[] conversation(double seconds, double noiseDbov, long seed) {
+        Random random = new Random(seed);
+        short[] pcm = new short[(int) (seconds * RATE)];
+        double noise = 32768 * Math.pow(10, noiseDbov / 20);
+        double speech = 32768 * Math.pow(10, -20 / 20.0) * Math.sqrt(2);
+        for (int i = 0; i < pcm.length; i++) {
+            double t = (double) i / RATE;
+            // 1.2 s of talk in every 2.7 s, after 2 s of noise only
+            boolean talking = t >= 2 && (t - 2) % 2.7 < 1.2;
+            double s = random.nextGaussian() * noise;
+            if (talking) {
+                s += speech * Math.sin(2 * Math.PI * (200 + 50 * Math.sin(2 * Math.PI * 3 * t)) * t);
+            }
+            pcm[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, s));
+        }
+        return pcm;
+    }
+
+    private static double lagOneCorrelation(short[] pcm) {
+        double r0 = 0;
+        double r1 = 0;
+        for (int i = 1; i < pcm.length; i++) {
+            r0 += (double) pcm[i] * pcm[i];
+            r1 += (double) pcm[i] * pcm[i - 1];
+        }
+        return r1 / r0;
+    }
+
+    @Test
+    public void detectorLearnsTheNoiseFloor() {
+        VoiceActivityDetector vad = new VoiceActivityDetector();
+        short[] pcm = conversation(6, -45, 1);
+        boolean[] speech = new boolean[pcm.length / FRAME];
+        for (int f = 0; f < speech.length; f++) {
+            speech[f] = vad.process(pcm, f * FRAME, FRAME);
+        }
+        // Noise only from 1 s to 2 s once the floor has settled
+        for (int f = 50; f < 100; f++) {
+            assertFalse("frame " + f, speech[f]);
+        }
+        assertEquals(-45, vad.getNoiseFloor(), 3);
+        // The first talkspurt from 2 s to 3.2 s, held for 10 frames after it
+        for (int f = 100; f < 170; f++) {
+            assertTrue("frame " + f, speech[f]);
+        }
+        for (int f = 172; f < 235; f++) {
+            assertFalse("frame " + f, speech[f]);
+        }
+        assertEquals(-127, VoiceActivityDetector.levelOf(new short[FRAME], 0, FRAME), 0);
+    }
+
+    @Test
+    public void comfortNoiseImitatesLevelAndSpectrum() {
+        // Rumble: white noise through a one pole low pass
+        Random random = new Random(2);
+        short[] rumble = new short[FRAME];
+        double y = 0;
+        for (int i = 0; i < 4 * FRAME; i++) {
+            y = 0.9 * y + random.nextGaussian() * 300;
+            if (i >= 3 * FRAME) {
+                rumble[i - 3 * FRAME] = (short) y;
+            }
+        }
+        double level = VoiceActivityDetector.levelOf(rumble, 0, FRAME);
+        byte[] payload = new byte[ComfortNoise.MAX_PAYLOAD_SIZE];
+        int length = new ComfortNoise(4).encode(rumble, 0, FRAME, level, payload, 0);
+        assertEquals(5, length);
+        assertEquals(ComfortNoise.quantizeLevel(level), payload[0]);
+
+        ComfortNoise receiver = new ComfortNoise(0);
+        assertTrue(receiver.update(payload, 0, length));
+        short[] generated = new short[RATE];
+        receiver.generate(generated, 0, generated.length);
+        assertEquals(level, VoiceActivityDetector.levelOf(generated, 0, generated.length), 1.5);
+        assertTrue(lagOneCorrelation(generated) > 0.7);
+
+        // The level alone gives white noise
+        assertTrue(receiver.update(payload, 0, 1));
+        receiver.generate(generated, 0, generated.length);
+        assertEquals(level, VoiceActivityDetector.levelOf(generated, 0, generated.length), 1);
+        assertEquals(0, lagOneCorrelation(generated), 0.05);
+
+        assertFalse(receiver.update(payload, 0, 0));
+        assertFalse(receiver.update(new byte[]{(byte) 0x80}, 0, 1));
+        assertEquals(2, receiver.getUpdateCount());
+    }
+
+    // Run a recording through DTX and return the fraction of frames not sent
+    private static double replay(short[] pcm, DtxController dtx) {
+        int frames = pcm.length / FRAME;
+        byte[] payload = new byte[ComfortNoise.MAX_PAYLOAD_SIZE];
+        for (int f = 0; f < frames; f++) {
+            if (dtx.process(pcm, f * FRAME, FRAME) == DtxController.COMFORT_NOISE) {
+                assertEquals(5, dtx.getPayload(payload, 0));
+            }
+        }
+        return (double) dtx.getSuppressedFrames() / frames;
+    }
+
+    @Test
+    public void savesTheSilenceOfARecording() throws IOException {
+        // -Ddtx.recording=file.wav replays a real one
+        String path = System.getProperty("dtx.recording");
+        short[] pcm = path == null ? conversation(30, -50, 3) : PcmFile.read(new File(path), RATE).samples;
+        DtxController dtx = new DtxController();
+        double suppressed = replay(pcm, dtx);
+        long frames = pcm.length / FRAME;
+        System.out.println(String.format(Locale.US,
+                "DTX: %d frames, %d speech, %d comfort noise, %d suppressed, %.0f%% of G.711 saved", frames,
+                dtx.getSpeechFrames(), dtx.getComfortNoiseFrames(), dtx.getSuppressedFrames(),
+                100.0 * (dtx.getSuppressedFrames() * (12 + FRAME) + dtx.getComfortNoiseFrames() * (FRAME - 5))
+                        / (frames * (12 + FRAME))));
+        assertEquals(frames, dtx.getSpeechFrames() + dtx.getComfortNoiseFrames() + dtx.getSuppressedFrames());
+        if (path == null) {
+            // 1.2 s in 2.7 s is talk, plus the hangover
+            assertTrue(suppressed > 0.45);
+            // One at each pause plus a refresh every 500 ms at most
+            assertTrue(dtx.getComfortNoiseFrames() < 11 * 3 + 2);
+        }
+    }
+
+    @Test
+    public void comfortNoiseKeepsTheTalkspurtMarker() {
+        RtpPacketizer packetizer = new RtpPacketizer(null, 0, FRAME);
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        RtpPacket packet = new RtpPacket();
+        byte[] payload = new byte[FRAME];
+        packetizer.packetize(payload, 0, FRAME, buffer);
+        packetizer.packetize(payload, 0, FRAME, buffer);
+        assertTrue(packet.parse(buffer));
+        assertFalse(packet.getMarker());
+        int seq = packet.getSequenceNumber();
+
+        assertTrue(packetizer.packetizeComfortNoise(ComfortNoise.PAYLOAD_TYPE, payload, 0, 5, buffer));
+        assertTrue(packet.parse(buffer));
+        assertFalse(packet.getMarker());
+        assertEquals(ComfortNoise.PAYLOAD_TYPE, packet.getPayloadType());
+        assertEquals((seq + 1) & 0xFFFF, packet.getSequenceNumber());
+        long timestamp = packet.getTimestamp();
+
+        packetizer.skipFrame();
+        packetizer.packetize(payload, 0, FRAME, buffer);
+        assertTrue(packet.parse(buffer));
+        assertTrue(packet.getMarker());
+        assertEquals(0, packet.getPayloadType());
+        assertEquals((seq + 2) & 0xFFFF, packet.getSequenceNumber());
+        assertEquals(timestamp + 2 * FRAME, packet.getTimestamp());
+    }
+}
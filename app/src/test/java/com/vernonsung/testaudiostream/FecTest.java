@@ -0,0 +1,297 @@
+package com.vernonsung.testaudiostream;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FecTest {
+    private static final int PCMU = 0;
+    private static final int RED = 99;
+    private static final int ULPFEC = 100;
+    private static final int FRAME_SAMPLES = 160;
+    private static final int FRAME_SIZE = 160;
+    private static final int MAX_PACKET = 1472;
+    private static final int FRAMES = 5000;
+    // Frames at the start that are never lost while the receiver validates the source
+    private static final int WARMUP = 10;
+    private static final int PLAYOUT_DELAY = 10;
+
+    // Decides whether the n-th packet on the wire is lost
+    private interface LossPattern {
+        boolean lose();
+    }
+
+    private static LossPattern random(final double loss, long seed) {
+        final Random random = new Random(seed);
+        return new LossPattern() {
+            @Override
+            public boolean lose() {
+                return random.nextDouble() < loss;
+            }
+        };
+    }
+
+    // Two-state Gilbert-Elliott channel, losing most packets while in the bad state
+    private static LossPattern bursty(final double enterBad, final double leaveBad, long seed) {
+        final Random random = new Random(seed);
+        return new LossPattern() {
+            private boolean bad;
+
+            @Override
+            public boolean lose() {
+                bad = bad ? random.nextDouble() >= leaveBad : random.nextDouble() < enterBad;
+                return bad && random.nextDouble() < 0.8;
+            }
+        };
+    }
+
+    private static class Outcome {
+        double lossBefore;
+        double lossAfter;
+        double overhead;
+    }
+
+    // Send FRAMES frames through the loss pattern with RED depth or XOR group size, play them out
+    // and see which frames made it
+    private static Outcome run(LossPattern loss, int redDepth, int xorGroup) {
+        RtpBufferPool pool = new RtpBufferPool(4, MAX_PACKET, false);
+        RtpPacketizer media = new RtpPacketizer(pool, 0x1234, redDepth > 0 ? RED : PCMU, FRAME_SAMPLES);
+        RtpPacketizer parity = new RtpPacketizer(pool, 0x1234, ULPFEC, FRAME_SAMPLES);
+        RedEncoder redEncoder = new RedEncoder(PCMU, FRAME_SIZE);
+        redEncoder.setDepth(redDepth);
+        UlpFecEncoder fecEncoder = new UlpFecEncoder(MAX_PACKET);
+        fecEncoder.setGroupSize(xorGroup);
+
+        JitterBuffer jitterBuffer = new JitterBuffer(64, MAX_PACKET, 8000, FRAME_SAMPLES, PLAYOUT_DELAY, PLAYOUT_DELAY);
+        RtpReceiver receiver = new RtpReceiver(jitterBuffer, MAX_PACKET);
+        receiver.setPayloadType(PCMU);
+        receiver.setRedPayloadType(RED);
+        receiver.setFecPayloadType(ULPFEC, MAX_PACKET);
+
+        byte[] frame = new byte[FRAME_SIZE];
+        byte[] payload = new byte[MAX_PACKET];
+        byte[] played = new byte[MAX_PACKET];
+        boolean[] arrived = new boolean[FRAMES];
+        long mediaBytes = 0;
+        long extraBytes = 0;
+        int lostBefore = 0;
+        for (int n = 0; n < FRAMES + 64; n++) {
+            if (n < FRAMES) {
+                Arrays.fill(frame, (byte) n);
+                ByteBuffer.wrap(frame).putInt(n);
+                long timestamp = media.getTimestamp();
+                int length = redDepth > 0
+                        ? redEncoder.encode(frame, 0, FRAME_SIZE, timestamp, payload, 0)
+                        : FRAME_SIZE;
+                ByteBuffer packet = media.packetize(redDepth > 0 ? payload : frame, 0, length);
+                mediaBytes += FRAME_SIZE;
+                extraBytes += length - FRAME_SIZE;
+                boolean lost = n >= WARMUP && loss.lose();
+                if (lost) {
+                    lostBefore++;
+                } else {
+                    receiver.onPacket(packet, n * 20000000L);
+                }
+                if (fecEncoder.protect(packet)) {
+                    int fecLength = fecEncoder.writePayload(payload, 0);
+                    ByteBuffer fec = parity.packetize(payload, 0, fecLength);
+                    extraBytes += fec.remaining();
+                    if (n < WARMUP || !loss.lose()) {
+                        receiver.onPacket(fec, n * 20000000L);
+                    }
+                    pool.release(fec);
+                }
+                pool.release(packet);
+            }
+            int length = jitterBuffer.poll(played, 0);
+            if (length == FRAME_SIZE) {
+                arrived[ByteBuffer.wrap(played).getInt()] = true;
+            }
+        }
+        int lostAfter = 0;
+        for (int n = WARMUP; n < FRAMES; n++) {
+            if (!arrived[n]) {
+                lostAfter++;
+            }
+        }
+        Outcome o = new Outcome();
+        o.lossBefore = (double) lostBefore / (FRAMES - WARMUP);
+        o.lossAfter = (double) lostAfter / (FRAMES - WARMUP);
+        o.overhead = (double) extraBytes / mediaBytes;
+        return o;
+    }
+
+    @Test
+    public void lossBeforeAndAfterRecovery() {
+        String[] names = {"random 2%", "random 5%", "random 10%", "random 20%", "bursty"};
+        String[] schemes = {"none", "RED 1", "RED 2", "XOR 8", "XOR 4", "XOR 2"};
+        int[][] settings = {{0, 0}, {1, 0}, {2, 0}, {0, 8}, {0, 4}, {0, 2}};
+        for (int p = 0; p < names.length; p++) {
+            StringBuilder line = new StringBuilder(String.format(Locale.US, "FEC %-10s", names[p]));
+            for (int s = 0; s < schemes.length; s++) {
+                LossPattern loss = p == 4 ? bursty(0.03, 0.4, p) : random(new double[]{0.02, 0.05, 0.10, 0.20}[p], p);
+                Outcome o = run(loss, settings[s][0], settings[s][1]);
+                line.append(String.format(Locale.US, " | %s %5.2f%% -> %5.2f%% (+%3.0f%%)",
+                        schemes[s], o.lossBefore * 100, o.lossAfter * 100, o.overhead * 100));
+                assertTrue(o.lossAfter <= o.lossBefore);
+                if (s == 0) {
+                    // Without FEC every lost packet is a lost frame
+                    assertEquals(o.lossBefore, o.lossAfter, 1e-9);
+                }
+                if (p == 1 && s == 1) {
+                    assertTrue("RED 1 at 5% loss", o.lossAfter < o.lossBefore / 5);
+                }
+                if (p == 1 && s == 4) {
+                    assertTrue("XOR 4 at 5% loss", o.lossAfter < o.lossBefore / 2);
+                }
+            }
+            System.out.println(line);
+        }
+    }
+
+    @Test
+    public void parityRebuildsTheExactPacket() {
+        UlpFecEncoder encoder = new UlpFecEncoder(MAX_PACKET);
+        encoder.setGroupSize(3);
+        final ByteBuffer[] rebuilt = new ByteBuffer[1];
+        UlpFecDecoder decoder = new UlpFecDecoder(MAX_PACKET, new UlpFecDecoder.Listener() {
+            @Override
+            public void onRecovered(ByteBuffer packet) {
+                rebuilt[0] = ByteBuffer.allocate(packet.remaining());
+                rebuilt[0].put(packet).flip();
+            }
+        });
+        // Different lengths, markers and payload types within one group
+        RtpPacket header = new RtpPacket();
+        ByteBuffer[] packets = new ByteBuffer[3];
+        for (int i = 0; i < 3; i++) {
+            packets[i] = ByteBuffer.allocate(RtpPacket.FIXED_HEADER_LENGTH + 20 + i * 7);
+            header.clear();
+            header.setMarker(i == 1);
+            header.setPayloadType(i == 2 ? 13 : PCMU);
+            header.setSequenceNumber(0xFFFF + i);
+            header.setTimestamp(1000 + i * FRAME_SAMPLES);
+            header.setSsrc(0xCAFEL);
+            header.writeHeader(packets[i]);
+            while (packets[i].hasRemaining()) {
+                packets[i].put((byte) (i * 31 + packets[i].position()));
+            }
+            packets[i].flip();
+            assertEquals(i == 2, encoder.protect(packets[i]));
+        }
+        byte[] payload = new byte[encoder.getMaxPayloadLength()];
+        int length = encoder.writePayload(payload, 0);
+        ByteBuffer fec = ByteBuffer.allocate(RtpPacket.FIXED_HEADER_LENGTH + length);
+        header.clear();
+        header.setPayloadType(ULPFEC);
+        header.setSsrc(0xCAFEL);
+        header.writeHeader(fec);
+        fec.put(payload, 0, length).flip();
+
+        for (int lost = 0; lost < 3; lost++) {
+            decoder.reset();
+            rebuilt[0] = null;
+            for (int i = 0; i < 3; i++) {
+                if (i != lost) {
+                    decoder.onMedia(packets[i]);
+                }
+            }
+            assertTrue(decoder.onFec(fec));
+            assertNotNull(rebuilt[0]);
+            assertEquals("packet " + lost, packets[lost], rebuilt[0]);
+        }
+    }
+
+    @Test
+    public void twoLostInAGroupAreNotRebuilt() {
+        UlpFecEncoder encoder = new UlpFecEncoder(MAX_PACKET);
+        encoder.setGroupSize(4);
+        RtpBufferPool pool = new RtpBufferPool(8, MAX_PACKET, false);
+        RtpPacketizer packetizer = new RtpPacketizer(pool, 1, PCMU, FRAME_SAMPLES);
+        final int[] count = new int[1];
+        UlpFecDecoder decoder = new UlpFecDecoder(MAX_PACKET, new UlpFecDecoder.Listener() {
+            @Override
+            public void onRecovered(ByteBuffer packet) {
+                count[0]++;
+            }
+        });
+        byte[] frame = new byte[FRAME_SIZE];
+        ByteBuffer fec = null;
+        for (int i = 0; i < 4; i++) {
+            ByteBuffer packet = packetizer.packetize(frame, 0, FRAME_SIZE);
+            if (encoder.protect(packet)) {
+                byte[] payload = new byte[encoder.getMaxPayloadLength()];
+                int length = encoder.writePayload(payload, 0);
+                fec = new RtpPacketizer(pool, 1, ULPFEC, FRAME_SAMPLES).packetize(payload, 0, length);
+            }
+            if (i % 2 == 0) {
+                decoder.onMedia(packet);
+            }
+        }
+        decoder.onFec(fec);
+        assertEquals(0, count[0]);
+        assertEquals(0, decoder.getRecoveredCount());
+    }
+
+    @Test
+    public void redRoundTrip() {
+        RedEncoder encoder = new RedEncoder(PCMU, 32);
+        encoder.setDepth(2);
+        RedDecoder decoder = new RedDecoder();
+        byte[] out = new byte[encoder.getMaxPayloadLength()];
+        final StringBuilder seen = new StringBuilder();
+        RedDecoder.Listener listener = new RedDecoder.Listener() {
+            @Override
+            public void onBlock(int payloadType, int distance, long timestamp, byte[] data, int offset, int length) {
+                seen.append(payloadType).append('/').append(distance).append('/').append(timestamp).append('/')
+                        .append(data[offset]).append('/').append(length).append(' ');
+            }
+        };
+        for (int n = 0; n < 4; n++) {
+            byte[] frame = new byte[10 + n];
+            frame[0] = (byte) n;
+            int length = encoder.encode(frame, 0, frame.length, 0xFFFFFF00L + n * FRAME_SAMPLES, out, 0);
+            seen.setLength(0);
+            assertTrue(decoder.parse(out, 0, length, 0xFFFFFF00L + n * FRAME_SAMPLES, listener));
+        }
+        // Timestamps wrap past 2^32
+        assertEquals("0/2/4294967200/1/11 0/1/64/2/12 0/0/224/3/13 ", seen.toString());
+
+        // Broken block lengths
+        out[3] = (byte) 0xFF;
+        assertFalse(decoder.parse(out, 0, 20, 0, listener));
+    }
+
+    @Test
+    public void redundancyFollowsLoss() {
+        FecController controller = new FecController();
+        assertEquals(0, controller.getLevel());
+        for (int i = 0; i < 10; i++) {
+            controller.onReport(14);
+        }
+        // About 5% loss
+        assertEquals(2, controller.getLevel());
+        assertEquals(2, controller.getRedDepth());
+        assertEquals(4, controller.getXorGroupSize());
+        for (int i = 0; i < 10; i++) {
+            controller.onReport(64);
+        }
+        assertEquals(3, controller.getLevel());
+        // Back to 4%: below half of the level 3 threshold, so it drops to 2 and stays there, above
+        // half of the level 2 threshold
+        for (int i = 0; i < 10; i++) {
+            controller.onReport(10);
+        }
+        assertEquals(2, controller.getLevel());
+        for (int i = 0; i < 30; i++) {
+            controller.onReport(0);
+        }
+        assertEquals(0, controller.getLevel());
+        assertEquals(0, controller.getXorGroupSize());
+    }
+}
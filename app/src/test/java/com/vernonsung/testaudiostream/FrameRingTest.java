@@ -0,0 +1,116 @@
+package com.vernonsung.testaudiostream;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FrameRingTest {
+    @Test
+    public void capacityIsPowerOfTwo() {
+        assertEquals(8, new FrameRing(5, 0, 0).getCapacity());
+        assertEquals(16, new FrameRing(16, 0, 0).getCapacity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityTooSmall() {
+        new FrameRing(1, 0, 0);
+    }
+
+    @Test
+    public void fillAndDrain() {
+        FrameRing ring = new FrameRing(4, 8, 0);
+        assertNull(ring.peek());
+        for (int i = 0; i < 4; i++) {
+            FrameRing.Slot slot = ring.claim();
+            assertNotNull(slot);
+            slot.data[0] = (byte) i;
+            slot.length = 1;
+            ring.publish();
+        }
+        assertNull(ring.claim());
+        assertEquals(4, ring.size());
+        for (int i = 0; i < 4; i++) {
+            FrameRing.Slot slot = ring.peek();
+            assertEquals(i, slot.data[0]);
+            ring.release();
+        }
+        assertTrue(ring.isEmpty());
+        assertNull(ring.peek());
+    }
+
+    @Test
+    public void batchesWrapAround() {
+        FrameRing ring = new FrameRing(8, 0, 4);
+        int next = 0;
+        int expected = 0;
+        for (int round = 0; round < 100; round++) {
+            int granted = ring.claim(5);
+            for (int i = 0; i < granted; i++) {
+                ring.writeSlot(i).sequenceNumber = next++;
+            }
+            ring.publish(granted);
+            int ready = ring.available(3);
+            for (int i = 0; i < ready; i++) {
+                assertEquals(expected++, ring.readSlot(i).sequenceNumber);
+            }
+            ring.release(ready);
+        }
+        // Nothing is granted beyond what's free
+        assertEquals(8 - ring.size(), ring.claim(100));
+    }
+
+    @Test
+    public void unpublishedSlotsAreInvisible() {
+        FrameRing ring = new FrameRing(4, 0, 0);
+        assertEquals(2, ring.claim(2));
+        assertEquals(0, ring.available(1));
+        ring.publish(1);
+        assertEquals(1, ring.available(4));
+    }
+
+    // How fast, against ArrayBlockingQueue, is measured by FrameRingBenchmark
+    @Test
+    public void twoThreadsHandOverInOrder() throws Exception {
+        final int frames = 2000000;
+        final FrameRing ring = new FrameRing(256, 160, 0);
+        Thread producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int n = 0;
+                while (n < frames) {
+                    int granted = ring.claim(Math.min(8, frames - n));
+                    if (granted == 0) {
+                        // Back off so this also works on a single core
+                        Thread.yield();
+                        continue;
+                    }
+                    for (int i = 0; i < granted; i++) {
+                        FrameRing.Slot slot = ring.writeSlot(i);
+                        slot.sequenceNumber = n;
+                        slot.data[159] = (byte) n;
+                        slot.length = 160;
+                        n++;
+                    }
+                    ring.publish(granted);
+                }
+            }
+        });
+        producer.start();
+        int n = 0;
+        while (n < frames) {
+            int ready = ring.available(8);
+            if (ready == 0) {
+                Thread.yield();
+                continue;
+            }
+            for (int i = 0; i < ready; i++) {
+                FrameRing.Slot slot = ring.readSlot(i);
+                assertEquals(n, slot.sequenceNumber);
+                assertEquals((byte) n, slot.data[159]);
+                n++;
+            }
+            ring.release(ready);
+        }
+        producer.join();
+    }
+}
@@ -0,0 +1,169 @@
+package com.vernonsung.testaudiostream;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class InterfaceSelectorTest {
+    // Interfaces set by the test
+    private static class FakeSource implements LocalAddressTable.Source {
+        List<LocalAddressTable.Entry> entries = new ArrayList<LocalAddressTable.Entry>();
+
+        FakeSource add(String name, String address, int prefix, int mtu) throws UnknownHostException {
+            entries.add(new LocalAddressTable.Entry(name, InetAddress.getByName(address), prefix, mtu,
+                    LocalAddressTable.LinkType.fromInterfaceName(name)));
+            return this;
+        }
+
+        @Override
+        public List<LocalAddressTable.Entry> enumerate() throws SocketException {
+            return entries;
+        }
+    }
+
+    // Routes set by the test, remote to source address
+    private static class FakeProbe implements InterfaceSelector.RouteProbe {
+        Map<InetAddress, InetAddress> routes = new HashMap<InetAddress, InetAddress>();
+
+        FakeProbe route(String remote, String source) throws UnknownHostException {
+            routes.put(InetAddress.getByName(remote), InetAddress.getByName(source));
+            return this;
+        }
+
+        @Override
+        public InetAddress sourceFor(InetAddress remote) {
+            return routes.get(remote);
+        }
+    }
+
+    private static String selected(InterfaceSelector selector, String remote) throws UnknownHostException {
+        InetAddress a = selector.select(InetAddress.getByName(remote));
+        return a == null ? null : a.getHostAddress();
+    }
+
+    // A phone on Wi-Fi and cellular with a VPN up
+    private static FakeSource phone() throws UnknownHostException {
+        return new FakeSource()
+                .add("lo", "127.0.0.1", 8, 65536)
+                .add("rmnet0", "100.80.3.4", 30, 1500)
+                .add("rmnet0", "2001:db8:1::4", 64, 1500)
+                .add("wlan0", "192.168.1.20", 24, 1500)
+                .add("wlan0", "fe80::20", 64, 1500)
+                .add("tun0", "10.8.0.2", 24, 1400);
+    }
+
+    @Test
+    public void sameSubnetBeatsEverythingElse() throws UnknownHostException {
+        FakeProbe probe = new FakeProbe().route("192.168.1.30", "192.168.1.20");
+        InterfaceSelector selector = new InterfaceSelector(new LocalAddressTable(phone()), probe);
+        assertEquals("192.168.1.20", selected(selector, "192.168.1.30"));
+        List<InterfaceSelector.Choice> ranked = selector.rank(InetAddress.getByName("192.168.1.30"));
+        // Loopback and IPv6 are left out for an IPv4 remote
+        assertEquals(3, ranked.size());
+        InterfaceSelector.Choice best = ranked.get(0);
+        assertTrue(best.onLink);
+        assertTrue(best.routed);
+        assertEquals(InterfaceSelector.ON_LINK + InterfaceSelector.ROUTED + 25 + InterfaceSelector.SAME_SCOPE
+                + InterfaceSelector.PREFERRED_FAMILY + InterfaceSelector.LARGE_MTU, best.score);
+    }
+
+    @Test
+    public void routeDecidesForRemoteSubnets() throws UnknownHostException {
+        // The company network is only reachable through the VPN
+        FakeProbe probe = new FakeProbe().route("10.20.0.9", "10.8.0.2").route("198.51.100.7", "100.80.3.4");
+        InterfaceSelector selector = new InterfaceSelector(new LocalAddressTable(phone()), probe);
+        assertEquals("10.8.0.2", selected(selector, "10.20.0.9"));
+        // Without a route Wi-Fi still beats cellular
+        assertEquals("192.168.1.20", selected(selector, "203.0.113.50"));
+        assertEquals("100.80.3.4", selected(selector, "198.51.100.7"));
+    }
+
+    @Test
+    public void aRouteLearnedLaterIsUsedOnceForgotten() throws UnknownHostException {
+        // The probe doesn't know the route at first, as when it's still pending on another thread
+        FakeProbe probe = new FakeProbe();
+        InterfaceSelector selector = new InterfaceSelector(new LocalAddressTable(phone()), probe);
+        assertEquals("192.168.1.20", selected(selector, "10.20.0.9"));
+        probe.route("10.20.0.9", "10.8.0.2");
+        assertEquals("192.168.1.20", selected(selector, "10.20.0.9"));
+        selector.forget(InetAddress.getByName("10.20.0.9"));
+        assertEquals("10.8.0.2", selected(selector, "10.20.0.9"));
+        assertEquals(2, selector.getProbeCount());
+    }
+
+    @Test
+    public void remoteFamilyIsKept() throws UnknownHostException {
+        InterfaceSelector selector = new InterfaceSelector(new LocalAddressTable(phone()), new FakeProbe());
+        assertEquals("2001:db8:1:0:0:0:0:4", selected(selector, "2001:db8:2::1"));
+
+        FakeSource v4only = new FakeSource().add("wlan0", "192.168.1.20", 24, 1500);
+        selector = new InterfaceSelector(new LocalAddressTable(v4only), new FakeProbe());
+        assertNull(selected(selector, "2001:db8:2::1"));
+
+        LocalAddressTable table = new LocalAddressTable(phone());
+        table.setFamily(LocalAddressTable.Family.IPV6_ONLY);
+        selector = new InterfaceSelector(table, new FakeProbe());
+        assertNull(selected(selector, "192.168.1.30"));
+    }
+
+    @Test
+    public void preferredInterfaceWinsAndTinyMtuLoses() throws UnknownHostException {
+        LocalAddressTable table = new LocalAddressTable(phone());
+        table.setPreferredInterface("rmnet0");
+        InterfaceSelector selector = new InterfaceSelector(table, new FakeProbe());
+        assertEquals("100.80.3.4", selected(selector, "192.168.1.30"));
+
+        FakeSource source = new FakeSource()
+                .add("eth0", "172.16.0.5", 16, 400)
+                .add("wlan0", "172.17.0.5", 16, 1500);
+        selector = new InterfaceSelector(new LocalAddressTable(source), new FakeProbe());
+        // Ethernet would win on link type, but its MTU can't carry a full packet
+        assertEquals("172.17.0.5", selected(selector, "8.8.8.8"));
+    }
+
+    @Test
+    public void cachedUntilTheAddressesChange() throws UnknownHostException {
+        FakeSource source = phone();
+        LocalAddressTable table = new LocalAddressTable(source);
+        FakeProbe probe = new FakeProbe();
+        InterfaceSelector selector = new InterfaceSelector(table, probe);
+        assertEquals("192.168.1.20", selected(selector, "192.168.1.30"));
+        selected(selector, "192.168.1.30");
+        selected(selector, "192.168.1.30");
+        assertEquals(1, selector.getProbeCount());
+        selected(selector, "192.168.1.31");
+        assertEquals(2, selector.getProbeCount());
+
+        // Nothing changed, the cache survives
+        table.refresh();
+        selected(selector, "192.168.1.30");
+        assertEquals(2, selector.getProbeCount());
+
+        // Wi-Fi dropped
+        source.entries.remove(3);
+        assertTrue(table.refresh());
+        assertEquals("100.80.3.4", selected(selector, "192.168.1.30"));
+        assertEquals(3, selector.getProbeCount());
+    }
+
+    @Test
+    public void onLinkMath() throws UnknownHostException {
+        LocalAddressTable.Entry e = new LocalAddressTable.Entry("wlan0", InetAddress.getByName("172.16.37.4"), 20);
+        assertTrue(e.isOnLink(InetAddress.getByName("172.16.47.255")));
+        assertFalse(e.isOnLink(InetAddress.getByName("172.16.48.1")));
+        assertFalse(e.isOnLink(InetAddress.getByName("fd00::1")));
+        LocalAddressTable.Entry v6 = new LocalAddressTable.Entry("wlan0", InetAddress.getByName("fd00:1:2:3::9"), 64);
+        assertTrue(v6.isOnLink(InetAddress.getByName("fd00:1:2:3:ffff::1")));
+        assertFalse(v6.isOnLink(InetAddress.getByName("fd00:1:2:4::1")));
+        assertEquals(LocalAddressTable.LinkType.CELLULAR, LocalAddressTable.LinkType.fromInterfaceName("rmnet_data0"));
+        assertEquals(LocalAddressTable.LinkType.VPN, LocalAddressTable.LinkType.fromInterfaceName("tun0"));
+    }
+}
@@ -0,0 +1,177 @@
+package com.vernonsung.testaudiostream;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class JitterBufferTest {
+    private static final int CLOCK_RATE = 8000;
+    private static final int FRAME_SAMPLES = 160;
+    private static final long FRAME_NANOS = 20000000L;
+
+    private JitterBuffer newBuffer(int minDelay, int maxDelay) {
+        return new JitterBuffer(64, 32, CLOCK_RATE, FRAME_SAMPLES, minDelay, maxDelay);
+    }
+
+    private static byte[] frame(int seq) {
+        return new byte[]{(byte) seq, (byte) (seq >> 8)};
+    }
+
+    @Test
+    public void reordersWithinTargetDelay() throws Exception {
+        JitterBuffer buffer = newBuffer(3, 10);
+        int[] arrivalOrder = {0, 2, 1, 4, 3, 5};
+        for (int seq : arrivalOrder) {
+            assertTrue(buffer.put(seq, seq * FRAME_SAMPLES, frame(seq), 0, 2, seq * FRAME_NANOS));
+        }
+        byte[] out = new byte[32];
+        for (int seq = 0; seq < 6; seq++) {
+            assertEquals(2, buffer.poll(out, 0));
+            assertEquals((byte) seq, out[0]);
+        }
+        assertEquals(0, buffer.getConcealedCount());
+        assertEquals(6, buffer.getPlayedCount());
+    }
+
+    @Test
+    public void prefetchesBeforePlaying() throws Exception {
+        JitterBuffer buffer = newBuffer(3, 10);
+        byte[] out = new byte[32];
+        buffer.put(100, 0, frame(100), 0, 2, 0);
+        buffer.put(101, FRAME_SAMPLES, frame(101), 0, 2, FRAME_NANOS);
+        assertEquals(JitterBuffer.NO_FRAME, buffer.poll(out, 0));
+        buffer.put(102, 2 * FRAME_SAMPLES, frame(102), 0, 2, 2 * FRAME_NANOS);
+        assertEquals(2, buffer.poll(out, 0));
+        assertEquals(100, out[0]);
+    }
+
+    @Test
+    public void concealsLossAndDropsLatePackets() throws Exception {
+        JitterBuffer buffer = newBuffer(2, 10);
+        final int[] concealed = new int[1];
+        buffer.setConcealer(new JitterBuffer.Concealer() {
+            @Override
+            public int conceal(int sequenceNumber, byte[] out, int offset) {
+                concealed[0] = sequenceNumber;
+                out[offset] = (byte) 0xEE;
+                return 1;
+            }
+        });
+        byte[] out = new byte[32];
+        buffer.put(65534, 0, frame(65534), 0, 2, 0);
+        buffer.put(0, 2 * FRAME_SAMPLES, frame(0), 0, 2, 2 * FRAME_NANOS);
+        buffer.put(1, 3 * FRAME_SAMPLES, frame(1), 0, 2, 3 * FRAME_NANOS);
+        assertEquals(2, buffer.poll(out, 0));
+        // 65535 is missing across the wrap
+        assertEquals(1, buffer.poll(out, 0));
+        assertEquals(65535, concealed[0]);
+        assertEquals((byte) 0xEE, out[0]);
+        // It arrives after its playout time
+        assertFalse(buffer.put(65535, FRAME_SAMPLES, frame(65535), 0, 2, 4 * FRAME_NANOS));
+        assertEquals(1, buffer.getLateCount());
+        assertEquals(2, buffer.poll(out, 0));
+        assertEquals(0, out[0]);
+        // Duplicate
+        assertFalse(buffer.put(1, 3 * FRAME_SAMPLES, frame(1), 0, 2, 4 * FRAME_NANOS));
+        assertEquals(1, buffer.getDuplicateCount());
+    }
+
+    @Test
+    public void reportsUnderrunAndRebuffers() throws Exception {
+        JitterBuffer buffer = newBuffer(2, 10);
+        byte[] out = new byte[32];
+        buffer.put(0, 0, frame(0), 0, 2, 0);
+        buffer.put(1, FRAME_SAMPLES, frame(1), 0, 2, FRAME_NANOS);
+        assertEquals(2, buffer.poll(out, 0));
+        assertEquals(2, buffer.poll(out, 0));
+        assertEquals(0, buffer.poll(out, 0));
+        assertEquals(1, buffer.getUnderrunCount());
+        assertFalse(buffer.isPlaying());
+        // Frame 2 shows up late but is still wanted since playout waits for it
+        assertTrue(buffer.put(2, 2 * FRAME_SAMPLES, frame(2), 0, 2, 5 * FRAME_NANOS));
+        assertTrue(buffer.put(3, 3 * FRAME_SAMPLES, frame(3), 0, 2, 5 * FRAME_NANOS));
+        assertEquals(2, buffer.poll(out, 0));
+        assertEquals(2, out[0]);
+    }
+
+    @Test
+    public void emptyFrameEndsTheTalkspurt() throws Exception {
+        JitterBuffer buffer = newBuffer(1, 10);
+        byte[] out = new byte[32];
+        buffer.put(0, 0, frame(0), 0, 2, 0);
+        // Comfort noise place holder, then the sender goes quiet
+        buffer.put(1, FRAME_SAMPLES, frame(1), 0, 0, FRAME_NANOS);
+        assertEquals(2, buffer.poll(out, 0));
+        assertEquals(0, buffer.poll(out, 0));
+        assertEquals(JitterBuffer.NO_FRAME, buffer.poll(out, 0));
+        assertEquals(JitterBuffer.NO_FRAME, buffer.poll(out, 0));
+        assertEquals(0, buffer.getUnderrunCount());
+        assertEquals(0, buffer.getConcealedCount());
+        // The next talkspurt plays as soon as it's prefetched
+        buffer.put(2, 50 * FRAME_SAMPLES, frame(2), 0, 2, 50 * FRAME_NANOS);
+        assertEquals(2, buffer.poll(out, 0));
+        assertEquals(2, out[0]);
+    }
+
+    @Test
+    public void targetDelayFollowsJitter() throws Exception {
+        JitterBuffer buffer = newBuffer(1, 20);
+        Random random = new Random(1);
+        // Steady network first
+        for (int seq = 0; seq < 100; seq++) {
+            buffer.put(seq, seq * FRAME_SAMPLES, frame(seq), 0, 2, seq * FRAME_NANOS);
+            buffer.poll(new byte[32], 0);
+        }
+        assertEquals(0, buffer.getJitter());
+        assertEquals(1, buffer.getTargetDelayFrames());
+
+        // Up to 60 ms of random delay per packet
+        for (int seq = 100; seq < 400; seq++) {
+            long delay = (long) (random.nextDouble() * 3 * FRAME_NANOS);
+            buffer.put(seq, seq * FRAME_SAMPLES, frame(seq), 0, 2, seq * FRAME_NANOS + delay);
+        }
+        assertTrue("jitter " + buffer.getJitter(), buffer.getJitter() > FRAME_SAMPLES / 2);
+        assertTrue(buffer.getTargetDelayFrames() >= 3);
+        assertTrue(buffer.getTargetDelayFrames() <= 20);
+    }
+
+    @Test
+    public void shrinksDelayWhenBufferStaysDeep() throws Exception {
+        JitterBuffer buffer = newBuffer(1, 10);
+        byte[] out = new byte[32];
+        for (int seq = 0; seq < 6; seq++) {
+            buffer.put(seq, seq * FRAME_SAMPLES, frame(seq), 0, 2, seq * FRAME_NANOS);
+        }
+        // Keep 6 frames queued while the target is 1
+        for (int seq = 6; seq < 200; seq++) {
+            buffer.poll(out, 0);
+            buffer.put(seq, seq * FRAME_SAMPLES, frame(seq), 0, 2, seq * FRAME_NANOS);
+        }
+        assertTrue(buffer.getShrinkCount() > 0);
+        assertTrue(buffer.getDepth() <= 3);
+    }
+
+    @Test
+    public void receiverQueuesValidatedPackets() throws Exception {
+        JitterBuffer buffer = newBuffer(1, 10);
+        RtpReceiver receiver = new RtpReceiver(buffer, 32);
+        receiver.setPayloadType(0);
+        RtpPacketizer packetizer = new RtpPacketizer(new RtpBufferPool(1), 42L, 0, FRAME_SAMPLES);
+        packetizer.setSequenceNumber(10);
+        ByteBuffer datagram = ByteBuffer.allocate(64);
+        byte[] payload = {5, 6, 7};
+        for (int i = 0; i < 3; i++) {
+            packetizer.packetize(payload, 0, payload.length, datagram);
+            // The first packet is held back by source probation
+            assertEquals(i > 0, receiver.onPacket(datagram, i * FRAME_NANOS));
+        }
+        assertFalse(receiver.onPacket(ByteBuffer.wrap(new byte[4]), 0));
+        assertEquals(1, receiver.getInvalidCount());
+        byte[] out = new byte[32];
+        assertEquals(3, buffer.poll(out, 0));
+        assertEquals(7, out[2]);
+    }
+}
@@ -0,0 +1,122 @@
+package com.vernonsung.testaudiostream;
+
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class LocalAddressTableTest {
+    // Interfaces set by the test, counting how often they were enumerated
+    private static class FakeSource implements LocalAddressTable.Source {
+        List<LocalAddressTable.Entry> entries = new ArrayList<LocalAddressTable.Entry>();
+        int enumerations;
+        boolean fail;
+
+        FakeSource add(String name, String address, int prefix) throws UnknownHostException {
+            entries.add(new LocalAddressTable.Entry(name, InetAddress.getByName(address), prefix));
+            return this;
+        }
+
+        @Override
+        public List<LocalAddressTable.Entry> enumerate() throws SocketException {
+            enumerations++;
+            if (fail) {
+                throw new SocketException("down");
+            }
+            return entries;
+        }
+    }
+
+    private static String selected(LocalAddressTable table) {
+        InetAddress a = table.select();
+        return a == null ? null : a.getHostAddress();
+    }
+
+    @Test
+    public void anyPrivateRangeIsPicked() throws UnknownHostException {
+        String[] privates = {"10.1.2.3", "172.20.0.5", "192.168.1.9", "100.72.0.1", "fd12:3456::1"};
+        for (String p : privates) {
+            FakeSource source = new FakeSource().add("lo", "127.0.0.1", 8).add("wlan0", p, 24);
+            assertEquals(p, selected(new LocalAddressTable(source)).replaceAll(":0(:0)*", ":"));
+        }
+        assertFalse(LocalAddressTable.isPrivate(InetAddress.getByName("172.32.0.1")));
+        assertFalse(LocalAddressTable.isPrivate(InetAddress.getByName("8.8.8.8")));
+        assertFalse(LocalAddressTable.isPrivate(InetAddress.getByName("2001:db8::1")));
+    }
+
+    @Test
+    public void policyOrder() throws UnknownHostException {
+        FakeSource source = new FakeSource()
+                .add("lo", "127.0.0.1", 8)
+                .add("rmnet0", "2001:db8::5", 64)
+                .add("rmnet0", "203.0.113.7", 24)
+                .add("wlan0", "fe80::1", 64)
+                .add("wlan0", "fd00::7", 64)
+                .add("wlan0", "10.0.0.7", 8);
+        LocalAddressTable table = new LocalAddressTable(source);
+        // Private before public, IPv4 first by default, link-local and loopback never
+        assertEquals("10.0.0.7", selected(table));
+        assertEquals(4, table.getCandidates().size());
+        assertEquals("fd00:0:0:0:0:0:0:7", table.getCandidates().get(1).address.getHostAddress());
+
+        table.setFamily(LocalAddressTable.Family.IPV6_FIRST);
+        assertEquals("fd00:0:0:0:0:0:0:7", selected(table));
+        table.setFamily(LocalAddressTable.Family.IPV4_ONLY);
+        assertEquals(2, table.getCandidates().size());
+        table.setFamily(LocalAddressTable.Family.IPV6_ONLY);
+        assertEquals(2, table.getCandidates().size());
+
+        table.setFamily(LocalAddressTable.Family.IPV4_FIRST);
+        table.setPreferredInterface("rmnet0");
+        assertEquals("203.0.113.7", selected(table));
+        table.setPreferredInterface("eth9");
+        assertEquals("10.0.0.7", selected(table));
+    }
+
+    @Test
+    public void nothingUsable() throws UnknownHostException {
+        FakeSource source = new FakeSource().add("lo", "127.0.0.1", 8).add("wlan0", "169.254.3.4", 16);
+        assertNull(new LocalAddressTable(source).select());
+    }
+
+    @Test
+    public void cachedUntilRefreshedAndOnlyChangesNotify() throws UnknownHostException {
+        FakeSource source = new FakeSource().add("wlan0", "192.168.0.2", 24);
+        LocalAddressTable table = new LocalAddressTable(source);
+        final List<Integer> notified = new ArrayList<Integer>();
+        table.addListener(new LocalAddressTable.Listener() {
+            @Override
+            public void onAddressesChanged(LocalAddressTable t) {
+                notified.add(t.getEntries().size());
+            }
+        });
+        assertEquals("192.168.0.2", selected(table));
+        selected(table);
+        table.getCandidates();
+        assertEquals(1, source.enumerations);
+        assertEquals(1, notified.size());
+
+        // Same interfaces again
+        assertFalse(table.refresh());
+        assertEquals(1, notified.size());
+
+        // Moved to another network
+        source.entries = new ArrayList<LocalAddressTable.Entry>();
+        source.add("wlan0", "10.8.0.3", 16).add("eth0", "172.16.5.5", 24);
+        assertTrue(table.refresh());
+        assertEquals(2, (int) notified.get(1));
+        assertEquals("10.8.0.3", selected(table));
+        assertFalse(table.contains(InetAddress.getByName("192.168.0.2")));
+        assertTrue(table.contains(InetAddress.getByName("172.16.5.5")));
+
+        // A failed enumeration keeps what was known
+        source.fail = true;
+        assertFalse(table.refresh());
+        assertEquals("10.8.0.3", selected(table));
+    }
+}
@@ -0,0 +1,147 @@
+package com.vernonsung.testaudiostream;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LoopbackHarnessTest {
+    private static final long MS = 1000000L;
+    // One minute of call
+    private static final int FRAMES = 3000;
+
+    private static LoopbackHarness.Report run(String name, LoopbackHarness harness) {
+        LoopbackHarness.Report report = harness.run(FRAMES);
+        System.out.println("Loopback " + name + ": " + report);
+        return report;
+    }
+
+    @Test
+    public void cleanLink() {
+        LoopbackHarness harness = new LoopbackHarness(new Random(1), 2, 20);
+        harness.getLink().setDelay(40 * MS, 0);
+        LoopbackHarness.Report r = run("clean", harness);
+        // The very first packet only starts the source validation
+        assertTrue(r.framesPlayed >= FRAMES - 1);
+        assertEquals(0, r.networkLossPercent, 0);
+        // 20 ms capture + 40 ms link + 2 frames buffered, on the 10 ms playout phase
+        assertTrue(r.meanLatencyMillis >= 60 && r.meanLatencyMillis <= 120);
+        // G.711 with RTP, UDP and IP headers: 200 bytes every 20 ms
+        assertEquals(80, r.throughputKbps, 0.5);
+    }
+
+    @Test
+    public void jitterGrowsTheBuffer() {
+        LoopbackHarness calm = new LoopbackHarness(new Random(2), 1, 20);
+        calm.getLink().setDelay(40 * MS, 0);
+        LoopbackHarness jittery = new LoopbackHarness(new Random(2), 1, 20);
+        jittery.getLink().setDelay(40 * MS, 80 * MS);
+        LoopbackHarness.Report a = run("no jitter", calm);
+        LoopbackHarness.Report b = run("80 ms jitter", jittery);
+        assertTrue(b.meanLatencyMillis > a.meanLatencyMillis + 20);
+        assertTrue(b.frameLossPercent < 3);
+    }
+
+    @Test
+    public void burstLossWithAndWithoutRedundancy() {
+        LoopbackHarness plain = new LoopbackHarness(new Random(3), 3, 20);
+        plain.getLink().setDelay(30 * MS, 10 * MS);
+        plain.getLink().setBurstLoss(0.02, 0.3, 0.005, 0.7);
+        LoopbackHarness red = new LoopbackHarness(new Random(3), 3, 20);
+        red.getLink().setDelay(30 * MS, 10 * MS);
+        red.getLink().setBurstLoss(0.02, 0.3, 0.005, 0.7);
+        red.setRedDepth(2);
+        LoopbackHarness.Report a = run("burst loss", plain);
+        LoopbackHarness.Report b = run("burst loss, RED 2", red);
+        assertTrue(a.networkLossPercent > 2);
+        assertTrue(a.frameLossPercent >= a.networkLossPercent - 0.1);
+        assertTrue(b.frameLossPercent < a.frameLossPercent / 2);
+        assertTrue(b.recoveredFrames > 0);
+        assertTrue(b.throughputKbps > a.throughputKbps * 2);
+    }
+
+    @Test
+    public void reorderingWithinTheBuffer() {
+        LoopbackHarness harness = new LoopbackHarness(new Random(4), 4, 20);
+        harness.getLink().setDelay(20 * MS, 0);
+        harness.getLink().setReordering(0.05, 30 * MS);
+        LoopbackHarness.Report r = run("5% reordered", harness);
+        assertTrue(harness.getLink().getReorderedCount() > 100);
+        assertTrue(r.frameLossPercent < 1);
+    }
+
+    @Test
+    public void bandwidthCapDropsAndDelays() {
+        LoopbackHarness harness = new LoopbackHarness(new Random(5), 2, 20);
+        harness.getLink().setDelay(10 * MS, 0);
+        // Below the 80 kbps the stream needs
+        harness.getLink().setBandwidth(64000, 2000);
+        LoopbackHarness.Report r = run("64 kbps cap", harness);
+        assertTrue(harness.getLink().getQueueDropCount() > 0);
+        assertTrue(r.throughputKbps <= 64.5);
+        assertTrue(r.frameLossPercent > 15);
+    }
+
+    @Test
+    public void sameSeedSameResult() {
+        String[] reports = new String[2];
+        for (int i = 0; i < 2; i++) {
+            LoopbackHarness harness = new LoopbackHarness(new Random(6), 2, 20);
+            harness.getLink().setDelay(50 * MS, 30 * MS);
+            harness.getLink().setRandomLoss(0.03);
+            harness.getLink().setReordering(0.01, 25 * MS);
+            reports[i] = harness.run(500).toString();
+        }
+        assertEquals(reports[0], reports[1]);
+    }
+
+    @Test
+    public void linkKeepsOrderAndTiming() {
+        final List<Long> arrivals = new ArrayList<Long>();
+        final List<Integer> order = new ArrayList<Integer>();
+        NetworkSimulator link = new NetworkSimulator(new Random(7), new NetworkSimulator.Receiver() {
+            @Override
+            public void onPacket(ByteBuffer packet, long arrivalNanos) {
+                order.add(packet.getInt(0));
+                arrivals.add(arrivalNanos);
+            }
+        }, 16, 100);
+        link.setDelay(30 * MS, 0);
+        // 100 bytes + 28 of headers at 1.024 Mbps is 1 ms on the wire
+        link.setBandwidth(1024000, 1000);
+        ByteBuffer packet = ByteBuffer.allocate(100);
+        for (int i = 0; i < 5; i++) {
+            packet.putInt(0, i);
+            assertTrue(link.send(packet, 0));
+            assertEquals(0, packet.position());
+        }
+        link.advanceTo(32 * MS);
+        assertEquals(2, order.size());
+        link.advanceTo(100 * MS);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i, (int) order.get(i));
+            assertEquals(31 * MS + i * MS, (long) arrivals.get(i));
+        }
+        assertEquals(-1, link.getNextDeliveryNanos());
+    }
+
+    @Test
+    public void queueLimitDropsTail() {
+        NetworkSimulator link = new NetworkSimulator(new Random(8), new NetworkSimulator.Receiver() {
+            @Override
+            public void onPacket(ByteBuffer packet, long arrivalNanos) {
+            }
+        }, 16, 200);
+        link.setBandwidth(8000, 500);
+        ByteBuffer packet = ByteBuffer.allocate(172);
+        // 200 bytes each with headers, so the third one overflows 500 bytes of queue
+        assertTrue(link.send(packet, 0));
+        assertTrue(link.send(packet, 0));
+        assertFalse(link.send(packet, 0));
+        assertEquals(1, link.getQueueDropCount());
+    }
+}
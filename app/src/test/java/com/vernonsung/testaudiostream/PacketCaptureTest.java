@@ -0,0 +1,444 @@
+package com.vernonsung.testaudiostream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PacketCaptureTest {
+    private static final int FRAME = 160;
+    private static final long MS = 1000000L;
+    // 2026-01-01T00:00:00Z
+    private static final long WALL_CLOCK_NANOS = 1767225600000L * MS;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static class Silence implements CallPipeline.AudioInput {
+        @Override
+        public int read(short[] pcm, int offset, int samples) {
+            for (int i = 0; i < samples; i++) {
+                pcm[offset + i] = 0;
+            }
+            return samples;
+        }
+    }
+
+    private static class Discard implements CallPipeline.AudioOutput {
+        long samples;
+
+        @Override
+        public int write(short[] pcm, int offset, int count) {
+            samples += count;
+            return count;
+        }
+
+        @Override
+        public int getQueuedSamples() {
+            return -1;
+        }
+    }
+
+    private static final CallPipeline.PacketSink NOWHERE = new CallPipeline.PacketSink() {
+        @Override
+        public void send(ByteBuffer packet) {
+        }
+    };
+
+    private static InetSocketAddress address(String host, int port) throws Exception {
+        return new InetSocketAddress(InetAddress.getByName(host), port);
+    }
+
+    // Ones' complement sum of length bytes at offset, which is 0xFFFF over a correct checksum
+    private static int checksum(ByteBuffer buffer, int offset, int length, long initial) {
+        long sum = initial;
+        for (int i = 0; i < length; i += 2) {
+            int high = buffer.get(offset + i) & 0xFF;
+            int low = i + 1 < length ? buffer.get(offset + i + 1) & 0xFF : 0;
+            sum += (high << 8) | low;
+        }
+        while ((sum >>> 16) != 0) {
+            sum = (sum & 0xFFFF) + (sum >>> 16);
+        }
+        return (int) sum;
+    }
+
+    // Capture of a G.711 stream from 10.0.0.2:6000 to 10.0.0.1:5004, every packet delayed on the
+    // way by up to jitterMillis, and RTCP the other way every second
+    private File captureCall(int frames, int jitterMillis, long seed) throws Exception {
+        File file = folder.newFile();
+        PacketCapture capture = new PacketCapture(file, 64, WALL_CLOCK_NANOS, 0);
+        InetSocketAddress remote = address("10.0.0.2", 6000);
+        InetSocketAddress local = address("10.0.0.1", 5004);
+        Random random = new Random(seed);
+        VoiceCodec codec = G711Codec.createUlaw();
+        RtpPacketizer packetizer = new RtpPacketizer(null, 0x1234, G711Codec.PAYLOAD_TYPE_PCMU, FRAME);
+        short[] pcm = new short[FRAME];
+        byte[] payload = new byte[FRAME];
+        ByteBuffer packet = ByteBuffer.allocate(CallPipeline.MAX_PACKET_SIZE);
+        RtcpSession session = new RtcpSession(0x9999, "local", 1000);
+        for (int n = 0; n < frames; n++) {
+            for (int i = 0; i < FRAME; i++) {
+                pcm[i] = (short) (8000 * Math.sin(2 * Math.PI * 400 * (n * FRAME + i) / 8000));
+            }
+            int length = codec.encode(pcm, 0, FRAME, payload, 0);
+            packetizer.packetize(payload, 0, length, packet);
+            long sent = 1000 * MS + n * 20 * MS;
+            assertTrue(capture.capture(packet, remote, local, sent + random.nextInt(jitterMillis + 1) * MS));
+            if (n % 50 == 0) {
+                packet.clear();
+                session.buildReport(packet, sent, RtcpPacket.toNtp(sent / MS));
+                packet.flip();
+                assertTrue(capture.capture(packet, address("10.0.0.1", 5005), address("10.0.0.2", 6001), sent));
+            }
+            // Give the writer a chance, so the ring never fills
+            if (n % 32 == 31) {
+                while (capture.getWrittenCount() < capture.getCapturedCount()) {
+                    Thread.sleep(1);
+                }
+            }
+        }
+        capture.close();
+        assertEquals(0, capture.getDroppedCount());
+        return file;
+    }
+
+    private static CallPipeline newReplayPipeline(PipelineClock clock) {
+        return new CallPipeline(clock, G711Codec.createUlaw(), G711Codec.PAYLOAD_TYPE_PCMU, new Silence(),
+                new Discard(), NOWHERE);
+    }
+
+    @Test
+    public void capturedDatagramsReadBack() throws Exception {
+        File file = folder.newFile();
+        final PacketCapture capture = new PacketCapture(file, 64, WALL_CLOCK_NANOS, 0);
+        final InetSocketAddress a = address("192.168.1.10", 5004);
+        final InetSocketAddress b = address("192.168.1.20", 40000);
+        InetSocketAddress c = address("2001:db8::1", 5004);
+        // One thread sends odd times, another even ones
+        Thread other = new Thread() {
+            @Override
+            public void run() {
+                ByteBuffer datagram = ByteBuffer.allocate(101);
+                for (int i = 0; i < 20; i++) {
+                    datagram.clear();
+                    datagram.put(0, (byte) i);
+                    capture.capture(datagram, b, a, (2 * i + 1) * MS);
+                }
+            }
+        };
+        other.start();
+        ByteBuffer datagram = ByteBuffer.allocate(200);
+        for (int i = 0; i < 20; i++) {
+            datagram.clear();
+            datagram.put(0, (byte) i);
+            datagram.position(10);
+            // IPv4 to IPv6 goes as IPv6 with a mapped address
+            capture.capture(datagram, a, i == 0 ? c : b, 2 * i * MS);
+            assertEquals(10, datagram.position());
+        }
+        other.join();
+        capture.close();
+        assertEquals(40, capture.getCapturedCount());
+        assertEquals(40, capture.getWrittenCount());
+
+        RandomAccessFile raw = new RandomAccessFile(file, "r");
+        try {
+            assertEquals(PacketCapture.MAGIC_NANOS, raw.readInt());
+            raw.seek(20);
+            assertEquals(PacketCapture.LINKTYPE_RAW, raw.readInt());
+        } finally {
+            raw.close();
+        }
+
+        CaptureFile read = CaptureFile.open(file);
+        try {
+            ByteBuffer whole = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+            // Each thread's packets are in order, and every one is there once
+            Set<Long> seen = new HashSet<Long>();
+            long[] previous = {-1, -1};
+            while (read.next()) {
+                ByteBuffer payload = read.getDatagram();
+                long nanos = read.getNanos() - WALL_CLOCK_NANOS;
+                assertTrue(seen.add(nanos));
+                assertTrue(nanos > previous[(int) (nanos / MS % 2)]);
+                previous[(int) (nanos / MS % 2)] = nanos;
+                boolean even = nanos / MS % 2 == 0;
+                int index = (int) (nanos / MS / 2);
+                if (even) {
+                    assertEquals(190, payload.remaining());
+                    assertEquals(5004, read.getSourcePort());
+                    assertEquals(index == 0 ? 5004 : 40000, read.getDestinationPort());
+                    // Mapped IPv4 addresses come back as IPv4
+                    assertEquals(a, read.getSource());
+                    if (index == 0) {
+                        assertEquals(c.getAddress(), read.getDestination().getAddress());
+                    } else {
+                        assertEquals(b, read.getDestination());
+                    }
+                } else {
+                    assertEquals(101, payload.remaining());
+                    assertEquals(b, read.getSource());
+                    assertEquals(a, read.getDestination());
+                    assertEquals(index, payload.get(payload.position()));
+                }
+                // IP and UDP checksums add up
+                int udp = payload.position() - PacketCapture.UDP_HEADER_LENGTH;
+                int udpLength = payload.remaining() + PacketCapture.UDP_HEADER_LENGTH;
+                if (even && index == 0) {
+                    int ip = udp - PacketCapture.IPV6_HEADER_LENGTH;
+                    long pseudo = checksum(whole, ip + 8, 32, 17 + udpLength);
+                    assertEquals(0xFFFF, checksum(whole, udp, udpLength, pseudo));
+                } else {
+                    int ip = udp - PacketCapture.IPV4_HEADER_LENGTH;
+                    assertEquals(0xFFFF, checksum(whole, ip, PacketCapture.IPV4_HEADER_LENGTH, 0));
+                    long pseudo = checksum(whole, ip + 12, 8, 17 + udpLength);
+                    assertEquals(0xFFFF, checksum(whole, udp, udpLength, pseudo));
+                }
+            }
+            assertEquals(40, seen.size());
+            assertEquals(0, read.getSkippedCount());
+        } finally {
+            read.close();
+        }
+    }
+
+    @Test
+    public void threadsThatEndGiveTheirRingsBack() throws Exception {
+        File file = folder.newFile();
+        final PacketCapture capture = new PacketCapture(file, 128, WALL_CLOCK_NANOS, 0);
+        final InetSocketAddress a = address("192.168.1.10", 5004);
+        final InetSocketAddress b = address("192.168.1.20", 40000);
+        // Far more threads than taps, one after another, like lanes restarted call after call
+        int threads = 3 * PacketCapture.MAX_TAPS;
+        for (int t = 0; t < threads; t++) {
+            final int first = 2 * t;
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    ByteBuffer datagram = ByteBuffer.allocate(20);
+                    for (int i = first; i < first + 2; i++) {
+                        capture.capture(datagram, a, b, i * MS);
+                    }
+                }
+            };
+            thread.start();
+            thread.join();
+        }
+        capture.close();
+        assertEquals(0, capture.getDroppedCount());
+        assertEquals(2 * threads, capture.getWrittenCount());
+        // Nothing gets in after close
+        assertFalse(capture.capture(ByteBuffer.allocate(20), a, b, 0));
+
+        CaptureFile read = CaptureFile.open(file);
+        try {
+            int count = 0;
+            while (read.next()) {
+                count++;
+            }
+            assertEquals(2 * threads, count);
+        } finally {
+            read.close();
+        }
+    }
+
+    @Test
+    public void readsTcpdumpCaptures() throws Exception {
+        // Little-endian microsecond pcap on Ethernet as tcpdump writes it: a UDP datagram, a TCP
+        // segment, a UDP datagram behind a VLAN tag, and one cut short by the snapshot length
+        ByteBuffer file = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+        file.putInt(PacketCapture.MAGIC_MICROS).putShort((short) 2).putShort((short) 4).putInt(0).putInt(0);
+        file.putInt(96).putInt(CaptureFile.LINKTYPE_ETHERNET);
+        byte[] udp = ethernetFrame(false, 17, 12);
+        byte[] tcp = ethernetFrame(false, 6, 12);
+        byte[] vlan = ethernetFrame(true, 17, 20);
+        int[] seconds = {100, 101, 102, 103};
+        byte[][] frames = {udp, tcp, vlan, udp};
+        for (int i = 0; i < frames.length; i++) {
+            int captured = i == 3 ? frames[i].length - 4 : frames[i].length;
+            file.putInt(seconds[i]).putInt(250000).putInt(captured).putInt(frames[i].length);
+            file.put(frames[i], 0, captured);
+        }
+        // A record cut off by the end of the file
+        file.putInt(104).putInt(0).putInt(100);
+        File path = folder.newFile();
+        FileOutputStream out = new FileOutputStream(path);
+        out.write(file.array(), 0, file.position());
+        out.close();
+
+        CaptureFile read = CaptureFile.open(path);
+        try {
+            assertTrue(read.next());
+            assertEquals(100250000000L, read.getNanos());
+            assertEquals(12, read.getDatagram().remaining());
+            assertEquals(address("10.1.2.3", 1111), read.getSource());
+            assertEquals(address("10.3.2.1", 2222), read.getDestination());
+            assertEquals(7, read.getDatagram().get(read.getDatagram().position() + 11));
+            assertTrue(read.next());
+            assertEquals(102250000000L, read.getNanos());
+            assertEquals(20, read.getDatagram().remaining());
+            assertFalse(read.next());
+            assertEquals(2, read.getSkippedCount());
+            read.rewind();
+            assertTrue(read.next());
+            assertEquals(100250000000L, read.getNanos());
+        } finally {
+            read.close();
+        }
+    }
+
+    // Ethernet frame carrying an IPv4 packet of protocol with payloadLength bytes of 7s
+    private static byte[] ethernetFrame(boolean vlan, int protocol, int payloadLength) {
+        ByteBuffer frame = ByteBuffer.allocate(14 + (vlan ? 4 : 0) + 20 + 8 + payloadLength);
+        frame.put(new byte[12]);
+        if (vlan) {
+            frame.putShort((short) 0x8100).putShort((short) 42);
+        }
+        frame.putShort((short) 0x0800);
+        frame.put((byte) 0x45).put((byte) 0).putShort((short) (28 + payloadLength)).putInt(0);
+        frame.put((byte) 64).put((byte) protocol).putShort((short) 0);
+        frame.put(new byte[]{10, 1, 2, 3}).put(new byte[]{10, 3, 2, 1});
+        frame.putShort((short) 1111).putShort((short) 2222).putShort((short) (8 + payloadLength)).putShort((short) 0);
+        while (frame.hasRemaining()) {
+            frame.put((byte) 7);
+        }
+        return frame.array();
+    }
+
+    @Test
+    public void replayIsDeterministicOnVirtualClock() throws Exception {
+        File file = captureCall(500, 60, 1);
+        CaptureReplay.Report[] reports = new CaptureReplay.Report[2];
+        for (int run = 0; run < reports.length; run++) {
+            CaptureFile capture = CaptureFile.open(file);
+            try {
+                VirtualClock clock = new VirtualClock(1000 * MS);
+                CallPipeline pipeline = newReplayPipeline(clock);
+                CallPipeline.Remote remote = pipeline.addRemote(G711Codec.createUlaw(), G711Codec.PAYLOAD_TYPE_PCMU);
+                RtcpSession session = new RtcpSession(0x1234, "remote", 1000);
+                CaptureReplay replay = new CaptureReplay(capture, clock);
+                replay.setDestinationPort(5004);
+                replay.setRtcpSession(session);
+                reports[run] = replay.run(pipeline, remote);
+                assertEquals(0, session.getReportsReceived());
+            } finally {
+                capture.close();
+            }
+        }
+        CaptureReplay.Report report = reports[0];
+        assertEquals(500, report.packets);
+        assertEquals(0, report.rtcpPackets);
+        // The RTCP went the other way
+        assertEquals(10, report.skippedPackets);
+        assertEquals(0, report.inboxDrops);
+        // About 10 s of frames, all played apart from what jitter beyond the buffer cost
+        assertTrue(report.frames >= 500 && report.frames <= 500 + 5 + CaptureReplay.TAIL_FRAMES);
+        assertTrue(report.framesPlayed + report.lateDrops >= 490);
+        assertEquals(report.toString().replaceAll("in [0-9.]+ s", ""),
+                reports[1].toString().replaceAll("in [0-9.]+ s", ""));
+
+        // The RTCP alone, into the session
+        CaptureFile capture = CaptureFile.open(file);
+        try {
+            VirtualClock clock = new VirtualClock();
+            CallPipeline pipeline = newReplayPipeline(clock);
+            CallPipeline.Remote remote = pipeline.addRemote(G711Codec.createUlaw(), G711Codec.PAYLOAD_TYPE_PCMU);
+            RtcpSession session = new RtcpSession(0x1234, "remote", 1000);
+            CaptureReplay replay = new CaptureReplay(capture, clock);
+            replay.setDestinationPort(6001);
+            replay.setRtcpSession(session);
+            CaptureReplay.Report rtcp = replay.run(pipeline, remote);
+            assertEquals(10, rtcp.rtcpPackets);
+            assertEquals(0, rtcp.packets);
+            assertEquals(10, session.getReportsReceived());
+        } finally {
+            capture.close();
+        }
+    }
+
+    @Test
+    public void replayAtTenTimesSpeed() throws Exception {
+        File file = captureCall(100, 0, 2);
+        CaptureFile capture = CaptureFile.open(file);
+        try {
+            // The sleeps go to a virtual clock, so what's checked is how long they'd have been
+            VirtualClock base = new VirtualClock(1000 * MS);
+            ScaledClock clock = new ScaledClock(base, 10);
+            CallPipeline pipeline = newReplayPipeline(clock);
+            CallPipeline.Remote remote = pipeline.addRemote(G711Codec.createUlaw(), G711Codec.PAYLOAD_TYPE_PCMU);
+            CaptureReplay replay = new CaptureReplay(capture, clock);
+            replay.setDestinationPort(5004);
+            CaptureReplay.Report report = replay.run(pipeline, remote);
+            assertEquals(100, report.packets);
+            assertTrue(report.framesPlayed >= 95);
+            // 2 s of capture plus the tail in a tenth of that
+            long pipelineNanos = clock.nanoTime() - 1000 * MS;
+            long sleptNanos = base.nanoTime() - 1000 * MS;
+            assertTrue(pipelineNanos >= 2000 * MS);
+            assertEquals(pipelineNanos / 10, sleptNanos, MS);
+        } finally {
+            capture.close();
+        }
+    }
+
+    @Test
+    public void transportCapturesBothWays() throws Exception {
+        RtpTransport transport = new RtpTransport();
+        File file = folder.newFile();
+        PacketCapture capture = new PacketCapture(file);
+        transport.setCapture(capture);
+        transport.start();
+        final CountDownLatch received = new CountDownLatch(10);
+        RtpTransport.Listener listener = new RtpTransport.Listener() {
+            @Override
+            public void onPacket(RtpTransport.Endpoint endpoint, ByteBuffer packet, SocketAddress source,
+                                 long arrivalNanos) {
+                received.countDown();
+            }
+        };
+        InetSocketAddress loopback = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+        RtpTransport.Endpoint a = transport.open(loopback, null, listener);
+        RtpTransport.Endpoint b = transport.open(loopback, null, listener);
+        Thread.sleep(100);
+        ByteBuffer packet = ByteBuffer.allocate(172);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(transport.send(a, packet, b.getLocalAddress()));
+        }
+        assertTrue(received.await(5, TimeUnit.SECONDS));
+        transport.stop();
+        transport.setCapture(null);
+        capture.close();
+        assertEquals(20, capture.getWrittenCount());
+
+        CaptureFile read = CaptureFile.open(file);
+        try {
+            int toB = 0;
+            while (read.next()) {
+                assertEquals(172, read.getDatagram().remaining());
+                assertEquals(a.getLocalAddress().getPort(), read.getSourcePort());
+                assertEquals(b.getLocalAddress().getPort(), read.getDestinationPort());
+                toB++;
+            }
+            assertEquals(20, toB);
+        } finally {
+            read.close();
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.vernonsung.testaudiostream;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class PipelineSchedulerTest {
+    private static final long MS = 1000000L;
+    private static final long PERIOD = 20 * MS;
+    private static final long START = 1000 * MS;
+
+    // Stage that takes a set time on the virtual clock and notes when each frame started
+    private static class TimedStage implements PipelineScheduler.Stage {
+        final VirtualClock clock;
+        final long[] starts;
+        long runNanos;
+        // Frame that takes slowNanos instead, -1 for none
+        long slowFrame = -1;
+        long slowNanos;
+
+        TimedStage(VirtualClock clock, int frames, long runNanos) {
+            this.clock = clock;
+            this.starts = new long[frames];
+            this.runNanos = runNanos;
+        }
+
+        @Override
+        public void process(long frameIndex) {
+            if (frameIndex < starts.length) {
+                starts[(int) frameIndex] = clock.nanoTime();
+            }
+            clock.advance(frameIndex == slowFrame ? slowNanos : runNanos);
+        }
+    }
+
+    @Test
+    public void framesStartOnAFixedGrid() throws InterruptedException {
+        VirtualClock clock = new VirtualClock(START);
+        PipelineScheduler scheduler = new PipelineScheduler("test", clock, PERIOD);
+        TimedStage stage = new TimedStage(clock, 100, 3 * MS);
+        scheduler.addStage("work", 5 * MS, stage);
+        for (int i = 0; i < 100; i++) {
+            scheduler.tick();
+        }
+        // Time spent in the stage never shifts later frames
+        for (int i = 0; i < 100; i++) {
+            assertEquals(START + i * PERIOD, stage.starts[i]);
+        }
+        assertEquals(100, scheduler.getFrameIndex());
+        assertEquals(0, scheduler.getLateCount());
+        assertEquals(0, scheduler.getMissCount(0));
+        PipelineScheduler.StageStats stats = scheduler.getStats(0);
+        assertEquals(100, stats.runs);
+        assertEquals(3 * MS, stats.meanNanos);
+        assertEquals(3 * MS, stats.maxNanos);
+    }
+
+    @Test
+    public void missesAreCountedPerStage() throws InterruptedException {
+        final VirtualClock clock = new VirtualClock(START);
+        PipelineScheduler scheduler = new PipelineScheduler("test", clock, PERIOD);
+        final AtomicInteger runs = new AtomicInteger();
+        // Over its 4 ms budget every 10th frame
+        scheduler.addStage("encode", 4 * MS, new PipelineScheduler.Stage() {
+            @Override
+            public void process(long frameIndex) {
+                runs.incrementAndGet();
+                clock.advance(frameIndex % 10 == 9 ? 6 * MS : 2 * MS);
+            }
+        });
+        scheduler.addStage("send", 1 * MS, new TimedStage(clock, 0, MS / 2));
+        for (int i = 0; i < 100; i++) {
+            scheduler.tick();
+        }
+        assertEquals(100, runs.get());
+        assertEquals(10, scheduler.getMissCount(0));
+        assertEquals(0, scheduler.getMissCount(1));
+        assertEquals(6 * MS, scheduler.getStats(0).maxNanos);
+        assertEquals(0, scheduler.getOverrunCount());
+        assertEquals("encode", scheduler.getStats(0).name);
+    }
+
+    @Test
+    public void stageFinishingAfterThePeriodMisses() throws InterruptedException {
+        VirtualClock clock = new VirtualClock(START);
+        PipelineScheduler scheduler = new PipelineScheduler("test", clock, PERIOD);
+        scheduler.addStage("decode", 15 * MS, new TimedStage(clock, 0, 12 * MS));
+        scheduler.addStage("playout", 10 * MS, new TimedStage(clock, 0, 9 * MS));
+        scheduler.tick();
+        // Both within budget, but playout ends at 21 ms
+        assertEquals(0, scheduler.getMissCount(0));
+        assertEquals(1, scheduler.getMissCount(1));
+        assertEquals(1, scheduler.getOverrunCount());
+    }
+
+    @Test
+    public void lateFramesAreCaughtUp() throws InterruptedException {
+        VirtualClock clock = new VirtualClock(START);
+        PipelineScheduler scheduler = new PipelineScheduler("test", clock, PERIOD);
+        TimedStage stage = new TimedStage(clock, 10, MS);
+        stage.slowFrame = 3;
+        stage.slowNanos = 50 * MS;
+        scheduler.addStage("work", 10 * MS, stage);
+        for (int i = 0; i < 10; i++) {
+            scheduler.tick();
+        }
+        // Frames 4 and 5 run back to back as soon as frame 3 is done, then the grid resumes
+        assertEquals(START + 3 * PERIOD + 50 * MS, stage.starts[4]);
+        assertEquals(START + 3 * PERIOD + 51 * MS, stage.starts[5]);
+        assertEquals(START + 6 * PERIOD, stage.starts[6]);
+        assertEquals(2, scheduler.getLateCount());
+        assertEquals(0, scheduler.getDroppedFrameCount());
+        // Frame 3 ran over its budget, frame 4 finished after its period
+        assertEquals(2, scheduler.getMissCount(0));
+    }
+
+    @Test
+    public void stallDropsTheBacklog() throws InterruptedException {
+        VirtualClock clock = new VirtualClock(START);
+        PipelineScheduler scheduler = new PipelineScheduler("test", clock, PERIOD);
+        TimedStage stage = new TimedStage(clock, 40, MS);
+        stage.slowFrame = 2;
+        stage.slowNanos = 300 * MS;
+        scheduler.addStage("work", 10 * MS, stage);
+        for (int i = 0; i < 10; i++) {
+            scheduler.tick();
+        }
+        // Frame 3 was due at 60 ms, the stall ended at 340 ms: 14 frames behind
+        long resumed = START + 2 * PERIOD + 300 * MS;
+        assertEquals(14, scheduler.getDroppedFrameCount());
+        assertEquals(0, stage.starts[3]);
+        assertEquals(resumed, stage.starts[17]);
+        assertEquals(resumed + PERIOD, stage.starts[18]);
+        assertEquals(24, scheduler.getFrameIndex());
+    }
+
+    @Test
+    public void rateCorrectionStretchesThePeriod() throws InterruptedException {
+        VirtualClock clock = new VirtualClock(START);
+        PipelineScheduler scheduler = new PipelineScheduler("test", clock, PERIOD);
+        TimedStage stage = new TimedStage(clock, 2001, 0);
+        scheduler.addStage("work", MS, stage);
+        for (int i = 0; i <= 1000; i++) {
+            scheduler.tick();
+        }
+        scheduler.setRateCorrectionPpm(500);
+        for (int i = 0; i < 1000; i++) {
+            scheduler.tick();
+        }
+        // Frames up to 1001 keep their spacing, the ones after are 10 us longer each
+        assertEquals(START + 1000 * PERIOD, stage.starts[1000]);
+        assertEquals(START + 2000 * PERIOD + 999 * 10000L, stage.starts[2000]);
+        scheduler.setRateCorrectionPpm(1e9);
+        assertEquals(PipelineScheduler.MAX_CORRECTION_PPM, scheduler.getRateCorrectionPpm(), 0);
+    }
+
+    @Test
+    public void aStageThatThrowsEndsTheThreadVisibly() throws InterruptedException {
+        PipelineScheduler scheduler = new PipelineScheduler("audio", PipelineClock.SYSTEM, MS);
+        scheduler.addStage("broken", MS, new PipelineScheduler.Stage() {
+            @Override
+            public void process(long frameIndex) {
+                if (frameIndex == 2) {
+                    throw new IllegalStateException("broken");
+                }
+            }
+        });
+        scheduler.start();
+        for (int i = 0; i < 500 && scheduler.isRunning(); i++) {
+            Thread.sleep(10);
+        }
+        assertFalse(scheduler.isRunning());
+        assertEquals("broken", scheduler.getFailure().getMessage());
+        assertEquals(2, scheduler.getTickCount());
+        scheduler.stop();
+    }
+
+    @Test
+    public void runsOnItsOwnThread() throws InterruptedException {
+        PipelineScheduler scheduler = new PipelineScheduler("audio", PipelineClock.SYSTEM, 5 * MS);
+        final AtomicReference<Thread> setupThread = new AtomicReference<Thread>();
+        final AtomicReference<Thread> stageThread = new AtomicReference<Thread>();
+        scheduler.setThreadSetup(new PipelineScheduler.ThreadSetup() {
+            @Override
+            public void onThreadStart(Thread thread) {
+                setupThread.set(thread);
+            }
+        });
+        final CountDownLatch ticked = new CountDownLatch(5);
+        scheduler.addStage("work", MS, new PipelineScheduler.Stage() {
+            @Override
+            public void process(long frameIndex) {
+                stageThread.set(Thread.currentThread());
+                ticked.countDown();
+            }
+        });
+        scheduler.start();
+        // Generous, so a loaded machine doesn't fail it; how on time the ticks are isn't tested
+        assertTrue(ticked.await(5, TimeUnit.SECONDS));
+        scheduler.stop();
+        assertFalse(scheduler.isRunning());
+        assertEquals("audio", setupThread.get().getName());
+        assertSame(setupThread.get(), stageThread.get());
+        long ticks = scheduler.getTickCount();
+        assertTrue(ticks >= 5);
+        // Stopped for good
+        Thread.sleep(20);
+        assertEquals(ticks, scheduler.getTickCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void budgetLongerThanThePeriodIsRejected() {
+        new PipelineScheduler("test", new VirtualClock(), PERIOD).addStage("work", 2 * PERIOD, new TimedStage(null, 0, 0));
+    }
+}
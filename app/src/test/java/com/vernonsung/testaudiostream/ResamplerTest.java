@@ -0,0 +1,188 @@
+package com.vernonsung.testaudiostream;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ResamplerTest {
+    private static final int FRAME_MILLIS = 20;
+
+    private static short[] tone(int rate, int samples, double frequency, double amplitude) {
+        short[] pcm = new short[samples];
+        for (int i = 0; i < samples; i++) {
+            pcm[i] = (short) Math.round(amplitude * Math.sin(2 * Math.PI * frequency * i / rate));
+        }
+        return pcm;
+    }
+
+    // Run in through r in 20 ms frames and return everything that came out
+    private static short[] resample(Resampler r, short[] in) {
+        int frame = r.getInRate() * FRAME_MILLIS / 1000;
+        short[] out = new short[r.getMaxOutput(in.length) + in.length / frame];
+        int written = 0;
+        for (int i = 0; i + frame <= in.length; i += frame) {
+            written += r.process(in, i, frame, out, written);
+        }
+        short[] result = new short[written];
+        System.arraycopy(out, 0, result, 0, written);
+        return result;
+    }
+
+    // Signal to noise ratio in dB of a tone of frequency in pcm from sample from on: the power of
+    // the best fitting sine against the power of what's left
+    private static double snr(short[] pcm, int from, int rate, double frequency) {
+        double ss = 0;
+        double sc = 0;
+        double cc = 0;
+        double ys = 0;
+        double yc = 0;
+        for (int i = from; i < pcm.length; i++) {
+            double s = Math.sin(2 * Math.PI * frequency * i / rate);
+            double c = Math.cos(2 * Math.PI * frequency * i / rate);
+            ss += s * s;
+            sc += s * c;
+            cc += c * c;
+            ys += pcm[i] * s;
+            yc += pcm[i] * c;
+        }
+        double det = ss * cc - sc * sc;
+        double a = (ys * cc - yc * sc) / det;
+        double b = (yc * ss - ys * sc) / det;
+        double signal = 0;
+        double noise = 0;
+        for (int i = from; i < pcm.length; i++) {
+            double fit = a * Math.sin(2 * Math.PI * frequency * i / rate) + b * Math.cos(2 * Math.PI * frequency * i / rate);
+            signal += fit * fit;
+            noise += (pcm[i] - fit) * (pcm[i] - fit);
+        }
+        return 10 * Math.log10(signal / noise);
+    }
+
+    private static double amplitude(short[] pcm, int from) {
+        double sum = 0;
+        for (int i = from; i < pcm.length; i++) {
+            sum += (double) pcm[i] * pcm[i];
+        }
+        return Math.sqrt(2 * sum / (pcm.length - from));
+    }
+
+    @Test
+    public void convertsBetweenAllRatesCleanly() {
+        for (int in : Resampler.RATES) {
+            for (int out : Resampler.RATES) {
+                Resampler r = new Resampler(in, out);
+                // 1 kHz and the top of the telephone band, which every rate carries
+                for (double frequency : new double[]{1000, 3300}) {
+                    r.reset();
+                    short[] result = resample(r, tone(in, in / 2, frequency, 10000));
+                    assertEquals(in + " to " + out, out / 2, result.length);
+                    int settled = 2 * r.getDelaySamples() * out / in + 1;
+                    double snr = snr(result, settled, out, frequency);
+                    assertTrue(in + " to " + out + " at " + frequency + " Hz: " + snr + " dB", snr > 70);
+                    assertEquals(in + " to " + out + " gain", 10000, amplitude(result, settled), 10000 * 0.02);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void rejectsWhatTheLowerRateCantCarry() {
+        // 6 kHz would fold back to 2 kHz at 8 kHz
+        short[] high = tone(48000, 24000, 1000, 8000);
+        short[] alias = tone(48000, 24000, 6000, 8000);
+        for (int i = 0; i < high.length; i++) {
+            high[i] += alias[i];
+        }
+        Resampler r = new Resampler(48000, 8000);
+        short[] result = resample(r, high);
+        double snr = snr(result, 2 * r.getDelaySamples() / 6 + 1, 8000, 1000);
+        assertTrue(snr + " dB", snr > 70);
+    }
+
+    @Test
+    public void framesStayFramesWithoutDrift() {
+        Resampler r = new Resampler(44100, 8000);
+        short[] in = tone(44100, 882, 440, 5000);
+        short[] out = new short[r.getMaxOutput(882)];
+        for (int frame = 0; frame < 100; frame++) {
+            assertEquals(160, r.process(in, 0, 882, out, 0));
+        }
+        // Any split of the input gives the same output
+        Resampler whole = new Resampler(16000, 48000);
+        Resampler pieces = new Resampler(16000, 48000);
+        short[] speech = tone(16000, 3200, 700, 8000);
+        short[] a = new short[9600];
+        short[] b = new short[9600];
+        assertEquals(9600, whole.process(speech, 0, 3200, a, 0));
+        int written = 0;
+        for (int i = 0; i < 3200; i += 7) {
+            written += pieces.process(speech, i, Math.min(7, 3200 - i), b, written);
+        }
+        assertEquals(9600, written);
+        assertArrayEquals(a, b);
+    }
+
+    @Test
+    public void driftChangesTheRatio() {
+        Resampler r = new Resampler(8000, 8000);
+        r.setDriftPpm(1000);
+        short[] in = tone(8000, 80000, 500, 10000);
+        short[] result = resample(r, in);
+        // Taking input 0.1% faster gives 0.1% fewer samples, still clean
+        assertEquals(80000 / 1.001, result.length, 2);
+        double snr = snr(result, 2 * r.getDelaySamples(), 8000, 500 * 1.001);
+        assertTrue(snr + " dB", snr > 60);
+
+        r.setDriftPpm(-1000);
+        r.reset();
+        assertEquals(80000 / 0.999, resample(r, in).length, 2);
+        assertTrue(r.getMaxOutput(160) >= 161);
+    }
+
+    @Test
+    public void estimatesDriftThroughJitter() {
+        // A sender 200 ppm fast, its packets held up by 0 to 40 ms on the way
+        DriftCompensator d = new DriftCompensator(8000, 160);
+        Random random = new Random(7);
+        long timestamp = 0xFFFF0000L;
+        for (int i = 0; i < 3000; i++) {
+            long sent = (long) (i * 20000000L / 1.0002);
+            d.onPacket(timestamp & 0xFFFFFFFFL, 5000000000L + sent + (long) (random.nextDouble() * 40000000));
+            timestamp += 160;
+        }
+        assertEquals(200, d.getSenderDriftPpm(), 20);
+
+        // A new source starts over
+        d.onPacket(12345, 5000000000L + 61000000000L);
+        assertEquals(200, d.getSenderDriftPpm(), 20);
+        d.reset();
+        assertEquals(0, d.getSenderDriftPpm(), 0);
+    }
+
+    @Test
+    public void compensatorPlaysWholeFrames() {
+        DriftCompensator d = new DriftCompensator(16000, 320);
+        short[] frame = tone(16000, 320, 1000, 10000);
+        short[] out = new short[320];
+        // A frame of silence in reserve comes out first, then every frame written, one for one
+        for (int i = 0; i < 50; i++) {
+            assertTrue(d.takesFrame());
+            d.write(frame, 0);
+            assertFalse(d.needsFrame());
+            d.read(out, 0);
+            if (i == 0) {
+                assertEquals(0, amplitude(out, 0), 0);
+            }
+        }
+        assertEquals(10000, amplitude(out, 0), 200);
+        assertEquals(320, d.getBufferedSamples());
+        assertTrue(d.getDelaySamples() > 320);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesOtherRates() {
+        new Resampler(11025, 8000);
+    }
+}
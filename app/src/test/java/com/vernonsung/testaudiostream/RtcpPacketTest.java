@@ -0,0 +1,293 @@
+package com.vernonsung.testaudiostream;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class RtcpPacketTest {
+    // Collects everything a parse reports
+    private static class Recorder implements RtcpPacket.Listener {
+        final List<String> events = new ArrayList<String>();
+        RtcpPacket.ReportBlock last = new RtcpPacket.ReportBlock();
+
+        @Override
+        public void onSenderReport(long ssrc, long ntpTimestamp, long rtpTimestamp, long packetCount, long octetCount) {
+            events.add("SR " + Long.toHexString(ssrc) + " " + Long.toHexString(ntpTimestamp) + " " + rtpTimestamp +
+                       " " + packetCount + " " + octetCount);
+        }
+
+        @Override
+        public void onReceiverReport(long ssrc) {
+            events.add("RR " + Long.toHexString(ssrc));
+        }
+
+        @Override
+        public void onReportBlock(long reporterSsrc, RtcpPacket.ReportBlock block) {
+            events.add("RB " + Long.toHexString(block.ssrc) + " " + block.fractionLost + " " + block.cumulativeLost +
+                       " " + block.extendedHighestSequence + " " + block.jitter);
+            last.lastSr = block.lastSr;
+            last.delaySinceLastSr = block.delaySinceLastSr;
+        }
+
+        @Override
+        public void onSdesItem(long ssrc, int type, ByteBuffer buffer, int offset, int length) {
+            events.add("SDES " + Long.toHexString(ssrc) + " " + type + " " + RtcpPacket.readString(buffer, offset, length));
+        }
+
+        @Override
+        public void onBye(long ssrc, String reason) {
+            events.add("BYE " + Long.toHexString(ssrc) + " " + reason);
+        }
+
+        @Override
+        public void onTransportFeedback(long senderSsrc, TransportFeedback feedback) {
+            events.add("TWCC " + Long.toHexString(senderSsrc) + " " + Long.toHexString(feedback.getMediaSsrc()) +
+                       " " + feedback.getBaseSequence() + " " + feedback.getPacketCount());
+        }
+    }
+
+    private static byte[] hex(String s) {
+        s = s.replaceAll("\\s", "");
+        byte[] bytes = new byte[s.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    @Test
+    public void parseRecordedReceiverReportWithSdes() throws Exception {
+        // RR from 0x5A3D7F01 about 0x11223344: 2/256 lost, 3 cumulative, ext seq 0x0001FFFF, jitter 37,
+        // followed by SDES CNAME "alice@10.0.0.2"
+        byte[] recorded = hex("81C90007 5A3D7F01" +
+                              "11223344 02000003 0001FFFF 00000025 00000000 00000000" +
+                              "81CA0006 5A3D7F01 010E616C 69636540 31302E30 2E302E32 00000000");
+        Recorder recorder = new Recorder();
+        assertTrue(new RtcpPacket().parse(ByteBuffer.wrap(recorded), recorder));
+        assertEquals(3, recorder.events.size());
+        assertEquals("RR 5a3d7f01", recorder.events.get(0));
+        assertEquals("RB 11223344 2 3 131071 37", recorder.events.get(1));
+        assertEquals("SDES 5a3d7f01 1 alice@10.0.0.2", recorder.events.get(2));
+    }
+
+    @Test
+    public void composeAndParseCompound() throws Exception {
+        RtcpPacket.ReportBlock block = new RtcpPacket.ReportBlock();
+        block.ssrc = 0xCAFEL;
+        block.fractionLost = 25;
+        block.cumulativeLost = -2;
+        block.extendedHighestSequence = 70000;
+        block.jitter = 80;
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        RtcpPacket.writeSenderReport(buffer, 0xF00DL, 0x0102030405060708L, 160000, 1000, 160000,
+                new RtcpPacket.ReportBlock[]{block}, 1);
+        RtcpPacket.writeSdes(buffer, 0xF00DL, "bob".getBytes("UTF-8"));
+        RtcpPacket.writeBye(buffer, 0xF00DL, "hang up");
+        buffer.flip();
+        // Every packet is a whole number of words
+        assertEquals(0, buffer.remaining() % 4);
+
+        Recorder recorder = new Recorder();
+        assertTrue(new RtcpPacket().parse(buffer, recorder));
+        assertEquals("SR f00d 102030405060708 160000 1000 160000", recorder.events.get(0));
+        assertEquals("RB cafe 25 -2 70000 80", recorder.events.get(1));
+        assertEquals("SDES f00d 1 bob", recorder.events.get(2));
+        assertEquals("BYE f00d hang up", recorder.events.get(3));
+    }
+
+    @Test
+    public void rejectInvalidCompounds() throws Exception {
+        Recorder recorder = new Recorder();
+        RtcpPacket parser = new RtcpPacket();
+        // Starts with SDES instead of a report
+        assertFalse(parser.parse(ByteBuffer.wrap(hex("81CA0001 00000001")), recorder));
+        // Length runs past the end
+        assertFalse(parser.parse(ByteBuffer.wrap(hex("81C90007 00000001")), recorder));
+        // Wrong version
+        assertFalse(parser.parse(ByteBuffer.wrap(hex("41C90001 00000001")), recorder));
+    }
+
+    @Test
+    public void transportFeedbackRoundTrip() throws Exception {
+        TransportFeedback receiver = new TransportFeedback();
+        // 65534 and 65535 arrive 1 ms apart, 0 to 9 are lost, then 10 to 29 arrive 20 ms apart
+        // with 11 late by 100 ms (a large delta) and 12 before it (a negative one)
+        long start = 1000000000L;
+        assertTrue(receiver.record(0xABCL, 65534, start));
+        assertTrue(receiver.record(0xABCL, 65535, start + 1000000));
+        for (int seq = 10; seq < 30; seq++) {
+            long arrival = start + (seq - 9) * 20000000L;
+            if (seq == 11) {
+                arrival += 100000000L;
+            }
+            assertTrue(receiver.record(0xABCL, seq, arrival));
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        RtcpPacket.writeReceiverReport(buffer, 0xF00DL, null, 0);
+        receiver.write(buffer, 0xF00DL);
+        buffer.flip();
+        assertEquals(0, buffer.remaining() % 4);
+        assertFalse(receiver.hasPackets());
+
+        Recorder recorder = new Recorder();
+        RtcpPacket parser = new RtcpPacket();
+        final TransportFeedback[] parsed = new TransportFeedback[1];
+        final long[] arrivals = new long[32];
+        final boolean[] received = new boolean[32];
+        assertTrue(parser.parse(buffer, new Recorder() {
+            @Override
+            public void onTransportFeedback(long senderSsrc, TransportFeedback feedback) {
+                super.onTransportFeedback(senderSsrc, feedback);
+                parsed[0] = feedback;
+                for (int i = 0; i < feedback.getPacketCount(); i++) {
+                    received[i] = feedback.isReceived(i);
+                    arrivals[i] = feedback.getArrivalMicros(i);
+                }
+            }
+        }));
+        assertEquals(0, parsed[0].getFeedbackCount());
+        assertEquals(65534, parsed[0].getBaseSequence());
+        assertEquals(32, parsed[0].getPacketCount());
+        for (int i = 0; i < 32; i++) {
+            int seq = (65534 + i) & 0xFFFF;
+            assertEquals("seq " + seq, seq >= 10 || seq >= 65534, received[i]);
+        }
+        long base = arrivals[0];
+        assertEquals(start / 1000, base);
+        assertEquals(1000, arrivals[1] - base);
+        assertEquals(40000 + 100000, arrivals[13] - base);
+        assertEquals(60000, arrivals[14] - base);
+        assertEquals(400000, arrivals[31] - base);
+
+        // The next one picks up where this one ended, and reports a gap as missing
+        assertTrue(receiver.record(0xABCL, 32, start + 500000000L));
+        buffer.clear();
+        RtcpPacket.writeReceiverReport(buffer, 0xF00DL, null, 0);
+        receiver.write(buffer, 0xF00DL);
+        buffer.flip();
+        assertTrue(parser.parse(buffer, recorder));
+        assertEquals("TWCC f00d abc 30 3", recorder.events.get(1));
+        // Too old to report again
+        assertFalse(receiver.record(0xABCL, 31, start + 500000000L));
+        // Feedback on more packets than we keep track of is skipped
+        buffer.putShort(8 + 14, (short) 2000);
+        assertTrue(parser.parse(buffer, recorder));
+        assertEquals(3, recorder.events.size());
+    }
+
+    @Test
+    public void intervalScalesWithMembersAndBandwidth() throws Exception {
+        RtcpInterval interval = new RtcpInterval(new Random(1));
+        // First report comes after half the minimum
+        assertEquals(2.5, interval.computeBase(2, 1, 8000, true), 0.001);
+        double first = interval.next(2, 1, 8000, true);
+        assertTrue(first >= 2.5 * 0.5 / (Math.E - 1.5) && first <= 2.5 * 1.5 / (Math.E - 1.5));
+        // Small session stays at the minimum
+        assertEquals(5.0, interval.computeBase(2, 1, 8000, true), 0.001);
+        // 1000 receivers of an 8 kB/s stream share 300 B/s of RTCP
+        double base = interval.computeBase(1000, 1, 8000, false);
+        assertEquals(interval.getAveragePacketSize() * 999 / (8000 * 0.05 * 0.75), base, 0.001);
+        interval.onPacket(72);
+        assertEquals(100.0, interval.getAveragePacketSize(), 0.001);
+    }
+
+    @Test
+    public void sessionMeasuresRoundTripTime() throws Exception {
+        RtcpSession alice = new RtcpSession(0xA11CEL, "alice", 8000, new RtcpInterval(new Random(2)));
+        RtcpSession bob = new RtcpSession(0xB0BL, "bob", 8000, new RtcpInterval(new Random(3)));
+        StreamMetrics metrics = new StreamMetrics("bob");
+        alice.setMetrics(metrics);
+        // Bob receives Alice's RTP
+        RtpReceiver bobReceiver = new RtpReceiver(new JitterBuffer(16, 160, 8000, 160, 1, 8), 160);
+        bob.setReceiver(bobReceiver);
+        RtpPacketizer packetizer = new RtpPacketizer(new RtpBufferPool(1), 0xA11CEL, 0, 160);
+        ByteBuffer rtp = ByteBuffer.allocate(256);
+        for (int i = 0; i < 5; i++) {
+            packetizer.packetize(new byte[160], 0, 160, rtp);
+            alice.onRtpSent(160, packetizer.getTimestamp());
+            bobReceiver.onPacket(rtp, i * 20000000L);
+        }
+
+        long ntpBase = RtcpPacket.toNtp(1500000000000L);
+        long second = 1L << 32;
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        assertTrue(alice.isReportDue(0));
+        alice.buildReport(buffer, 0, ntpBase);
+        buffer.flip();
+        // 40 ms one way. Bob holds the SR for 100 ms before reporting.
+        assertTrue(bob.onRtcpPacket(buffer, 40000000L, ntpBase + second / 25));
+        buffer.clear();
+        bob.buildReport(buffer, 140000000L, ntpBase + second * 7 / 50);
+        buffer.flip();
+        assertTrue(alice.onRtcpPacket(buffer, 180000000L, ntpBase + second * 9 / 50));
+
+        // 180 ms - 100 ms held = 80 ms, within the 1/65536 s resolution
+        assertEquals(80000, alice.getRttMicros(), 100);
+        assertEquals(80.0, metrics.snapshot().rttMillis, 0.1);
+        assertTrue(alice.getNextReportNanos() > 0);
+        assertFalse(alice.isReportDue(1000000000L));
+    }
+
+    @Test
+    public void receiverSessionFeedsTheSendersEstimator() throws Exception {
+        RtcpSession sender = new RtcpSession(0xA11CEL, "alice", 8000);
+        RtcpSession receiver = new RtcpSession(0xB0BL, "bob", 8000);
+        BandwidthEstimator estimator = new BandwidthEstimator(10000, 80000, 32000);
+        sender.setBandwidthEstimator(estimator);
+        ByteBuffer buffer = ByteBuffer.allocate(256);
+        assertFalse(receiver.isFeedbackDue(0));
+        // Packets every 20 ms from 1 s on, with 103 lost
+        for (int seq = 100; seq < 110; seq++) {
+            long arrival = 1000000000L + (seq - 100) * 20000000L;
+            estimator.onPacketSent(seq, 200, arrival - 30000000L);
+            if (seq != 103) {
+                assertTrue(receiver.onRtpReceived(0xA11CEL, seq, arrival));
+            }
+            if (seq == 101) {
+                assertFalse(receiver.isFeedbackDue(arrival));
+            }
+        }
+        long now = 1000000000L + RtcpSession.FEEDBACK_INTERVAL_NANOS + 140000000L;
+        assertTrue(receiver.isFeedbackDue(now));
+        assertTrue(receiver.buildFeedback(buffer, now) > 0);
+        assertFalse(receiver.isFeedbackDue(now));
+        assertEquals(1, receiver.getFeedbackSent());
+        buffer.flip();
+        Recorder recorder = new Recorder();
+        assertTrue(new RtcpPacket().parse(buffer.duplicate(), recorder));
+        // The lost packet is inside the reported range
+        assertEquals("TWCC b0b a11ce 100 10", recorder.events.get(0));
+        assertTrue(sender.onRtcpPacket(buffer, now + 30000000L, 0));
+        assertEquals(1, estimator.getFeedbackCount());
+
+        // Feedback about another source is not ours
+        buffer.clear();
+        receiver.onRtpReceived(0xC0FFEEL, 1, now);
+        receiver.buildFeedback(buffer, now + RtcpSession.FEEDBACK_INTERVAL_NANOS);
+        buffer.flip();
+        assertTrue(sender.onRtcpPacket(buffer, now + 80000000L, 0));
+        assertEquals(1, estimator.getFeedbackCount());
+    }
+
+    @Test
+    public void byeIsDelivered() throws Exception {
+        RtcpSession session = new RtcpSession(1, "me", 8000);
+        final long[] bye = new long[1];
+        session.setListener(new RtcpSession.Listener() {
+            @Override
+            public void onBye(long ssrc, String reason) {
+                bye[0] = ssrc;
+            }
+        });
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        new RtcpSession(77, "peer", 8000).buildBye(buffer, null);
+        buffer.flip();
+        assertTrue(session.onRtcpPacket(buffer, 0, 0));
+        assertEquals(77, bye[0]);
+    }
+}
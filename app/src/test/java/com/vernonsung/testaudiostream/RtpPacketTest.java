@@ -0,0 +1,143 @@
+package com.vernonsung.testaudiostream;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class RtpPacketTest {
+    @Test
+    public void headerRoundTrip() throws Exception {
+        RtpPacket packet = new RtpPacket();
+        packet.setMarker(true);
+        packet.setPayloadType(97);
+        packet.setSequenceNumber(0xFFFF);
+        packet.setTimestamp(0xFFFFFFF0L);
+        packet.setSsrc(0xDEADBEEFL);
+        packet.addCsrc(1);
+        packet.addCsrc(0x80000000L);
+        packet.setExtension(0xBEDE, 4);
+
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        assertEquals(packet.getHeaderLength(), packet.writeHeader(buffer));
+        buffer.putInt(0x10203040);
+        buffer.put(new byte[]{1, 2, 3});
+        buffer.flip();
+
+        RtpPacket parsed = new RtpPacket();
+        assertTrue(parsed.parse(buffer));
+        assertTrue(parsed.getMarker());
+        assertEquals(97, parsed.getPayloadType());
+        assertEquals(0xFFFF, parsed.getSequenceNumber());
+        assertEquals(0xFFFFFFF0L, parsed.getTimestamp());
+        assertEquals(0xDEADBEEFL, parsed.getSsrc());
+        assertEquals(2, parsed.getCsrcCount());
+        assertEquals(0x80000000L, parsed.getCsrc(1));
+        assertEquals(0xBEDE, parsed.getExtensionProfile());
+        assertEquals(4, parsed.getExtensionLength());
+        assertEquals(0x10203040, buffer.getInt(parsed.getExtensionOffset()));
+        assertEquals(3, parsed.getPayloadLength());
+        assertEquals(2, buffer.get(parsed.getPayloadOffset() + 1));
+        assertEquals(0, buffer.position());
+    }
+
+    @Test
+    public void parseRecordedPacketWithPadding() throws Exception {
+        // PCMU, seq 0x1234, ts 0x00000A0, ssrc 0x11223344, 2 payload octets and 3 padding octets
+        byte[] recorded = {
+                (byte) 0xA0, 0x00, 0x12, 0x34, 0x00, 0x00, 0x00, (byte) 0xA0,
+                0x11, 0x22, 0x33, 0x44, 0x7F, 0x7E, 0x00, 0x00, 0x03};
+        RtpPacket packet = new RtpPacket();
+        assertTrue(packet.parse(ByteBuffer.wrap(recorded)));
+        assertTrue(packet.hasPadding());
+        assertEquals(0, packet.getPayloadType());
+        assertEquals(0x1234, packet.getSequenceNumber());
+        assertEquals(0xA0, packet.getTimestamp());
+        assertEquals(3, packet.getPaddingLength());
+        assertEquals(2, packet.getPayloadLength());
+    }
+
+    @Test
+    public void rejectMalformedPackets() throws Exception {
+        RtpPacket packet = new RtpPacket();
+        // Too short
+        assertFalse(packet.parse(ByteBuffer.allocate(11)));
+        // Version 1
+        byte[] badVersion = new byte[12];
+        badVersion[0] = 0x40;
+        assertFalse(packet.parse(ByteBuffer.wrap(badVersion)));
+        // CSRC count larger than the packet
+        byte[] badCsrc = new byte[16];
+        badCsrc[0] = (byte) 0x82;
+        assertFalse(packet.parse(ByteBuffer.wrap(badCsrc)));
+        // Extension length larger than the packet
+        byte[] badExtension = new byte[16];
+        badExtension[0] = (byte) 0x90;
+        badExtension[15] = 2;
+        assertFalse(packet.parse(ByteBuffer.wrap(badExtension)));
+    }
+
+    @Test
+    public void packetizerAdvancesSequenceAndTimestamp() throws Exception {
+        RtpBufferPool pool = new RtpBufferPool(2);
+        RtpPacketizer packetizer = new RtpPacketizer(pool, 0x1234L, 0, 160);
+        packetizer.setSequenceNumber(0xFFFF);
+        packetizer.setTimestamp(0xFFFFFFF0L);
+        byte[] payload = new byte[160];
+        RtpPacket parsed = new RtpPacket();
+
+        ByteBuffer first = packetizer.packetize(payload, 0, payload.length);
+        assertTrue(parsed.parse(first));
+        assertTrue(parsed.getMarker());
+        assertEquals(0xFFFF, parsed.getSequenceNumber());
+        assertEquals(172, first.remaining());
+
+        ByteBuffer second = packetizer.packetize(payload, 0, payload.length);
+        assertTrue(parsed.parse(second));
+        assertFalse(parsed.getMarker());
+        assertEquals(0, parsed.getSequenceNumber());
+        assertEquals(0x90, parsed.getTimestamp());
+
+        // Pool is exhausted. The sequence number isn't consumed by a dropped frame.
+        assertNull(packetizer.packetize(payload, 0, payload.length));
+        assertEquals(1, pool.getExhaustedCount());
+        assertEquals(1, packetizer.getSequenceNumber());
+        pool.release(first);
+        pool.release(second);
+        assertEquals(2, pool.getAvailable());
+    }
+
+    @Test
+    public void steadyStateDoesNotAllocateBuffers() throws Exception {
+        RtpBufferPool pool = new RtpBufferPool(4);
+        RtpPacketizer packetizer = new RtpPacketizer(pool, 1L, 0, 160);
+        byte[] payload = new byte[160];
+        ByteBuffer first = packetizer.packetize(payload, 0, payload.length);
+        pool.release(first);
+        for (int i = 0; i < 1000; i++) {
+            ByteBuffer buffer = packetizer.packetize(payload, 0, payload.length);
+            assertSame(first, buffer);
+            pool.release(buffer);
+        }
+    }
+
+    @Test
+    public void sequenceTrackerCountsLossAcrossWrap() throws Exception {
+        RtpSequenceTracker tracker = new RtpSequenceTracker();
+        // Probation: the first packet is held back until a sequential one arrives
+        assertFalse(tracker.update(7, 65530));
+        assertTrue(tracker.update(7, 65531));
+        for (int seq = 65532; seq < 65536 + 10; seq++) {
+            if (seq == 65535 || seq == 65536 + 2) {
+                continue;
+            }
+            assertTrue(tracker.update(7, seq & 0xFFFF));
+        }
+        assertEquals(65536 + 9, tracker.getExtendedHighestSequence());
+        assertEquals(15, tracker.getExpected());
+        assertEquals(2, tracker.getCumulativeLost());
+        assertEquals((2 << 8) / 15, tracker.takeFractionLost());
+        assertEquals(0, tracker.takeFractionLost());
+    }
+}
@@ -0,0 +1,297 @@
+package com.vernonsung.testaudiostream;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class RtpRelayTest {
+    private static final long MS = 1000000L;
+    private static final int FRAME = 160;
+
+    // Keeps a parsed copy of every packet and when it was sent
+    private static class RecordingSink implements CallPipeline.PacketSink {
+        final VirtualClock clock;
+        final List<RtpPacket> packets = new ArrayList<RtpPacket>();
+        final List<byte[]> payloads = new ArrayList<byte[]>();
+        final List<Long> sentNanos = new ArrayList<Long>();
+
+        RecordingSink(VirtualClock clock) {
+            this.clock = clock;
+        }
+
+        @Override
+        public void send(ByteBuffer packet) {
+            RtpPacket parsed = new RtpPacket();
+            assertTrue(parsed.parse(packet));
+            byte[] payload = new byte[parsed.getPayloadLength()];
+            for (int i = 0; i < payload.length; i++) {
+                payload[i] = packet.get(parsed.getPayloadOffset() + i);
+            }
+            packets.add(parsed);
+            payloads.add(payload);
+            sentNanos.add(clock.nanoTime());
+        }
+    }
+
+    private static ByteBuffer packet(RtpPacketizer packetizer, int fill) {
+        byte[] payload = new byte[FRAME];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) (fill + i);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(CallPipeline.MAX_PACKET_SIZE);
+        packetizer.packetize(payload, 0, payload.length, buffer);
+        return buffer;
+    }
+
+    @Test
+    public void fansOutWithHeadersOfTheirOwn() {
+        VirtualClock clock = new VirtualClock();
+        RtpRelay relay = new RtpRelay(clock, 8000, 16, 0);
+        RecordingSink[] sinks = new RecordingSink[3];
+        RtpRelay.Subscriber[] subscribers = new RtpRelay.Subscriber[3];
+        for (int i = 0; i < sinks.length; i++) {
+            sinks[i] = new RecordingSink(clock);
+            subscribers[i] = relay.addSubscriber(sinks[i]);
+        }
+        RtpPacketizer talker = new RtpPacketizer(null, 0x1234L, G711Codec.PAYLOAD_TYPE_PCMU, FRAME);
+        for (int n = 0; n < 10; n++) {
+            ByteBuffer packet = packet(talker, n);
+            int position = packet.position();
+            assertTrue(relay.onPacket(packet, clock.nanoTime()));
+            assertEquals(position, packet.position());
+            assertEquals(-1, relay.tick(clock.nanoTime()));
+            clock.advance(20 * MS);
+        }
+        assertEquals(10, relay.getReceivedCount());
+        assertEquals(30, relay.getForwardedCount());
+        for (int i = 0; i < sinks.length; i++) {
+            RecordingSink sink = sinks[i];
+            assertEquals(10, sink.packets.size());
+            assertEquals(10, subscribers[i].getSentCount());
+            RtpPacket first = sink.packets.get(0);
+            assertTrue(first.getMarker());
+            for (int n = 0; n < 10; n++) {
+                RtpPacket p = sink.packets.get(n);
+                assertEquals(subscribers[i].getSsrc(), p.getSsrc());
+                assertEquals(G711Codec.PAYLOAD_TYPE_PCMU, p.getPayloadType());
+                assertEquals((first.getSequenceNumber() + n) & 0xFFFF, p.getSequenceNumber());
+                assertEquals((first.getTimestamp() + n * FRAME) & 0xFFFFFFFFL, p.getTimestamp());
+                assertEquals(n == 0, p.getMarker());
+                assertEquals((byte) (n + 7), sink.payloads.get(n)[7]);
+            }
+        }
+        // Random starting points, so subscribers can't be told apart by them
+        assertNotEquals(sinks[0].packets.get(0).getSsrc(), sinks[1].packets.get(0).getSsrc());
+    }
+
+    @Test
+    public void newTalkerContinuesTheStream() {
+        VirtualClock clock = new VirtualClock();
+        RtpRelay relay = new RtpRelay(clock, 8000, 16, 0);
+        RecordingSink sink = new RecordingSink(clock);
+        relay.addSubscriber(sink);
+        RtpPacketizer first = new RtpPacketizer(null, 1, G711Codec.PAYLOAD_TYPE_PCMU, FRAME);
+        RtpPacketizer second = new RtpPacketizer(null, 2, G711Codec.PAYLOAD_TYPE_PCMU, FRAME);
+        for (int n = 0; n < 5; n++) {
+            relay.onPacket(packet(first, n), clock.nanoTime());
+            relay.tick(clock.nanoTime());
+            clock.advance(20 * MS);
+        }
+        // 100 ms of silence, then someone else talks
+        clock.advance(100 * MS);
+        for (int n = 0; n < 5; n++) {
+            relay.onPacket(packet(second, n), clock.nanoTime());
+            relay.tick(clock.nanoTime());
+            clock.advance(20 * MS);
+        }
+        List<RtpPacket> packets = sink.packets;
+        assertEquals(10, packets.size());
+        long ssrc = packets.get(0).getSsrc();
+        for (int n = 1; n < 10; n++) {
+            RtpPacket p = packets.get(n);
+            assertEquals(ssrc, p.getSsrc());
+            assertEquals((packets.get(n - 1).getSequenceNumber() + 1) & 0xFFFF, p.getSequenceNumber());
+            long step = (p.getTimestamp() - packets.get(n - 1).getTimestamp()) & 0xFFFFFFFFL;
+            // The gap of 120 ms from one talker's last packet to the next one's first
+            assertEquals(n == 5 ? 960 : FRAME, step);
+            assertEquals(n == 5, p.getMarker());
+        }
+    }
+
+    @Test
+    public void srtpIsProtectedAgainPerSubscriber() throws Exception {
+        VirtualClock clock = new VirtualClock();
+        RtpRelay relay = new RtpRelay(clock, 8000, 16, 0);
+        byte[] salt = new byte[SrtpContext.MASTER_SALT_LENGTH];
+        byte[][] keys = new byte[3][SrtpContext.MASTER_KEY_LENGTH];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i][0] = (byte) (i + 1);
+        }
+        relay.setSrtp(new SrtpContext(keys[0], salt));
+        final SrtpContext[] listeners = new SrtpContext[2];
+        final List<List<byte[]>> payloads = new ArrayList<List<byte[]>>();
+        for (int i = 0; i < listeners.length; i++) {
+            listeners[i] = new SrtpContext(keys[i + 1], salt);
+            final SrtpContext listener = listeners[i];
+            final List<byte[]> received = new ArrayList<byte[]>();
+            payloads.add(received);
+            relay.addSubscriber(new CallPipeline.PacketSink() {
+                @Override
+                public void send(ByteBuffer packet) {
+                    ByteBuffer copy = ByteBuffer.allocate(packet.remaining());
+                    copy.put(packet).flip();
+                    assertTrue(listener.unprotect(copy) > 0);
+                    RtpPacket parsed = new RtpPacket();
+                    assertTrue(parsed.parse(copy));
+                    byte[] payload = new byte[parsed.getPayloadLength()];
+                    for (int j = 0; j < payload.length; j++) {
+                        payload[j] = copy.get(parsed.getPayloadOffset() + j);
+                    }
+                    received.add(payload);
+                }
+            }, new SrtpContext(keys[i + 1], salt));
+        }
+        SrtpContext talker = new SrtpContext(keys[0], salt);
+        RtpPacketizer packetizer = new RtpPacketizer(null, 0x1234L, G711Codec.PAYLOAD_TYPE_PCMU, FRAME);
+        for (int n = 0; n < 5; n++) {
+            ByteBuffer packet = packet(packetizer, n);
+            assertTrue(talker.protect(packet) > 0);
+            assertTrue(relay.onPacket(packet, clock.nanoTime()));
+            relay.tick(clock.nanoTime());
+            clock.advance(20 * MS);
+        }
+        // A packet of someone without the key doesn't get through
+        ByteBuffer forged = packet(packetizer, 5);
+        assertTrue(new SrtpContext(keys[1], salt).protect(forged) > 0);
+        assertFalse(relay.onPacket(forged, clock.nanoTime()));
+        assertEquals(1, relay.getRejectedCount());
+        relay.tick(clock.nanoTime());
+
+        for (List<byte[]> received : payloads) {
+            assertEquals(5, received.size());
+            for (int n = 0; n < 5; n++) {
+                assertEquals(FRAME, received.get(n).length);
+                assertEquals((byte) (n + 7), received.get(n)[7]);
+            }
+        }
+    }
+
+    @Test
+    public void reorderedPacketsKeepTheirPlace() {
+        VirtualClock clock = new VirtualClock();
+        RtpRelay relay = new RtpRelay(clock, 8000, 16, 0);
+        RecordingSink sink = new RecordingSink(clock);
+        relay.addSubscriber(sink);
+        RtpPacketizer talker = new RtpPacketizer(null, 1, G711Codec.PAYLOAD_TYPE_PCMU, FRAME);
+        ByteBuffer a = packet(talker, 0);
+        ByteBuffer b = packet(talker, 1);
+        ByteBuffer c = packet(talker, 2);
+        relay.onPacket(a, 0);
+        relay.onPacket(c, 0);
+        relay.onPacket(b, 0);
+        relay.tick(0);
+        int s0 = sink.packets.get(0).getSequenceNumber();
+        assertEquals((s0 + 2) & 0xFFFF, sink.packets.get(1).getSequenceNumber());
+        assertEquals((s0 + 1) & 0xFFFF, sink.packets.get(2).getSequenceNumber());
+        assertEquals((sink.packets.get(0).getTimestamp() + FRAME) & 0xFFFFFFFFL, sink.packets.get(2).getTimestamp());
+    }
+
+    @Test
+    public void sendsAreSpreadOverTheSpread() {
+        VirtualClock clock = new VirtualClock();
+        RtpRelay relay = new RtpRelay(clock, 8000, 16, 10 * MS);
+        RecordingSink[] sinks = new RecordingSink[4];
+        for (int i = 0; i < sinks.length; i++) {
+            sinks[i] = new RecordingSink(clock);
+            relay.addSubscriber(sinks[i]);
+        }
+        RtpPacketizer talker = new RtpPacketizer(null, 1, G711Codec.PAYLOAD_TYPE_PCMU, FRAME);
+        relay.onPacket(packet(talker, 0), 0);
+        // Subscriber k is due k * 2.5 ms after arrival
+        long due = relay.tick(clock.nanoTime());
+        while (due >= 0) {
+            clock.sleepUntil(due);
+            due = relay.tick(clock.nanoTime());
+        }
+        for (int i = 0; i < sinks.length; i++) {
+            assertEquals(1, sinks[i].sentNanos.size());
+            assertEquals(i * 2500000L, (long) sinks[i].sentNanos.get(0));
+        }
+    }
+
+    @Test
+    public void subscribersJoinAndLeaveBetweenPackets() {
+        VirtualClock clock = new VirtualClock();
+        RtpRelay relay = new RtpRelay(clock, 8000, 16, 0);
+        RecordingSink early = new RecordingSink(clock);
+        RecordingSink late = new RecordingSink(clock);
+        RtpRelay.Subscriber first = relay.addSubscriber(early);
+        RtpPacketizer talker = new RtpPacketizer(null, 1, G711Codec.PAYLOAD_TYPE_PCMU, FRAME);
+        relay.onPacket(packet(talker, 0), 0);
+        relay.tick(0);
+        relay.addSubscriber(late);
+        relay.onPacket(packet(talker, 1), 0);
+        relay.tick(0);
+        relay.removeSubscriber(first);
+        relay.onPacket(packet(talker, 2), 0);
+        relay.tick(0);
+        assertEquals(2, early.packets.size());
+        assertEquals(2, late.packets.size());
+        assertTrue(late.packets.get(0).getMarker());
+        assertEquals(1, relay.getSubscriberCount());
+    }
+
+    @Test
+    public void fullRingDropsAndOthersAreIgnored() {
+        VirtualClock clock = new VirtualClock();
+        RtpRelay relay = new RtpRelay(clock, 8000, 4, 0);
+        relay.addSubscriber(new RecordingSink(clock));
+        RtpPacketizer talker = new RtpPacketizer(null, 1, G711Codec.PAYLOAD_TYPE_PCMU, FRAME);
+        for (int n = 0; n < 6; n++) {
+            relay.onPacket(packet(talker, n), 0);
+        }
+        assertEquals(6, relay.getReceivedCount());
+        assertEquals(2, relay.getDroppedCount());
+        // Not RTP, and RTCP on the same port
+        assertFalse(relay.onPacket(ByteBuffer.wrap(new byte[20]), 0));
+        byte[] report = new byte[28];
+        report[0] = (byte) 0x80;
+        report[1] = (byte) RtcpPacket.TYPE_SR;
+        assertFalse(relay.onPacket(ByteBuffer.wrap(report), 0));
+        relay.tick(0);
+        assertEquals(4, relay.getForwardedCount());
+    }
+
+    // Every packet reaches every one of a large audience. What forwarding costs as the audience
+    // grows is measured by RelayBenchmark.
+    @Test
+    public void forwardsToLargeAudiences() {
+        int[] audiences = {1, 10, 100, 500};
+        for (int audience : audiences) {
+            VirtualClock clock = new VirtualClock();
+            RtpRelay relay = new RtpRelay(clock, 8000, 64, 0);
+            final long[] sent = new long[1];
+            for (int i = 0; i < audience; i++) {
+                relay.addSubscriber(new CallPipeline.PacketSink() {
+                    @Override
+                    public void send(ByteBuffer packet) {
+                        sent[0]++;
+                    }
+                });
+            }
+            RtpPacketizer talker = new RtpPacketizer(null, 1, G711Codec.PAYLOAD_TYPE_PCMU, FRAME);
+            ByteBuffer packet = packet(talker, 0);
+            int packets = 20000 / audience;
+            for (int n = 0; n < packets; n++) {
+                relay.onPacket(packet, 0);
+                relay.tick(0);
+            }
+            assertEquals((long) packets * audience, relay.getForwardedCount());
+            assertEquals((long) packets * audience, sent[0]);
+        }
+    }
+}
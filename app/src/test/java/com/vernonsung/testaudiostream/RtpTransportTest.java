@@ -0,0 +1,133 @@
+package com.vernonsung.testaudiostream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class RtpTransportTest {
+    private RtpTransport transport;
+
+    @Before
+    public void setUp() throws Exception {
+        transport = new RtpTransport();
+        transport.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        transport.stop();
+    }
+
+    private static InetSocketAddress anyLoopbackPort() {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+    }
+
+    @Test
+    public void manyStreamsOnOneLoop() throws Exception {
+        final int streams = 24;
+        final int packetsPerStream = 200;
+        final CountDownLatch done = new CountDownLatch(streams * packetsPerStream);
+        final AtomicInteger badPackets = new AtomicInteger();
+        RtpTransport.Listener listener = new RtpTransport.Listener() {
+            private final RtpPacket packet = new RtpPacket();
+
+            @Override
+            public void onPacket(RtpTransport.Endpoint endpoint, ByteBuffer buffer, SocketAddress source,
+                                 long arrivalNanos) {
+                if (!packet.parse(buffer) || packet.getPayloadLength() != 160) {
+                    badPackets.incrementAndGet();
+                }
+                done.countDown();
+            }
+        };
+
+        RtpTransport.Endpoint sender = transport.open(anyLoopbackPort(), null, listener);
+        RtpTransport.Endpoint[] receivers = new RtpTransport.Endpoint[streams];
+        for (int i = 0; i < streams; i++) {
+            receivers[i] = transport.open(anyLoopbackPort(), null, listener);
+        }
+        // Give the loop a moment to register the channels before traffic starts
+        Thread.sleep(100);
+
+        RtpBufferPool pool = new RtpBufferPool(1, 256, true);
+        RtpPacketizer packetizer = new RtpPacketizer(pool, 0, 160);
+        ByteBuffer buffer = pool.acquire();
+        byte[] payload = new byte[160];
+        for (int n = 0; n < packetsPerStream; n++) {
+            packetizer.packetize(payload, 0, payload.length, buffer);
+            for (RtpTransport.Endpoint receiver : receivers) {
+                transport.send(sender, buffer, receiver.getLocalAddress());
+            }
+            if (n % 50 == 49) {
+                // Stay within the loopback socket buffers
+                Thread.sleep(5);
+            }
+        }
+
+        long expected = (long) streams * packetsPerStream - transport.getSendDropped();
+        assertTrue(done.await(5, TimeUnit.SECONDS) || transport.getPacketsReceived() >= expected * 9 / 10);
+        assertEquals(0, badPackets.get());
+        assertTrue(transport.getReceiveSyscallsPerPacket() > 0);
+    }
+
+    @Test
+    public void connectedEndpointsExchangePackets() throws Exception {
+        final CountDownLatch received = new CountDownLatch(1);
+        final SocketAddress[] sourceSeen = new SocketAddress[1];
+        RtpTransport.Listener listener = new RtpTransport.Listener() {
+            @Override
+            public void onPacket(RtpTransport.Endpoint endpoint, ByteBuffer packet, SocketAddress source,
+                                 long arrivalNanos) {
+                sourceSeen[0] = source;
+                received.countDown();
+            }
+        };
+        RtpTransport.Endpoint a = transport.open(anyLoopbackPort(), null, listener);
+        RtpTransport.Endpoint b = transport.open(anyLoopbackPort(), a.getLocalAddress(), listener);
+        Thread.sleep(50);
+        ByteBuffer packet = ByteBuffer.allocateDirect(16);
+        packet.putInt(1).flip();
+        assertTrue(transport.send(b, packet, null));
+        assertEquals(0, packet.position());
+        assertTrue(received.await(2, TimeUnit.SECONDS));
+        assertEquals(b.getLocalAddress().getPort(), ((InetSocketAddress) sourceSeen[0]).getPort());
+    }
+
+    @Test
+    public void listenerFailureCostsOnlyItsPacket() throws Exception {
+        // The second packet comes after the loop has dealt with the first
+        final CountDownLatch received = new CountDownLatch(1);
+        RtpTransport.Listener listener = new RtpTransport.Listener() {
+            @Override
+            public void onPacket(RtpTransport.Endpoint endpoint, ByteBuffer packet, SocketAddress source,
+                                 long arrivalNanos) {
+                if (packet.getInt(0) == 1) {
+                    throw new IllegalStateException("bad packet");
+                }
+                received.countDown();
+            }
+        };
+        RtpTransport.Endpoint a = transport.open(anyLoopbackPort(), null, listener);
+        RtpTransport.Endpoint b = transport.open(anyLoopbackPort(), a.getLocalAddress(), listener);
+        Thread.sleep(50);
+        ByteBuffer packet = ByteBuffer.allocateDirect(16);
+        packet.putInt(1).flip();
+        assertTrue(transport.send(b, packet, null));
+        packet.putInt(0, 2);
+        assertTrue(transport.send(b, packet, null));
+        assertTrue(received.await(2, TimeUnit.SECONDS));
+        assertTrue(transport.isRunning());
+        assertEquals(1, transport.getListenerFailures());
+        assertTrue(transport.getFailure() instanceof IllegalStateException);
+    }
+}
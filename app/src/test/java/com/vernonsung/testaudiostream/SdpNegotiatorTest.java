@@ -0,0 +1,253 @@
+package com.vernonsung.testaudiostream;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class SdpNegotiatorTest {
+    // An offer as a typical SIP phone sends it, with video the call doesn't use
+    private static final String PHONE_OFFER = "v=0\r\n"
+            + "o=alice 2890844526 2890844527 IN IP4 192.168.1.20\r\n"
+            + "s=Talk\r\n"
+            + "c=IN IP4 192.168.1.20\r\n"
+            + "t=0 0\r\n"
+            + "m=audio 49170 RTP/AVP 96 0 8 101\r\n"
+            + "a=rtpmap:96 AMR/8000\r\n"
+            + "a=fmtp:96 octet-align=1\r\n"
+            + "a=rtpmap:101 telephone-event/8000\r\n"
+            + "a=fmtp:101 0-15\r\n"
+            + "a=ptime:40\r\n"
+            + "a=sendrecv\r\n"
+            + "m=video 51372 RTP/AVP 31\r\n"
+            + "c=IN IP4 10.0.0.1\r\n"
+            + "a=rtpmap:31 H261/90000\r\n";
+
+    // Bare static payload types, media level connection and LF line endings
+    private static final String STATIC_OFFER = "v=0\n"
+            + "o=- 1 1 IN IP4 0.0.0.0\n"
+            + "s=-\n"
+            + "t=0 0\n"
+            + "m=audio 4000 RTP/AVP 3 0\n"
+            + "c=IN IP4 192.168.1.30\n"
+            + "a=maxptime:20\n";
+
+    private List<SessionDescription.Format> supported;
+
+    @Before
+    public void setUp() {
+        // What android.net.rtp.AudioCodec.getCodecs() reports
+        supported = new ArrayList<SessionDescription.Format>();
+        supported.add(SessionDescription.Format.fromRtpmap(0, "PCMU/8000", null));
+        supported.add(SessionDescription.Format.fromRtpmap(8, "PCMA/8000", null));
+        supported.add(SessionDescription.Format.fromRtpmap(3, "GSM/8000", null));
+        supported.add(SessionDescription.Format.fromRtpmap(96, "GSM-EFR/8000", null));
+        supported.add(SessionDescription.Format.fromRtpmap(97, "AMR/8000", "octet-align=1"));
+    }
+
+    @Test
+    public void parsePhoneOffer() {
+        SessionDescription d = SessionDescription.parse(PHONE_OFFER);
+        assertEquals(2890844526L, d.getSessionId());
+        assertEquals(2890844527L, d.getSessionVersion());
+        assertEquals("192.168.1.20", d.getAddress());
+        assertEquals(49170, d.getPort());
+        assertEquals(40, d.getPtime());
+        assertEquals(-1, d.getMaxPtime());
+        assertEquals(SessionDescription.SENDRECV, d.getDirection());
+        List<SessionDescription.Format> formats = d.getFormats();
+        assertEquals(4, formats.size());
+        assertEquals(96, formats.get(0).payloadType);
+        assertEquals("AMR", formats.get(0).encodingName);
+        assertEquals("octet-align=1", formats.get(0).fmtp);
+        // Static types without rtpmap
+        assertEquals("PCMU", formats.get(1).encodingName);
+        assertEquals("PCMA/8000", formats.get(2).getRtpmap());
+        assertEquals("telephone-event", formats.get(3).encodingName);
+        assertEquals("0-15", formats.get(3).fmtp);
+    }
+
+    @Test
+    public void parseStaticOffer() {
+        SessionDescription d = SessionDescription.parse(STATIC_OFFER);
+        assertEquals("192.168.1.30", d.getAddress());
+        assertEquals(20, d.getMaxPtime());
+        assertEquals(2, d.getFormats().size());
+        assertEquals("GSM", d.getFormats().get(0).encodingName);
+    }
+
+    @Test
+    public void writeThenParse() {
+        SessionDescription d = new SessionDescription(7, 3, "fe80::1", 5004);
+        d.addFormat(SessionDescription.Format.fromRtpmap(111, "opus/48000/2", "useinbandfec=1"));
+        d.addFormat(SessionDescription.Format.fromRtpmap(0, "PCMU/8000", null));
+        d.setPtime(20);
+        d.setDirection(SessionDescription.RECVONLY);
+        String text = d.toString();
+        assertTrue(text.contains("c=IN IP6 fe80::1\r\n"));
+        assertTrue(text.contains("m=audio 5004 RTP/AVP 111 0\r\n"));
+
+        SessionDescription p = SessionDescription.parse(text);
+        assertEquals(7, p.getSessionId());
+        assertEquals("fe80::1", p.getAddress());
+        assertEquals(5004, p.getPort());
+        assertEquals(20, p.getPtime());
+        assertEquals(SessionDescription.RECVONLY, p.getDirection());
+        SessionDescription.Format opus = p.getFormats().get(0);
+        assertEquals(48000, opus.clockRate);
+        assertEquals(2, opus.channels);
+        assertEquals("useinbandfec=1", opus.fmtp);
+    }
+
+    @Test
+    public void answerByQuality() {
+        SdpNegotiator answerer = new SdpNegotiator(supported, SdpNegotiator.Preference.QUALITY);
+        SdpNegotiator.Result result = answerer.processOffer(SessionDescription.parse(PHONE_OFFER));
+        assertNotNull(result);
+        assertEquals("PCMU", result.format.encodingName);
+        assertEquals(40, result.ptime);
+        assertEquals("192.168.1.20", result.remoteAddress);
+        assertEquals(49170, result.remotePort);
+
+        SessionDescription answer = answerer.createAnswer(result, "192.168.1.21", 50000);
+        assertEquals(1, answer.getFormats().size());
+        assertEquals(0, answer.getFormats().get(0).payloadType);
+        assertEquals(40, answer.getPtime());
+    }
+
+    @Test
+    public void answerKeepsOffererPayloadType() {
+        // Only AMR in common. The offer numbers it 96 while we'd call it 97.
+        supported.remove(0);
+        supported.remove(0);
+        SdpNegotiator answerer = new SdpNegotiator(supported, SdpNegotiator.Preference.QUALITY);
+        SdpNegotiator.Result result = answerer.processOffer(SessionDescription.parse(PHONE_OFFER));
+        assertEquals("AMR", result.format.encodingName);
+        assertEquals(96, result.format.payloadType);
+        assertEquals("octet-align=1", result.format.fmtp);
+    }
+
+    @Test
+    public void amrMustBeOctetAligned() {
+        supported.remove(0);
+        supported.remove(0);
+        SdpNegotiator answerer = new SdpNegotiator(supported, SdpNegotiator.Preference.QUALITY);
+        // Bandwidth-efficient, as AMR is without octet-align=1
+        String efficient = PHONE_OFFER.replace("a=fmtp:96 octet-align=1\r\n", "");
+        assertNull(answerer.processOffer(SessionDescription.parse(efficient)));
+        String explicit = PHONE_OFFER.replace("octet-align=1", "octet-align=0; mode-set=7");
+        assertNull(answerer.processOffer(SessionDescription.parse(explicit)));
+        String aligned = PHONE_OFFER.replace("octet-align=1", "mode-set=7; octet-align=1");
+        assertEquals("AMR", answerer.processOffer(SessionDescription.parse(aligned)).format.encodingName);
+    }
+
+    @Test
+    public void assumedWithoutSdp() {
+        SdpNegotiator negotiator = new SdpNegotiator(supported, SdpNegotiator.Preference.QUALITY);
+        assertEquals("PCMU", negotiator.assume("192.168.1.20", 4000).format.encodingName);
+        negotiator.setAssumedEncoding("AMR");
+        SdpNegotiator.Result result = negotiator.assume("192.168.1.20", 4000);
+        assertEquals("AMR", result.format.encodingName);
+        assertEquals("octet-align=1", result.format.fmtp);
+        assertEquals(4000, result.remotePort);
+        try {
+            negotiator.setAssumedEncoding("G722");
+            fail("Assumed an unsupported encoding");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void answerByCpu() {
+        SdpNegotiator answerer = new SdpNegotiator(supported, SdpNegotiator.Preference.CPU);
+        assertEquals("PCMU", answerer.getLocalFormats().get(0).encodingName);
+        assertEquals("AMR", answerer.getLocalFormats().get(4).encodingName);
+        SdpNegotiator.Result result = answerer.processOffer(SessionDescription.parse(STATIC_OFFER));
+        assertEquals("PCMU", result.format.encodingName);
+        // Our 20 ms within their maxptime
+        assertEquals(20, result.ptime);
+    }
+
+    @Test
+    public void ptimeIsClampedToMaxptime() {
+        SdpNegotiator answerer = new SdpNegotiator(supported, SdpNegotiator.Preference.QUALITY);
+        answerer.setPtime(20, 30);
+        SdpNegotiator.Result result = answerer.processOffer(SessionDescription.parse(PHONE_OFFER));
+        assertEquals(30, result.ptime);
+    }
+
+    @Test
+    public void nothingInCommon() {
+        List<SessionDescription.Format> g722 = new ArrayList<SessionDescription.Format>();
+        g722.add(SessionDescription.Format.fromRtpmap(9, "G722/8000", null));
+        SdpNegotiator answerer = new SdpNegotiator(g722, SdpNegotiator.Preference.QUALITY);
+        assertNull(answerer.processOffer(SessionDescription.parse(PHONE_OFFER)));
+    }
+
+    @Test
+    public void offerAndAnswerBetweenTwoEndpoints() {
+        SdpNegotiator offerer = new SdpNegotiator(supported, SdpNegotiator.Preference.QUALITY);
+        List<SessionDescription.Format> cheap = new ArrayList<SessionDescription.Format>();
+        cheap.add(SessionDescription.Format.fromRtpmap(3, "GSM/8000", null));
+        cheap.add(SessionDescription.Format.fromRtpmap(8, "PCMA/8000", null));
+        SdpNegotiator answerer = new SdpNegotiator(cheap, SdpNegotiator.Preference.CPU);
+
+        String offer = offerer.createOffer("192.168.1.10", 40000).toString();
+        SdpNegotiator.Result answered = answerer.processOffer(SessionDescription.parse(offer));
+        String answer = answerer.createAnswer(answered, "192.168.1.11", 40002).toString();
+        SdpNegotiator.Result offered = offerer.processAnswer(SessionDescription.parse(answer));
+
+        assertEquals("PCMA", answered.format.encodingName);
+        assertEquals(8, offered.format.payloadType);
+        assertEquals(answered.ptime, offered.ptime);
+        assertEquals("192.168.1.10", answered.remoteAddress);
+        assertEquals(40000, answered.remotePort);
+        assertEquals("192.168.1.11", offered.remoteAddress);
+        assertEquals(40002, offered.remotePort);
+    }
+
+    @Test
+    public void rejectedOrForeignAnswer() {
+        SdpNegotiator offerer = new SdpNegotiator(supported, SdpNegotiator.Preference.QUALITY);
+        offerer.createOffer("192.168.1.10", 40000);
+        SessionDescription rejected = new SessionDescription(1, 1, "192.168.1.11", 0);
+        rejected.addFormat(SessionDescription.Format.fromRtpmap(0, "PCMU/8000", null));
+        assertNull(offerer.processAnswer(rejected));
+
+        // A payload type we didn't offer
+        SessionDescription foreign = new SessionDescription(1, 1, "192.168.1.11", 40002);
+        foreign.addFormat(SessionDescription.Format.fromRtpmap(9, "G722/8000", null));
+        assertNull(offerer.processAnswer(foreign));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void answerWithoutOffer() {
+        new SdpNegotiator(supported, SdpNegotiator.Preference.QUALITY)
+                .processAnswer(SessionDescription.parse(PHONE_OFFER));
+    }
+
+    @Test
+    public void malformedSdp() {
+        String[] broken = {
+                "",
+                "v=1\r\nm=audio 1 RTP/AVP 0\r\nc=IN IP4 1.2.3.4\r\n",
+                "v=0\r\nc=IN IP4 1.2.3.4\r\n",
+                "v=0\r\nm=audio 1 RTP/AVP 0\r\n",
+                "v=0\r\nc=IN IP4 1.2.3.4\r\nm=audio x RTP/AVP 0\r\n",
+                "v=0\r\nc=IN IP4 1.2.3.4\r\nm=audio 1 RTP/AVP 96\r\na=rtpmap:96 AMR\r\n",
+                "v=0\r\nc=IN IP4 1.2.3.4\r\nm=audio 1 RTP/AVP 0\r\nbroken\r\n",
+        };
+        for (String sdp : broken) {
+            try {
+                SessionDescription.parse(sdp);
+                fail("Parsed " + sdp);
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package com.vernonsung.testaudiostream;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.*;
+
+public class SrtpContextTest {
+    // RFC 3711 appendix B.3, also the master key of the libsrtp test packet
+    private static final byte[] MASTER_KEY = hex("E1F97A0D3E018BE0D64FA32C06DE4139");
+    private static final byte[] MASTER_SALT = hex("0EC675AD498AFEEBB6960B3AABE6");
+    private static final int FRAME = 160;
+
+    private static byte[] hex(String s) {
+        byte[] bytes = new byte[s.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(s.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+
+    private static Cipher aes(byte[] key) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance("AES/ECB/NoPadding");
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"));
+        return cipher;
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(buffer.position() + i);
+        }
+        return bytes;
+    }
+
+    private static ByteBuffer packet(RtpPacketizer packetizer, int fill) {
+        byte[] payload = new byte[FRAME];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte) (fill + i);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(CallPipeline.MAX_PACKET_SIZE);
+        packetizer.packetize(payload, 0, payload.length, buffer);
+        return buffer;
+    }
+
+    private static ByteBuffer copy(ByteBuffer packet) {
+        ByteBuffer copy = ByteBuffer.allocate(CallPipeline.MAX_PACKET_SIZE);
+        copy.put(bytes(packet));
+        copy.flip();
+        return copy;
+    }
+
+    // RFC 3711 appendix B.2
+    @Test
+    public void aesCounterModeKeyStream() throws GeneralSecurityException {
+        byte[] keystream = SrtpContext.derive(aes(hex("2B7E151628AED2A6ABF7158809CF4F3C")),
+                hex("F0F1F2F3F4F5F6F7F8F9FAFBFCFD"), 0, 48);
+        assertArrayEquals(hex("E03EAD0935C95E80E166B16DD92B4EB4"
+                + "D23513162B02D0F72A43A2FE4A5F97AB"
+                + "41E95B3BB0A2E8DD477901E4FCA894C0"), keystream);
+    }
+
+    // RFC 3711 appendix B.3
+    @Test
+    public void keyDerivation() throws GeneralSecurityException {
+        Cipher prf = aes(MASTER_KEY);
+        assertArrayEquals(hex("C61E7A93744F39EE10734AFE3FF7A087"), SrtpContext.derive(prf, MASTER_SALT, 0, 16));
+        assertArrayEquals(hex("30CBBC08863D8C85D49DB34A9AE1"), SrtpContext.derive(prf, MASTER_SALT, 2, 14));
+        assertArrayEquals(hex("CEBE321F6FF7716B6FD4AB49AF256A156D38BAA4"),
+                SrtpContext.derive(prf, MASTER_SALT, 1, 20));
+    }
+
+    // The AES_CM_128_HMAC_SHA1_80 packet of libsrtp's test driver
+    @Test
+    public void protectsKnownPacket() throws GeneralSecurityException {
+        SrtpContext sender = new SrtpContext(MASTER_KEY, MASTER_SALT);
+        ByteBuffer packet = ByteBuffer.allocate(64);
+        packet.put(hex("800F1234DECAFBADCAFEBABEABABABABABABABABABABABABABABABAB"));
+        packet.flip();
+        assertEquals(38, sender.protect(packet));
+        assertArrayEquals(hex("800F1234DECAFBADCAFEBABE4E55DC4CE79978D88CA4D215949D2402B78D6ACC99EA179B8DBB"),
+                bytes(packet));
+
+        SrtpContext receiver = new SrtpContext(MASTER_KEY, MASTER_SALT);
+        assertEquals(28, receiver.unprotect(packet));
+        assertArrayEquals(hex("800F1234DECAFBADCAFEBABEABABABABABABABABABABABABABABABAB"), bytes(packet));
+    }
+
+    @Test
+    public void roundTripAcrossSequenceRollover() throws GeneralSecurityException {
+        SrtpContext sender = new SrtpContext(MASTER_KEY, MASTER_SALT);
+        SrtpContext receiver = new SrtpContext(MASTER_KEY, MASTER_SALT);
+        RtpPacketizer packetizer = new RtpPacketizer(null, 0x1234L, G711Codec.PAYLOAD_TYPE_PCMU, FRAME);
+        packetizer.setSequenceNumber(65530);
+        packetizer.addCsrc(0x5678L);
+        byte[] lastCipherText = null;
+        for (int n = 0; n < 20; n++) {
+            ByteBuffer packet = packet(packetizer, n);
+            byte[] plain = bytes(packet);
+            assertEquals(plain.length + SrtpContext.AUTH_TAG_LENGTH, sender.protect(packet));
+            byte[] cipherText = bytes(packet);
+            // The header stays readable, the payload doesn't
+            assertArrayEquals(Arrays.copyOf(plain, 16), Arrays.copyOf(cipherText, 16));
+            assertNotEquals(plain[20], cipherText[20]);
+            assertFalse(Arrays.equals(lastCipherText, cipherText));
+            lastCipherText = cipherText;
+            assertEquals(plain.length, receiver.unprotect(packet));
+            assertArrayEquals(plain, bytes(packet));
+        }
+    }
+
+    @Test
+    public void paddingIsEncryptedAndRemovedAfter() throws GeneralSecurityException {
+        SrtpContext sender = new SrtpContext(MASTER_KEY, MASTER_SALT);
+        SrtpContext receiver = new SrtpContext(MASTER_KEY, MASTER_SALT);
+        ByteBuffer packet = ByteBuffer.allocate(64);
+        packet.put(hex("A000000100000000000000AA0102030400000004"));
+        packet.flip();
+        sender.protect(packet);
+        assertEquals(20, receiver.unprotect(packet));
+        RtpPacket parsed = new RtpPacket();
+        assertTrue(parsed.parse(packet));
+        assertEquals(4, parsed.getPayloadLength());
+        assertEquals(4, parsed.getPaddingLength());
+    }
+
+    @Test
+    public void tamperedPacketsAreRejected() throws GeneralSecurityException {
+        SrtpContext sender = new SrtpContext(MASTER_KEY, MASTER_SALT);
+        SrtpContext receiver = new SrtpContext(MASTER_KEY, MASTER_SALT);
+        RtpPacketizer packetizer = new RtpPacketizer(null, 7, G711Codec.PAYLOAD_TYPE_PCMU, FRAME);
+        ByteBuffer packet = packet(packetizer, 0);
+        sender.protect(packet);
+        int[] flips = {3, 8, 40, packet.limit() - 1};
+        for (int at : flips) {
+            ByteBuffer tampered = copy(packet);
+            tampered.put(at, (byte) (tampered.get(at) ^ 1));
+            byte[] before = bytes(tampered);
+            assertEquals(SrtpContext.AUTH_FAILED, receiver.unprotect(tampered));
+            assertArrayEquals(before, bytes(tampered));
+        }
+        assertEquals(flips.length, receiver.getAuthFailedCount());
+        // Another key
+        byte[] otherKey = MASTER_KEY.clone();
+        otherKey[0] ^= 1;
+        assertEquals(SrtpContext.AUTH_FAILED, new SrtpContext(otherKey, MASTER_SALT).unprotect(copy(packet)));
+        assertEquals(SrtpContext.MALFORMED, receiver.unprotect(ByteBuffer.wrap(new byte[15])));
+        // Rejected packets don't make state: the genuine one still passes
+        assertEquals(12 + FRAME, receiver.unprotect(packet));
+    }
+
+    @Test
+    public void replaysAreRejected() throws GeneralSecurityException {
+        SrtpContext sender = new SrtpContext(MASTER_KEY, MASTER_SALT);
+        SrtpContext receiver = new SrtpContext(MASTER_KEY, MASTER_SALT);
+        RtpPacketizer packetizer = new RtpPacketizer(null, 7, G711Codec.PAYLOAD_TYPE_PCMU, FRAME);
+        ByteBuffer[] packets = new ByteBuffer[100];
+        for (int n = 0; n < packets.length; n++) {
+            packets[n] = packet(packetizer, n);
+            sender.protect(packets[n]);
+        }
+        assertTrue(receiver.unprotect(copy(packets[0])) > 0);
+        assertEquals(SrtpContext.REPLAYED, receiver.unprotect(copy(packets[0])));
+        assertTrue(receiver.unprotect(copy(packets[80])) > 0);
+        // Late but inside the window, once
+        assertTrue(receiver.unprotect(copy(packets[30])) > 0);
+        assertEquals(SrtpContext.REPLAYED, receiver.unprotect(copy(packets[30])));
+        // Behind the window
+        assertEquals(SrtpContext.REPLAYED, receiver.unprotect(copy(packets[10])));
+        assertTrue(receiver.unprotect(copy(packets[99])) > 0);
+        assertEquals(SrtpContext.REPLAYED, receiver.unprotect(copy(packets[80])));
+        assertEquals(4, receiver.getReplayedCount());
+    }
+
+    @Test
+    public void precomputedKeyStreamIsTheSame() throws GeneralSecurityException {
+        SrtpContext plain = new SrtpContext(MASTER_KEY, MASTER_SALT);
+        SrtpContext ahead = new SrtpContext(MASTER_KEY, MASTER_SALT);
+        RtpPacketizer packetizer = new RtpPacketizer(null, 7, G711Codec.PAYLOAD_TYPE_PCMU, FRAME);
+        packetizer.setSequenceNumber(65534);
+        for (int n = 0; n < 5; n++) {
+            ahead.precompute(7, packetizer.getSequenceNumber(), FRAME);
+            ByteBuffer a = packet(packetizer, n);
+            ByteBuffer b = copy(a);
+            plain.protect(a);
+            ahead.protect(b);
+            assertArrayEquals(bytes(a), bytes(b));
+        }
+        assertEquals(5, ahead.getPrecomputedCount());
+        assertEquals(0, plain.getPrecomputedCount());
+        // Not for a packet of another sequence number or a longer payload
+        ahead.precompute(7, 1000, FRAME);
+        ahead.protect(packet(packetizer, 0));
+        ahead.precompute(7, packetizer.getSequenceNumber(), FRAME - 1);
+        ahead.protect(packet(packetizer, 0));
+        assertEquals(5, ahead.getPrecomputedCount());
+    }
+
+    @Test
+    public void rtcpRoundTrip() throws GeneralSecurityException {
+        SrtpContext sender = new SrtpContext(MASTER_KEY, MASTER_SALT);
+        SrtpContext receiver = new SrtpContext(MASTER_KEY, MASTER_SALT);
+        byte[] report = new byte[28];
+        report[0] = (byte) 0x80;
+        report[1] = (byte) RtcpPacket.TYPE_SR;
+        report[3] = 6;
+        report[7] = 7;
+        for (int i = 8; i < report.length; i++) {
+            report[i] = (byte) i;
+        }
+        ByteBuffer first = null;
+        for (int n = 0; n < 3; n++) {
+            ByteBuffer packet = ByteBuffer.allocate(64);
+            packet.put(report);
+            packet.flip();
+            assertEquals(28 + SrtpContext.SRTCP_INDEX_LENGTH + SrtpContext.AUTH_TAG_LENGTH,
+                    sender.protectRtcp(packet));
+            // E flag and index
+            assertEquals(0x80000000 | n, packet.getInt(28));
+            assertFalse(Arrays.equals(report, Arrays.copyOf(bytes(packet), 28)));
+            if (first == null) {
+                first = copy(packet);
+            }
+            assertEquals(28, receiver.unprotectRtcp(packet));
+            assertArrayEquals(report, bytes(packet));
+        }
+        assertEquals(SrtpContext.REPLAYED, receiver.unprotectRtcp(first));
+        ByteBuffer tampered = ByteBuffer.allocate(64);
+        tampered.put(report);
+        tampered.flip();
+        sender.protectRtcp(tampered);
+        tampered.put(20, (byte) 0);
+        assertEquals(SrtpContext.AUTH_FAILED, receiver.unprotectRtcp(tampered));
+    }
+
+    // A call long enough for the sequence number to wrap three times. What protection costs
+    // per packet is measured by SrtpBenchmark.
+    @Test
+    public void longCallRollsOver() throws GeneralSecurityException {
+        SrtpContext sender = new SrtpContext(MASTER_KEY, MASTER_SALT);
+        SrtpContext receiver = new SrtpContext(MASTER_KEY, MASTER_SALT);
+        RtpPacketizer packetizer = new RtpPacketizer(null, 7, G711Codec.PAYLOAD_TYPE_PCMU, FRAME);
+        ByteBuffer packet = ByteBuffer.allocate(CallPipeline.MAX_PACKET_SIZE);
+        byte[] payload = new byte[FRAME];
+        int packets = 200000;
+        for (int n = 0; n < packets; n++) {
+            payload[0] = (byte) n;
+            packetizer.packetize(payload, 0, payload.length, packet);
+            assertTrue(sender.protect(packet) > 0);
+            assertEquals(RtpPacket.FIXED_HEADER_LENGTH + FRAME, receiver.unprotect(packet));
+            assertEquals((byte) n, packet.get(RtpPacket.FIXED_HEADER_LENGTH));
+        }
+        assertEquals(packets, sender.getProtectedCount());
+        assertEquals(0, receiver.getAuthFailedCount());
+    }
+}
@@ -0,0 +1,102 @@
+package com.vernonsung.testaudiostream;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class StreamMetricsTest {
+    @Test
+    public void histogramBucketsAndPercentiles() throws Exception {
+        Histogram histogram = new Histogram(new long[]{10, 20, 50});
+        for (int i = 0; i < 90; i++) {
+            histogram.record(5);
+        }
+        for (int i = 0; i < 9; i++) {
+            histogram.record(20);
+        }
+        histogram.record(1000);
+        assertEquals(90, histogram.getCount(0));
+        assertEquals(9, histogram.getCount(1));
+        assertEquals(1, histogram.getCount(3));
+        assertEquals(100, histogram.getTotalCount());
+        assertEquals(10, histogram.getPercentile(50));
+        assertEquals(20, histogram.getPercentile(95));
+        assertEquals(Long.MAX_VALUE, histogram.getPercentile(100));
+        histogram.reset();
+        assertEquals(0, histogram.getPercentile(50));
+    }
+
+    @Test
+    public void snapshotComputesLossAndBitrate() throws Exception {
+        VirtualClock clock = new VirtualClock();
+        StreamMetrics metrics = new StreamMetrics("peer", clock);
+        for (int i = 0; i < 50; i++) {
+            metrics.onPacketSent(172);
+            metrics.onPacketReceived(172);
+        }
+        metrics.setLoss(100, 5);
+        metrics.onRtt(80000);
+        clock.advance(1000000000L);
+        StreamMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(50, snapshot.packetsSent);
+        assertEquals(5.0, snapshot.lossPercent, 0.001);
+        assertEquals(80.0, snapshot.rttMillis, 0.001);
+        assertEquals(100, snapshot.rttP95Millis);
+        // 50 packets of 172 bytes in a second of the stream's clock
+        assertEquals(68.8, snapshot.sendKbps, 1e-9);
+        assertEquals(1000, snapshot.durationMillis);
+        assertTrue(snapshot.toString().startsWith("peer loss 5.0%"));
+        // Nothing more was sent since the previous snapshot
+        assertEquals(0.0, metrics.snapshot().sendKbps, 0.001);
+    }
+
+    @Test
+    public void whatNothingFedIsUnavailable() throws Exception {
+        VirtualClock clock = new VirtualClock();
+        StreamMetrics metrics = new StreamMetrics("native", clock);
+        StreamMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(-1, snapshot.lossPercent, 0);
+        assertEquals(-1, snapshot.jitterMillis, 0);
+        assertEquals(-1, snapshot.jitterBufferDepth);
+        assertEquals(-1, snapshot.jitterBufferDepthP95);
+        assertEquals(-1, snapshot.sendKbps, 0);
+        assertEquals(-1, snapshot.receiveKbps, 0);
+        assertTrue(snapshot.toString(), snapshot.toString().startsWith(
+                "native loss - jitter - rtt - depth - (p95 -) tx - rx - first packet -"));
+
+        // Traffic counted outside the stream gives the bitrates only
+        metrics.addTraffic(50, 8600, 0, 0);
+        clock.advance(2000000000L);
+        snapshot = metrics.snapshot();
+        assertEquals(50, snapshot.packetsSent);
+        assertEquals(34.4, snapshot.sendKbps, 1e-9);
+        assertEquals(-1, snapshot.receiveKbps, 0);
+        assertEquals(-1, snapshot.lossPercent, 0);
+    }
+
+    @Test
+    public void receiverReportsIntoMetrics() throws Exception {
+        CallMetrics call = new CallMetrics();
+        StreamMetrics metrics = call.register("peer");
+        assertSame(metrics, call.register("peer"));
+        RtpReceiver receiver = new RtpReceiver(new JitterBuffer(16, 160, 8000, 160, 1, 8), 160);
+        receiver.setMetrics(metrics);
+        RtpPacketizer packetizer = new RtpPacketizer(new RtpBufferPool(1), 9L, 0, 160);
+        ByteBuffer datagram = ByteBuffer.allocate(256);
+        byte[] payload = new byte[160];
+        for (int i = 0; i < 10; i++) {
+            packetizer.packetize(payload, 0, payload.length, datagram);
+            if (i != 5) {
+                receiver.onPacket(datagram, i * 20000000L);
+            }
+        }
+        StreamMetrics.Snapshot snapshot = call.snapshot().get(0);
+        assertEquals(9, snapshot.packetsReceived);
+        assertEquals(1, snapshot.packetsLost);
+        assertTrue(snapshot.jitterBufferDepth > 0);
+        call.unregister("peer");
+        assertTrue(call.snapshot().isEmpty());
+    }
+}
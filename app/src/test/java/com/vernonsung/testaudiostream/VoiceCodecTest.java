@@ -0,0 +1,241 @@
+package com.vernonsung.testaudiostream;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class VoiceCodecTest {
+    private static final int FRAME = 160;
+
+    // Adjustable codec that only records what the controller asked for
+    private static class FakeCodec implements VoiceCodec {
+        int bitrate = 24000;
+        boolean fec;
+
+        @Override
+        public String getName() {
+            return "FAKE";
+        }
+
+        @Override
+        public int getPayloadType() {
+            return -1;
+        }
+
+        @Override
+        public int getClockRate() {
+            return 16000;
+        }
+
+        @Override
+        public int encode(short[] pcm, int offset, int samples, byte[] out, int outOffset) {
+            return 0;
+        }
+
+        @Override
+        public int decode(byte[] payload, int offset, int length, short[] pcm, int pcmOffset) {
+            return 0;
+        }
+
+        @Override
+        public int conceal(short[] pcm, int offset, int samples) {
+            return 0;
+        }
+
+        @Override
+        public boolean isBitrateAdjustable() {
+            return true;
+        }
+
+        @Override
+        public int getBitrate() {
+            return bitrate;
+        }
+
+        @Override
+        public int setBitrate(int bitrate) {
+            this.bitrate = bitrate;
+            return bitrate;
+        }
+
+        @Override
+        public boolean isInbandFecSupported() {
+            return true;
+        }
+
+        @Override
+        public void setInbandFec(boolean enabled) {
+            fec = enabled;
+        }
+
+        @Override
+        public void reset() {
+        }
+    }
+
+    @Test
+    public void silenceCodes() {
+        assertEquals((byte) 0xFF, G711Codec.linearToUlaw(0));
+        assertEquals((byte) 0xD5, G711Codec.linearToAlaw(0));
+        assertEquals(0, G711Codec.ulawToLinear(0xFF));
+        assertEquals(8, G711Codec.alawToLinear(0xD5));
+    }
+
+    @Test
+    public void everyCodeRoundTrips() {
+        for (int code = 0; code < 256; code++) {
+            int linear = G711Codec.ulawToLinear(code);
+            assertEquals("u-law " + code, linear, G711Codec.ulawToLinear(G711Codec.linearToUlaw(linear) & 0xFF));
+            linear = G711Codec.alawToLinear(code);
+            assertEquals("A-law " + code, linear, G711Codec.alawToLinear(G711Codec.linearToAlaw(linear) & 0xFF));
+        }
+    }
+
+    @Test
+    public void sineSnr() {
+        short[] pcm = sine(FRAME * 50, 10000);
+        byte[] payload = new byte[pcm.length];
+        short[] decoded = new short[pcm.length];
+        VoiceCodec[] codecs = {G711Codec.createUlaw(), G711Codec.createAlaw()};
+        for (VoiceCodec codec : codecs) {
+            assertEquals(pcm.length, codec.encode(pcm, 0, pcm.length, payload, 0));
+            assertEquals(pcm.length, codec.decode(payload, 0, pcm.length, decoded, 0));
+            double snr = snr(pcm, decoded);
+            assertTrue(codec.getName() + " SNR " + snr, snr > 30);
+        }
+    }
+
+    @Test
+    public void concealmentFades() {
+        G711Codec codec = G711Codec.createUlaw();
+        short[] pcm = sine(FRAME, 8000);
+        byte[] payload = new byte[FRAME];
+        short[] out = new short[FRAME];
+        codec.encode(pcm, 0, FRAME, payload, 0);
+        codec.decode(payload, 0, FRAME, out, 0);
+        double last = energy(out);
+        for (int i = 0; i < 4; i++) {
+            assertEquals(FRAME, codec.conceal(out, 0, FRAME));
+            double e = energy(out);
+            assertTrue(e < last);
+            last = e;
+        }
+        // A good frame resets the fade
+        codec.decode(payload, 0, FRAME, out, 0);
+        codec.conceal(out, 0, FRAME);
+        assertTrue(energy(out) > last);
+    }
+
+    @Test
+    public void lossLowersBitrateAndTurnsOnFec() {
+        FakeCodec codec = new FakeCodec();
+        CodecRateController controller = new CodecRateController(codec, 6000, 40000);
+        for (int i = 0; i < 10; i++) {
+            controller.onReport(64, 80);
+        }
+        assertTrue(controller.getTargetBitrate() < 24000);
+        assertEquals(controller.getTargetBitrate(), codec.bitrate);
+        assertTrue(controller.isFecEnabled());
+        assertTrue(codec.fec);
+        assertEquals(20, controller.getFrameMillis());
+
+        // Clean reports bring the bitrate back up and FEC off
+        for (int i = 0; i < 100; i++) {
+            controller.onReport(0, 80);
+        }
+        assertEquals(40000, controller.getTargetBitrate());
+        assertFalse(codec.fec);
+    }
+
+    @Test
+    public void highRttLengthensFrames() {
+        FakeCodec codec = new FakeCodec();
+        CodecRateController controller = new CodecRateController(codec, 6000, 40000);
+        controller.onReport(0, 400);
+        assertEquals(40, controller.getFrameMillis());
+        assertEquals(640, controller.getFrameSamples());
+        controller.onReport(0, 400);
+        controller.onReport(0, 400);
+        assertEquals(60, controller.getFrameMillis());
+        for (int i = 0; i < 20; i++) {
+            controller.onReport(0, 50);
+        }
+        assertEquals(20, controller.getFrameMillis());
+    }
+
+    @Test
+    public void fixedRateCodecKeepsItsBitrate() {
+        G711Codec codec = G711Codec.createAlaw();
+        CodecRateController controller = new CodecRateController(codec, 8000, 64000);
+        for (int i = 0; i < 10; i++) {
+            controller.onReport(128, 80);
+        }
+        assertEquals(G711Codec.BITRATE, codec.getBitrate());
+        assertEquals(G711Codec.BITRATE, controller.getTargetBitrate());
+        // G.711 has no in-band FEC
+        assertFalse(controller.isFecEnabled());
+        // An estimate can only lengthen its frames
+        controller.onBandwidthEstimate(30000);
+        assertEquals(G711Codec.BITRATE, controller.getTargetBitrate());
+        assertEquals(40, controller.getFrameMillis());
+    }
+
+    @Test
+    public void bandwidthEstimateSetsBitrateAndFrames() {
+        FakeCodec codec = new FakeCodec();
+        CodecRateController controller = new CodecRateController(codec, 6000, 64000);
+        assertTrue(controller.onBandwidthEstimate(100000));
+        assertEquals(20, controller.getFrameMillis());
+        assertEquals(64000, codec.bitrate);
+        // 16 kbps of headers in 20 ms frames would be more than half of 30 kbps
+        controller.onBandwidthEstimate(30000);
+        assertEquals(40, controller.getFrameMillis());
+        assertEquals(22000, codec.bitrate);
+        controller.onBandwidthEstimate(12000);
+        assertEquals(60, controller.getFrameMillis());
+        assertEquals(6667, codec.bitrate);
+        controller.onBandwidthEstimate(8000);
+        assertEquals(6000, codec.bitrate);
+        // Back to 40 ms only once its 8 kbps of headers is under 35%
+        controller.onBandwidthEstimate(20000);
+        assertEquals(60, controller.getFrameMillis());
+        controller.onBandwidthEstimate(24000);
+        assertEquals(40, controller.getFrameMillis());
+        controller.onBandwidthEstimate(64000);
+        assertEquals(20, controller.getFrameMillis());
+        assertEquals(48000, codec.bitrate);
+        assertFalse(controller.onBandwidthEstimate(64000));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void badBitrateRange() {
+        new CodecRateController(new FakeCodec(), 10000, 5000);
+    }
+
+    private static short[] sine(int samples, int amplitude) {
+        short[] pcm = new short[samples];
+        for (int i = 0; i < samples; i++) {
+            pcm[i] = (short) (amplitude * Math.sin(2 * Math.PI * 440 * i / 8000.0));
+        }
+        return pcm;
+    }
+
+    private static double snr(short[] reference, short[] decoded) {
+        double signal = 0;
+        double noise = 0;
+        for (int i = 0; i < reference.length; i++) {
+            double d = reference[i] - decoded[i];
+            signal += (double) reference[i] * reference[i];
+            noise += d * d;
+        }
+        return 10 * Math.log10(signal / noise);
+    }
+
+    private static double energy(short[] pcm) {
+        double e = 0;
+        for (short s : pcm) {
+            e += (double) s * s;
+        }
+        return e;
+    }
+}
@@ -0,0 +1,236 @@
+package com.vernonsung.testaudiostream;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class VoiceProcessorTest {
+    private static final int RATE = 8000;
+    private static final int FRAME = 160;
+
+    // Speech-like far end: noise through a resonance, with its level wandering
+    private static short[] talker(int samples, long seed, double amplitude) {
+        Random random = new Random(seed);
+        short[] pcm = new short[samples];
+        double y1 = 0;
+        double y2 = 0;
+        for (int i = 0; i < samples; i++) {
+            double envelope = 0.6 + 0.4 * Math.sin(2 * Math.PI * 2 * i / RATE);
+            double y = random.nextGaussian() + 1.6 * y1 - 0.8 * y2;
+            y2 = y1;
+            y1 = y;
+            pcm[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, amplitude * envelope * y / 4));
+        }
+        return pcm;
+    }
+
+    // What the microphone picks up of far: delayed 40 samples and smeared by the room
+    private static short[] echo(short[] far) {
+        double[] path = new double[80];
+        path[40] = 0.3;
+        path[41] = -0.15;
+        path[45] = 0.1;
+        path[60] = 0.05;
+        path[79] = -0.02;
+        short[] out = new short[far.length];
+        for (int i = 0; i < far.length; i++) {
+            double sum = 0;
+            for (int k = 0; k < path.length && k <= i; k++) {
+                sum += path[k] * far[i - k];
+            }
+            out[i] = (short) sum;
+        }
+        return out;
+    }
+
+    private static double power(short[] pcm, int from, int to) {
+        double sum = 0;
+        for (int i = from; i < to; i++) {
+            sum += (double) pcm[i] * pcm[i];
+        }
+        return sum / (to - from);
+    }
+
+    private static double db(double ratio) {
+        return 10 * Math.log10(ratio);
+    }
+
+    // Play far and capture near a frame at a time, as the two lanes of a call do
+    private static short[] run(VoiceProcessor processor, short[] far, short[] near) {
+        short[] out = near.clone();
+        for (int f = 0; f + FRAME <= near.length; f += FRAME) {
+            processor.onPlayout(far, f, FRAME);
+            processor.process(out, f, FRAME);
+        }
+        return out;
+    }
+
+    @Test
+    public void fftFindsTheTone() {
+        Fft fft = new Fft(256);
+        float[] re = new float[256];
+        float[] im = new float[256];
+        float[] original = new float[256];
+        for (int i = 0; i < 256; i++) {
+            re[i] = original[i] = (float) Math.cos(2 * Math.PI * 10 * i / 256);
+        }
+        fft.forward(re, im);
+        assertEquals(128, re[10], 1e-3);
+        assertEquals(128, re[246], 1e-3);
+        assertEquals(0, re[11], 1e-3);
+        fft.inverse(re, im);
+        for (int i = 0; i < 256; i++) {
+            assertEquals(original[i], re[i], 1e-5);
+            assertEquals(0, im[i], 1e-5);
+        }
+    }
+
+    @Test
+    public void echoIsCancelled() {
+        short[] far = talker(5 * RATE, 1, 8000);
+        short[] near = echo(far);
+        VoiceProcessor processor = new VoiceProcessor(FRAME, new EchoCanceller(256, FRAME),
+                new NoiseSuppressor(FRAME));
+        processor.setNoiseSuppression(false);
+        short[] out = run(processor, far, near);
+        // Over the last two seconds
+        double erle = db(power(near, 3 * RATE, 5 * RATE) / power(out, 3 * RATE, 5 * RATE));
+        System.out.println("Echo cancelled by " + erle + " dB, " + processor);
+        assertTrue(erle > 25);
+        // Both are down at the rounding noise by now
+        assertTrue(processor.getEchoCanceller().getErleDb() > 25);
+        assertEquals(0, processor.getFarEndDropCount());
+    }
+
+    @Test
+    public void echoIsCancelledAcrossLaneSlips() {
+        // The device plays every frame two frames after it's handed over
+        short[] far = talker(6 * RATE, 5, 8000);
+        short[] played = new short[far.length];
+        System.arraycopy(far, 0, played, 2 * FRAME, far.length - 2 * FRAME);
+        short[] near = echo(played);
+        VoiceProcessor processor = new VoiceProcessor(FRAME, new EchoCanceller(512, FRAME),
+                new NoiseSuppressor(FRAME));
+        processor.setNoiseSuppression(false);
+        processor.setPlayoutDelay(2 * FRAME);
+        // The playout lane hands over two frames, then none, then one, while capture takes one
+        // every period
+        short[] out = near.clone();
+        int[] handed = {2, 0, 1};
+        int next = 0;
+        for (int f = 0, period = 0; f + FRAME <= near.length; f += FRAME, period++) {
+            for (int i = 0; i < handed[period % handed.length] && next + FRAME <= far.length; i++) {
+                processor.onPlayout(far, next, FRAME);
+                next += FRAME;
+            }
+            processor.process(out, f, FRAME);
+        }
+        double erle = db(power(near, 4 * RATE, 6 * RATE) / power(out, 4 * RATE, 6 * RATE));
+        assertTrue(erle + " dB", erle > 25);
+        EchoCanceller canceller = processor.getEchoCanceller();
+        assertEquals(2 * FRAME, canceller.getBulkDelay());
+        assertEquals(0, canceller.getRealignCount());
+    }
+
+    @Test
+    public void nearEndSpeechSurvivesDoubleTalk() {
+        short[] far = talker(8 * RATE, 2, 8000);
+        short[] near = echo(far);
+        short[] speaker = talker(8 * RATE, 3, 6000);
+        // The near end talks from 4 s to 6 s
+        for (int i = 4 * RATE; i < 6 * RATE; i++) {
+            near[i] = (short) (near[i] + speaker[i]);
+        }
+        VoiceProcessor processor = new VoiceProcessor(FRAME, new EchoCanceller(256, FRAME),
+                new NoiseSuppressor(FRAME));
+        processor.setNoiseSuppression(false);
+        short[] out = run(processor, far, near);
+        EchoCanceller canceller = processor.getEchoCanceller();
+        assertTrue(canceller.getDoubleTalkFrames() >= 100);
+
+        // What's left in double talk is the near speaker
+        double residual = 0;
+        for (int i = 4 * RATE + FRAME; i < 6 * RATE; i++) {
+            double d = out[i] - speaker[i];
+            residual += d * d;
+        }
+        residual /= 2 * RATE - FRAME;
+        assertTrue(db(power(speaker, 4 * RATE, 6 * RATE) / residual) > 20);
+        // And the filter didn't learn the near speaker
+        assertTrue(db(power(near, 7 * RATE, 8 * RATE) / power(out, 7 * RATE, 8 * RATE)) > 25);
+    }
+
+    @Test
+    public void noiseIsSuppressedAndSpeechKept() {
+        Random random = new Random(4);
+        short[] clean = new short[6 * RATE];
+        short[] noisy = new short[clean.length];
+        for (int i = 0; i < clean.length; i++) {
+            // A tone from 3 s on, in steady noise 30 dB below it
+            clean[i] = i < 3 * RATE ? 0 : (short) (6000 * Math.sin(2 * Math.PI * 440 * i / RATE));
+            noisy[i] = (short) (clean[i] + random.nextGaussian() * 130);
+        }
+        NoiseSuppressor suppressor = new NoiseSuppressor(FRAME);
+        VoiceProcessor processor = new VoiceProcessor(FRAME, new EchoCanceller(16, FRAME), suppressor);
+        processor.setEchoCancellation(false);
+        short[] out = run(processor, new short[clean.length], noisy);
+        double noiseDrop = db(power(noisy, RATE, 3 * RATE) / power(out, RATE, 3 * RATE));
+        int lag = suppressor.getLatency();
+        double toneChange = db(power(out, 4 * RATE + lag, 6 * RATE) / power(clean, 4 * RATE, 6 * RATE - lag));
+        System.out.println("Noise down " + noiseDrop + " dB, tone changed " + toneChange + " dB");
+        assertTrue(noiseDrop > 10);
+        assertEquals(0, toneChange, 1);
+    }
+
+    @Test
+    public void withoutSuppressionTheOutputIsTheInputHalfAFrameLate() {
+        NoiseSuppressor transparent = new NoiseSuppressor(FRAME, 0);
+        short[] pcm = talker(RATE, 5, 8000);
+        float[] buffer = new float[pcm.length];
+        for (int i = 0; i < pcm.length; i++) {
+            buffer[i] = pcm[i];
+        }
+        for (int f = 0; f < pcm.length; f += FRAME) {
+            transparent.process(buffer, f, FRAME);
+        }
+        for (int i = FRAME; i < pcm.length; i++) {
+            assertEquals(pcm[i - FRAME / 2], buffer[i], 0.05);
+        }
+    }
+
+    // How long a frame takes is measured by VoiceProcessorBenchmark
+    @Test
+    public void recordingsRunThrough() throws IOException {
+        // -Daec.far=far.wav -Daec.near=near.wav processes real recordings
+        String farPath = System.getProperty("aec.far");
+        String nearPath = System.getProperty("aec.near");
+        short[] far;
+        short[] near;
+        if (farPath != null && nearPath != null) {
+            far = PcmFile.read(new File(farPath), RATE).samples;
+            near = PcmFile.read(new File(nearPath), RATE).samples;
+        } else {
+            far = talker(10 * RATE, 6, 8000);
+            near = echo(far);
+            Random random = new Random(7);
+            for (int i = 0; i < near.length; i++) {
+                near[i] = (short) (near[i] + random.nextGaussian() * 100);
+            }
+        }
+        int length = Math.min(far.length, near.length);
+        // 128 ms tail
+        VoiceProcessor processor = new VoiceProcessor(RATE, FRAME, 128);
+        run(processor, far, java.util.Arrays.copyOf(near, length));
+        assertEquals(length / FRAME, processor.getFrameCount());
+        assertEquals(length / FRAME, processor.getFrameMicros().getTotalCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void framesMustMatch() {
+        new VoiceProcessor(FRAME, new EchoCanceller(16, FRAME), new NoiseSuppressor(2 * FRAME));
+    }
+}
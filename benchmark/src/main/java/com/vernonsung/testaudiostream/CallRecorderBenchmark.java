@@ -0,0 +1,68 @@
+package com.vernonsung.testaudiostream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+// Cost of recording one RTP packet on the audio thread, which is what a call pays for being
+// recorded. The recording goes to a temporary file that grows by a segment every few thousand
+// packets. Appending back to back outruns the thread mapping segments ahead, which a call
+// appending 100 packets a second never does, so a dropped packet yields to it and is tried again.
+// The score is then the sustained cost including the mapping, as on a single core.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CallRecorderBenchmark {
+    // G.711 at 20 ms, and a large packet
+    @Param({"160", "1200"})
+    public int payloadSize;
+
+    private File file;
+    private CallRecorder recorder;
+    private ByteBuffer packet;
+    private long nanos;
+
+    @Setup
+    public void setUp() throws IOException {
+        file = File.createTempFile("call", ".rec");
+        recorder = new CallRecorder(file);
+        packet = ByteBuffer.allocate(CallPipeline.MAX_PACKET_SIZE);
+        new RtpPacketizer(null, 0, payloadSize).packetize(new byte[payloadSize], 0, payloadSize, packet);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        recorder.close();
+        System.out.println(String.format(Locale.US, "%n%d packets recorded, %.1f MB, %d retried",
+                recorder.getRecordCount(), recorder.getByteCount() / 1e6, recorder.getDroppedCount()));
+        file.delete();
+        CallRecorder.indexFileOf(file).delete();
+    }
+
+    @Benchmark
+    public boolean append() {
+        nanos += 20000000L;
+        while (!recorder.append(packet, true, nanos)) {
+            Thread.yield();
+        }
+        return true;
+    }
+}
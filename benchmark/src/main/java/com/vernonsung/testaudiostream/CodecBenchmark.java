@@ -0,0 +1,63 @@
+package com.vernonsung.testaudiostream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Encode, decode and conceal one 20 ms frame at 8 kHz with each VoiceCodec
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    private static final int FRAME_SAMPLES = 160;
+
+    @Param({"PCMU", "PCMA"})
+    public String codecName;
+
+    private VoiceCodec codec;
+    private final short[] pcm = new short[FRAME_SAMPLES];
+    private final short[] decoded = new short[FRAME_SAMPLES];
+    private final byte[] payload = new byte[FRAME_SAMPLES];
+
+    @Setup
+    public void setUp() {
+        codec = "PCMA".equals(codecName) ? G711Codec.createAlaw() : G711Codec.createUlaw();
+        Random random = new Random(42);
+        for (int i = 0; i < FRAME_SAMPLES; i++) {
+            pcm[i] = (short) (random.nextGaussian() * 3000);
+        }
+        codec.encode(pcm, 0, FRAME_SAMPLES, payload, 0);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        codec.encode(pcm, 0, FRAME_SAMPLES, payload, 0);
+        return payload;
+    }
+
+    @Benchmark
+    public short[] decode() {
+        codec.decode(payload, 0, FRAME_SAMPLES, decoded, 0);
+        return decoded;
+    }
+
+    @Benchmark
+    public short[] conceal() {
+        codec.conceal(decoded, 0, FRAME_SAMPLES);
+        return decoded;
+    }
+}
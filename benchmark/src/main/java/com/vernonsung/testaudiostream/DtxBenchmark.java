@@ -0,0 +1,116 @@
+package com.vernonsung.testaudiostream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Voice activity detection, DTX and comfort noise per 20 ms frame at 8 kHz, over a recording
+// replayed frame by frame. Without one a synthetic conversation is used:
+//   ./gradlew :benchmark:jmh -Pinclude=Dtx -Precording=/path/to/call.wav
+// The share of frames DTX saved on the recording is printed at the end.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DtxBenchmark {
+    private static final int FRAME_SAMPLES = 160;
+    private static final int SAMPLE_RATE = 8000;
+
+    // WAV or raw 16-bit PCM at 8 kHz, empty for the synthetic one
+    @Param({""})
+    public String recording;
+
+    @Param({"0", "4", "10"})
+    public int comfortNoiseOrder;
+
+    private short[] pcm;
+    private int frames;
+    private int frame;
+    private DtxController dtx;
+    private VoiceActivityDetector vad;
+    private final ComfortNoise generator = new ComfortNoise(0);
+    private final byte[] payload = new byte[ComfortNoise.MAX_PAYLOAD_SIZE];
+    private final short[] noise = new short[FRAME_SAMPLES];
+
+    @Setup
+    public void setUp() throws IOException {
+        if (recording.isEmpty()) {
+            pcm = conversation(60);
+        } else {
+            PcmFile file = PcmFile.read(new File(recording), SAMPLE_RATE);
+            if (file.sampleRate != SAMPLE_RATE) {
+                throw new IOException(recording + " is at " + file.sampleRate + " Hz, not " + SAMPLE_RATE);
+            }
+            pcm = file.samples;
+        }
+        frames = pcm.length / FRAME_SAMPLES;
+        dtx = new DtxController(new VoiceActivityDetector(), comfortNoiseOrder);
+        vad = new VoiceActivityDetector();
+        int length = new ComfortNoise(comfortNoiseOrder).encode(pcm, 0, FRAME_SAMPLES, -50, payload, 0);
+        generator.update(payload, 0, length);
+    }
+
+    @TearDown
+    public void tearDown() {
+        long total = dtx.getSpeechFrames() + dtx.getComfortNoiseFrames() + dtx.getSuppressedFrames();
+        System.out.println(String.format(Locale.US,
+                "%n%d frames: %.1f%% speech, %.1f%% comfort noise, %.1f%% suppressed", total, 100.0 * dtx.getSpeechFrames() / total, 100.0 * dtx.getComfortNoiseFrames() / total,
+                100.0 * dtx.getSuppressedFrames() / total));
+    }
+
+    // 1.2 s talkspurts every 2.7 s over -50 dBov noise
+    private static short[] conversation(int seconds) {
+        Random random = new Random(42);
+        short[] samples = new short[seconds * SAMPLE_RATE];
+        for (int i = 0; i < samples.length; i++) {
+            double t = (double) i / SAMPLE_RATE;
+            double s = random.nextGaussian() * 104;
+            if (t % 2.7 < 1.2) {
+                s += 4600 * Math.sin(2 * Math.PI * (200 + 50 * Math.sin(2 * Math.PI * 3 * t)) * t);
+            }
+            samples[i] = (short) s;
+        }
+        return samples;
+    }
+
+    private int nextFrame() {
+        int offset = frame * FRAME_SAMPLES;
+        if (++frame == frames) {
+            frame = 0;
+        }
+        return offset;
+    }
+
+    @Benchmark
+    public boolean detect() {
+        return vad.process(pcm, nextFrame(), FRAME_SAMPLES);
+    }
+
+    @Benchmark
+    public int dtx() {
+        return dtx.process(pcm, nextFrame(), FRAME_SAMPLES);
+    }
+
+    @Benchmark
+    public short[] generate() {
+        generator.generate(noise, 0, FRAME_SAMPLES);
+        return noise;
+    }
+}
@@ -0,0 +1,196 @@
+package com.vernonsung.testaudiostream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+// Frame hand-over between two threads: FrameRing against ArrayBlockingQueue.
+// The throughput groups run one producer and one consumer flat out; failed offers and empty polls
+// count as operations too, as in the usual queue benchmarks. The round trip benchmarks bounce one
+// frame through an echo thread and back, which is the latency a pipeline stage adds.
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameRingBenchmark {
+    private static final int CAPACITY = 256;
+    private static final int FRAME_SIZE = 160;
+    // Empty polls before giving the core away, so single core machines make progress
+    private static final int SPINS = 100;
+
+    @State(Scope.Group)
+    public static class Throughput {
+        FrameRing ring;
+        ArrayBlockingQueue<byte[]> queue;
+        final byte[] frame = new byte[FRAME_SIZE];
+
+        @Setup(Level.Iteration)
+        public void setUp() {
+            ring = new FrameRing(CAPACITY, FRAME_SIZE, 0);
+            queue = new ArrayBlockingQueue<byte[]>(CAPACITY);
+        }
+    }
+
+    @Benchmark
+    @Group("ring")
+    @GroupThreads(1)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public boolean ringOffer(Throughput t) {
+        FrameRing.Slot slot = t.ring.claim();
+        if (slot == null) {
+            return false;
+        }
+        slot.length = FRAME_SIZE;
+        t.ring.publish();
+        return true;
+    }
+
+    @Benchmark
+    @Group("ring")
+    @GroupThreads(1)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public int ringPoll(Throughput t) {
+        FrameRing.Slot slot = t.ring.peek();
+        if (slot == null) {
+            return -1;
+        }
+        int length = slot.length;
+        t.ring.release();
+        return length;
+    }
+
+    @Benchmark
+    @Group("queue")
+    @GroupThreads(1)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public boolean queueOffer(Throughput t) {
+        return t.queue.offer(t.frame);
+    }
+
+    @Benchmark
+    @Group("queue")
+    @GroupThreads(1)
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public byte[] queuePoll(Throughput t) {
+        return t.queue.poll();
+    }
+
+    @State(Scope.Thread)
+    public static class RingEcho implements Runnable {
+        final FrameRing ping = new FrameRing(CAPACITY, FRAME_SIZE, 0);
+        final FrameRing pong = new FrameRing(CAPACITY, FRAME_SIZE, 0);
+        volatile boolean running;
+        Thread thread;
+
+        @Setup(Level.Trial)
+        public void start() {
+            running = true;
+            thread = new Thread(this);
+            thread.start();
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() throws InterruptedException {
+            running = false;
+            thread.join();
+        }
+
+        @Override
+        public void run() {
+            int spins = 0;
+            while (running) {
+                FrameRing.Slot in = ping.peek();
+                if (in == null) {
+                    if (++spins == SPINS) {
+                        spins = 0;
+                        Thread.yield();
+                    }
+                    continue;
+                }
+                FrameRing.Slot out;
+                while ((out = pong.claim()) == null) {
+                    Thread.yield();
+                }
+                out.length = in.length;
+                ping.release();
+                pong.publish();
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class QueueEcho implements Runnable {
+        final ArrayBlockingQueue<byte[]> ping = new ArrayBlockingQueue<byte[]>(CAPACITY);
+        final ArrayBlockingQueue<byte[]> pong = new ArrayBlockingQueue<byte[]>(CAPACITY);
+        final byte[] frame = new byte[FRAME_SIZE];
+        Thread thread;
+
+        @Setup(Level.Trial)
+        public void start() {
+            thread = new Thread(this);
+            thread.start();
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() throws InterruptedException {
+            thread.interrupt();
+            thread.join();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    pong.put(ping.take());
+                }
+            } catch (InterruptedException e) {
+                // Done
+            }
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public int ringRoundTrip(RingEcho echo) {
+        FrameRing.Slot out = echo.ping.claim();
+        out.length = FRAME_SIZE;
+        echo.ping.publish();
+        FrameRing.Slot in;
+        int spins = 0;
+        while ((in = echo.pong.peek()) == null) {
+            if (++spins == SPINS) {
+                spins = 0;
+                Thread.yield();
+            }
+        }
+        int length = in.length;
+        echo.pong.release();
+        return length;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public byte[] queueRoundTrip(QueueEcho echo) throws InterruptedException {
+        echo.ping.put(echo.frame);
+        return echo.pong.take();
+    }
+}
@@ -0,0 +1,69 @@
+package com.vernonsung.testaudiostream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+// Jitter buffer insert and playout of one frame in steady state
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JitterBufferBenchmark {
+    private static final long FRAME_NANOS = 20000000L;
+
+    private final byte[] payload = new byte[160];
+    private final byte[] out = new byte[160];
+    private JitterBuffer buffer;
+    private int seq;
+    private long timestamp;
+    private long arrival;
+
+    @Setup
+    public void setUp() {
+        buffer = new JitterBuffer(64, 160, 8000, 160, 3, 20);
+        // Prefetch so every later put is matched by a poll
+        for (int i = 0; i < 3; i++) {
+            put();
+        }
+    }
+
+    private boolean put() {
+        boolean queued = buffer.put(seq, timestamp, payload, 0, payload.length, arrival);
+        seq = (seq + 1) & 0xFFFF;
+        timestamp += 160;
+        // Alternate early and late arrivals to keep the jitter estimator busy
+        arrival += FRAME_NANOS + ((seq & 1) == 0 ? 3000000 : -3000000);
+        return queued;
+    }
+
+    @Benchmark
+    public int insertAndPoll() {
+        put();
+        return buffer.poll(out, 0);
+    }
+
+    @Benchmark
+    public int reorderedInsertAndPoll() {
+        // Swap every pair of packets
+        int first = seq;
+        seq = (seq + 1) & 0xFFFF;
+        put();
+        seq = first;
+        buffer.put(seq, timestamp - 320, payload, 0, payload.length, arrival);
+        seq = (seq + 2) & 0xFFFF;
+        buffer.poll(out, 0);
+        return buffer.poll(out, 0);
+    }
+}
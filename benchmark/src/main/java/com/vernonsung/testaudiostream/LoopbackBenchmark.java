@@ -0,0 +1,40 @@
+package com.vernonsung.testaudiostream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// One minute of simulated call through an impaired link, sender to playout
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoopbackBenchmark {
+    private static final int FRAMES = 3000;
+    private static final long MS = 1000000L;
+
+    @Param({"0", "2"})
+    public int redDepth;
+
+    @Benchmark
+    public LoopbackHarness.Report minuteOfCall() {
+        LoopbackHarness harness = new LoopbackHarness(new Random(42), 2, 20);
+        harness.getLink().setDelay(40 * MS, 30 * MS);
+        harness.getLink().setBurstLoss(0.02, 0.3, 0.005, 0.7);
+        harness.getLink().setReordering(0.01, 25 * MS);
+        harness.setRedDepth(redDepth);
+        return harness.run(FRAMES);
+    }
+}
@@ -0,0 +1,55 @@
+package com.vernonsung.testaudiostream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// N-1 mixing of one 20 ms frame at 8 kHz for each conference size
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MixerBenchmark {
+    private static final int FRAME_SAMPLES = 160;
+
+    @Param({"2", "4", "8", "16", "32", "64"})
+    public int inputs;
+
+    private AudioMixer mixer;
+    private short[][] in;
+    private short[][] out;
+    private short[] total;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(inputs);
+        mixer = new AudioMixer(inputs, FRAME_SAMPLES);
+        in = new short[inputs][FRAME_SAMPLES];
+        out = new short[inputs][FRAME_SAMPLES];
+        total = new short[FRAME_SAMPLES];
+        for (short[] frame : in) {
+            for (int s = 0; s < FRAME_SAMPLES; s++) {
+                frame[s] = (short) (random.nextInt(2001) - 1000);
+            }
+        }
+    }
+
+    @Benchmark
+    public short[] mixFrame() {
+        mixer.mix(in, inputs, out, total);
+        return total;
+    }
+}
@@ -0,0 +1,102 @@
+package com.vernonsung.testaudiostream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+// One talker's packet forwarded by the relay to every subscriber, as the audience grows. With
+// "udp" every copy is really sent over loopback, which is what a relay pays in system calls;
+// with "none" only the relay's own work is left. The cost per forwarded packet and the packets a
+// core could forward per second are printed at the end.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RelayBenchmark {
+    private static final int FRAME_SAMPLES = 160;
+
+    @Param({"1", "10", "100", "500"})
+    public int subscribers;
+
+    @Param({"none", "udp"})
+    public String sink;
+
+    private RtpRelay relay;
+    private ByteBuffer packet;
+    private DatagramChannel sender;
+    private DatagramChannel receiver;
+    private long sendFailures;
+
+    @Setup
+    public void setUp() throws IOException {
+        relay = new RtpRelay(new VirtualClock(), G711Codec.CLOCK_RATE, RtpRelay.DEFAULT_CAPACITY, 0);
+        CallPipeline.PacketSink target;
+        if (sink.equals("udp")) {
+            // Nobody reads, so the kernel drops what doesn't fit the receive buffer
+            receiver = DatagramChannel.open();
+            receiver.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            sender = DatagramChannel.open();
+            sender.configureBlocking(false);
+            final InetSocketAddress address = (InetSocketAddress) receiver.socket().getLocalSocketAddress();
+            target = new CallPipeline.PacketSink() {
+                @Override
+                public void send(ByteBuffer packet) {
+                    try {
+                        sender.send(packet, address);
+                    } catch (IOException e) {
+                        sendFailures++;
+                    }
+                }
+            };
+        } else {
+            target = new CallPipeline.PacketSink() {
+                @Override
+                public void send(ByteBuffer packet) {
+                }
+            };
+        }
+        for (int i = 0; i < subscribers; i++) {
+            relay.addSubscriber(target);
+        }
+        packet = ByteBuffer.allocate(CallPipeline.MAX_PACKET_SIZE);
+        new RtpPacketizer(null, G711Codec.PAYLOAD_TYPE_PCMU, FRAME_SAMPLES)
+                .packetize(new byte[FRAME_SAMPLES], 0, FRAME_SAMPLES, packet);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        double nanos = (double) relay.getBusyNanos() / relay.getForwardedCount();
+        System.out.println(String.format(Locale.US,
+                "%n%d subscribers over %s: %.0f ns per forwarded packet, %.2f M packets/s per core, %d failed",
+                subscribers, sink, nanos, 1000 / nanos, sendFailures));
+        if (sender != null) {
+            sender.close();
+            receiver.close();
+        }
+    }
+
+    @Benchmark
+    public long forward() {
+        relay.onPacket(packet, 0);
+        return relay.tick(0);
+    }
+}
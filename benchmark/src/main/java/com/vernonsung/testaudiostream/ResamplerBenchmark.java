@@ -0,0 +1,76 @@
+package com.vernonsung.testaudiostream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Sample rate conversion of one 20 ms frame of speech-like noise, between the call rates and the
+// device rates that matter, on its exact phases and while following a drifting clock, which
+// interpolates between phases:
+//   ./gradlew :benchmark:jmh -Pinclude=Resampler
+// A capture or playout stage has a frame budget of 10 ms, shared with the device.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResamplerBenchmark {
+    private static final int FRAME_MILLIS = 20;
+
+    // Input to output rate
+    @Param({"8000:48000", "48000:8000", "16000:48000", "48000:16000", "44100:48000", "8000:8000"})
+    public String rates;
+
+    @Param({"0", "100"})
+    public double driftPpm;
+
+    private short[] in;
+    private short[] out;
+    private int frameSamples;
+    private int frame;
+    private int frames;
+    private Resampler resampler;
+
+    @Setup
+    public void setUp() {
+        String[] pair = rates.split(":");
+        int inRate = Integer.parseInt(pair[0]);
+        int outRate = Integer.parseInt(pair[1]);
+        resampler = new Resampler(inRate, outRate);
+        resampler.setDriftPpm(driftPpm);
+        frameSamples = inRate * FRAME_MILLIS / 1000;
+        frames = 50;
+        Random random = new Random(42);
+        in = new short[frames * frameSamples];
+        double y1 = 0;
+        double y2 = 0;
+        for (int i = 0; i < in.length; i++) {
+            double y = random.nextGaussian() + 1.6 * y1 - 0.8 * y2;
+            y2 = y1;
+            y1 = y;
+            in[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, 2000 * y));
+        }
+        out = new short[resampler.getMaxOutput(frameSamples)];
+    }
+
+    @Benchmark
+    public short[] frame() {
+        resampler.process(in, frame * frameSamples, frameSamples, out, 0);
+        if (++frame == frames) {
+            frame = 0;
+        }
+        return out;
+    }
+}
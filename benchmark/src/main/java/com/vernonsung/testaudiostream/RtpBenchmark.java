@@ -0,0 +1,57 @@
+package com.vernonsung.testaudiostream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+// RTP header parse and serialize per packet
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RtpBenchmark {
+    private final RtpPacket packet = new RtpPacket();
+    private final byte[] payload = new byte[160];
+    private ByteBuffer received;
+    private ByteBuffer sendBuffer;
+    private RtpPacketizer packetizer;
+
+    @Setup
+    public void setUp() {
+        RtpBufferPool pool = new RtpBufferPool(4, RtpBufferPool.DEFAULT_BUFFER_SIZE, true);
+        packetizer = new RtpPacketizer(pool, 0x12345678L, 0, 160);
+        sendBuffer = pool.acquire();
+        received = pool.acquire();
+        packetizer.packetize(payload, 0, payload.length, received);
+    }
+
+    @Benchmark
+    public int parse() {
+        packet.parse(received);
+        return packet.getPayloadLength();
+    }
+
+    @Benchmark
+    public int writeHeader() {
+        sendBuffer.clear();
+        packet.setSequenceNumber(packet.getSequenceNumber() + 1);
+        return packet.writeHeader(sendBuffer);
+    }
+
+    @Benchmark
+    public boolean packetize() {
+        return packetizer.packetize(payload, 0, payload.length, sendBuffer);
+    }
+}
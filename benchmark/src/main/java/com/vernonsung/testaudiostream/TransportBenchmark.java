@@ -0,0 +1,100 @@
+package com.vernonsung.testaudiostream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// One packet to each of many streams over loopback, and until the transport's event loop has
+// handed every one to its listener: the round of a conference server fanning out a frame. The
+// system calls per packet on either side are printed at the end.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TransportBenchmark {
+    private static final int FRAME_SAMPLES = 160;
+    // Longest wait for a round, so a packet the kernel dropped doesn't hang the benchmark
+    private static final long ROUND_TIMEOUT_NANOS = 100000000L;
+
+    @Param({"1", "8", "24"})
+    public int streams;
+
+    private RtpTransport transport;
+    private RtpTransport.Endpoint sender;
+    private RtpTransport.Endpoint[] receivers;
+    private ByteBuffer packet;
+    private final AtomicLong received = new AtomicLong();
+    private long expected;
+    private long timeouts;
+
+    @Setup
+    public void setUp() throws Exception {
+        transport = new RtpTransport();
+        transport.start();
+        RtpTransport.Listener listener = new RtpTransport.Listener() {
+            @Override
+            public void onPacket(RtpTransport.Endpoint endpoint, ByteBuffer packet, SocketAddress source,
+                                 long arrivalNanos) {
+                received.incrementAndGet();
+            }
+        };
+        InetSocketAddress any = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+        sender = transport.open(any, null, listener);
+        receivers = new RtpTransport.Endpoint[streams];
+        for (int i = 0; i < streams; i++) {
+            receivers[i] = transport.open(any, null, listener);
+        }
+        // Let the loop register the channels before traffic starts
+        Thread.sleep(100);
+        packet = ByteBuffer.allocateDirect(CallPipeline.MAX_PACKET_SIZE);
+        new RtpPacketizer(null, G711Codec.PAYLOAD_TYPE_PCMU, FRAME_SAMPLES)
+                .packetize(new byte[FRAME_SAMPLES], 0, FRAME_SAMPLES, packet);
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        System.out.println(String.format(Locale.US,
+                "%n%d streams: %.2f receive and %.2f send system calls per packet, %d rounds timed out",
+                streams, transport.getReceiveSyscallsPerPacket(), transport.getSendSyscallsPerPacket(), timeouts));
+        transport.stop();
+    }
+
+    @Benchmark
+    public long round() throws IOException {
+        for (RtpTransport.Endpoint receiver : receivers) {
+            transport.send(sender, packet, receiver.getLocalAddress());
+        }
+        expected += streams;
+        long deadline = System.nanoTime() + ROUND_TIMEOUT_NANOS;
+        long count;
+        while ((count = received.get()) < expected) {
+            if (System.nanoTime() > deadline) {
+                // Carry on from what really arrived
+                timeouts++;
+                expected = count;
+                break;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,135 @@
+package com.vernonsung.testaudiostream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Echo cancellation and noise suppression per 20 ms frame at 8 kHz. The far end is a recording,
+// or synthetic speech without one, and the near end its echo through a short room response in
+// background noise:
+//   ./gradlew :benchmark:jmh -Pinclude=VoiceProcessor -Precording=/path/to/far.wav
+// The frame budget of the process stage is 5 ms. Timings the processor took itself are printed
+// at the end.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class VoiceProcessorBenchmark {
+    private static final int FRAME_SAMPLES = 160;
+    private static final int SAMPLE_RATE = 8000;
+
+    // WAV or raw 16-bit PCM at 8 kHz, empty for the synthetic one
+    @Param({""})
+    public String recording;
+
+    @Param({"64", "128", "256"})
+    public int tailMillis;
+
+    private short[] far;
+    private short[] near;
+    private int frames;
+    private int frame;
+    private VoiceProcessor processor;
+    private final short[] pcm = new short[FRAME_SAMPLES];
+
+    @Setup
+    public void setUp() throws IOException {
+        if (recording.isEmpty()) {
+            far = talker(30);
+        } else {
+            PcmFile file = PcmFile.read(new File(recording), SAMPLE_RATE);
+            if (file.sampleRate != SAMPLE_RATE) {
+                throw new IOException(recording + " is at " + file.sampleRate + " Hz, not " + SAMPLE_RATE);
+            }
+            far = file.samples;
+        }
+        near = echo(far);
+        frames = far.length / FRAME_SAMPLES;
+        processor = new VoiceProcessor(SAMPLE_RATE, FRAME_SAMPLES, tailMillis);
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.out.println();
+        System.out.println("Voice processing " + processor);
+    }
+
+    // Noise through a resonance, its level wandering
+    private static short[] talker(int seconds) {
+        Random random = new Random(42);
+        short[] samples = new short[seconds * SAMPLE_RATE];
+        double y1 = 0;
+        double y2 = 0;
+        for (int i = 0; i < samples.length; i++) {
+            double envelope = 0.6 + 0.4 * Math.sin(2 * Math.PI * 2 * i / SAMPLE_RATE);
+            double y = random.nextGaussian() + 1.6 * y1 - 0.8 * y2;
+            y2 = y1;
+            y1 = y;
+            samples[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, 2000 * envelope * y));
+        }
+        return samples;
+    }
+
+    // 5 ms late, smeared by the room, in -50 dBov noise
+    private static short[] echo(short[] far) {
+        Random random = new Random(7);
+        short[] samples = new short[far.length];
+        for (int i = 0; i < far.length; i++) {
+            double s = random.nextGaussian() * 104;
+            if (i >= 45) {
+                s += 0.3 * far[i - 40] - 0.15 * far[i - 41] + 0.1 * far[i - 45];
+            }
+            samples[i] = (short) s;
+        }
+        return samples;
+    }
+
+    private int nextFrame() {
+        int offset = frame * FRAME_SAMPLES;
+        if (++frame == frames) {
+            frame = 0;
+        }
+        return offset;
+    }
+
+    private short[] process(boolean echoCancellation, boolean noiseSuppression) {
+        processor.setEchoCancellation(echoCancellation);
+        processor.setNoiseSuppression(noiseSuppression);
+        int offset = nextFrame();
+        processor.onPlayout(far, offset, FRAME_SAMPLES);
+        System.arraycopy(near, offset, pcm, 0, FRAME_SAMPLES);
+        processor.process(pcm, 0, FRAME_SAMPLES);
+        return pcm;
+    }
+
+    @Benchmark
+    public short[] echoCancellation() {
+        return process(true, false);
+    }
+
+    @Benchmark
+    public short[] noiseSuppression() {
+        return process(false, true);
+    }
+
+    @Benchmark
+    public short[] both() {
+        return process(true, true);
+    }
+}
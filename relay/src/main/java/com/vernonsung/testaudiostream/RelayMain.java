@@ -0,0 +1,138 @@
+package com.vernonsung.testaudiostream;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Command line relay: receive one RTP stream on a UDP port and forward it to every subscriber
+// given as host:port, from the same port. Every few seconds it prints the packets forwarded per
+// second and the CPU time each took.
+//   relay --listen 5004 [--clock-rate 8000] [--spread-ms 10] [--stats-seconds 5] host:port...
+public class RelayMain {
+    private static void usage(String problem) {
+        System.err.println(problem);
+        System.err.println("Usage: relay --listen port [--clock-rate hz] [--spread-ms ms] [--stats-seconds s]"
+                + " host:port...");
+        System.exit(2);
+    }
+
+    private static InetSocketAddress parseAddress(String value) {
+        int colon = value.lastIndexOf(':');
+        if (colon <= 0) {
+            usage("Subscriber " + value + " isn't host:port");
+        }
+        String host = value.substring(0, colon);
+        if (host.startsWith("[") && host.endsWith("]")) {
+            host = host.substring(1, host.length() - 1);
+        }
+        return new InetSocketAddress(host, Integer.parseInt(value.substring(colon + 1)));
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = -1;
+        int clockRate = G711Codec.CLOCK_RATE;
+        long spreadNanos = RtpRelay.DEFAULT_SPREAD_NANOS;
+        int statsSeconds = 5;
+        List<InetSocketAddress> targets = new ArrayList<InetSocketAddress>();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.startsWith("--") && i + 1 == args.length) {
+                usage(arg + " needs a value");
+            }
+            if (arg.equals("--listen")) {
+                port = Integer.parseInt(args[++i]);
+            } else if (arg.equals("--clock-rate")) {
+                clockRate = Integer.parseInt(args[++i]);
+            } else if (arg.equals("--spread-ms")) {
+                spreadNanos = Long.parseLong(args[++i]) * 1000000L;
+            } else if (arg.equals("--stats-seconds")) {
+                statsSeconds = Integer.parseInt(args[++i]);
+            } else if (arg.startsWith("--")) {
+                usage("Unknown option " + arg);
+            } else {
+                targets.add(parseAddress(arg));
+            }
+        }
+        if (port < 0 || targets.isEmpty()) {
+            usage("A port to listen on and at least one subscriber are needed");
+        }
+
+        final RtpTransport transport = new RtpTransport();
+        final RtpRelay relay = new RtpRelay(PipelineClock.SYSTEM, clockRate, RtpRelay.DEFAULT_CAPACITY, spreadNanos);
+        final RtpTransport.Endpoint endpoint = transport.open(new InetSocketAddress(port), null, relay);
+        final AtomicLong sendErrors = new AtomicLong();
+        for (final InetSocketAddress target : targets) {
+            relay.addSubscriber(new CallPipeline.PacketSink() {
+                @Override
+                public void send(ByteBuffer packet) {
+                    try {
+                        transport.send(endpoint, packet, target);
+                    } catch (IOException e) {
+                        sendErrors.incrementAndGet();
+                    }
+                }
+            });
+        }
+        transport.start();
+        relay.start();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                relay.stop();
+                try {
+                    transport.stop();
+                } catch (InterruptedException e) {
+                    // Exiting anyway
+                }
+            }
+        });
+        System.out.println("Relaying port " + endpoint.getLocalAddress().getPort() + " to " + targets.size()
+                + " subscribers");
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        long lastNanos = System.nanoTime();
+        long lastCpu = cpuNanos(threads);
+        long lastReceived = 0;
+        long lastForwarded = 0;
+        long lastBusy = 0;
+        while (true) {
+            Thread.sleep(statsSeconds * 1000L);
+            long now = System.nanoTime();
+            long cpu = cpuNanos(threads);
+            long received = relay.getReceivedCount();
+            long forwarded = relay.getForwardedCount();
+            long busy = relay.getBusyNanos();
+            double seconds = (now - lastNanos) / 1e9;
+            long packets = Math.max(forwarded - lastForwarded, 1);
+            System.out.println(String.format(Locale.US,
+                    "%.0f in/s, %.0f out/s, %.0f ns CPU per forwarded packet (pacer %.0f ns), %d dropped,"
+                            + " %d send errors, %d socket full",
+                    (received - lastReceived) / seconds, (forwarded - lastForwarded) / seconds,
+                    (double) (cpu - lastCpu) / packets, (double) (busy - lastBusy) / packets,
+                    relay.getDroppedCount(), sendErrors.get(), transport.getSendDropped()));
+            lastNanos = now;
+            lastCpu = cpu;
+            lastReceived = received;
+            lastForwarded = forwarded;
+            lastBusy = busy;
+        }
+    }
+
+    // CPU time of all threads of the process
+    private static long cpuNanos(ThreadMXBean threads) {
+        long total = 0;
+        for (long id : threads.getAllThreadIds()) {
+            long cpu = threads.getThreadCpuTime(id);
+            if (cpu > 0) {
+                total += cpu;
+            }
+        }
+        return total;
+    }
+}
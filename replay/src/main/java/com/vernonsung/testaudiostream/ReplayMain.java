@@ -0,0 +1,105 @@
+package com.vernonsung.testaudiostream;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Command line replay: feed the RTP in a pcap capture to a call pipeline's receive lane and
+// print what the jitter buffer did and how long each receive stage took. G.711 only, like the
+// app. Speed 1 is real time, higher is that many times faster with real sleeps between frames,
+// and 0 is as fast as possible on a virtual clock.
+//   replay [--port 5004] [--speed 1] [--payload-type 0] capture.pcap
+public class ReplayMain {
+    private static void usage(String problem) {
+        System.err.println(problem);
+        System.err.println("Usage: replay [--port destination-port] [--speed factor] [--payload-type 0|8] capture.pcap");
+        System.exit(2);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int port = -1;
+        double speed = 1;
+        int payloadType = G711Codec.PAYLOAD_TYPE_PCMU;
+        File file = null;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.startsWith("--") && i + 1 == args.length) {
+                usage(arg + " needs a value");
+            }
+            if (arg.equals("--port")) {
+                port = Integer.parseInt(args[++i]);
+            } else if (arg.equals("--speed")) {
+                speed = Double.parseDouble(args[++i]);
+            } else if (arg.equals("--payload-type")) {
+                payloadType = Integer.parseInt(args[++i]);
+            } else if (arg.startsWith("--")) {
+                usage("Unknown option " + arg);
+            } else {
+                file = new File(arg);
+            }
+        }
+        if (file == null) {
+            usage("A capture file is needed");
+        }
+        if (payloadType != G711Codec.PAYLOAD_TYPE_PCMU && payloadType != G711Codec.PAYLOAD_TYPE_PCMA) {
+            usage("Payload type " + payloadType + " isn't G.711");
+        }
+        if (speed < 0) {
+            usage("Speed " + speed + " is negative");
+        }
+
+        PipelineClock clock;
+        if (speed == 0) {
+            clock = new VirtualClock(System.nanoTime());
+        } else if (speed == 1) {
+            clock = PipelineClock.SYSTEM;
+        } else {
+            clock = new ScaledClock(PipelineClock.SYSTEM, speed);
+        }
+        boolean ulaw = payloadType == G711Codec.PAYLOAD_TYPE_PCMU;
+        CallPipeline pipeline = new CallPipeline(clock, ulaw ? G711Codec.createUlaw() : G711Codec.createAlaw(),
+                payloadType, new CallPipeline.AudioInput() {
+                    @Override
+                    public int read(short[] pcm, int offset, int samples) {
+                        return 0;
+                    }
+                }, new CallPipeline.AudioOutput() {
+                    @Override
+                    public int write(short[] pcm, int offset, int samples) {
+                        return samples;
+                    }
+
+                    @Override
+                    public int getQueuedSamples() {
+                        return -1;
+                    }
+                }, new CallPipeline.PacketSink() {
+                    @Override
+                    public void send(ByteBuffer packet) {
+                    }
+                });
+        CallPipeline.Remote remote = pipeline.addRemote(ulaw ? G711Codec.createUlaw() : G711Codec.createAlaw(),
+                payloadType);
+
+        CaptureFile capture = CaptureFile.open(file);
+        CaptureReplay.Report report;
+        try {
+            CaptureReplay replay = new CaptureReplay(capture, clock);
+            replay.setDestinationPort(port);
+            report = replay.run(pipeline, remote);
+        } finally {
+            capture.close();
+        }
+
+        System.out.println(report);
+        JitterBuffer jitterBuffer = remote.getJitterBuffer();
+        System.out.println("Jitter " + jitterBuffer.getJitter() + " timestamp units, target delay "
+                + jitterBuffer.getTargetDelayFrames() + " frames, " + jitterBuffer.getUnderrunCount() + " underruns, "
+                + jitterBuffer.getDuplicateCount() + " duplicates, " + remote.getReceiver().getInvalidCount()
+                + " invalid packets");
+        PipelineScheduler lane = pipeline.getReceiveLane();
+        for (int i = 0; i < lane.getStageCount(); i++) {
+            System.out.println(lane.getStats(i));
+        }
+    }
+}